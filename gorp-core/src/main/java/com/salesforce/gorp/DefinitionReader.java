@@ -10,8 +10,10 @@ import java.io.*;
 import java.util.*;
 
 import com.fasterxml.jackson.jr.ob.JSON;
+import com.salesforce.gorp.autom.MatcherConfig;
 import com.salesforce.gorp.io.InputLine;
 import com.salesforce.gorp.io.InputLineReader;
+import com.salesforce.gorp.jdkre.JDKRegexpExtractionCooker;
 import com.salesforce.gorp.model.*;
 import com.salesforce.gorp.util.StringAndOffset;
 import com.salesforce.gorp.util.TokenHelper;
@@ -43,6 +45,10 @@ public class DefinitionReader
 
     protected final CookedDefinitions _cooked;
 
+    protected MatcherConfig _matcherConfig = MatcherConfig.DEFAULT;
+
+    protected ExtractionCooker _cooker = JDKRegexpExtractionCooker.instance();
+
     protected DefinitionReader(InputLineReader lineReader) {
         _lineReader = lineReader;
         _cooked = new CookedDefinitions();
@@ -66,6 +72,28 @@ public class DefinitionReader
         return new DefinitionReader(lines);
     }
 
+    /**
+     * Method for changing settings used for constructing {@link com.salesforce.gorp.autom.PolyMatcher}
+     * for the {@link Gorp} that {@link #read} builds.
+     *
+     * @return This reader, for call chaining
+     */
+    public DefinitionReader withMatcherConfig(MatcherConfig config) {
+        _matcherConfig = config;
+        return this;
+    }
+
+    /**
+     * Method for changing backend used for extracting values from matching input;
+     * by default {@link JDKRegexpExtractionCooker} is used.
+     *
+     * @return This reader, for call chaining
+     */
+    public DefinitionReader withCooker(ExtractionCooker cooker) {
+        _cooker = cooker;
+        return this;
+    }
+
     /**
      * Method used to fully read the input definition, resolve all included
      * patterns, templates, extractors and extractions, and construct and
@@ -109,7 +137,7 @@ public class DefinitionReader
     }
 
     Gorp buildExtractor() throws DefinitionParseException {
-        return Gorp.construct(_cooked);
+        return Gorp.construct(_cooked, _cooker, _matcherConfig);
     }
 
     /*
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp;
+
+import java.util.*;
+
+import com.salesforce.gorp.model.CookedExtraction;
+import com.salesforce.gorp.util.CharSequenceView;
+import com.salesforce.gorp.util.ValueDictionary;
+
+/**
+ * Results of extracting a batch of input lines with
+ * {@link Gorp#extractBatch(List, ExtractionBatch)}, stored in columnar form:
+ * index of matched extraction for each row (line), and for each extraction,
+ * rows it matched along with a column of value offsets for each of its extractors.
+ * Columns may be dictionary-encoded with {@link Columns#encode}.
+ *<p>
+ * For extractions that do not report offsets of values (see
+ * {@link CookedExtraction#reportsOffsets}), offsets refer to text that consists of
+ * extracted values (see {@link Columns#getText}) instead of input line.
+ *<p>
+ * Buffers are reused when the same batch is passed for extracting the next batch
+ * of lines, so that after warm-up nothing is allocated per batch.
+ * Since values refer to input lines, lines must not be modified as long as
+ * batch is used. Instances are not thread-safe.
+ */
+public class ExtractionBatch
+{
+    private final static int MIN_CAPACITY = 16;
+
+    protected final Gorp _gorp;
+
+    protected final List<CookedExtraction> _extractions;
+
+    protected final ExtractionSink _sink = new BatchSink();
+
+    protected CharSequence[] _lines = new CharSequence[MIN_CAPACITY];
+
+    /**
+     * Index of matched extraction for each row; -1 for rows that did not match
+     */
+    protected int[] _matches = new int[MIN_CAPACITY];
+
+    protected int _size;
+
+    /**
+     * Columns for each extraction, constructed when extraction first matches
+     */
+    protected final Columns[] _columns;
+
+    /**
+     * Columns of extraction that is currently being matched
+     */
+    protected Columns _currentColumns;
+
+    protected int _currentRow;
+
+    public ExtractionBatch(Gorp gorp) {
+        _gorp = gorp;
+        _extractions = gorp.getExtractions();
+        _columns = new Columns[_extractions.size()];
+    }
+
+    /*
+    /**********************************************************************
+    /* Population, called by Gorp
+    /**********************************************************************
+     */
+
+    protected void _start(int size)
+    {
+        if (size > _lines.length) {
+            final int capacity = Math.max(size, 2 * _lines.length);
+            _lines = new CharSequence[capacity];
+            _matches = new int[capacity];
+        } else if (size < _size) {
+            // so as not to retain lines of earlier batches
+            Arrays.fill(_lines, size, _size, null);
+        }
+        _size = size;
+        for (Columns columns : _columns) {
+            if (columns != null) {
+                columns._size = 0;
+            }
+        }
+    }
+
+    protected ExtractionSink _sinkFor(int row, CharSequence line)
+    {
+        _currentRow = row;
+        _lines[row] = line;
+        _matches[row] = -1;
+        return _sink;
+    }
+
+    protected void _matched(int row, int matchIndex) {
+        _matches[row] = matchIndex;
+    }
+
+    /*
+    /**********************************************************************
+    /* Accessors
+    /**********************************************************************
+     */
+
+    public Gorp getGorp() { return _gorp; }
+
+    /**
+     * @return Number of rows (input lines) in batch
+     */
+    public int size() { return _size; }
+
+    public CharSequence getLine(int row) { return _lines[row]; }
+
+    /**
+     * @return Index of extraction that matched given row; -1 if none did
+     */
+    public int getMatchIndex(int row) { return _matches[row]; }
+
+    /**
+     * @return Column of indexes of matched extractions: backing array, of which
+     *    first {@link #size()} entries are valid
+     */
+    public int[] getMatchIndexes() { return _matches; }
+
+    /**
+     * @return Columns of values extracted by extraction with given index; null
+     *    if extraction has not matched any line since this batch was created
+     *    (if constructed, but did not match rows of this batch, size is 0)
+     */
+    public Columns getColumns(int extractionIndex) { return _columns[extractionIndex]; }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Values extracted for rows matched by a single extraction: rows are in
+     * order, and for each extractor, start and end offset of value within
+     * the line (see {@link #getText}) are stored as consecutive entries (-1 for
+     * values that were not matched).
+     */
+    public final static class Columns
+    {
+        private final CookedExtraction _extraction;
+
+        private final ExtractionBatch _batch;
+
+        private int[] _rows = new int[MIN_CAPACITY];
+
+        private final int[][] _offsets;
+
+        /**
+         * Text that offsets of each entry refer to, if not the input line;
+         * only constructed for extractions that do not report offsets
+         */
+        private CharSequence[] _texts;
+
+        int _size;
+
+        Columns(ExtractionBatch batch, CookedExtraction extr)
+        {
+            _batch = batch;
+            _extraction = extr;
+            _offsets = new int[extr.getExtractorNames().size()][];
+            for (int i = 0; i < _offsets.length; ++i) {
+                _offsets[i] = new int[2 * MIN_CAPACITY];
+            }
+        }
+
+        int _addRow(int row, CharSequence text)
+        {
+            final int ix = _size++;
+            if (ix == _rows.length) {
+                final int capacity = 2 * ix;
+                _rows = Arrays.copyOf(_rows, capacity);
+                for (int i = 0; i < _offsets.length; ++i) {
+                    _offsets[i] = Arrays.copyOf(_offsets[i], 2 * capacity);
+                }
+                if (_texts != null) {
+                    _texts = Arrays.copyOf(_texts, capacity);
+                }
+            }
+            _rows[ix] = row;
+            if (text != null) {
+                if (_texts == null) {
+                    _texts = new CharSequence[_rows.length];
+                }
+                _texts[ix] = text;
+            } else if (_texts != null) {
+                _texts[ix] = null;
+            }
+            return ix;
+        }
+
+        public CookedExtraction getExtraction() { return _extraction; }
+
+        /**
+         * @return Number of rows matched by extraction
+         */
+        public int size() { return _size; }
+
+        /**
+         * @return Number of value columns, that is, extractors of extraction
+         */
+        public int getColumnCount() { return _offsets.length; }
+
+        /**
+         * @return Row (index of input line within batch) of given entry
+         */
+        public int getRow(int index) { return _rows[index]; }
+
+        /**
+         * @return Column of rows: backing array, of which first {@link #size()}
+         *    entries are valid
+         */
+        public int[] getRows() { return _rows; }
+
+        /**
+         * @return Text that offsets of values of given entry refer to: the input
+         *    line, unless extraction does not report offsets (see
+         *    {@link CookedExtraction#reportsOffsets})
+         */
+        public CharSequence getText(int index)
+        {
+            if (_texts != null) {
+                final CharSequence text = _texts[index];
+                if (text != null) {
+                    return text;
+                }
+            }
+            return _batch._lines[_rows[index]];
+        }
+
+        public int getStart(int extractorIndex, int index) { return _offsets[extractorIndex][2*index]; }
+
+        public int getEnd(int extractorIndex, int index) { return _offsets[extractorIndex][2*index + 1]; }
+
+        /**
+         * @return Column of value offsets for given extractor: backing array, with
+         *    start and end offset of each of first {@link #size()} entries
+         */
+        public int[] getOffsets(int extractorIndex) { return _offsets[extractorIndex]; }
+
+        /**
+         * @return View of value of given extractor for given entry, without
+         *    constructing a <code>String</code>; null if value was not matched
+         */
+        public CharSequence getValueAsCharSequence(int extractorIndex, int index)
+        {
+            final int[] offsets = _offsets[extractorIndex];
+            final int start = offsets[2*index];
+            if (start < 0) {
+                return null;
+            }
+            return new CharSequenceView(getText(index), start, offsets[2*index + 1]);
+        }
+
+        public String getValue(int extractorIndex, int index)
+        {
+            final int[] offsets = _offsets[extractorIndex];
+            final int start = offsets[2*index];
+            if (start < 0) {
+                return null;
+            }
+            final CharSequence line = getText(index);
+            final int end = offsets[2*index + 1];
+            if (line instanceof String) {
+                return ((String) line).substring(start, end);
+            }
+            return line.subSequence(start, end).toString();
+        }
+
+        /**
+         * Method for dictionary-encoding values of given extractor: codes are
+         * assigned by given dictionary, which may be shared across batches
+         * (and columns) to keep codes stable.
+         *
+         * @param codes Array to store codes in, if big enough; if null or too
+         *    small, a new one is allocated
+         *
+         * @return Array with codes of first {@link #size()} entries; -1 for
+         *    values that were not matched
+         */
+        public int[] encode(int extractorIndex, ValueDictionary dict, int[] codes)
+        {
+            if ((codes == null) || (codes.length < _size)) {
+                codes = new int[Math.max(_size, MIN_CAPACITY)];
+            }
+            final int[] offsets = _offsets[extractorIndex];
+            for (int i = 0; i < _size; ++i) {
+                final int start = offsets[2*i];
+                codes[i] = (start < 0) ? -1
+                        : dict.add(getText(i), start, offsets[2*i + 1]);
+            }
+            return codes;
+        }
+    }
+
+    private final class BatchSink implements ExtractionSink
+    {
+        private int _entry;
+
+        @Override
+        public void matched(CookedExtraction extraction, CharSequence input)
+        {
+            final int index = extraction.getIndex();
+            Columns columns = _columns[index];
+            if (columns == null) {
+                _columns[index] = columns = new Columns(ExtractionBatch.this, extraction);
+            }
+            _currentColumns = columns;
+            // values of extractions that do not report offsets refer to other text
+            _entry = columns._addRow(_currentRow, (input == _lines[_currentRow]) ? null : input);
+        }
+
+        @Override
+        public void value(int extractorIndex, int start, int end)
+        {
+            final int[] offsets = _currentColumns._offsets[extractorIndex];
+            offsets[2*_entry] = start;
+            offsets[2*_entry + 1] = end;
+        }
+    }
+}
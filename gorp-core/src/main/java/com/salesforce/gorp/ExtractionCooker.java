@@ -1,5 +1,8 @@
 package com.salesforce.gorp;
 
+import java.util.List;
+import java.util.Map;
+
 import com.salesforce.gorp.model.CookedExtraction;
 import com.salesforce.gorp.model.FlattenedExtraction;
 
@@ -10,6 +13,10 @@ import com.salesforce.gorp.model.FlattenedExtraction;
  * actual extraction of template values from input.
  * This factory interface allows for plugging alternate backends based on
  * regexp packages other than one provided by JDK (<code>java.util.regex</code>).
+ *<p>
+ * Note that <code>cook</code> methods may be called concurrently from multiple
+ * threads if parallel construction is enabled
+ * (see {@link com.salesforce.gorp.autom.MatcherConfig#withParallelism}).
  * 
  * @see com.salesforce.gorp.jdkre.JDKRegexpExtractionCooker
  */
@@ -22,6 +29,23 @@ public abstract class ExtractionCooker
     public abstract CookedExtraction cook(int index, String regexpSource,
             FlattenedExtraction extr);
 
+    /**
+     * Method for re-creating {@link CookedExtraction} from its already processed
+     * regexp source (as returned by {@link CookedExtraction#getRegexpSource()})
+     * and other metadata, without access to the original definition: used when
+     * loading precompiled definitions (see {@link PrecompiledGorp}).
+     *<p>
+     * Default implementation throws {@link IllegalStateException}: cookers
+     * that support precompiled definitions need to override it.
+     */
+    public CookedExtraction cook(int index, String name, Map<String,Object> append,
+            String regexpSource, List<String> extractorNames)
+    {
+        throw new IllegalStateException(String.format(
+                "Extraction cooker of type %s does not support precompiled definitions",
+                getClass().getName()));
+    }
+
     public abstract void appendPattern(String pattern, StringBuilder buffer);
     public abstract void appendLiteral(String literal, StringBuilder buffer);
 
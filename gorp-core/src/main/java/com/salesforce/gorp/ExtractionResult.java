@@ -6,9 +6,15 @@
  */
 package com.salesforce.gorp;
 
+import java.io.*;
 import java.util.*;
 
+import com.fasterxml.jackson.jr.ob.JSON;
+import com.fasterxml.jackson.jr.ob.comp.ArrayComposer;
+import com.fasterxml.jackson.jr.ob.comp.ComposerBase;
+import com.fasterxml.jackson.jr.ob.comp.ObjectComposer;
 import com.salesforce.gorp.model.CookedExtraction;
+import com.salesforce.gorp.model.ExtractionSchema;
 
 /**
  * Result gotten by matching an input line against extraction rules.
@@ -19,14 +25,18 @@ public class ExtractionResult
 {
     protected final String _id;
 
-    protected final String _input;
+    /**
+     * Input that was matched: usually a <code>String</code>, but may also be
+     * a view of byte input that is only decoded on {@link #getInput()}.
+     */
+    protected final CharSequence _input;
 
     protected final CookedExtraction _matchedExtraction;
 
     protected final String[] _extractorNames;
     protected final String[] _extractedValues;
 
-    public ExtractionResult(String id, String input, CookedExtraction extr,
+    public ExtractionResult(String id, CharSequence input, CookedExtraction extr,
             String[] names, String[] values)
     {
         _id = id;
@@ -37,11 +47,31 @@ public class ExtractionResult
     }
 
     public String getId() { return _id; }
-    public String getInput() { return _input; }
+    public String getInput() { return _input.toString(); }
     public CookedExtraction getMatchedExtraction() { return _matchedExtraction; }
 
     public Map<String,Object> getExtra() { return _matchedExtraction.getExtra(); }
 
+    /**
+     * @return Number of extracted values
+     */
+    public int size() { return _extractorNames.length; }
+
+    public String getExtractorName(int index) { return _extractorNames[index]; }
+
+    /**
+     * @return Value extracted by extractor with given index, if any; null if
+     *    extractor was within optional part of the extraction that did not match
+     */
+    public String getValue(int index) { return _extractedValues[index]; }
+
+    /**
+     * Accessor for extracted value without necessarily constructing a
+     * <code>String</code> out of it (see {@link OffsetExtractionResult});
+     * for basic results same as {@link #getValue}.
+     */
+    public CharSequence getValueAsCharSequence(int index) { return getValue(index); }
+
     /**
      * Method to call to get extracted results (including values to append, if any)
      * as a {link java.util.Map}.
@@ -57,33 +87,145 @@ public class ExtractionResult
     
     /**
      * Method to call to get extracted results (including values to append, if any)
-     * as a {link java.util.Map}.
+     * as a {link java.util.Map}: returned map is an unmodifiable view of this result,
+     * with keys (and their order) precomputed for the matched extraction
+     * (see {@link CookedExtraction#getSchema}), so only the view itself is allocated.
+     * Keys are in the order of id, extractors and values to append; for
+     * duplicate keys, the last value is used.
      * 
      * @param idAs Optional property to use for id of the matched extraction; if null,
      *     name is not added as a property
      */
     public Map<String,Object> asMap(String idAs)
     {
-        Map<String,Object> extra = getExtra();
-        int size = _extractedValues.length;
-        if (extra != null) {
-            size += extra.size();
-        }
-        if (idAs != null) {
-            ++size;
+        return new ExtractionResultMap(_matchedExtraction.getSchema(idAs), this);
+    }
+
+    /*
+    /**********************************************************************
+    /* JSON output
+    /**********************************************************************
+     */
+
+    /**
+     * Helper method for writing properties of this result into given JSON Object
+     * composer, without constructing {@link #asMap} first: contents are the same as
+     * serializing <code>asMap(idAs)</code> with jackson-jr, so properties with
+     * null values are omitted. Object is not ended.
+     *
+     * @param idAs Optional property to use for id of the matched extraction; if null,
+     *     id is not written
+     */
+    public <P extends ComposerBase> ObjectComposer<P> writeJson(ObjectComposer<P> obj, String idAs)
+        throws IOException
+    {
+        final ExtractionSchema schema = _matchedExtraction.getSchema(idAs);
+        for (int i = 0, end = schema.size(); i < end; ++i) {
+            final int valueIndex = schema.getValueIndex(i);
+            if (valueIndex == ExtractionSchema.CONSTANT) {
+                final Object value = schema.getConstant(i);
+                if (value != null) {
+                    _putConstant(obj, schema.getKey(i), value);
+                }
+            } else {
+                final String value = getValue(valueIndex);
+                if (value != null) {
+                    obj.put(schema.getKey(i), value);
+                }
+            }
         }
-        LinkedHashMap<String,Object> result = new LinkedHashMap<>(size);
+        return obj;
+    }
 
-        // Start with id; add actual matches, append appendables
-        if (idAs != null) {
-            result.put(idAs, _id);
+    /**
+     * Method for writing this result as a JSON Object to given writer, without
+     * constructing {@link #asMap} first: contents are the same as serializing
+     * <code>asMap(idAs)</code> with jackson-jr, so properties with null values
+     * are omitted. Writer is flushed but not closed.
+     *
+     * @param idAs Optional property to use for id of the matched extraction; if null,
+     *     id is not written
+     */
+    public void writeJson(Writer w, String idAs) throws IOException
+    {
+        // composer closes its target when finished, but caller owns it
+        final Writer target = new FilterWriter(w) {
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        writeJson(JSON.std.composeTo(target).startObject(), idAs).end().finish();
+    }
+
+    /**
+     * Method for writing this result as a UTF-8 encoded JSON Object to given stream;
+     * see {@link #writeJson(Writer, String)} for details. Stream is flushed
+     * but not closed.
+     */
+    public void writeJson(OutputStream out, String idAs) throws IOException
+    {
+        final OutputStream target = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        writeJson(JSON.std.composeTo(target).startObject(), idAs).end().finish();
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    // composers can only write scalars with putObject()/addObject(), so
+    // structured constants (Lists, Maps) need to be written element by element
+
+    private static void _putConstant(ObjectComposer<?> obj, String key, Object value)
+        throws IOException
+    {
+        if (value instanceof Map<?,?>) {
+            _writeEntries(obj.startObjectField(key), (Map<?,?>) value).end();
+        } else if (value instanceof Collection<?>) {
+            _writeElements(obj.startArrayField(key), (Collection<?>) value).end();
+        } else {
+            obj.putObject(key, value);
         }
-        for (int i = 0, end = _extractedValues.length; i < end; ++i) {
-            result.put(_extractorNames[i], _extractedValues[i]);
+    }
+
+    private static <P extends ComposerBase> ObjectComposer<P> _writeEntries(ObjectComposer<P> obj,
+            Map<?,?> entries) throws IOException
+    {
+        for (Map.Entry<?,?> entry : entries.entrySet()) {
+            // as with jackson-jr serialization, null-valued properties are omitted
+            if (entry.getValue() != null) {
+                _putConstant(obj, String.valueOf(entry.getKey()), entry.getValue());
+            }
         }
-        if (extra != null) {
-            result.putAll(extra);
+        return obj;
+    }
+
+    private static <P extends ComposerBase> ArrayComposer<P> _writeElements(ArrayComposer<P> arr,
+            Collection<?> elements) throws IOException
+    {
+        for (Object value : elements) {
+            if (value instanceof Map<?,?>) {
+                _writeEntries(arr.startObject(), (Map<?,?>) value).end();
+            } else if (value instanceof Collection<?>) {
+                _writeElements(arr.startArray(), (Collection<?>) value).end();
+            } else if (value == null) {
+                arr.addNull();
+            } else {
+                arr.addObject(value);
+            }
         }
-        return result;
+        return arr;
     }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp;
+
+import java.util.*;
+
+import com.salesforce.gorp.model.ExtractionSchema;
+
+/**
+ * Unmodifiable {@link Map} view of an {@link ExtractionResult}, returned by
+ * {@link ExtractionResult#asMap}: keys, their order and constant values come
+ * from the {@link ExtractionSchema} of the matched extraction, and extracted
+ * values from the result itself, so nothing is copied. Entries are only
+ * constructed if iterated over.
+ */
+final class ExtractionResultMap extends AbstractMap<String,Object>
+{
+    private final ExtractionSchema _schema;
+
+    private final ExtractionResult _result;
+
+    private Set<Map.Entry<String,Object>> _entrySet;
+
+    ExtractionResultMap(ExtractionSchema schema, ExtractionResult result) {
+        _schema = schema;
+        _result = result;
+    }
+
+    @Override
+    public int size() {
+        return _schema.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return _schema.indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        final int ix = _schema.indexOf(key);
+        return (ix < 0) ? null : _value(ix);
+    }
+
+    Object _value(int index) {
+        final int valueIndex = _schema.getValueIndex(index);
+        if (valueIndex == ExtractionSchema.CONSTANT) {
+            return _schema.getConstant(index);
+        }
+        return _result.getValue(valueIndex);
+    }
+
+    @Override
+    public Set<Map.Entry<String,Object>> entrySet()
+    {
+        Set<Map.Entry<String,Object>> entries = _entrySet;
+        if (entries == null) {
+            _entrySet = entries = new AbstractSet<Map.Entry<String,Object>>() {
+                @Override
+                public int size() {
+                    return _schema.size();
+                }
+
+                @Override
+                public Iterator<Map.Entry<String,Object>> iterator() {
+                    return new EntryIterator();
+                }
+            };
+        }
+        return entries;
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String,Object>>
+    {
+        private int _index;
+
+        @Override
+        public boolean hasNext() {
+            return _index < _schema.size();
+        }
+
+        @Override
+        public Map.Entry<String,Object> next() {
+            if (_index >= _schema.size()) {
+                throw new NoSuchElementException();
+            }
+            final int ix = _index++;
+            return new AbstractMap.SimpleImmutableEntry<String,Object>(_schema.getKey(ix), _value(ix));
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
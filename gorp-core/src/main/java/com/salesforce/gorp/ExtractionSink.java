@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp;
+
+import com.salesforce.gorp.model.CookedExtraction;
+
+/**
+ * Callback interface used with {@link Gorp#extract(CharSequence, ExtractionSink)}
+ * for receiving results of a match without constructing {@link ExtractionResult}
+ * or any <code>String</code>s: values are reported as character ranges
+ * within input.
+ *<p>
+ * Callbacks are made from the thread that called <code>extract</code>, and must
+ * not themselves call extraction methods of the same {@link Gorp} (as matching
+ * state is reused per thread).
+ */
+public interface ExtractionSink
+{
+    /**
+     * Method called when input has matched given extraction, before any of
+     * its values are reported.
+     *
+     * @param extraction Extraction that matched: its index is available with
+     *    {@link CookedExtraction#getIndex()}, and names of extractors with
+     *    {@link CookedExtraction#getExtractorNames()}
+     * @param input Input that matched, which value ranges refer to; except for
+     *    extractions that do not report offsets (see {@link CookedExtraction#reportsOffsets}),
+     *    for which ranges refer to text that consists of extracted values
+     */
+    public void matched(CookedExtraction extraction, CharSequence input);
+
+    /**
+     * Method called for each extractor of matched extraction, in order.
+     *
+     * @param extractorIndex Index of extractor within matched extraction
+     * @param start Offset of the first character of value within input
+     *    (as passed to {@link #matched});
+     *    or -1 if extractor was not matched
+     * @param end Offset after the last character of value within input;
+     *    or -1 if extractor was not matched
+     */
+    public void value(int extractorIndex, int start, int end);
+}
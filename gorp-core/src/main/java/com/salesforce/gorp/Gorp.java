@@ -6,14 +6,20 @@
  */
 package com.salesforce.gorp;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
+import com.salesforce.gorp.autom.LiteralPrefilter;
+import com.salesforce.gorp.autom.MatcherConfig;
 import com.salesforce.gorp.autom.PolyMatcher;
 import com.salesforce.gorp.jdkre.JDKRegexpExtractionCooker;
 import com.salesforce.gorp.model.*;
+import com.salesforce.gorp.util.ParallelHelper;
 import com.salesforce.gorp.util.RegexHelper;
+import com.salesforce.gorp.util.Utf8Helper;
 
 /**
  * Processor built from a definition that is used to actually extract
@@ -32,9 +38,30 @@ public class Gorp
 
     protected final CookedExtraction[] _extractions;
 
+    /**
+     * Optional check for quickly rejecting character input that can not
+     * match any of extractions; null if not used.
+     */
+    protected final LiteralPrefilter _prefilter;
+
+    /**
+     * Per-thread buffer used for matching content of direct buffers
+     */
+    private final static ThreadLocal<byte[]> _byteScratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[200];
+        }
+    };
+
     protected Gorp(PolyMatcher matcher, CookedExtraction[] extr) {
+        this(matcher, extr, null);
+    }
+
+    protected Gorp(PolyMatcher matcher, CookedExtraction[] extr, LiteralPrefilter prefilter) {
         _matcher = matcher;
         _extractions = extr;
+        _prefilter = prefilter;
     }
 
     public static Gorp construct(CookedDefinitions defs)
@@ -43,44 +70,87 @@ public class Gorp
         return construct(defs, JDKRegexpExtractionCooker.instance());
     }
     
+    public static Gorp construct(CookedDefinitions defs, ExtractionCooker cooker)
+        throws DefinitionParseException
+    {
+        return construct(defs, cooker, MatcherConfig.DEFAULT);
+    }
+
     /**
      * Main factory method that will build {@link Gorp} out of fully
      * resolved {@link CookedDefinitions}.
+     *
+     * @param matcherConfig Settings for constructing {@link PolyMatcher}
      */
-    public static Gorp construct(CookedDefinitions defs, ExtractionCooker cooker)
+    public static Gorp construct(CookedDefinitions defs, ExtractionCooker cooker,
+            MatcherConfig matcherConfig)
         throws DefinitionParseException
     {
-        List<CookedExtraction> cookedExtr = new ArrayList<>();
-        List<FlattenedExtraction> extractions = defs.getExtractions();
-        List<String> automatonInputs = new ArrayList<>(extractions.size());
-        // Use set to efficiently catch duplicate extractor names
+        final ForkJoinPool pool = ParallelHelper.createPool(matcherConfig.getParallelism());
+        try {
+            return _construct(defs, cooker, matcherConfig, pool);
+        } finally {
+            ParallelHelper.shutdown(pool);
+        }
+    }
+
+    private static Gorp _construct(CookedDefinitions defs, final ExtractionCooker cooker,
+            MatcherConfig matcherConfig, ForkJoinPool pool)
+        throws DefinitionParseException
+    {
+        final List<FlattenedExtraction> extractions = defs.getExtractions();
+        final int count = extractions.size();
+        List<String> automatonInputs = new ArrayList<>(count);
+        final String[] regexpSources = new String[count];
+        List<List<String>> requiredLiterals = new ArrayList<>(count);
 
-        for (int i = 0, end = extractions.size(); i < end; ++i) {
+        for (int i = 0; i < count; ++i) {
             FlattenedExtraction ext = extractions.get(i);
 
             StringBuilder automatonInput = new StringBuilder();
             StringBuilder regexpInput = new StringBuilder();
+            List<String> literals = new ArrayList<>();
             for (DefPiece part : ext) {
                 _buildExtractor(automatonInput, regexpInput, cooker, part);
+                _findRequiredLiterals(part, literals);
             }
+            requiredLiterals.add(literals);
     
             // last null -> no bindings from within extraction declaration
             automatonInputs.add(automatonInput.toString());
+            regexpSources[i] = regexpInput.toString();
+        }
 
-            final String regexpSource = regexpInput.toString();
-            final int index = cookedExtr.size();
-            try {
-                cookedExtr.add(cooker.cook(index, regexpSource, ext));
-            } catch (Exception e) { // should never occur. Probably does, so...
-                ext.iterator().next()
-                    .reportError("Internal problem: invalid regular expression segment, problem: %s", e.getMessage());
-            }
-
+        // Cooking (compiling of regexps) is independent for each extraction so
+        // it may be done in parallel
+        final CookedExtraction[] cookedExtr = new CookedExtraction[count];
+        try {
+            ParallelHelper.forEach(pool, 0, count, new ParallelHelper.IndexedTask() {
+                @Override
+                public void run(int index) throws DefinitionParseException {
+                    FlattenedExtraction ext = extractions.get(index);
+                    try {
+                        cookedExtr[index] = cooker.cook(index, regexpSources[index], ext);
+                    } catch (Exception e) { // should never occur. Probably does, so...
+                        ext.iterator().next()
+                            .reportError("Internal problem: invalid regular expression segment, problem: %s", e.getMessage());
+                    }
+                }
+            });
+        } catch (DefinitionParseException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) { // should not occur, but just in case
+            DefinitionParseException pe = DefinitionParseException.construct(
+                    "Internal error: problem with extraction construction: "+ e.getMessage(),
+                    null, 0);
+            pe.initCause(e);
+            throw pe;
         }
+
         // With that, can try constructing multi-matcher
         PolyMatcher poly = null;
         try {
-            poly = PolyMatcher.create(automatonInputs);
+            poly = PolyMatcher.create(automatonInputs, matcherConfig, pool);
         } catch (Exception e) {
             DefinitionParseException pe = DefinitionParseException.construct(
                     "Internal error: problem with PolyMatcher construction: "+ e.getMessage(),
@@ -88,7 +158,11 @@ public class Gorp
             pe.initCause(e);
             throw pe;
         }
-        return new Gorp(poly, cookedExtr.toArray(new CookedExtraction[cookedExtr.size()]));
+        LiteralPrefilter prefilter = null;
+        if (matcherConfig.usesLiteralPrefilter()) {
+            prefilter = LiteralPrefilter.construct(poly, requiredLiterals);
+        }
+        return new Gorp(poly, cookedExtr, prefilter);
     }
 
     private static void _buildExtractor(StringBuilder automatonInput, StringBuilder regexpInput,
@@ -128,6 +202,31 @@ public class Gorp
         part.reportError("Unrecognized DefPiece in FlattenedExtraction: %s", part.getClass().getName());
     }
     
+    /**
+     * Helper method for collecting literal fragments that all input matching an
+     * extraction must contain: since white space within literal text matches any
+     * amount of white space, only runs of non-white-space characters are included.
+     */
+    private static void _findRequiredLiterals(DefPiece part, List<String> literals)
+    {
+        if (part instanceof LiteralText) {
+            final String text = part.getText();
+            int start = 0;
+            for (int i = 0, end = text.length(); i <= end; ++i) {
+                if (i == end || text.charAt(i) <= ' ') {
+                    if (i > start) {
+                        literals.add(text.substring(start, i));
+                    }
+                    start = i+1;
+                }
+            }
+        } else if (part instanceof ExtractorExpression) {
+            for (DefPiece p : ((ExtractorExpression) part).getParts()) {
+                _findRequiredLiterals(p, literals);
+            }
+        }
+    }
+
     public List<CookedExtraction> getExtractions() {
         return Arrays.asList(_extractions);
     }
@@ -136,6 +235,27 @@ public class Gorp
         return _matcher;
     }
 
+    /**
+     * @return Prefilter used for rejecting character input before matching,
+     *    if enabled with {@link MatcherConfig#withLiteralPrefilter}; null if not
+     */
+    public LiteralPrefilter getPrefilter() {
+        return _prefilter;
+    }
+
+    /**
+     * Method for constructing automata used by byte-based methods
+     * ({@link #extract(byte[], int, int)}, {@link #classify(byte[], int, int)})
+     * ahead of time, if not already constructed (see {@link MatcherConfig#withByteMatching}):
+     * otherwise they are constructed on the first such call.
+     *
+     * @return This instance, to allow call chaining
+     */
+    public Gorp prepareByteMatching() {
+        _matcher.prepareByteMatching();
+        return this;
+    }
+
     /**
      * Match method that expects the first full match to work as expected,
      * evaluate extraction and return the result. If the first match
@@ -158,25 +278,201 @@ public class Gorp
 
     public ExtractionResult extract(String input, boolean allowFallbacks) throws ExtractionException
     {
-        int[] matchIndexes = _matcher.match(input);
-        if (matchIndexes.length == 0) {
+        if ((_prefilter != null) && !_prefilter.mightMatch(input)) {
+            return null;
+        }
+        // First one ought to suffice, try that first; no need to allocate list of all matches
+        final int matchIndex = _matcher.matchFirst(input);
+        if (matchIndex < 0) {
             return null;
         }
-        // First one ought to suffice, try that first
-        int matchIndex = matchIndexes[0];
+        return _extract(input, matchIndex, allowFallbacks, false);
+    }
+
+    /**
+     * Alternative to {@link #extract(String)} that constructs result with just
+     * offsets of extracted values within input: values are exposed as views
+     * of input, and <code>String</code>s only constructed when requested.
+     * Useful when most values are only hashed, compared or written out.
+     *<p>
+     * Note that input must not be modified as long as result is used.
+     * Results of extractions that do not report offsets (see
+     * {@link CookedExtraction#reportsOffsets}) contain values, but no offsets.
+     */
+    public OffsetExtractionResult extractWithOffsets(CharSequence input) throws ExtractionException {
+        return extractWithOffsets(input, false);
+    }
+
+    public OffsetExtractionResult extractWithOffsets(CharSequence input, boolean allowFallbacks)
+        throws ExtractionException
+    {
+        if ((_prefilter != null) && !_prefilter.mightMatch(input)) {
+            return null;
+        }
+        final int matchIndex = _matcher.matchFirst(input);
+        if (matchIndex < 0) {
+            return null;
+        }
+        return (OffsetExtractionResult) _extract(input, matchIndex, allowFallbacks, true);
+    }
+
+    /**
+     * Match method for UTF-8 encoded input, which is matched without decoding:
+     * only values of extracted fields (and of the whole input, if
+     * {@link ExtractionResult#getInput()} is called) are decoded into
+     * <code>String</code>s. Malformed input never matches.
+     *<p>
+     * Note that since input is decoded lazily, contents of given array must not be
+     * modified before results have been accessed.
+     */
+    public ExtractionResult extract(byte[] input, int offset, int length) throws ExtractionException
+    {
+        final int matchIndex = _matcher.matchFirst(input, offset, length);
+        if (matchIndex < 0) {
+            return null;
+        }
+        return _extract(Utf8Helper.asCharSequence(input, offset, length), matchIndex, false, false);
+    }
+
+    /**
+     * Match method for UTF-8 encoded content of given buffer, from its position
+     * to its limit; position is not changed. See {@link #extract(byte[], int, int)}
+     * for details.
+     */
+    public ExtractionResult extract(ByteBuffer input) throws ExtractionException
+    {
+        if (input.hasArray()) {
+            return extract(input.array(), input.arrayOffset() + input.position(), input.remaining());
+        }
+        // Per-byte access of direct (and memory-mapped) buffers is slow, so copy in bulk
+        // for matching; only content that matches needs a copy of its own
+        final int length = input.remaining();
+        byte[] scratch = _byteScratch.get();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, 2 * scratch.length)];
+            _byteScratch.set(scratch);
+        }
+        input.duplicate().get(scratch, 0, length);
+        final int matchIndex = _matcher.matchFirst(scratch, 0, length);
+        if (matchIndex < 0) {
+            return null;
+        }
+        final byte[] b = Arrays.copyOf(scratch, length);
+        return _extract(Utf8Helper.asCharSequence(b, 0, length), matchIndex, false, false);
+    }
+
+    /**
+     * Match method that reports the match, if any, to given sink, instead of
+     * constructing {@link ExtractionResult}: no <code>String</code>s or other
+     * result objects are constructed, and matching state is reused per thread.
+     * Useful for hot paths where values are only hashed, compared or
+     * written out.
+     *<p>
+     * Values of extractions that do not report offsets (see
+     * {@link CookedExtraction#reportsOffsets}) are reported as ranges of text
+     * consisting of the values, passed to {@link ExtractionSink#matched}.
+     *
+     * @return Index of extraction that matched (and was reported to sink),
+     *    if any; -1 if none
+     */
+    public int extract(CharSequence input, ExtractionSink sink) throws ExtractionException
+    {
+        if ((_prefilter != null) && !_prefilter.mightMatch(input)) {
+            return -1;
+        }
+        final int matchIndex = _matcher.matchFirst(input);
+        if (matchIndex < 0) {
+            return -1;
+        }
+        CookedExtraction extr = _extractions[matchIndex];
+        if (!extr.match(input, sink)) {
+            throw new ExtractionException(input.toString(),
+                    String.format("Internal error: high-level match for extraction #%d (%s) failed to match generated regexp: %s",
+                            matchIndex, extr.getName(), extr.getRegexpDesc()));
+        }
+        return matchIndex;
+    }
+
+    /**
+     * Method for finding out which extraction, if any, given input would match,
+     * without evaluating extracted values: cheapest way to classify lines.
+     *
+     * @return Index of the first extraction that matches (same as
+     *    {@link CookedExtraction#getIndex()}), if any; -1 if none
+     */
+    public int classify(CharSequence input)
+    {
+        if ((_prefilter != null) && !_prefilter.mightMatch(input)) {
+            return -1;
+        }
+        return _matcher.matchFirst(input);
+    }
+
+    /**
+     * Method for classifying UTF-8 encoded input without decoding it;
+     * see {@link #classify(CharSequence)} for details.
+     */
+    public int classify(byte[] input, int offset, int length) {
+        return _matcher.matchFirst(input, offset, length);
+    }
+
+    /**
+     * Method for extracting a batch of lines into columnar form; equivalent to
+     *<pre>
+     *   extractBatch(lines, null);
+     *</pre>
+     */
+    public ExtractionBatch extractBatch(List<? extends CharSequence> lines) throws ExtractionException {
+        return extractBatch(lines, null);
+    }
+
+    /**
+     * Method for extracting a batch of lines into columnar form (see {@link ExtractionBatch}),
+     * reusing buffers of given batch if one is passed.
+     *
+     * @param reuse Batch to populate, if any; must have been constructed for this
+     *    <code>Gorp</code>. Earlier contents are discarded. If null, a new batch
+     *    is constructed.
+     */
+    public ExtractionBatch extractBatch(List<? extends CharSequence> lines, ExtractionBatch reuse)
+        throws ExtractionException
+    {
+        if (reuse == null) {
+            reuse = new ExtractionBatch(this);
+        } else if (reuse.getGorp() != this) {
+            throw new IllegalArgumentException("Batch was not constructed for this Gorp");
+        }
+        final int size = lines.size();
+        reuse._start(size);
+        for (int row = 0; row < size; ++row) {
+            final CharSequence line = lines.get(row);
+            final int matchIndex = extract(line, reuse._sinkFor(row, line));
+            if (matchIndex >= 0) {
+                reuse._matched(row, matchIndex);
+            }
+        }
+        return reuse;
+    }
+
+    protected ExtractionResult _extract(CharSequence input, int matchIndex, boolean allowFallbacks,
+            boolean offsets)
+        throws ExtractionException
+    {
         CookedExtraction extr = _extractions[matchIndex];
-        ExtractionResult result = extr.match(input);
+        ExtractionResult result = offsets ? extr.matchWithOffsets(input) : extr.match(input);
         if (result != null) {
             return result;
         }
         // More than one? Should we throw an exception or play safe?
         if (!allowFallbacks) {
-            throw new ExtractionException(input,
+            throw new ExtractionException(input.toString(),
                     String.format("Internal error: high-level match for extraction #%d (%s) failed to match generated regexp: %s",
                             matchIndex, extr.getName(), extr.getRegexpDesc()));
         }
+        int[] matchIndexes = _matcher.match(input);
         for (int i = 1, end = matchIndexes.length; i < end; ++i) {
-            result = _extractions[matchIndex].match(input);
+            extr = _extractions[matchIndexes[i]];
+            result = offsets ? extr.matchWithOffsets(input) : extr.match(input);
             if (result != null) {
                 return result;
             }
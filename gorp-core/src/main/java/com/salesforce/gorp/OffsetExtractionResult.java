@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp;
+
+import java.util.Arrays;
+
+import com.salesforce.gorp.model.CookedExtraction;
+import com.salesforce.gorp.util.CharSequenceView;
+
+/**
+ * {@link ExtractionResult} that only stores start and end offsets of extracted
+ * values within input, instead of <code>String</code>s: values are exposed as
+ * views of input (see {@link #getValueAsCharSequence}), and <code>String</code>s
+ * are only constructed when requested with {@link #getValue} (or {@link #asMap}).
+ * Constructed with {@link Gorp#extractWithOffsets}.
+ *<p>
+ * Note that since values refer to input, input must not be modified as long
+ * as result is used. Instances are not thread-safe.
+ */
+public class OffsetExtractionResult extends ExtractionResult
+{
+    /**
+     * Start and end offsets of each value, as consecutive entries; -1 for
+     * values that were not matched, and for all values of extractions that
+     * do not report offsets.
+     */
+    protected final int[] _offsets;
+
+    public OffsetExtractionResult(String id, CharSequence input, CookedExtraction extr,
+            String[] names, int[] offsets)
+    {
+        // values are constructed lazily
+        super(id, input, extr, names, new String[names.length]);
+        _offsets = offsets;
+    }
+
+    /**
+     * Constructor for results of extractions that do not report offsets of
+     * values (see {@link CookedExtraction#reportsOffsets}): values are given
+     * as <code>String</code>s, and all offsets are -1.
+     */
+    public OffsetExtractionResult(String id, CharSequence input, CookedExtraction extr,
+            String[] names, String[] values)
+    {
+        super(id, input, extr, names, values);
+        _offsets = new int[2 * names.length];
+        Arrays.fill(_offsets, -1);
+    }
+
+    /**
+     * @return Offset of the first character of extracted value with given
+     *    index within input; or -1 if value was not matched (or extraction
+     *    does not report offsets, see {@link CookedExtraction#reportsOffsets})
+     */
+    public int getStart(int index) { return _offsets[2*index]; }
+
+    /**
+     * @return Offset after the last character of extracted value with given
+     *    index within input; or -1 if value was not matched (or extraction
+     *    does not report offsets)
+     */
+    public int getEnd(int index) { return _offsets[2*index + 1]; }
+
+    @Override
+    public String getValue(int index)
+    {
+        String value = _extractedValues[index];
+        if (value == null) {
+            final int start = _offsets[2*index];
+            if (start < 0) {
+                return null;
+            }
+            final int end = _offsets[2*index + 1];
+            if (_input instanceof String) {
+                value = ((String) _input).substring(start, end);
+            } else {
+                value = _input.subSequence(start, end).toString();
+            }
+            _extractedValues[index] = value;
+        }
+        return value;
+    }
+
+    @Override
+    public CharSequence getValueAsCharSequence(int index)
+    {
+        final String value = _extractedValues[index];
+        if (value != null) {
+            return value;
+        }
+        final int start = _offsets[2*index];
+        if (start < 0) {
+            return null;
+        }
+        return new CharSequenceView(_input, start, _offsets[2*index + 1]);
+    }
+}
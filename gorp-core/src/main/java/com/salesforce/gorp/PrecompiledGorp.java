@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+import com.salesforce.gorp.autom.Automata;
+import com.salesforce.gorp.autom.LazyPolyMatcher;
+import com.salesforce.gorp.autom.MatcherConfig;
+import com.salesforce.gorp.autom.PolyMatcher;
+import com.salesforce.gorp.autom.ShardedPolyMatcher;
+import com.salesforce.gorp.jdkre.JDKRegexpExtractionCooker;
+import com.salesforce.gorp.model.CookedExtraction;
+
+/**
+ * Helper class for writing fully built {@link Gorp} instances in a versioned
+ * binary format, and loading them back without having to re-read definition
+ * or rebuild the combined automaton. Loading is done by memory-mapping the file,
+ * and the transition table (by far the biggest part) is accessed directly from
+ * the mapped buffer, so that multiple processes on the same host can share it.
+ *<p>
+ * Format consists of:
+ *<ol>
+ * <li>Header: 4-byte magic marker ("GORP") and format version
+ *  </li>
+ * <li>Name of the {@link CookedExtraction} implementation class, since regexp
+ *   sources are specific to the {@link ExtractionCooker} used
+ *  </li>
+ * <li>Extractions: name, regexp source, extractor names and "append" properties
+ *   (as JSON)
+ *  </li>
+ * <li>Automaton: see {@link Automata#writeTo}
+ *  </li>
+ *</ol>
+ * All numbers are written in big-endian byte order.
+ */
+public class PrecompiledGorp
+{
+    /**
+     * Marker at the beginning of all precompiled definitions: "GORP" in ASCII.
+     */
+    public final static int MAGIC = 0x474F5250;
+
+    /**
+     * Version of the format this version of Gorp reads and writes; to be
+     * incremented whenever format changes in incompatible ways.
+     */
+    public final static int FORMAT_VERSION = 1;
+
+    /**
+     * Prefix of the first line of sources written by {@link #writeSource}
+     * (see {@link #sourceStamp}).
+     */
+    public final static String SOURCE_STAMP_PREFIX = "// Precompiled Gorp definition";
+
+    /**
+     * Number of bytes of binary representation to encode per String constant
+     * in generated source: class files limit constants to 64k bytes, and
+     * non-ASCII chars take two bytes.
+     */
+    private final static int SOURCE_CHUNK_BYTES = 16 * 1024;
+
+    private final static int SOURCE_LINE_BYTES = 64;
+
+    private final static JSON _json = JSON.std;
+
+    private PrecompiledGorp() { }
+
+    /*
+    /**********************************************************************
+    /* Writing
+    /**********************************************************************
+     */
+
+    public static void write(Gorp gorp, File output) throws IOException
+    {
+        try (OutputStream out = new FileOutputStream(output)) {
+            write(gorp, out);
+        }
+    }
+
+    /**
+     * Method for writing given {@link Gorp} in binary format. Note that given
+     * stream is NOT closed, but contents are flushed.
+     *<p>
+     * Only definitions with a single fully constructed automaton can be written:
+     * not ones built with {@link MatcherConfig#withLazyMatching} (as states are only
+     * constructed as needed), nor ones split into multiple automata due to
+     * {@link MatcherConfig#withStateBudget}.
+     *
+     * @throws IllegalArgumentException If definitions use a matcher that can not
+     *    be written
+     */
+    public static void write(Gorp gorp, OutputStream out) throws IOException
+    {
+        final Automata automata = _automata(gorp);
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+
+        final List<CookedExtraction> extractions = gorp.getExtractions();
+        _writeString(data, extractions.isEmpty() ? "" : extractions.get(0).getClass().getName());
+        data.writeInt(extractions.size());
+        for (CookedExtraction extr : extractions) {
+            _writeString(data, extr.getName());
+            _writeString(data, extr.getRegexpSource());
+            List<String> names = extr.getExtractorNames();
+            data.writeInt(names.size());
+            for (String name : names) {
+                _writeString(data, name);
+            }
+            Map<String,Object> append = extr.getExtra();
+            _writeString(data, (append == null) ? "" : _json.asString(append));
+        }
+        automata.writeTo(data);
+        data.flush();
+    }
+
+    private static Automata _automata(Gorp gorp)
+    {
+        final PolyMatcher matcher = gorp.getMatcher();
+        if (matcher instanceof LazyPolyMatcher) {
+            throw new IllegalArgumentException(
+                    "Can not precompile definitions built with lazily constructed matcher (MatcherConfig.withLazyMatching())");
+        }
+        if (matcher instanceof ShardedPolyMatcher) {
+            throw new IllegalArgumentException(String.format(
+"Can not precompile definitions split into %d automata due to state budget (MatcherConfig.withStateBudget())",
+                    ((ShardedPolyMatcher) matcher).getShardCount()));
+        }
+        return matcher.getAutomata();
+    }
+
+    private static void _writeString(DataOutput out, String str) throws IOException
+    {
+        byte[] b = str.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /*
+    /**********************************************************************
+    /* Writing as Java source
+    /**********************************************************************
+     */
+
+    /**
+     * Method for constructing the first line of sources that {@link #writeSource}
+     * writes with given cooker: it changes whenever cooker or {@link #FORMAT_VERSION}
+     * does, so that build tools can check whether previously generated sources
+     * need to be regenerated.
+     */
+    public static String sourceStamp(ExtractionCooker cooker) {
+        return String.format("%s: format version %d, cooker %s", SOURCE_STAMP_PREFIX,
+                FORMAT_VERSION, cooker.getClass().getName());
+    }
+
+    /**
+     * Method for writing given {@link Gorp} as source code of a Java class that
+     * contains its binary representation, and has factory methods
+     * (<code>create()</code>, <code>create(ExtractionCooker)</code>) for
+     * loading it: this allows precompiling definitions at build time and
+     * shipping them as classes. First line of source is a comment
+     * (see {@link #sourceStamp}).
+     * Given writer is NOT closed, but contents are flushed.
+     *
+     * @param cooker Cooker that was used for building <code>gorp</code>:
+     *    generated <code>create()</code> method calls its static
+     *    <code>instance()</code> method
+     * @param className Fully-qualified name of the class to generate
+     * @param sourceDesc Description of the definition source (like file name)
+     *    to include in class documentation
+     */
+    public static void writeSource(Gorp gorp, ExtractionCooker cooker, String className,
+            String sourceDesc, Writer out)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(gorp, bytes);
+        final byte[] data = bytes.toByteArray();
+
+        final int dot = className.lastIndexOf('.');
+        final String simpleName = className.substring(dot+1);
+        final String gorpClass = Gorp.class.getName();
+        final String cookerClass = ExtractionCooker.class.getName();
+
+        PrintWriter pw = new PrintWriter(out);
+        pw.printf("%s%n", sourceStamp(cooker));
+        if (dot > 0) {
+            pw.printf("package %s;%n%n", className.substring(0, dot));
+        }
+        pw.printf("/**%n");
+        // javac processes unicode escapes even in comments, so avoid backslashes
+        pw.printf(" * Precompiled Gorp definition, generated from %s:%n",
+                sourceDesc.replace('\\', '/').replace("*/", "*&#47;"));
+        pw.printf(" * do not edit.%n");
+        pw.printf(" */%n");
+        pw.printf("public final class %s%n{%n", simpleName);
+        pw.printf("    private final static String[] DATA = {%n");
+        for (int chunk = 0; chunk < data.length; chunk += SOURCE_CHUNK_BYTES) {
+            final int chunkEnd = Math.min(data.length, chunk + SOURCE_CHUNK_BYTES);
+            for (int line = chunk; line < chunkEnd; line += SOURCE_LINE_BYTES) {
+                pw.print((line == chunk) ? "        \"" : "        +\"");
+                final int end = Math.min(chunkEnd, line + SOURCE_LINE_BYTES);
+                for (int i = line; i < end; ++i) {
+                    final int b = data[i] & 0xFF;
+                    if (b >= 0x20 && b < 0x7F && b != '"' && b != '\\') {
+                        pw.print((char) b);
+                    } else { // always 3 digits, to keep escapes unambiguous
+                        pw.print('\\');
+                        pw.print((char) ('0' + (b >> 6)));
+                        pw.print((char) ('0' + ((b >> 3) & 7)));
+                        pw.print((char) ('0' + (b & 7)));
+                    }
+                }
+                pw.printf((end == chunkEnd) ? "\",%n" : "\"%n");
+            }
+        }
+        pw.printf("    };%n%n");
+        pw.printf("    private %s() { }%n%n", simpleName);
+        pw.printf("    public static %s create() throws java.io.IOException {%n", gorpClass);
+        pw.printf("        return create(%s.instance());%n", cooker.getClass().getName());
+        pw.printf("    }%n%n");
+        pw.printf("    public static %s create(%s cooker) throws java.io.IOException {%n",
+                gorpClass, cookerClass);
+        pw.printf("        return %s.load(DATA, cooker);%n", PrecompiledGorp.class.getName());
+        pw.printf("    }%n");
+        pw.printf("}%n");
+        pw.flush();
+    }
+
+    /*
+    /**********************************************************************
+    /* Loading
+    /**********************************************************************
+     */
+
+    /**
+     * Method called by classes generated with {@link #writeSource}, for loading
+     * definition from binary representation encoded as Strings (one char per byte).
+     */
+    public static Gorp load(String[] encoded, ExtractionCooker cooker) throws IOException
+    {
+        int length = 0;
+        for (String str : encoded) {
+            length += str.length();
+        }
+        final byte[] data = new byte[length];
+        int ix = 0;
+        for (String str : encoded) {
+            for (int i = 0, end = str.length(); i < end; ++i) {
+                data[ix++] = (byte) str.charAt(i);
+            }
+        }
+        return load(ByteBuffer.wrap(data), cooker, "<generated class>");
+    }
+
+    /**
+     * Method for loading precompiled definition from given file, assuming it
+     * was built using the default (JDK regexp based) {@link ExtractionCooker}.
+     */
+    public static Gorp load(File input) throws IOException {
+        return load(input, JDKRegexpExtractionCooker.instance());
+    }
+
+    /**
+     * Method for loading precompiled definition from given file by memory-mapping
+     * it: contents of the file must not be changed while resulting {@link Gorp}
+     * is in use.
+     *
+     * @param cooker Cooker used for re-creating extractions; must be of the same
+     *    type as one used for building {@link Gorp} that was written
+     */
+    public static Gorp load(File input, ExtractionCooker cooker) throws IOException
+    {
+        // Mapping remains valid after channel is closed
+        try (RandomAccessFile raf = new RandomAccessFile(input, "r")) {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0L, ch.size());
+            return load(buf, cooker, "file '"+input.getAbsolutePath()+"'");
+        }
+    }
+
+    /**
+     * Method for loading precompiled definition from given buffer, starting at
+     * its current position. Transition table is NOT copied, so buffer contents
+     * must not be modified while resulting {@link Gorp} is in use.
+     */
+    public static Gorp load(ByteBuffer buf, ExtractionCooker cooker) throws IOException {
+        return load(buf, cooker, "<input buffer>");
+    }
+
+    protected static Gorp load(ByteBuffer buf, ExtractionCooker cooker, String srcDesc)
+        throws IOException
+    {
+        try {
+            return _load(buf.slice(), cooker, srcDesc);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw _problem(srcDesc, "truncated or corrupt content", e);
+        }
+    }
+
+    private static Gorp _load(ByteBuffer buf, ExtractionCooker cooker, String srcDesc)
+        throws IOException
+    {
+        final int magic = buf.getInt();
+        if (magic != MAGIC) {
+            throw _problem(srcDesc, String.format("not a precompiled Gorp definition (header 0x%08x)", magic), null);
+        }
+        final int version = buf.getInt();
+        if (version != FORMAT_VERSION) {
+            throw _problem(srcDesc, String.format("unsupported format version %d (expected %d)",
+                    version, FORMAT_VERSION), null);
+        }
+        final String implClass = _readString(buf);
+        final int count = buf.getInt();
+        if (count < 0) {
+            throw _problem(srcDesc, "invalid extraction count "+count, null);
+        }
+        final CookedExtraction[] extractions = new CookedExtraction[count];
+        for (int i = 0; i < count; ++i) {
+            final String name = _readString(buf);
+            final String regexpSource = _readString(buf);
+            final int nameCount = buf.getInt();
+            if (nameCount < 0) {
+                throw _problem(srcDesc, "invalid extractor count "+nameCount, null);
+            }
+            List<String> names = new ArrayList<>(nameCount);
+            for (int j = 0; j < nameCount; ++j) {
+                names.add(_readString(buf));
+            }
+            final String appendJson = _readString(buf);
+            @SuppressWarnings("unchecked")
+            final Map<String,Object> append = appendJson.isEmpty() ? null
+                    : (Map<String,Object>) _json.anyFrom(appendJson);
+            try {
+                extractions[i] = cooker.cook(i, name, append, regexpSource, names);
+            } catch (Exception e) {
+                throw _problem(srcDesc, String.format("invalid regular expression for extraction '%s': %s",
+                        name, e.getMessage()), e);
+            }
+            if (!extractions[i].getClass().getName().equals(implClass)) {
+                throw _problem(srcDesc, String.format("definition built for extractions of type %s, can not load with cooker of type %s",
+                        implClass, cooker.getClass().getName()), null);
+            }
+        }
+        final Automata automata;
+        try {
+            automata = Automata.map(buf);
+        } catch (IOException e) {
+            throw _problem(srcDesc, "invalid automaton: "+e.getMessage(), e);
+        }
+        if (automata.size() != count) {
+            throw _problem(srcDesc, String.format("automaton built for %d extractions, definition has %d",
+                    automata.size(), count), null);
+        }
+        return new Gorp(PolyMatcher.create(automata), extractions);
+    }
+
+    private static String _readString(ByteBuffer buf) throws IOException
+    {
+        final int len = buf.getInt();
+        if (len < 0 || len > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b, "UTF-8");
+    }
+
+    private static DefinitionParseException _problem(String srcDesc, String msg, Exception cause)
+    {
+        DefinitionParseException e = DefinitionParseException.construct(
+                String.format("Invalid precompiled definition from %s: %s", srcDesc, msg),
+                null, 0);
+        if (cause != null) {
+            e.initCause(cause);
+        }
+        return e;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.autom;
+
+import java.util.*;
+
+/**
+ * Aho-Corasick automaton for checking whether input contains any one of a set
+ * of literal strings. Failure links are resolved at construction, so that
+ * matching is a single transition table lookup per character.
+ *<p>
+ * Characters that do not occur in any of literals share character class 0;
+ * classes of Latin-1 characters are looked up directly, others using
+ * binary search.
+ */
+final class AhoCorasick
+{
+    private final static int LATIN1_SIZE = 256;
+
+    /**
+     * Character classes for Latin-1 characters.
+     */
+    private final int[] _latin1Classes;
+
+    /**
+     * Sorted non-Latin-1 characters that occur in literals; class of
+     * character at index <code>i</code> is <code>_otherClasses[i]</code>.
+     */
+    private final char[] _otherChars;
+
+    private final int[] _otherClasses;
+
+    private final int _stride;
+
+    /**
+     * Transitions, indexed by <code>state * _stride + class</code>.
+     */
+    private final int[] _transitions;
+
+    /**
+     * Whether a literal ends in the state (or in one of its failure states).
+     */
+    private final boolean[] _terminal;
+
+    private AhoCorasick(int[] latin1Classes, char[] otherChars, int[] otherClasses,
+            int stride, int[] transitions, boolean[] terminal)
+    {
+        _latin1Classes = latin1Classes;
+        _otherChars = otherChars;
+        _otherClasses = otherClasses;
+        _stride = stride;
+        _transitions = transitions;
+        _terminal = terminal;
+    }
+
+    public static AhoCorasick construct(Collection<String> literals)
+    {
+        // First: alphabet; class 0 for all chars not in any of literals
+        final TreeSet<Character> chars = new TreeSet<>();
+        for (String literal : literals) {
+            if (literal.isEmpty()) {
+                throw new IllegalArgumentException("Empty literal not allowed");
+            }
+            for (int i = 0, end = literal.length(); i < end; ++i) {
+                chars.add(literal.charAt(i));
+            }
+        }
+        final int[] latin1Classes = new int[LATIN1_SIZE];
+        final SortedSet<Character> others = chars.tailSet((char) LATIN1_SIZE);
+        final char[] otherChars = new char[others.size()];
+        final int[] otherClasses = new int[others.size()];
+        int stride = 1;
+        for (Character c : chars) {
+            if (c < LATIN1_SIZE) {
+                latin1Classes[c] = stride++;
+            }
+        }
+        int ix = 0;
+        for (Character c : others) {
+            otherChars[ix] = c;
+            otherClasses[ix++] = stride++;
+        }
+        final AhoCorasick classes = new AhoCorasick(latin1Classes, otherChars, otherClasses,
+                stride, null, null);
+
+        // Then trie of literals; state 0 is the root
+        List<int[]> gotos = new ArrayList<>();
+        List<Boolean> terminal = new ArrayList<>();
+        gotos.add(_newStates(stride));
+        terminal.add(Boolean.FALSE);
+        for (String literal : literals) {
+            int state = 0;
+            for (int i = 0, end = literal.length(); i < end; ++i) {
+                final int cls = classes.characterClass(literal.charAt(i));
+                int next = gotos.get(state)[cls];
+                if (next < 0) {
+                    next = gotos.size();
+                    gotos.add(_newStates(stride));
+                    terminal.add(Boolean.FALSE);
+                    gotos.get(state)[cls] = next;
+                }
+                state = next;
+            }
+            terminal.set(state, Boolean.TRUE);
+        }
+
+        // And finally, breadth-first resolution of failure links into full transitions
+        final int stateCount = gotos.size();
+        final int[] transitions = new int[stateCount * stride];
+        final boolean[] terminals = new boolean[stateCount];
+        final int[] fail = new int[stateCount];
+        final int[] queue = new int[stateCount];
+        int tail = 0;
+        final int[] root = gotos.get(0);
+        for (int cls = 0; cls < stride; ++cls) {
+            final int next = root[cls];
+            if (next < 0) {
+                transitions[cls] = 0;
+            } else {
+                transitions[cls] = next;
+                fail[next] = 0;
+                queue[tail++] = next;
+            }
+        }
+        for (int head = 0; head < tail; ++head) {
+            final int state = queue[head];
+            terminals[state] = terminal.get(state) || terminals[fail[state]];
+            final int[] stateGotos = gotos.get(state);
+            final int base = state * stride;
+            final int failBase = fail[state] * stride;
+            for (int cls = 0; cls < stride; ++cls) {
+                final int next = stateGotos[cls];
+                if (next < 0) {
+                    transitions[base + cls] = transitions[failBase + cls];
+                } else {
+                    transitions[base + cls] = next;
+                    fail[next] = transitions[failBase + cls];
+                    queue[tail++] = next;
+                }
+            }
+        }
+        return new AhoCorasick(latin1Classes, otherChars, otherClasses,
+                stride, transitions, terminals);
+    }
+
+    private static int[] _newStates(int stride) {
+        int[] states = new int[stride];
+        Arrays.fill(states, -1);
+        return states;
+    }
+
+    public int stateCount() {
+        return _terminal.length;
+    }
+
+    /**
+     * @return True if given input contains at least one of literals
+     */
+    public boolean containsAny(CharSequence input)
+    {
+        final int[] transitions = _transitions;
+        final boolean[] terminal = _terminal;
+        final int stride = _stride;
+        int state = 0;
+        for (int i = 0, end = input.length(); i < end; ++i) {
+            state = transitions[state * stride + characterClass(input.charAt(i))];
+            if (terminal[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int characterClass(char c)
+    {
+        if (c < LATIN1_SIZE) {
+            return _latin1Classes[c];
+        }
+        final int ix = Arrays.binarySearch(_otherChars, c);
+        return (ix < 0) ? 0 : _otherClasses[ix];
+    }
+}
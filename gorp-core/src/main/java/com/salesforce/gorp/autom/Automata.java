@@ -6,11 +6,19 @@
  */
 package com.salesforce.gorp.autom;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import dk.brics.automaton.Automaton;
 import dk.brics.automaton.State;
 
+import com.salesforce.gorp.util.ParallelHelper;
+
 /**
  * Abstraction for the state machine constructed from multiple {@link Automaton}s.
  *<p>
@@ -20,10 +28,98 @@ import dk.brics.automaton.State;
  */
 public class Automata
 {
+    /**
+     * Shared marker for states that do not accept any of input regexps.
+     */
+    final static int[] NO_ACCEPT = new int[0];
+
+    /**
+     * Flag for states for which result of {@link #firstAccept} is already
+     * decided: that is, it stays the same no matter what input follows. Matching
+     * may stop as soon as such a state is reached, instead of scanning the rest
+     * of input (as with patterns that end with <code>.*</code>).
+     */
+    final static int FLAG_FIRST_ACCEPT_DECIDED = 1;
+
+    /**
+     * Flag for states for which result of {@link #accept} is already decided.
+     */
+    final static int FLAG_ACCEPT_DECIDED = 2;
+
+    /**
+     * Flag for states that loop back to themselves for all characters except
+     * for some ASCII characters (as with <code>[^"]*</code> or <code>\S+</code>):
+     * input may be scanned for those "exit" characters without looking up
+     * transitions.
+     */
+    final static int FLAG_ACCELERABLE = 4;
+
+    /**
+     * Exit characters of accelerable states must be below this value, so that
+     * they can be checked with a small lookup table.
+     */
+    private final static int MAX_EXIT_CHAR = 128;
+
+    /**
+     * Number of bits in the low-order part of a character, used for indexing
+     * within a page of {@link #_alphabetPages}.
+     */
+    private final static int PAGE_BITS = 8;
+
+    private final static int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private final static int PAGE_MASK = PAGE_SIZE - 1;
+
+    /**
+     * Number of states to process per batch, per thread, when constructing
+     * combined automaton in parallel.
+     */
+    private final static int BATCH_SIZE_PER_THREAD = 256;
+
+    /**
+     * Accept values for each state; identical arrays are shared between states.
+     */
     private final int[][] _accept;
+
+    /**
+     * First (lowest) accept value for each state, or -1 for non-accepting
+     * states: precomputed for fast lookup of the highest-priority match.
+     */
+    private final int[] _firstAccept;
+
+    /**
+     * Flags for each state, combination of <code>FLAG_xxx</code> values: kept in
+     * a single array so that matching loops need just one lookup per character
+     * to know whether state needs special handling.
+     */
+    private final byte[] _stateFlags;
+
+    /**
+     * For states with {@link #FLAG_ACCELERABLE}, lookup tables that indicate
+     * characters (below {@link #MAX_EXIT_CHAR}) that lead out of the state;
+     * null for other states.
+     */
+    private final boolean[][] _exits;
+
     private final int _stride;
-    private final int[] _transitions;
-    private final int[] _alphabet;
+    private final TransitionTable _transitions;
+
+    /**
+     * Dense mapping from Latin-1 characters (first 256 code points) into
+     * character classes (transition table columns): most input is expected
+     * to fall in this range, so lookups need just one array access.
+     * Uses full ints (instead of chars like {@link #_alphabetPages}) as that
+     * measured faster for the inner loop, and 1kB is small enough to stay cached.
+     */
+    private final int[] _alphabetLatin1;
+
+    /**
+     * Two-level mapping for the full character range: first level is indexed
+     * by the high-order byte of a character, second by the low-order byte.
+     * Pages with identical contents are shared, so most of 256 entries point
+     * to a small number of distinct arrays.
+     */
+    private final char[][] _alphabetPages;
 
     /**
      * Number of input regexps
@@ -31,96 +127,386 @@ public class Automata
     private final int _inputRegexpCount;
 
     private Automata(final int[][] accept,
-            final int[] transitions,
+            final TransitionTable transitions,
             final char[] points,
             final int inputREs)
     {
         _accept = accept;
+        _firstAccept = firstAccepts(accept);
         _transitions = transitions;
-        _alphabet = alphabet(points);
+        _alphabetPages = alphabetPages(points);
+        _alphabetLatin1 = alphabetLatin1(_alphabetPages[0]);
         _stride = points.length;
+        _exits = exits(transitions, points);
+        _stateFlags = stateFlags(transitions, _stride, accept, _firstAccept, _exits);
         _inputRegexpCount = inputREs;
     }
 
-    private static int[] alphabet(final char[] points) {
-        final int size = Character.MAX_VALUE - Character.MIN_VALUE + 1;
-        final int[] alphabet = new int[size];
+    /**
+     * Lazily constructed variant that operates on UTF-8 encoded bytes;
+     * see {@link #utf8Automata}.
+     */
+    private volatile Automata _utf8;
+
+    /**
+     * Copy constructor used for creating instance with different accept values.
+     */
+    private Automata(final Automata base, final int[][] accept)
+    {
+        _accept = accept;
+        _firstAccept = firstAccepts(accept);
+        _transitions = base._transitions;
+        _alphabetPages = base._alphabetPages;
+        _alphabetLatin1 = base._alphabetLatin1;
+        _stride = base._stride;
+        _exits = base._exits;
+        _stateFlags = stateFlags(_transitions, _stride, accept, _firstAccept, _exits);
+        _inputRegexpCount = base._inputRegexpCount;
+    }
 
-        for (int i = 0, j = 0; j < size; ++j) {
-            if (i + 1 < points.length && j == points[i + 1])
-                i++;
-            alphabet[j] = i;
+    /**
+     * Factory method used by other builders within package.
+     */
+    static Automata create(final int[][] accept, final TransitionTable transitions,
+            final char[] points, final int inputREs) {
+        return new Automata(accept, transitions, points, inputREs);
+    }
+
+    private static int[] firstAccepts(final int[][] accept) {
+        final int[] first = new int[accept.length];
+        for (int i = 0; i < accept.length; ++i) {
+            first[i] = (accept[i].length == 0) ? -1 : accept[i][0];
         }
-        return alphabet;
+        return first;
     }
 
-    public static Automata construct(final List<Automaton> automata)
+    private static byte[] stateFlags(final TransitionTable transitions, final int stride,
+            final int[][] accept, final int[] firstAccept, final boolean[][] exits)
     {
-        for (final Automaton automaton: automata) {
-            automaton.determinize();
+        final boolean[] firstDecided = decidedStates(transitions, stride, firstAccept);
+        final boolean[] allDecided = decidedStates(transitions, stride, acceptSetIds(accept));
+        final byte[] flags = new byte[accept.length];
+        for (int i = 0; i < flags.length; ++i) {
+            int f = 0;
+            if (firstDecided[i]) {
+                f |= FLAG_FIRST_ACCEPT_DECIDED;
+            }
+            if (allDecided[i]) {
+                f |= FLAG_ACCEPT_DECIDED;
+            }
+            if (exits[i] != null) {
+                f |= FLAG_ACCELERABLE;
+            }
+            flags[i] = (byte) f;
+        }
+        return flags;
+    }
+
+    /**
+     * Helper method for finding states that loop back to themselves for all
+     * characters except for some below {@link #MAX_EXIT_CHAR}.
+     *
+     * @return Lookup tables of exit characters for each such state; null for other states
+     */
+    private static boolean[][] exits(final TransitionTable transitions, final char[] points)
+    {
+        final int stateCount = transitions.stateCount();
+        final int stride = points.length;
+        final boolean[][] result = new boolean[stateCount][];
+
+        main_loop:
+        for (int state = 0; state < stateCount; ++state) {
+            boolean[] exits = null;
+            for (int c = 0; c < stride; ++c) {
+                if (transitions.next(state, c) == state) {
+                    continue;
+                }
+                final int end = (c + 1 < stride) ? points[c+1] : (Character.MAX_VALUE + 1);
+                if (end > MAX_EXIT_CHAR) {
+                    continue main_loop;
+                }
+                if (exits == null) {
+                    exits = new boolean[MAX_EXIT_CHAR];
+                }
+                Arrays.fill(exits, points[c], end, true);
+            }
+            // (states that loop on everything need no scanning)
+            result[state] = exits;
+        }
+        return result;
+    }
+
+    /**
+     * @return Id for accept set of each state, same for states with identical sets;
+     *    -1 for non-accepting states
+     */
+    private static int[] acceptSetIds(final int[][] accept) {
+        final int[] ids = new int[accept.length];
+        final Map<List<Integer>,Integer> distinct = new HashMap<>();
+        for (int i = 0; i < accept.length; ++i) {
+            if (accept[i].length == 0) {
+                ids[i] = -1;
+                continue;
+            }
+            final List<Integer> key = new ArrayList<>(accept[i].length);
+            for (int value : accept[i]) {
+                key.add(value);
+            }
+            Integer id = distinct.get(key);
+            if (id == null) {
+                id = distinct.size();
+                distinct.put(key, id);
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Helper method for finding states from which all reachable states have the same
+     * outcome (as indicated by given outcome ids, -1 meaning "no match"): states
+     * that have the same outcome as all their successors (where having no transition
+     * counts as "no match") are candidates, and any candidate with a successor that is
+     * not a candidate is dropped, until no more changes occur.
+     */
+    static boolean[] decidedStates(final TransitionTable transitions, final int stride,
+            final int[] outcomes)
+    {
+        final int stateCount = outcomes.length;
+        final boolean[] decided = new boolean[stateCount];
+        final int[][] sources = new int[stateCount][];
+        final int[] sourceCounts = new int[stateCount];
+        final int[] queue = new int[stateCount];
+        int tail = 0;
+
+        for (int state = 0; state < stateCount; ++state) {
+            boolean same = true;
+            int prev = -2;
+            for (int c = 0; c < stride; ++c) {
+                final int next = transitions.next(state, c);
+                if (next == prev) {
+                    continue;
+                }
+                prev = next;
+                if (((next < 0) ? -1 : outcomes[next]) != outcomes[state]) {
+                    same = false;
+                }
+                if (next >= 0) {
+                    int[] stateSources = sources[next];
+                    if (stateSources == null) {
+                        sources[next] = stateSources = new int[4];
+                    } else if (sourceCounts[next] == stateSources.length) {
+                        sources[next] = stateSources = Arrays.copyOf(stateSources, stateSources.length * 2);
+                    }
+                    stateSources[sourceCounts[next]++] = state;
+                }
+            }
+            decided[state] = same;
+            if (!same) {
+                queue[tail++] = state;
+            }
+        }
+        for (int head = 0; head < tail; ++head) {
+            final int state = queue[head];
+            final int[] stateSources = sources[state];
+            for (int i = 0, end = sourceCounts[state]; i < end; ++i) {
+                final int source = stateSources[i];
+                if (decided[source]) {
+                    decided[source] = false;
+                    queue[tail++] = source;
+                }
+            }
+        }
+        return decided;
+    }
+
+    static int[] alphabetLatin1(final char[] firstPage) {
+        final int[] alphabet = new int[PAGE_SIZE];
+        for (int i = 0; i < PAGE_SIZE; ++i) {
+            alphabet[i] = firstPage[i];
+        }
+        return alphabet;
+    }
+
+    /**
+     * Helper method for building two-level character-to-class mapping: since
+     * points are sorted, class of a character is the index of the last point
+     * that is less than or equal to it; and as there are usually only a few
+     * dozen points, most pages consist of a single class and can be shared.
+     */
+    static char[][] alphabetPages(final char[] points) {
+        final int pageCount = (Character.MAX_VALUE + 1) >> PAGE_BITS;
+        final char[][] pages = new char[pageCount][];
+        final Map<String,char[]> distinctPages = new HashMap<>();
+
+        for (int i = 0, p = 0; p < pageCount; ++p) {
+            final char[] page = new char[PAGE_SIZE];
+            final int base = p << PAGE_BITS;
+            for (int j = 0; j < PAGE_SIZE; ++j) {
+                if (i + 1 < points.length && (base + j) == points[i + 1])
+                    i++;
+                page[j] = (char) i;
+            }
+            final String key = new String(page);
+            char[] shared = distinctPages.get(key);
+            if (shared == null) {
+                shared = page;
+                distinctPages.put(key, shared);
+            }
+            pages[p] = shared;
         }
+        return pages;
+    }
+
+    public static Automata construct(final List<Automaton> automata) {
+        try {
+            return construct(automata, null);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) { // can not occur without a pool, but just in case
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Method for constructing combined automaton, optionally using given pool for
+     * parallel processing. States are discovered breadth-first, in batches of
+     * states with consecutive ids: successors of all states of a batch are calculated
+     * in parallel (looking up already known states from the concurrent index), after
+     * which ids for new states are assigned sequentially in (source state, character
+     * class) order. This results in the same numbering regardless of parallelism.
+     *
+     * @param pool Pool to use for parallel processing, if any; if null, all processing
+     *    is done by the calling thread
+     */
+    public static Automata construct(final List<Automaton> automata, final ForkJoinPool pool)
+        throws Exception
+    {
+        return construct(automata, pool, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Method for constructing combined automaton, unless it would have more
+     * than given number of states.
+     *
+     * @param maxStates Maximum number of states combined automaton may have
+     *
+     * @return Combined automaton, if it has at most <code>maxStates</code> states;
+     *    null if it would have more
+     */
+    public static Automata construct(final List<Automaton> automata, final ForkJoinPool pool,
+            final int maxStates)
+        throws Exception
+    {
+        ParallelHelper.forEach(pool, 0, automata.size(), new ParallelHelper.IndexedTask() {
+            @Override
+            public void run(int index) {
+                automata.get(index).determinize();
+            }
+        });
 
         final char[] points = pointsUnion(automata);
         final int plen = points.length;
 
-        // states that are still to be visited
-        final Queue<PolyState> statesToVisits = new LinkedList<>();
+        // states in the order of discovery, which is also their id
+        final List<PolyState> states = new ArrayList<>();
+        final Map<PolyState, Integer> multiStateIndex = new ConcurrentHashMap<>();
         final PolyState initialState = initialState(automata);
-        statesToVisits.add(initialState);
+        states.add(initialState);
+        multiStateIndex.put(initialState, 0);
 
         final List<int[]> transitionList = new ArrayList<>();
+        final List<int[]> acceptList = new ArrayList<>();
+        final int batchSize = BATCH_SIZE_PER_THREAD * ((pool == null) ? 1 : pool.getParallelism());
 
-        final Map<PolyState, Integer> multiStateIndex = new HashMap<>();
-        multiStateIndex.put(initialState, 0);
+        while (transitionList.size() < states.size()) {
+            final int batchStart = transitionList.size();
+            final int batchEnd = Math.min(states.size(), batchStart + batchSize);
+            final int[][] rows = new int[batchEnd - batchStart][];
+            final int[][] accepts = new int[rows.length][];
+            // targets not yet in index, by batch offset and class; null if none
+            final PolyState[][] newTargets = new PolyState[rows.length][];
 
-        while (!statesToVisits.isEmpty()) {
-            final PolyState visitingState = statesToVisits.remove();
-            assert multiStateIndex.containsKey(visitingState);
-            final int[] curTransitions = new int[plen];
-            for (int c = 0; c < plen; ++c) {
-                final char point = points[c];
-                final PolyState destState = visitingState.step(point);
-                if (destState.isNull()) {
-                    curTransitions[c] = -1;
-                }
-                else {
-                    final int destStateId;
-                    if (!multiStateIndex.containsKey(destState)) {
-                        statesToVisits.add(destState);
-                        destStateId = multiStateIndex.size();
-                        multiStateIndex.put(destState, destStateId);
+            ParallelHelper.forEach(pool, batchStart, batchEnd, new ParallelHelper.IndexedTask() {
+                @Override
+                public void run(int stateId) {
+                    final PolyState visitingState = states.get(stateId);
+                    final int offset = stateId - batchStart;
+                    final int[] row = new int[plen];
+                    for (int c = 0; c < plen; ++c) {
+                        final PolyState destState = visitingState.step(points[c]);
+                        if (destState.isNull()) {
+                            row[c] = -1;
+                            continue;
+                        }
+                        final Integer destStateId = multiStateIndex.get(destState);
+                        if (destStateId != null) {
+                            row[c] = destStateId;
+                        } else {
+                            if (newTargets[offset] == null) {
+                                newTargets[offset] = new PolyState[plen];
+                            }
+                            newTargets[offset][c] = destState;
+                        }
                     }
-                    else {
-                        destStateId = multiStateIndex.get(destState);
+                    rows[offset] = row;
+                    accepts[offset] = visitingState.toAcceptValues();
+                }
+            });
+
+            // and then number newly found states in deterministic order
+            for (int offset = 0; offset < rows.length; ++offset) {
+                final PolyState[] targets = newTargets[offset];
+                if (targets != null) {
+                    for (int c = 0; c < plen; ++c) {
+                        final PolyState destState = targets[c];
+                        if (destState != null) {
+                            Integer destStateId = multiStateIndex.get(destState);
+                            if (destStateId == null) {
+                                destStateId = states.size();
+                                states.add(destState);
+                                multiStateIndex.put(destState, destStateId);
+                            }
+                            rows[offset][c] = destStateId;
+                        }
                     }
-                    curTransitions[c] = destStateId;
                 }
+                transitionList.add(rows[offset]);
+                acceptList.add(accepts[offset]);
+            }
+            if (states.size() > maxStates) {
+                return null;
             }
-            transitionList.add(curTransitions);
-        }
-
-        if (transitionList.size() != multiStateIndex.size()) {
-            throw new IllegalStateException(String.format(
-                    "Internal error: transitionList.size(%d) != multiStateIndex.size(%d)",
-                    transitionList.size(), multiStateIndex.size()));
         }
-        final int nbStates = multiStateIndex.size();
+        final int nbStates = states.size();
 
         final int[] transitions = new int[nbStates * plen];
         for (int stateId=0; stateId<nbStates; stateId++) {
-            for (int pointId = 0; pointId < plen; ++pointId) {
-                transitions[stateId * plen + pointId] = transitionList.get(stateId)[pointId];
-            }
+            System.arraycopy(transitionList.get(stateId), 0, transitions, stateId * plen, plen);
         }
 
+        // Many states share the same accept values (most commonly, none), so
+        // let's only retain one copy of each distinct set
         final int[][] acceptValues = new int[nbStates][];
-        for (final Map.Entry<PolyState, Integer> entry: multiStateIndex.entrySet()) {
-            final int stateId = entry.getValue();
-            final PolyState multiState = entry.getKey();
-            acceptValues[stateId] = multiState.toAcceptValues();
+        final Map<IntBuffer,int[]> distinctAccepts = new HashMap<>();
+        for (int stateId = 0; stateId < nbStates; ++stateId) {
+            int[] accept = acceptList.get(stateId);
+            if (accept.length == 0) {
+                accept = NO_ACCEPT;
+            } else {
+                final IntBuffer key = IntBuffer.wrap(accept);
+                final int[] shared = distinctAccepts.get(key);
+                if (shared == null) {
+                    distinctAccepts.put(key, accept);
+                } else {
+                    accept = shared;
+                }
+            }
+            acceptValues[stateId] = accept;
         }
 
-        return new Automata(acceptValues, transitions, points, automata.size());
+        return new Automata(acceptValues, TransitionTable.construct(transitions, nbStates, plen),
+                points, automata.size());
     }
 
     /**
@@ -130,14 +516,397 @@ public class Automata
         return _inputRegexpCount;
     }
 
+    /**
+     * @return Number of states in the combined state machine
+     */
+    public int stateCount() {
+        return _accept.length;
+    }
+
+    /**
+     * @return Number of distinct character classes, that is, number of
+     *    transitions per state
+     */
+    public int characterClassCount() {
+        return _stride;
+    }
+
+    /**
+     * @return Transition table used, mostly for diagnostic purposes
+     */
+    public TransitionTable transitionTable() {
+        return _transitions;
+    }
+
     public int step(final int state, final char c) {
-        return _transitions[((state * _stride) + _alphabet[c - Character.MIN_VALUE])];
+        return _transitions.next(state, characterClass(c));
+    }
+
+    /**
+     * @return Index of the character class (transition table column) given
+     *    character belongs to
+     */
+    public int characterClass(final char c) {
+        if (c < PAGE_SIZE) {
+            return _alphabetLatin1[c];
+        }
+        return _alphabetPages[c >> PAGE_BITS][c & PAGE_MASK];
     }
 
     public int[] accept(int stateId) {
         return _accept[stateId];
     }
 
+    /**
+     * @return Lowest index of regexps that given state accepts, if any;
+     *    -1 if none
+     */
+    public int firstAccept(int stateId) {
+        return _firstAccept[stateId];
+    }
+
+    /**
+     * @return True if {@link #firstAccept} will not change for given state,
+     *    regardless of input that follows; false if it may
+     */
+    public boolean isFirstAcceptDecided(int stateId) {
+        return (_stateFlags[stateId] & FLAG_FIRST_ACCEPT_DECIDED) != 0;
+    }
+
+    /**
+     * @return True if {@link #accept} will not change for given state,
+     *    regardless of input that follows; false if it may
+     */
+    public boolean isAcceptDecided(int stateId) {
+        return (_stateFlags[stateId] & FLAG_ACCEPT_DECIDED) != 0;
+    }
+
+    /**
+     * @return True if given state loops back to itself for all but a few
+     *    characters, so that {@link #skip} may be used
+     */
+    public boolean isAccelerable(int stateId) {
+        return (_stateFlags[stateId] & FLAG_ACCELERABLE) != 0;
+    }
+
+    /**
+     * @return Combination of <code>FLAG_xxx</code> values for given state
+     */
+    int stateFlags(int stateId) {
+        return _stateFlags[stateId];
+    }
+
+    /**
+     * Method for skipping input that keeps given accelerable state in the same
+     * state, by scanning for its exit characters.
+     *
+     * @return Index of the first exit character at or after <code>index</code>;
+     *    or <code>end</code> if there is none
+     */
+    public int skip(int stateId, CharSequence input, int index, int end)
+    {
+        final boolean[] exits = _exits[stateId];
+        for (; index < end; ++index) {
+            final char c = input.charAt(index);
+            if (c < MAX_EXIT_CHAR && exits[c]) {
+                break;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return Length (in chars) of the shortest input accepted by any of regexps;
+     *    or -1 if none accepts anything
+     */
+    public int minAcceptedLength()
+    {
+        final int stateCount = stateCount();
+        final int[] queue = new int[stateCount];
+        final int[] dist = new int[stateCount];
+        Arrays.fill(dist, -1);
+        dist[0] = 0;
+        for (int head = 0, tail = 1; head < tail; ++head) {
+            final int state = queue[head];
+            if (_accept[state].length > 0) { // breadth-first, so first one is the closest
+                return dist[state];
+            }
+            for (int c = 0; c < _stride; ++c) {
+                final int next = _transitions.next(state, c);
+                if (next >= 0 && dist[next] < 0) {
+                    dist[next] = dist[state] + 1;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Length (in chars) of the longest input accepted by any of regexps;
+     *    {@link Integer#MAX_VALUE} if there is no limit, or -1 if none accepts anything
+     */
+    public int maxAcceptedLength()
+    {
+        final int stateCount = stateCount();
+        final int[][] targets = new int[stateCount][];
+        final List<List<Integer>> sources = new ArrayList<>(stateCount);
+        for (int state = 0; state < stateCount; ++state) {
+            sources.add(new ArrayList<Integer>());
+        }
+        for (int state = 0; state < stateCount; ++state) {
+            final Set<Integer> distinct = new LinkedHashSet<>();
+            for (int c = 0; c < _stride; ++c) {
+                final int next = _transitions.next(state, c);
+                if (next >= 0 && distinct.add(next)) {
+                    sources.get(next).add(state);
+                }
+            }
+            targets[state] = new int[distinct.size()];
+            int ix = 0;
+            for (Integer next : distinct) {
+                targets[state][ix++] = next;
+            }
+        }
+        // First: "live" states, from which an accepting state can be reached
+        final boolean[] live = new boolean[stateCount];
+        final int[] queue = new int[stateCount];
+        int tail = 0;
+        for (int state = 0; state < stateCount; ++state) {
+            if (_accept[state].length > 0) {
+                live[state] = true;
+                queue[tail++] = state;
+            }
+        }
+        for (int head = 0; head < tail; ++head) {
+            for (Integer prev : sources.get(queue[head])) {
+                if (!live[prev]) {
+                    live[prev] = true;
+                    queue[tail++] = prev;
+                }
+            }
+        }
+        if (!live[0]) {
+            return -1;
+        }
+        // Then longest path over live states, using iterative depth-first traversal;
+        // any cycle means there is no limit
+        final int NEW = 0, ACTIVE = 1, DONE = 2;
+        final int[] status = new int[stateCount];
+        final int[] longest = new int[stateCount];
+        final int[] stack = new int[stateCount];
+        final int[] nextTarget = new int[stateCount];
+        int sp = 0;
+        stack[sp++] = 0;
+        status[0] = ACTIVE;
+        while (sp > 0) {
+            final int state = stack[sp-1];
+            final int[] stateTargets = targets[state];
+            if (nextTarget[state] < stateTargets.length) {
+                final int next = stateTargets[nextTarget[state]++];
+                if (!live[next]) {
+                    continue;
+                }
+                if (status[next] == ACTIVE) {
+                    return Integer.MAX_VALUE;
+                }
+                if (status[next] == NEW) {
+                    status[next] = ACTIVE;
+                    stack[sp++] = next;
+                }
+                continue;
+            }
+            int max = (_accept[state].length > 0) ? 0 : -1;
+            for (int next : stateTargets) {
+                if (live[next]) {
+                    max = Math.max(max, longest[next] + 1);
+                }
+            }
+            longest[state] = max;
+            status[state] = DONE;
+            --sp;
+        }
+        return longest[0];
+    }
+
+    /**
+     * Accessor for the variant of this automaton that operates on UTF-8 encoded
+     * bytes (passed to {@link #step} as chars 0x00 - 0xFF) instead of chars:
+     * accept values are the same, but multi-byte sequences go through
+     * additional intermediate states (that never accept anything).
+     * Variant is constructed on first call (unless constructed ahead of time,
+     * see {@link MatcherConfig#withByteMatching}), and retained for further use.
+     */
+    public Automata utf8Automata()
+    {
+        Automata utf8 = _utf8;
+        if (utf8 == null) {
+            synchronized (this) {
+                utf8 = _utf8;
+                if (utf8 == null) {
+                    _utf8 = utf8 = Utf8Expander.expand(this);
+                }
+            }
+        }
+        return utf8;
+    }
+
+    /**
+     * @return True if the UTF-8 variant (see {@link #utf8Automata}) has been
+     *    constructed
+     */
+    boolean hasUtf8Automata() {
+        return _utf8 != null;
+    }
+
+    /**
+     * Method for creating instance that shares transitions with this instance,
+     * but with given offset added to all accept values: used when this automaton
+     * only covers a subset of regexps, starting at given index.
+     */
+    Automata withAcceptOffset(final int offset)
+    {
+        if (offset == 0) {
+            return this;
+        }
+        final Map<int[],int[]> shifted = new IdentityHashMap<>();
+        final int[][] accept = new int[_accept.length][];
+        for (int i = 0; i < accept.length; ++i) {
+            final int[] orig = _accept[i];
+            int[] acc = shifted.get(orig);
+            if (acc == null) {
+                acc = (orig.length == 0) ? NO_ACCEPT : new int[orig.length];
+                for (int j = 0; j < orig.length; ++j) {
+                    acc[j] = orig[j] + offset;
+                }
+                shifted.put(orig, acc);
+            }
+            accept[i] = acc;
+        }
+        return new Automata(this, accept);
+    }
+
+    /*
+    /**********************************************************************
+    /* Binary serialization
+    /**********************************************************************
+     */
+
+    /**
+     * Method for writing this automaton out in binary form, to be read back
+     * using {@link #map}.
+     */
+    public void writeTo(DataOutput out) throws IOException
+    {
+        out.writeInt(_inputRegexpCount);
+        final char[] points = points();
+        out.writeInt(points.length);
+        for (char c : points) {
+            out.writeChar(c);
+        }
+        // Accept sets are shared, so write distinct ones first, then index for each state
+        final Map<int[],Integer> acceptIndexes = new IdentityHashMap<>();
+        final List<int[]> distinct = new ArrayList<>();
+        for (int[] accept : _accept) {
+            if (!acceptIndexes.containsKey(accept)) {
+                acceptIndexes.put(accept, distinct.size());
+                distinct.add(accept);
+            }
+        }
+        out.writeInt(distinct.size());
+        for (int[] accept : distinct) {
+            out.writeInt(accept.length);
+            for (int i : accept) {
+                out.writeInt(i);
+            }
+        }
+        out.writeInt(_accept.length);
+        for (int[] accept : _accept) {
+            out.writeInt(acceptIndexes.get(accept));
+        }
+        _transitions.writeTo(out);
+    }
+
+    /**
+     * Factory method for constructing instance from binary representation written
+     * by {@link #writeTo}, starting at the current position of given buffer.
+     * Transition table is accessed directly from the buffer (which is typically
+     * memory-mapped), and only small amount of additional data (alphabet and
+     * accept sets) is copied on heap.
+     */
+    public static Automata map(ByteBuffer buf) throws IOException
+    {
+        final int inputREs = buf.getInt();
+        final int pointCount = buf.getInt();
+        if (pointCount <= 0 || pointCount > (Character.MAX_VALUE + 1)) {
+            throw new IOException("Invalid character class count: "+pointCount);
+        }
+        final char[] points = new char[pointCount];
+        for (int i = 0; i < pointCount; ++i) {
+            points[i] = buf.getChar();
+            // classes must cover all characters, in order
+            if ((i == 0) ? (points[i] != 0) : (points[i] <= points[i-1])) {
+                throw new IOException("Invalid character class start point #"+i+": "+(int) points[i]);
+            }
+        }
+        final int distinctCount = buf.getInt();
+        // each accept set needs at least its length
+        if (distinctCount < 0 || distinctCount > (buf.remaining() / 4)) {
+            throw new IOException("Invalid accept set count: "+distinctCount);
+        }
+        final int[][] distinct = new int[distinctCount][];
+        for (int i = 0; i < distinctCount; ++i) {
+            final int len = buf.getInt();
+            if (len < 0 || len > (buf.remaining() / 4)) {
+                throw new IOException("Invalid accept set length: "+len);
+            }
+            final int[] accept = (len == 0) ? NO_ACCEPT : new int[len];
+            for (int j = 0; j < len; ++j) {
+                accept[j] = buf.getInt();
+                if (accept[j] < 0 || accept[j] >= inputREs) {
+                    throw new IOException("Invalid accept value: "+accept[j]);
+                }
+            }
+            distinct[i] = accept;
+        }
+        final int stateCount = buf.getInt();
+        // there is always the initial state; and each state needs its accept set index
+        if (stateCount <= 0 || stateCount > (buf.remaining() / 4)) {
+            throw new IOException("Invalid state count: "+stateCount);
+        }
+        final int[][] accept = new int[stateCount][];
+        for (int i = 0; i < stateCount; ++i) {
+            final int ix = buf.getInt();
+            if (ix < 0 || ix >= distinctCount) {
+                throw new IOException("Invalid accept set index: "+ix);
+            }
+            accept[i] = distinct[ix];
+        }
+        final TransitionTable transitions = TransitionTable.map(buf);
+        if (transitions.stateCount() != stateCount || transitions.stride() != pointCount) {
+            throw new IOException(String.format(
+                    "Transition table dimensions (%d x %d) do not match automaton (%d x %d)",
+                    transitions.stateCount(), transitions.stride(), stateCount, pointCount));
+        }
+        return new Automata(accept, transitions, points, inputREs);
+    }
+
+    /**
+     * Helper method for reconstructing start points of character classes
+     * from the alphabet mapping.
+     */
+    char[] points() {
+        final char[] points = new char[_stride];
+        for (int c = 0, prev = -1, ix = 0; c <= Character.MAX_VALUE; ++c) {
+            final int cls = characterClass((char) c);
+            if (cls != prev) {
+                points[ix++] = (char) c;
+                prev = cls;
+            }
+        }
+        return points;
+    }
+
     static PolyState initialState(List<Automaton> automata) {
         final State[] initialStates = new State[automata.size()];
         int c = 0;
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.autom;
+
+import java.util.Arrays;
+
+/**
+ * Helper methods for dealing with sets of chars, represented as sorted arrays
+ * of non-overlapping, non-adjacent inclusive ranges: <code>[first0, last0, first1, last1, ...]</code>
+ */
+final class CharRanges
+{
+    final static int[] EMPTY = new int[0];
+
+    final static int[] ALL = new int[] { 0, Character.MAX_VALUE };
+
+    private CharRanges() { }
+
+    public static int[] single(int c) {
+        return new int[] { c, c };
+    }
+
+    public static int[] range(int first, int last) {
+        return new int[] { first, last };
+    }
+
+    /**
+     * Method for constructing set out of arbitrary ranges, which may overlap
+     * and be in any order.
+     */
+    public static int[] normalize(int[] ranges, int length)
+    {
+        final int count = length / 2;
+        // sort by start (stable order not needed)
+        long[] packed = new long[count];
+        for (int i = 0; i < count; ++i) {
+            packed[i] = ((long) ranges[2*i] << 32) | ranges[2*i+1];
+        }
+        Arrays.sort(packed);
+        int[] result = new int[length];
+        int ix = 0;
+        for (long p : packed) {
+            final int first = (int) (p >>> 32);
+            final int last = (int) p;
+            if (ix > 0 && first <= result[ix-1] + 1) {
+                result[ix-1] = Math.max(result[ix-1], last);
+            } else {
+                result[ix++] = first;
+                result[ix++] = last;
+            }
+        }
+        return Arrays.copyOf(result, ix);
+    }
+
+    public static int[] union(int[] a, int[] b)
+    {
+        int[] all = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+        return normalize(all, all.length);
+    }
+
+    public static int[] negate(int[] ranges)
+    {
+        int[] result = new int[ranges.length + 2];
+        int ix = 0;
+        int next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                result[ix++] = next;
+                result[ix++] = ranges[i] - 1;
+            }
+            next = ranges[i+1] + 1;
+        }
+        if (next <= Character.MAX_VALUE) {
+            result[ix++] = next;
+            result[ix++] = Character.MAX_VALUE;
+        }
+        return Arrays.copyOf(result, ix);
+    }
+
+    public static boolean contains(int[] ranges, int c)
+    {
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (c < ranges[i]) {
+                return false;
+            }
+            if (c <= ranges[i+1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
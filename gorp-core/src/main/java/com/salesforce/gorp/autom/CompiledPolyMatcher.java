@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.autom;
+
+/**
+ * {@link PolyMatcher} implementation that matches character input using
+ * bytecode generated out of the combined automaton (see {@link GeneratedMatcher}),
+ * instead of looking up transitions from a table. Used when enabled with
+ * {@link MatcherConfig#withBytecodeGeneration}, for automata that are small
+ * enough; matching of UTF-8 encoded input still uses transition tables.
+ */
+public class CompiledPolyMatcher extends PolyMatcher
+{
+    protected final Automata _automata;
+
+    protected final GeneratedMatcher _generated;
+
+    protected CompiledPolyMatcher(Automata automata, GeneratedMatcher generated) {
+        super(automata);
+        _automata = automata;
+        _generated = generated;
+    }
+
+    /**
+     * Factory method that will generate matcher code for given automaton, if
+     * it is small enough for generated code to be JIT-compiled; if not, a plain
+     * table-driven {@link PolyMatcher} is returned.
+     */
+    public static PolyMatcher construct(Automata automata) {
+        return construct(automata, MatcherGenerator.DEFAULT_MAX_CODE_SIZE);
+    }
+
+    static PolyMatcher construct(Automata automata, int maxCodeSize) {
+        final GeneratedMatcher generated = MatcherGenerator.generate(automata, maxCodeSize);
+        if (generated == null) {
+            return new PolyMatcher(automata);
+        }
+        return new CompiledPolyMatcher(automata, generated);
+    }
+
+    @Override
+    public int[] match(CharSequence s) {
+        final int p = _generated.finalState(s);
+        return (p < 0) ? NO_MATCH : _automata.accept(p);
+    }
+
+    @Override
+    public int matchFirst(CharSequence s) {
+        final int p = _generated.finalState(s);
+        return (p < 0) ? -1 : _automata.firstAccept(p);
+    }
+}
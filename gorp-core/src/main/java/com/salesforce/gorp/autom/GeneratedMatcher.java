@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.autom;
+
+/**
+ * Base class for matchers that {@link MatcherGenerator} generates out of
+ * {@link Automata}: instead of looking up transitions from tables, generated
+ * code has transitions of each state hard-coded as comparisons against
+ * character range boundaries.
+ *<p>
+ * Needs to be public since generated classes are defined by their own
+ * class loader, and so are not in the same runtime package.
+ */
+public abstract class GeneratedMatcher
+{
+    protected GeneratedMatcher() { }
+
+    /**
+     * @return State of the automaton after the whole input, or -1 if
+     *    automaton has no transition for some character of input. If a state
+     *    with already decided accept set is reached before the end of input,
+     *    that state is returned instead.
+     */
+    public abstract int finalState(CharSequence input);
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.autom;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import dk.brics.automaton.Automaton;
+
+import com.salesforce.gorp.util.Utf8Helper;
+
+/**
+ * {@link PolyMatcher} implementation that does not construct the full combined
+ * automaton up front, but only materializes states (and transitions between them)
+ * as input reaches them. This avoids the state explosion that combining
+ * patterns with lots of overlapping wildcards (like {@code .*}) can cause,
+ * at the cost of somewhat slower matching until commonly used states have
+ * been cached.
+ *<p>
+ * Number of cached states is bounded: if a new state would be needed once
+ * cache is full, the current match continues by stepping component
+ * automata directly (without caching), and the whole cache is discarded
+ * before the next match starts.
+ *<p>
+ * Instances are thread-safe: cached states are immutable except for their
+ * transition arrays, which only ever change from "not yet known" (null)
+ * to a fully constructed state, so reads need no synchronization.
+ */
+public class LazyPolyMatcher extends PolyMatcher
+{
+    /**
+     * Marker used for transitions to the state that can not lead to a match.
+     */
+    private final static LazyState DEAD = new LazyState(null, NO_MATCH, 0);
+
+    private final PolyState _initialState;
+
+    /**
+     * Start points of character classes; used as representative characters
+     * for stepping component automata.
+     */
+    private final char[] _points;
+
+    private final int[] _alphabetLatin1;
+    private final char[][] _alphabetPages;
+
+    private final int _inputRegexpCount;
+
+    private final int _maxStates;
+
+    /**
+     * Cached states, keyed by combination of component states.
+     * Guarded by synchronizing on this matcher.
+     */
+    private Map<PolyState,LazyState> _states;
+
+    private volatile LazyState _startState;
+
+    /**
+     * Flag set when a match could not add a new state; cache is cleared
+     * by the next match.
+     */
+    private volatile boolean _cacheFull;
+
+    private int _cacheResets;
+
+    protected LazyPolyMatcher(List<Automaton> automata, int maxStates)
+    {
+        super(null);
+        if (maxStates < 1) {
+            throw new IllegalArgumentException("Invalid maximum state count ("+maxStates+"): must be positive");
+        }
+        for (Automaton automaton : automata) {
+            automaton.determinize();
+        }
+        _initialState = Automata.initialState(automata);
+        _points = Automata.pointsUnion(automata);
+        _alphabetPages = Automata.alphabetPages(_points);
+        _alphabetLatin1 = Automata.alphabetLatin1(_alphabetPages[0]);
+        _inputRegexpCount = automata.size();
+        _maxStates = maxStates;
+        _states = new HashMap<>();
+        _startState = _newState(_initialState);
+        _states.put(_initialState, _startState);
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Lazily constructed matchers have no precomputed {@link Automata}, so
+     * this method will always throw {@link IllegalStateException}.
+     */
+    @Override
+    public Automata getAutomata() {
+        throw new IllegalStateException("Lazily constructed matcher does not have precomputed Automata");
+    }
+
+    @Override
+    public int size() {
+        return _inputRegexpCount;
+    }
+
+    /**
+     * Lazily constructed matchers decode UTF-8 encoded input, so there is
+     * nothing to prepare.
+     */
+    @Override
+    public void prepareByteMatching(ForkJoinPool pool) { }
+
+    /**
+     * @return Number of states cached currently
+     */
+    public synchronized int getCachedStateCount() {
+        return _states.size();
+    }
+
+    /**
+     * @return Number of times state cache has been cleared due to having
+     *    reached its maximum size
+     */
+    public synchronized int getCacheResetCount() {
+        return _cacheResets;
+    }
+
+    public int getMaxCachedStates() {
+        return _maxStates;
+    }
+
+    @Override
+    public int[] match(CharSequence s) {
+        final LazyState state = _finalState(s);
+        return (state == null) ? NO_MATCH : state.accept;
+    }
+
+    @Override
+    public int matchFirst(CharSequence s) {
+        final LazyState state = _finalState(s);
+        return (state == null) ? -1 : state.firstAccept;
+    }
+
+    /**
+     * Lazy matcher has no byte-based automaton, so content is decoded and then
+     * matched.
+     */
+    @Override
+    public int[] match(byte[] input, int offset, int length) {
+        final String str = Utf8Helper.decode(input, offset, length);
+        return (str == null) ? NO_MATCH : match(str);
+    }
+
+    @Override
+    public int[] match(ByteBuffer input) {
+        final String str = Utf8Helper.decode(input);
+        return (str == null) ? NO_MATCH : match(str);
+    }
+
+    @Override
+    public int matchFirst(byte[] input, int offset, int length) {
+        final String str = Utf8Helper.decode(input, offset, length);
+        return (str == null) ? -1 : matchFirst(str);
+    }
+
+    @Override
+    public int matchFirst(ByteBuffer input) {
+        final String str = Utf8Helper.decode(input);
+        return (str == null) ? -1 : matchFirst(str);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    /**
+     * Method that runs cached automaton over given input.
+     *
+     * @return State automaton is in after all input, if input may match;
+     *    null if no match is possible
+     */
+    private LazyState _finalState(CharSequence s) {
+        LazyState state = _startState();
+        final int l = s.length();
+        for (int i = 0; i < l; ++i) {
+            final int cls = _characterClass(s.charAt(i));
+            LazyState next = state.next[cls];
+            if (next == null) {
+                next = _addTransition(state, cls);
+                if (next == null) { // cache full, need to continue without it
+                    return _matchUncached(state.poly, s, i);
+                }
+            }
+            if (next == DEAD) {
+                return null;
+            }
+            state = next;
+        }
+        return state;
+    }
+
+    private int _characterClass(final char c) {
+        if (c < _alphabetLatin1.length) {
+            return _alphabetLatin1[c];
+        }
+        return _alphabetPages[c >> 8][c & 0xFF];
+    }
+
+    private LazyState _startState()
+    {
+        if (_cacheFull) {
+            synchronized (this) {
+                if (_cacheFull) {
+                    _states = new HashMap<>();
+                    LazyState start = _newState(_initialState);
+                    _states.put(_initialState, start);
+                    _startState = start;
+                    ++_cacheResets;
+                    _cacheFull = false;
+                }
+            }
+        }
+        return _startState;
+    }
+
+    /**
+     * Method called to find or create state that given state transitions to
+     * for characters of given class.
+     *
+     * @return Target state, {@link #DEAD} if there is no match possible;
+     *    or null if a new state would be needed but cache is full
+     */
+    private synchronized LazyState _addTransition(LazyState from, int cls)
+    {
+        LazyState next = from.next[cls];
+        if (next != null) { // someone else beat us to it
+            return next;
+        }
+        final PolyState target = from.poly.step(_points[cls]);
+        if (target.isNull()) {
+            next = DEAD;
+        } else {
+            next = _states.get(target);
+            if (next == null) {
+                if (_states.size() >= _maxStates) {
+                    _cacheFull = true;
+                    return null;
+                }
+                next = _newState(target);
+                _states.put(target, next);
+            }
+        }
+        from.next[cls] = next;
+        return next;
+    }
+
+    /**
+     * Method called to match rest of the input without caching: result
+     * is a transient state that is not added in cache.
+     */
+    private LazyState _matchUncached(PolyState state, CharSequence s, int i)
+    {
+        for (final int l = s.length(); i < l; ++i) {
+            state = state.step(s.charAt(i));
+            if (state.isNull()) {
+                return null;
+            }
+        }
+        return _newState(state, 0);
+    }
+
+    private LazyState _newState(PolyState poly) {
+        return _newState(poly, _points.length);
+    }
+
+    private LazyState _newState(PolyState poly, int stride) {
+        int[] accept = poly.toAcceptValues();
+        return new LazyState(poly, (accept.length == 0) ? NO_MATCH : accept, stride);
+    }
+
+    /**
+     * Cached combined state.
+     */
+    private final static class LazyState
+    {
+        final PolyState poly;
+
+        final int[] accept;
+
+        final int firstAccept;
+
+        /**
+         * Transitions for each character class; null for ones not yet known.
+         */
+        final LazyState[] next;
+
+        LazyState(PolyState p, int[] acc, int stride) {
+            poly = p;
+            accept = acc;
+            firstAccept = (acc.length == 0) ? -1 : acc[0];
+            next = new LazyState[stride];
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.autom;
+
+import java.util.*;
+
+/**
+ * Cheap check used in front of {@link PolyMatcher} to reject input that none
+ * of patterns can match, without running the combined automaton. Two things are
+ * checked: that length of input is within bounds of what automata accept,
+ * and that input contains at least one "anchor" literal: for each pattern, the
+ * longest literal fragment that all matching inputs must contain.
+ *<p>
+ * Since the combined automaton already rejects most non-matching input within
+ * the first few characters, this is mostly useful for inputs where that is not
+ * the case: long lines with a common prefix, or definitions that have patterns
+ * starting with wildcards.
+ */
+public class LiteralPrefilter
+{
+    /**
+     * Number of anchors up to which <code>String.indexOf</code> is used instead
+     * of Aho-Corasick automaton, when input is a <code>String</code>.
+     */
+    private final static int MAX_INDEX_OF_ANCHORS = 4;
+
+    protected final int _minLength;
+
+    protected final int _maxLength;
+
+    /**
+     * Literals at least one of which matching input must contain; or null
+     * if there is no such requirement
+     */
+    protected final String[] _anchors;
+
+    protected final AhoCorasick _anchorMatcher;
+
+    protected LiteralPrefilter(int minLength, int maxLength, String[] anchors)
+    {
+        _minLength = minLength;
+        _maxLength = maxLength;
+        _anchors = anchors;
+        _anchorMatcher = (anchors == null) ? null : AhoCorasick.construct(Arrays.asList(anchors));
+    }
+
+    /**
+     * Factory method for constructing prefilter for given matcher.
+     *
+     * @param matcher Matcher for which to construct prefilter; used for finding
+     *    length bounds of matching input, unless it is lazily constructed
+     * @param requiredLiterals For each pattern of matcher, literal fragments that
+     *    all input matching the pattern must contain
+     *
+     * @return Prefilter constructed, if it could reject some input; null if not
+     */
+    public static LiteralPrefilter construct(PolyMatcher matcher, List<List<String>> requiredLiterals)
+    {
+        int minLength = 0;
+        int maxLength = Integer.MAX_VALUE;
+        final List<Automata> automata = _automata(matcher);
+        if (!automata.isEmpty()) {
+            minLength = Integer.MAX_VALUE;
+            maxLength = -1;
+            for (Automata a : automata) {
+                final int min = a.minAcceptedLength();
+                if (min >= 0) {
+                    minLength = Math.min(minLength, min);
+                    maxLength = Math.max(maxLength, a.maxAcceptedLength());
+                }
+            }
+        }
+        final String[] anchors = anchors(requiredLiterals);
+        if (anchors == null && minLength == 0 && maxLength == Integer.MAX_VALUE) {
+            return null;
+        }
+        return new LiteralPrefilter(minLength, maxLength, anchors);
+    }
+
+    private static List<Automata> _automata(PolyMatcher matcher)
+    {
+        if (matcher instanceof LazyPolyMatcher) { // no full automaton to use
+            return Collections.emptyList();
+        }
+        if (matcher instanceof ShardedPolyMatcher) {
+            ShardedPolyMatcher sharded = (ShardedPolyMatcher) matcher;
+            List<Automata> result = new ArrayList<>();
+            for (int i = 0, end = sharded.getShardCount(); i < end; ++i) {
+                result.add(sharded.getShard(i));
+            }
+            return result;
+        }
+        return Collections.singletonList(matcher.getAutomata());
+    }
+
+    /**
+     * Helper method for choosing the smallest set of literals at least one of
+     * which all matching input must contain: longest required literal of each pattern,
+     * except for ones that contain another chosen literal.
+     *
+     * @return Anchors chosen; or null if some pattern has no required literals
+     */
+    static String[] anchors(List<List<String>> requiredLiterals)
+    {
+        Set<String> longest = new LinkedHashSet<>();
+        for (List<String> literals : requiredLiterals) {
+            String anchor = "";
+            for (String literal : literals) {
+                if (literal.length() > anchor.length()) {
+                    anchor = literal;
+                }
+            }
+            if (anchor.isEmpty()) {
+                return null;
+            }
+            longest.add(anchor);
+        }
+        if (longest.isEmpty()) {
+            return null;
+        }
+        List<String> result = new ArrayList<>();
+        main_loop:
+        for (String anchor : longest) {
+            for (String other : longest) {
+                if (other != anchor && anchor.contains(other)) {
+                    continue main_loop;
+                }
+            }
+            result.add(anchor);
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    public int getMinLength() {
+        return _minLength;
+    }
+
+    public int getMaxLength() {
+        return _maxLength;
+    }
+
+    public List<String> getAnchors() {
+        if (_anchors == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(_anchors));
+    }
+
+    /**
+     * @return False if no pattern can match given input; true if some may
+     */
+    public boolean mightMatch(CharSequence input)
+    {
+        final int len = input.length();
+        if (len < _minLength || len > _maxLength) {
+            return false;
+        }
+        if (_anchors == null) {
+            return true;
+        }
+        if ((input instanceof String) && _anchors.length <= MAX_INDEX_OF_ANCHORS) {
+            final String str = (String) input;
+            for (String anchor : _anchors) {
+                if (str.indexOf(anchor) >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return _anchorMatcher.containsAny(input);
+    }
+
+    @Override
+    public String toString() {
+        return "[length: "+_minLength+"-"+((_maxLength == Integer.MAX_VALUE) ? "" : _maxLength)
+                +", anchors: "+getAnchors()+"]";
+    }
+}
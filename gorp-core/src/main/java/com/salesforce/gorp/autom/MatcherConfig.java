@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.autom;
+
+/**
+ * Immutable container for settings that affect how {@link PolyMatcher}
+ * instances are constructed. Instances are created by starting with
+ * {@link #DEFAULT} and calling "with" methods, each of which returns
+ * a new instance with changed setting.
+ */
+public class MatcherConfig
+{
+    /**
+     * Default number of states that lazily constructed matchers keep cached:
+     * with typical character class counts this means a few megabytes of
+     * transition arrays.
+     */
+    public final static int DEFAULT_LAZY_STATE_CACHE_SIZE = 10000;
+
+    /**
+     * Default settings: eager construction of the full combined automaton.
+     */
+    public final static MatcherConfig DEFAULT = new MatcherConfig(0, 1, 0, false, false, false);
+
+    /**
+     * Maximum number of states lazy matcher may have cached at any given time;
+     * or 0 to indicate that full automaton is to be constructed eagerly.
+     */
+    protected final int _lazyStateCacheSize;
+
+    /**
+     * Number of threads to use for construction; 1 means that everything
+     * is done by the calling thread.
+     */
+    protected final int _parallelism;
+
+    /**
+     * Maximum number of states for a single combined automaton, above which
+     * patterns are split into multiple automata; or 0 for no limit.
+     */
+    protected final int _stateBudget;
+
+    /**
+     * Whether matcher code is to be generated out of the combined automaton,
+     * instead of using transition tables.
+     */
+    protected final boolean _bytecodeGeneration;
+
+    /**
+     * Whether input is to be checked against required literals and length
+     * bounds of patterns (see {@link LiteralPrefilter}) before matching.
+     */
+    protected final boolean _literalPrefilter;
+
+    /**
+     * Whether automata for matching UTF-8 encoded input are to be constructed
+     * along with the combined automaton, instead of on first byte-based match.
+     */
+    protected final boolean _byteMatching;
+
+    protected MatcherConfig(int lazyStateCacheSize, int parallelism, int stateBudget,
+            boolean bytecodeGeneration, boolean literalPrefilter, boolean byteMatching) {
+        _lazyStateCacheSize = lazyStateCacheSize;
+        _parallelism = parallelism;
+        _stateBudget = stateBudget;
+        _bytecodeGeneration = bytecodeGeneration;
+        _literalPrefilter = literalPrefilter;
+        _byteMatching = byteMatching;
+    }
+
+    /**
+     * Method for constructing settings that use lazy construction of the
+     * combined automaton (see {@link LazyPolyMatcher}) with the default
+     * state cache size.
+     */
+    public MatcherConfig withLazyMatching() {
+        return withLazyMatching(DEFAULT_LAZY_STATE_CACHE_SIZE);
+    }
+
+    /**
+     * Method for constructing settings that use lazy construction of the
+     * combined automaton (see {@link LazyPolyMatcher}) with given state
+     * cache size; or, if 0 is passed, eager construction.
+     */
+    public MatcherConfig withLazyMatching(int maxCachedStates) {
+        if (maxCachedStates < 0) {
+            throw new IllegalArgumentException("Invalid state cache size ("+maxCachedStates+"): can not be negative");
+        }
+        if (maxCachedStates == _lazyStateCacheSize) {
+            return this;
+        }
+        return new MatcherConfig(maxCachedStates, _parallelism, _stateBudget, _bytecodeGeneration,
+                _literalPrefilter, _byteMatching);
+    }
+
+    /**
+     * Method for constructing settings that use given number of threads for
+     * construction: cooking of extractions, parsing and minimization of
+     * individual automata, and construction of the combined automaton.
+     * Results are identical regardless of parallelism, including numbering
+     * of states.
+     *
+     * @param parallelism Number of threads to use; 1 for using just the
+     *    calling thread
+     */
+    public MatcherConfig withParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism ("+parallelism+"): must be positive");
+        }
+        if (parallelism == _parallelism) {
+            return this;
+        }
+        return new MatcherConfig(_lazyStateCacheSize, parallelism, _stateBudget, _bytecodeGeneration,
+                _literalPrefilter, _byteMatching);
+    }
+
+    /**
+     * Method for constructing settings that limit the number of states a single
+     * combined automaton may have: if limit would be exceeded, patterns are
+     * split into contiguous groups, each with its own automaton
+     * (see {@link ShardedPolyMatcher}). Has no effect with lazy matching.
+     *
+     * @param maxStates Maximum number of states per automaton; or 0 to indicate
+     *    there is no limit
+     */
+    public MatcherConfig withStateBudget(int maxStates) {
+        if (maxStates < 0) {
+            throw new IllegalArgumentException("Invalid state budget ("+maxStates+"): can not be negative");
+        }
+        if (maxStates == _stateBudget) {
+            return this;
+        }
+        return new MatcherConfig(_lazyStateCacheSize, _parallelism, maxStates, _bytecodeGeneration,
+                _literalPrefilter, _byteMatching);
+    }
+
+    /**
+     * Method for constructing settings that either enable or disable generation
+     * of matcher bytecode out of the combined automaton (see {@link CompiledPolyMatcher}):
+     * this makes construction slower, but matching of hot definitions faster.
+     * Only automata small enough for the generated method to be JIT-compiled
+     * are handled; larger ones, as well as lazy and split matchers, use
+     * transition tables regardless.
+     */
+    public MatcherConfig withBytecodeGeneration(boolean state) {
+        if (state == _bytecodeGeneration) {
+            return this;
+        }
+        return new MatcherConfig(_lazyStateCacheSize, _parallelism, _stateBudget, state,
+                _literalPrefilter, _byteMatching);
+    }
+
+    /**
+     * Method for constructing settings that either enable or disable checking
+     * of character input against a {@link LiteralPrefilter} before matching:
+     * input that is too short or too long to match any pattern, or does not
+     * contain literal text that every match of some pattern must contain,
+     * is rejected without running the automaton. Helps most with definitions
+     * where most input lines match nothing, and patterns start with wildcards.
+     */
+    public MatcherConfig withLiteralPrefilter(boolean state) {
+        if (state == _literalPrefilter) {
+            return this;
+        }
+        return new MatcherConfig(_lazyStateCacheSize, _parallelism, _stateBudget, _bytecodeGeneration,
+                state, _byteMatching);
+    }
+
+    /**
+     * Method for constructing settings that either enable or disable construction
+     * of automata for matching UTF-8 encoded input (see
+     * {@link PolyMatcher#match(byte[], int, int)}) along with the combined automaton,
+     * using the same threads. If disabled, they are constructed when first needed
+     * (or by {@link PolyMatcher#prepareByteMatching()}), which for large automata
+     * means a noticeable delay for the first byte-based match, during which other
+     * threads matching bytes wait. Has no effect with lazy matching, which
+     * decodes byte input.
+     */
+    public MatcherConfig withByteMatching(boolean state) {
+        if (state == _byteMatching) {
+            return this;
+        }
+        return new MatcherConfig(_lazyStateCacheSize, _parallelism, _stateBudget, _bytecodeGeneration,
+                _literalPrefilter, state);
+    }
+
+    public boolean isLazy() {
+        return _lazyStateCacheSize > 0;
+    }
+
+    public int getLazyStateCacheSize() {
+        return _lazyStateCacheSize;
+    }
+
+    public int getParallelism() {
+        return _parallelism;
+    }
+
+    public int getStateBudget() {
+        return _stateBudget;
+    }
+
+    public boolean usesBytecodeGeneration() {
+        return _bytecodeGeneration;
+    }
+
+    public boolean usesLiteralPrefilter() {
+        return _literalPrefilter;
+    }
+
+    public boolean usesByteMatching() {
+        return _byteMatching;
+    }
+
+    @Override
+    public String toString() {
+        return (isLazy() ? ("[lazy matching, state cache: "+_lazyStateCacheSize) : "[eager matching")
+                +", parallelism: "+_parallelism
+                +((_stateBudget > 0) ? (", state budget: "+_stateBudget) : "")
+                +(_bytecodeGeneration ? ", bytecode generation" : "")
+                +(_literalPrefilter ? ", literal prefilter" : "")
+                +(_byteMatching ? ", byte matching" : "")+"]";
+    }
+}
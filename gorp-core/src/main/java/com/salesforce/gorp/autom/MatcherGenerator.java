@@ -0,0 +1,509 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.autom;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Helper class for generating a {@link GeneratedMatcher} class out of
+ * {@link Automata}. Generated code has a block for each state, which reads
+ * the next character and branches to the block of the next state using a
+ * binary search over boundaries of character ranges that lead to different
+ * states; so there are no table lookups at all, and transitions are constants
+ * that JIT can optimize.
+ *<p>
+ * Since HotSpot will not JIT-compile methods above certain size, states are
+ * split into "chunks" of consecutive states, each in its own static method:
+ * a chunk method runs until input ends, or until it needs to move to a state
+ * in another chunk, and then returns the current state and input position;
+ * and the main method calls chunk methods until input ends.
+ * As states are numbered in breadth-first order, most transitions stay
+ * within the same chunk.
+ */
+final class MatcherGenerator
+{
+    /**
+     * Default maximum total size of generated code, in bytes: beyond this
+     * the benefit from generated code is unlikely to outweigh its cost
+     * in instruction cache misses.
+     */
+    final static int DEFAULT_MAX_CODE_SIZE = 256 * 1024;
+
+    /**
+     * HotSpot does not JIT-compile methods with more bytecode than 8000 bytes
+     * (unless <code>-XX:-DontCompileHugeMethods</code> is specified), and
+     * running the generated code in interpreter would be much slower than
+     * using transition tables; so chunks are kept below that with some margin.
+     */
+    private final static int MAX_CHUNK_CODE_SIZE = 7500;
+
+    /**
+     * Maximum number of ranges that loop back to the state itself to check
+     * separately (see {@link #_generateLoopChecks}).
+     */
+    private final static int MAX_LOOP_RANGES = 2;
+
+    // Upper bounds for generated code size: per chunk (dispatch to first
+    // state, dead end), per state (switch entry, end check, reading of
+    // the next char), per character range (comparison, branch), per
+    // separately checked loop range, and per transition to another chunk
+    private final static int CHUNK_CODE_SIZE = 32;
+    private final static int STATE_CODE_SIZE = 28;
+    private final static int RANGE_CODE_SIZE = 11;
+    private final static int LOOP_RANGE_CODE_SIZE = 16;
+    private final static int EXIT_CODE_SIZE = 12;
+
+    private final static String BASE_CLASS = Type.getInternalName(GeneratedMatcher.class);
+
+    private final static String CHAR_SEQUENCE = Type.getInternalName(CharSequence.class);
+
+    private final static String CHUNK_DESC = "(L"+CHAR_SEQUENCE+";III)J";
+
+    // Local variables of chunk methods
+    private final static int CHUNK_INPUT = 0;
+    private final static int CHUNK_INDEX = 1;
+    private final static int CHUNK_LENGTH = 2;
+    private final static int CHUNK_STATE = 3;
+    private final static int CHUNK_CHAR = 4;
+
+    // Local variables of the main method
+    private final static int MAIN_INPUT = 1;
+    private final static int MAIN_LENGTH = 2;
+    private final static int MAIN_INDEX = 3;
+    private final static int MAIN_STATE = 4;
+    private final static int MAIN_RESULT = 5;
+
+    /**
+     * Counter for generating unique class names, mostly to make stack traces
+     * and profiles easier to read
+     */
+    private final static AtomicInteger _classCounter = new AtomicInteger();
+
+    private MatcherGenerator() { }
+
+    /**
+     * Method for generating and loading matcher class for given automaton,
+     * and constructing an instance.
+     *
+     * @param maxCodeSize Maximum total size of generated code, in bytes
+     *
+     * @return Matcher instance, if automaton is small enough; null if generated
+     *    code would exceed given maximum size
+     */
+    public static GeneratedMatcher generate(Automata automata, int maxCodeSize)
+    {
+        final int[][] ranges = ranges(automata);
+        final int[] chunkStarts = chunks(ranges, maxCodeSize);
+        if (chunkStarts == null) {
+            return null;
+        }
+        final String className = BASE_CLASS + "$Impl" + _classCounter.incrementAndGet();
+        final byte[] bytecode = generateClass(className, ranges, chunkStarts);
+        final Class<?> cls = new Loader(GeneratedMatcher.class.getClassLoader())
+                .define(className.replace('/', '.'), bytecode);
+        try {
+            return (GeneratedMatcher) cls.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to instantiate generated matcher class "
+                    +cls.getName()+": "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Helper method for collecting transitions of each state as ranges of
+     * characters that lead to the same state: for each state, an array of
+     * <code>[start0, target0, start1, target1, ...]</code> where each range
+     * extends up to the start of the next one. States for which accept set
+     * is already decided (see {@link Automata#isAcceptDecided}) get no ranges,
+     * as there is no need to read more input.
+     */
+    static int[][] ranges(Automata automata)
+    {
+        final char[] points = automata.points();
+        final TransitionTable transitions = automata.transitionTable();
+        final int stateCount = automata.stateCount();
+        final int stride = points.length;
+        final int[][] result = new int[stateCount][];
+        final int[] work = new int[2 * stride];
+
+        for (int state = 0; state < stateCount; ++state) {
+            if (automata.isAcceptDecided(state)) {
+                result[state] = new int[0];
+                continue;
+            }
+            int ix = 0;
+            for (int c = 0; c < stride; ++c) {
+                final int target = transitions.next(state, c);
+                if (ix == 0 || work[ix-1] != target) {
+                    work[ix++] = points[c];
+                    work[ix++] = target;
+                }
+            }
+            final int[] stateRanges = new int[ix];
+            System.arraycopy(work, 0, stateRanges, 0, ix);
+            result[state] = stateRanges;
+        }
+        return result;
+    }
+
+    /**
+     * Helper method for splitting states into chunks, by adding consecutive
+     * states into a chunk as long as its code stays below the maximum size.
+     *
+     * @return First state of each chunk (plus state count as the last entry);
+     *    or null if total code would exceed given maximum size, or if a single
+     *    state would exceed maximum chunk size
+     */
+    static int[] chunks(int[][] ranges, int maxCodeSize)
+    {
+        final int stateCount = ranges.length;
+        final int[] starts = new int[stateCount + 1];
+        int chunkCount = 0;
+        long totalSize = 0;
+
+        for (int first = 0; first < stateCount; ) {
+            // states referenced from chunk so far, to know how many exits are needed
+            final Set<Integer> targets = new HashSet<>();
+            int statesSize = CHUNK_CODE_SIZE;
+            int end = first;
+            int size = 0;
+            while (end < stateCount) {
+                final int[] stateRanges = ranges[end];
+                final int newSize = statesSize + STATE_CODE_SIZE
+                        + RANGE_CODE_SIZE * (stateRanges.length >> 1)
+                        + LOOP_RANGE_CODE_SIZE * _loopRangeCount(stateRanges, end);
+                for (int i = 1; i < stateRanges.length; i += 2) {
+                    if (stateRanges[i] >= 0) {
+                        targets.add(stateRanges[i]);
+                    }
+                }
+                int exits = 0;
+                for (Integer target : targets) {
+                    if (target < first || target > end) {
+                        ++exits;
+                    }
+                }
+                final int chunkSize = newSize + EXIT_CODE_SIZE * exits;
+                if (chunkSize > MAX_CHUNK_CODE_SIZE) {
+                    if (end == first) { // state too big to generate at all
+                        return null;
+                    }
+                    break;
+                }
+                statesSize = newSize;
+                size = chunkSize;
+                ++end;
+            }
+            totalSize += size;
+            if (totalSize > maxCodeSize) {
+                return null;
+            }
+            starts[chunkCount++] = first;
+            first = end;
+        }
+        starts[chunkCount++] = stateCount;
+        return Arrays.copyOf(starts, chunkCount);
+    }
+
+    /*
+    /**********************************************************************
+    /* Code generation
+    /**********************************************************************
+     */
+
+    private static byte[] generateClass(String className, int[][] ranges, int[] chunkStarts)
+    {
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER,
+                className, null, BASE_CLASS, null);
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, BASE_CLASS, "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, "finalState",
+                "(L"+CHAR_SEQUENCE+";)I", null, null);
+        mv.visitCode();
+        _generateMain(mv, className, chunkStarts);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        for (int i = 0, end = chunkStarts.length - 1; i < end; ++i) {
+            mv = cw.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, "chunk"+i,
+                    CHUNK_DESC, null, null);
+            mv.visitCode();
+            _generateChunk(mv, ranges, chunkStarts[i], chunkStarts[i+1]);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * Helper method for generating the main method, which calls chunk
+     * methods until input ends (or there is no transition): chunk methods
+     * return state (low 32 bits) and input position (high 32 bits).
+     */
+    private static void _generateMain(MethodVisitor mv, String className, int[] chunkStarts)
+    {
+        // int length = input.length(); int index = 0; int state = 0;
+        mv.visitVarInsn(Opcodes.ALOAD, MAIN_INPUT);
+        mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, CHAR_SEQUENCE, "length", "()I", true);
+        mv.visitVarInsn(Opcodes.ISTORE, MAIN_LENGTH);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, MAIN_INDEX);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, MAIN_STATE);
+
+        final Label loop = new Label();
+        final Label called = new Label();
+        mv.visitLabel(loop);
+        _generateChunkCalls(mv, className, chunkStarts, 0, chunkStarts.length - 2, called);
+        mv.visitLabel(called);
+        mv.visitVarInsn(Opcodes.LSTORE, MAIN_RESULT);
+        // state = (int) result; if (state < 0) return -1;
+        mv.visitVarInsn(Opcodes.LLOAD, MAIN_RESULT);
+        mv.visitInsn(Opcodes.L2I);
+        mv.visitVarInsn(Opcodes.ISTORE, MAIN_STATE);
+        final Label alive = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, MAIN_STATE);
+        mv.visitJumpInsn(Opcodes.IFGE, alive);
+        mv.visitInsn(Opcodes.ICONST_M1);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitLabel(alive);
+        // index = (int) (result >>> 32); if (index < length) continue;
+        mv.visitVarInsn(Opcodes.LLOAD, MAIN_RESULT);
+        mv.visitIntInsn(Opcodes.BIPUSH, 32);
+        mv.visitInsn(Opcodes.LUSHR);
+        mv.visitInsn(Opcodes.L2I);
+        mv.visitVarInsn(Opcodes.ISTORE, MAIN_INDEX);
+        mv.visitVarInsn(Opcodes.ILOAD, MAIN_INDEX);
+        mv.visitVarInsn(Opcodes.ILOAD, MAIN_LENGTH);
+        mv.visitJumpInsn(Opcodes.IF_ICMPLT, loop);
+        mv.visitVarInsn(Opcodes.ILOAD, MAIN_STATE);
+        mv.visitInsn(Opcodes.IRETURN);
+    }
+
+    /**
+     * Helper method for generating binary search over chunks with given indexes
+     * (inclusive), to call the one that contains current state.
+     */
+    private static void _generateChunkCalls(MethodVisitor mv, String className, int[] chunkStarts,
+            int first, int last, Label done)
+    {
+        if (first == last) {
+            mv.visitVarInsn(Opcodes.ALOAD, MAIN_INPUT);
+            mv.visitVarInsn(Opcodes.ILOAD, MAIN_INDEX);
+            mv.visitVarInsn(Opcodes.ILOAD, MAIN_LENGTH);
+            mv.visitVarInsn(Opcodes.ILOAD, MAIN_STATE);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, className, "chunk"+first, CHUNK_DESC, false);
+            mv.visitJumpInsn(Opcodes.GOTO, done);
+            return;
+        }
+        final int mid = (first + last + 1) >>> 1;
+        final Label upper = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, MAIN_STATE);
+        _pushInt(mv, chunkStarts[mid]);
+        mv.visitJumpInsn(Opcodes.IF_ICMPGE, upper);
+        _generateChunkCalls(mv, className, chunkStarts, first, mid - 1, done);
+        mv.visitLabel(upper);
+        _generateChunkCalls(mv, className, chunkStarts, mid, last, done);
+    }
+
+    private static void _generateChunk(MethodVisitor mv, int[][] ranges, int first, int end)
+    {
+        final Label[] stateLabels = new Label[end - first];
+        for (int i = 0; i < stateLabels.length; ++i) {
+            stateLabels[i] = new Label();
+        }
+        final Map<Integer,Label> exitLabels = new TreeMap<>();
+        final Label dead = new Label();
+
+        mv.visitVarInsn(Opcodes.ILOAD, CHUNK_STATE);
+        mv.visitTableSwitchInsn(first, end - 1, dead, stateLabels);
+
+        for (int state = first; state < end; ++state) {
+            mv.visitLabel(stateLabels[state - first]);
+            final int[] stateRanges = ranges[state];
+            if (stateRanges.length == 0) {
+                // outcome decided: skip rest of input, return state as final
+                mv.visitVarInsn(Opcodes.ILOAD, CHUNK_LENGTH);
+                mv.visitVarInsn(Opcodes.ISTORE, CHUNK_INDEX);
+                _generateReturn(mv, state);
+                continue;
+            }
+            // if (index >= length) return state;
+            final Label more = new Label();
+            mv.visitVarInsn(Opcodes.ILOAD, CHUNK_INDEX);
+            mv.visitVarInsn(Opcodes.ILOAD, CHUNK_LENGTH);
+            mv.visitJumpInsn(Opcodes.IF_ICMPLT, more);
+            _generateReturn(mv, state);
+            mv.visitLabel(more);
+            // char c = input.charAt(index++);
+            mv.visitVarInsn(Opcodes.ALOAD, CHUNK_INPUT);
+            mv.visitVarInsn(Opcodes.ILOAD, CHUNK_INDEX);
+            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, CHAR_SEQUENCE, "charAt", "(I)C", true);
+            mv.visitVarInsn(Opcodes.ISTORE, CHUNK_CHAR);
+            mv.visitIincInsn(CHUNK_INDEX, 1);
+            // and then branch to the next state
+            final int rangeCount = stateRanges.length >> 1;
+            final Label[] targets = new Label[rangeCount];
+            for (int i = 0; i < rangeCount; ++i) {
+                final int target = stateRanges[2*i + 1];
+                if (target < 0) {
+                    targets[i] = dead;
+                } else if (target >= first && target < end) {
+                    targets[i] = stateLabels[target - first];
+                } else {
+                    Label exit = exitLabels.get(target);
+                    if (exit == null) {
+                        exit = new Label();
+                        exitLabels.put(target, exit);
+                    }
+                    targets[i] = exit;
+                }
+            }
+            if (_loopRangeCount(stateRanges, state) > 0) {
+                _generateLoopChecks(mv, stateRanges, state, stateLabels[state - first]);
+            }
+            _generateBranches(mv, stateRanges, targets, 0, rangeCount - 1);
+        }
+
+        for (Map.Entry<Integer,Label> exit : exitLabels.entrySet()) {
+            mv.visitLabel(exit.getValue());
+            _generateReturn(mv, exit.getKey());
+        }
+
+        mv.visitLabel(dead);
+        mv.visitLdcInsn(-1L);
+        mv.visitInsn(Opcodes.LRETURN);
+    }
+
+    /**
+     * Helper method for generating explicit checks for ranges that loop back to
+     * the state itself, before general branching: most input is usually consumed
+     * by loops like <code>[^ ]*</code>, and testing for those first makes
+     * branches predictable.
+     */
+    private static void _generateLoopChecks(MethodVisitor mv, int[] ranges, int state, Label loop)
+    {
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i+1] != state) {
+                continue;
+            }
+            final int start = ranges[i];
+            final int end = (i + 2 < ranges.length) ? ranges[i+2] : (Character.MAX_VALUE + 1);
+            final Label notInRange = new Label();
+            if (start > 0) {
+                mv.visitVarInsn(Opcodes.ILOAD, CHUNK_CHAR);
+                _pushInt(mv, start);
+                mv.visitJumpInsn(Opcodes.IF_ICMPLT, notInRange);
+            }
+            if (end > Character.MAX_VALUE) {
+                mv.visitJumpInsn(Opcodes.GOTO, loop);
+            } else {
+                mv.visitVarInsn(Opcodes.ILOAD, CHUNK_CHAR);
+                _pushInt(mv, end);
+                mv.visitJumpInsn(Opcodes.IF_ICMPLT, loop);
+            }
+            mv.visitLabel(notInRange);
+        }
+    }
+
+    /**
+     * @return Number of ranges that loop back to given state, if small enough
+     *    to check for before general branching; 0 if not
+     */
+    private static int _loopRangeCount(int[] ranges, int state)
+    {
+        int count = 0;
+        for (int i = 1; i < ranges.length; i += 2) {
+            if (ranges[i] == state) {
+                ++count;
+            }
+        }
+        return (count <= MAX_LOOP_RANGES) ? count : 0;
+    }
+
+    /**
+     * Helper method for generating <code>return ((long) index << 32) | state;</code>
+     */
+    private static void _generateReturn(MethodVisitor mv, int state)
+    {
+        mv.visitVarInsn(Opcodes.ILOAD, CHUNK_INDEX);
+        mv.visitInsn(Opcodes.I2L);
+        mv.visitIntInsn(Opcodes.BIPUSH, 32);
+        mv.visitInsn(Opcodes.LSHL);
+        _pushInt(mv, state);
+        mv.visitInsn(Opcodes.I2L);
+        mv.visitInsn(Opcodes.LOR);
+        mv.visitInsn(Opcodes.LRETURN);
+    }
+
+    /**
+     * Helper method for generating binary search over ranges with given indexes
+     * (inclusive), given that character is known to be at or above start of
+     * the first range.
+     */
+    private static void _generateBranches(MethodVisitor mv, int[] ranges, Label[] targets,
+            int first, int last)
+    {
+        if (first == last) {
+            mv.visitJumpInsn(Opcodes.GOTO, targets[first]);
+            return;
+        }
+        final int mid = (first + last + 1) >>> 1;
+        final Label upper = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, CHUNK_CHAR);
+        _pushInt(mv, ranges[2*mid]);
+        mv.visitJumpInsn(Opcodes.IF_ICMPGE, upper);
+        _generateBranches(mv, ranges, targets, first, mid - 1);
+        mv.visitLabel(upper);
+        _generateBranches(mv, ranges, targets, mid, last);
+    }
+
+    private static void _pushInt(MethodVisitor mv, int value)
+    {
+        if (value <= 5) {
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    /**
+     * Class loader used for defining generated classes: each class gets its
+     * own loader, so that it can be unloaded once matcher is no longer used.
+     */
+    private final static class Loader extends ClassLoader
+    {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytecode) {
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+}
@@ -28,13 +28,16 @@
  */
 package com.salesforce.gorp.autom;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import dk.brics.automaton.Automaton;
 import dk.brics.automaton.RegExp;
 
+import com.salesforce.gorp.util.ParallelHelper;
+
 /**
  * Helper class for constructing actual {@link Automata} from multiple pattern definitions
  * which at this point are parseable by `Automaton` package.
@@ -45,7 +48,7 @@ import dk.brics.automaton.RegExp;
  */
 public class PolyMatcher
 {
-    private final int[] NO_MATCH = {};
+    protected final static int[] NO_MATCH = Automata.NO_ACCEPT;
     private final Automata automata;
     
     /**
@@ -66,21 +69,83 @@ public class PolyMatcher
     }
 
     public static PolyMatcher create(List<String> patterns) {
-        return new PolyMatcher(createAutomaton(patterns));
-    }
-
-    private static Automata createAutomaton(List<String> patterns) {
-        final List<Automaton> automata = new ArrayList<>();
-        for (String ptn: patterns) {
-            try {
-                Automaton automaton = new RegExp(ptn, FLAGS).toAutomaton();
-                automaton.minimize();
-                automata.add(automaton);
-            } catch (IllegalArgumentException e) {
-                throw new IllegalArgumentException("Invalid regexp, "+e.getMessage()+", source: "+_printablePattern(ptn));
+        return create(patterns, MatcherConfig.DEFAULT);
+    }
+
+    /**
+     * Factory method for constructing matcher with non-default settings;
+     * for example, to use lazy construction of the combined automaton
+     * (see {@link LazyPolyMatcher}), multiple threads for construction,
+     * or generated matcher code (see {@link CompiledPolyMatcher}).
+     */
+    public static PolyMatcher create(List<String> patterns, MatcherConfig config) {
+        final ForkJoinPool pool = ParallelHelper.createPool(config.getParallelism());
+        try {
+            return create(patterns, config, pool);
+        } finally {
+            ParallelHelper.shutdown(pool);
+        }
+    }
+
+    /**
+     * Factory method for constructing matcher with non-default settings,
+     * using given pool (if any) for parallel processing.
+     */
+    public static PolyMatcher create(List<String> patterns, MatcherConfig config,
+            ForkJoinPool pool)
+    {
+        try {
+            final List<Automaton> automata = parse(patterns, pool);
+            if (config.isLazy()) {
+                return new LazyPolyMatcher(automata, config.getLazyStateCacheSize());
             }
+            final PolyMatcher matcher;
+            if (config.getStateBudget() > 0) {
+                matcher = ShardedPolyMatcher.construct(automata, pool, config.getStateBudget());
+            } else {
+                matcher = new PolyMatcher(Automata.construct(automata, pool));
+            }
+            if (config.usesByteMatching()) {
+                matcher.prepareByteMatching(pool);
+            }
+            // generated code only covers a single automaton
+            if (config.usesBytecodeGeneration() && !(matcher instanceof ShardedPolyMatcher)) {
+                return CompiledPolyMatcher.construct(matcher.getAutomata());
+            }
+            return matcher;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) { // should not occur as tasks throw no checked exceptions
+            throw new IllegalStateException(e);
         }
-        return Automata.construct(automata);
+    }
+
+    /**
+     * Factory method for constructing matcher out of already built {@link Automata},
+     * for example one read from a precompiled binary representation.
+     */
+    public static PolyMatcher create(Automata automata) {
+        return new PolyMatcher(automata);
+    }
+
+    private static List<Automaton> parse(final List<String> patterns, ForkJoinPool pool)
+        throws Exception
+    {
+        final Automaton[] automata = new Automaton[patterns.size()];
+        ParallelHelper.forEach(pool, 0, automata.length, new ParallelHelper.IndexedTask() {
+            @Override
+            public void run(int index) {
+                final String ptn = patterns.get(index);
+                try {
+                    Automaton automaton = new RegExp(ptn, FLAGS).toAutomaton();
+                    automaton.minimize();
+                    automata[index] = automaton;
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid regexp, "+e.getMessage()+", source: "+_printablePattern(ptn));
+                }
+            }
+        });
+        return Arrays.asList(automata);
     }
 
     private static String _printablePattern(String src)
@@ -117,6 +182,35 @@ public class PolyMatcher
         return sb.toString();
     }
     
+    public Automata getAutomata() {
+        return automata;
+    }
+
+    /**
+     * @return Number of patterns this matcher was built from
+     */
+    public int size() {
+        return automata.size();
+    }
+
+    /**
+     * Method for constructing automata used for matching UTF-8 encoded input
+     * (see {@link Automata#utf8Automata}) ahead of time, instead of on the first
+     * byte-based match, during which other threads matching bytes would wait.
+     * Does nothing if they have already been constructed.
+     */
+    public void prepareByteMatching() {
+        prepareByteMatching(null);
+    }
+
+    /**
+     * Variant of {@link #prepareByteMatching()} that uses given pool (if any)
+     * for matchers that consist of multiple automata.
+     */
+    public void prepareByteMatching(ForkJoinPool pool) {
+        automata.utf8Automata();
+    }
+
     /**
      * @return Indexes of all patterns that matched.
      */
@@ -128,7 +222,119 @@ public class PolyMatcher
             if (p == -1) {
                 return NO_MATCH;
             }
+            final int flags = automata.stateFlags(p);
+            if (flags != 0) {
+                if ((flags & Automata.FLAG_ACCEPT_DECIDED) != 0) { // rest of input can not change outcome
+                    break;
+                }
+                if ((flags & Automata.FLAG_ACCELERABLE) != 0) { // skip to the next char that leaves state
+                    i = automata.skip(p, s, i+1, l) - 1;
+                }
+            }
         }
         return automata.accept(p);
     }
+
+    /**
+     * Alternative to {@link #match} for cases where only the highest-priority
+     * match is needed: does not allocate anything.
+     *
+     * @return Lowest index of patterns that matched, if any; -1 if none
+     */
+    public int matchFirst(CharSequence s) {
+        int p = 0;
+        final int l = s.length();
+        for (int i = 0; i < l; ++i) {
+            p = automata.step(p, s.charAt(i));
+            if (p == -1) {
+                return -1;
+            }
+            final int flags = automata.stateFlags(p);
+            if (flags != 0) {
+                if ((flags & Automata.FLAG_FIRST_ACCEPT_DECIDED) != 0) {
+                    break;
+                }
+                if ((flags & Automata.FLAG_ACCELERABLE) != 0) { // skip to the next char that leaves state
+                    i = automata.skip(p, s, i+1, l) - 1;
+                }
+            }
+        }
+        return automata.firstAccept(p);
+    }
+
+    /**
+     * Method for matching UTF-8 encoded input, without decoding it.
+     * Malformed input never matches.
+     *
+     * @return Indexes of all patterns that matched.
+     */
+    public int[] match(byte[] input, int offset, int length) {
+        final Automata utf8 = automata.utf8Automata();
+        final int p = _finalState(utf8, input, offset, length);
+        return (p < 0) ? NO_MATCH : utf8.accept(p);
+    }
+
+    /**
+     * Method for matching UTF-8 encoded input (from the current position of buffer
+     * to its limit), without decoding it. Position of buffer is not changed.
+     * Malformed input never matches.
+     *
+     * @return Indexes of all patterns that matched.
+     */
+    public int[] match(ByteBuffer input) {
+        final Automata utf8 = automata.utf8Automata();
+        final int p = _finalState(utf8, input);
+        return (p < 0) ? NO_MATCH : utf8.accept(p);
+    }
+
+    /**
+     * Method for matching UTF-8 encoded input, without decoding it.
+     * Malformed input never matches.
+     *
+     * @return Lowest index of patterns that matched, if any; -1 if none
+     */
+    public int matchFirst(byte[] input, int offset, int length) {
+        final Automata utf8 = automata.utf8Automata();
+        final int p = _finalState(utf8, input, offset, length);
+        return (p < 0) ? -1 : utf8.firstAccept(p);
+    }
+
+    /**
+     * Method for matching UTF-8 encoded input (from the current position of buffer
+     * to its limit), without decoding it. Position of buffer is not changed.
+     * Malformed input never matches.
+     *
+     * @return Lowest index of patterns that matched, if any; -1 if none
+     */
+    public int matchFirst(ByteBuffer input) {
+        final Automata utf8 = automata.utf8Automata();
+        final int p = _finalState(utf8, input);
+        return (p < 0) ? -1 : utf8.firstAccept(p);
+    }
+
+    /**
+     * @return State of given byte-based automaton after given input, or -1 if no
+     *    match is possible
+     */
+    protected static int _finalState(Automata utf8, byte[] input, int offset, int length) {
+        int p = 0;
+        for (int i = offset, end = offset + length; i < end; ++i) {
+            p = utf8.step(p, (char) (input[i] & 0xFF));
+            if (p == -1) {
+                break;
+            }
+        }
+        return p;
+    }
+
+    protected static int _finalState(Automata utf8, ByteBuffer input) {
+        int p = 0;
+        for (int i = input.position(), end = input.limit(); i < end; ++i) {
+            p = utf8.step(p, (char) (input.get(i) & 0xFF));
+            if (p == -1) {
+                break;
+            }
+        }
+        return p;
+    }
 }
@@ -0,0 +1,591 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.autom;
+
+import java.util.*;
+
+import static com.salesforce.gorp.autom.RegexpProgram.*;
+
+/**
+ * Parser for the subset of <code>java.util.regex</code> syntax supported by
+ * {@link RegexpProgram}; produces a syntax tree that is then compiled into
+ * program instructions.
+ *<p>
+ * Supported are literal characters and escapes, character classes (but not nested
+ * classes or intersections), predefined classes <code>\d \D \s \S \w \W</code>
+ * and <code>.</code>, capturing and non-capturing (<code>(?:</code>) groups,
+ * alternation, and greedy and reluctant quantifiers.
+ * Not supported are anchors and boundary matchers, back references, look-around,
+ * possessive quantifiers, flags, Unicode properties and quoting.
+ */
+final class RegexpParser
+{
+    /**
+     * Upper limit for counted repetition, to avoid excessive program size
+     */
+    private final static int MAX_REPEAT = 1000;
+
+    private final static int MAX_PROGRAM_SIZE = 250000;
+
+    /**
+     * Line terminators that JDK <code>.</code> does not match
+     */
+    private final static int[] CHARS_DOT = CharRanges.negate(CharRanges.normalize(new int[] {
+            '\n', '\n', '\r', '\r', 0x85, 0x85, 0x2028, 0x2029 }, 8));
+
+    private final static int[] CHARS_d = CharRanges.range('0', '9');
+    private final static int[] CHARS_s = CharRanges.normalize(new int[] {
+            ' ', ' ', '\t', '\r' }, 4);
+    private final static int[] CHARS_w = CharRanges.normalize(new int[] {
+            '0', '9', 'A', 'Z', '_', '_', 'a', 'z' }, 8);
+
+    private final String _source;
+
+    private int _pos;
+
+    private int _groupCount;
+
+    // Program being built
+
+    private int[] _ops = new int[64];
+    private int[] _args = new int[64];
+    private int[] _args2 = new int[64];
+    private int _size;
+
+    private final List<int[]> _charSets = new ArrayList<>();
+
+    public RegexpParser(String source) {
+        _source = source;
+    }
+
+    public RegexpProgram compile()
+    {
+        Node root = _parseAlternation();
+        if (_pos < _source.length()) { // can only be closing paren
+            throw _error("Unmatched closing ')'");
+        }
+        _emit(root);
+        _add(OP_MATCH, 0, 0);
+        return new RegexpProgram(_source, Arrays.copyOf(_ops, _size),
+                Arrays.copyOf(_args, _size), Arrays.copyOf(_args2, _size),
+                _charSets, _groupCount);
+    }
+
+    /*
+    /**********************************************************************
+    /* Syntax tree
+    /**********************************************************************
+     */
+
+    private abstract static class Node { }
+
+    private final static class CharSetNode extends Node {
+        final int[] ranges;
+        CharSetNode(int[] r) { ranges = r; }
+    }
+
+    private final static class SequenceNode extends Node {
+        final List<Node> items;
+        SequenceNode(List<Node> i) { items = i; }
+    }
+
+    private final static class AlternationNode extends Node {
+        final List<Node> alternatives;
+        AlternationNode(List<Node> a) { alternatives = a; }
+    }
+
+    private final static class GroupNode extends Node {
+        final Node body;
+        final int index;
+        GroupNode(Node b, int ix) { body = b; index = ix; }
+    }
+
+    private final static class RepeatNode extends Node {
+        final Node body;
+        final int min, max; // max of -1 means unbounded
+        final boolean greedy;
+        RepeatNode(Node b, int mn, int mx, boolean g) {
+            body = b;
+            min = mn;
+            max = mx;
+            greedy = g;
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Parsing
+    /**********************************************************************
+     */
+
+    private Node _parseAlternation()
+    {
+        Node first = _parseSequence();
+        if (!_peek('|')) {
+            return first;
+        }
+        List<Node> alts = new ArrayList<>();
+        alts.add(first);
+        while (_peek('|')) {
+            ++_pos;
+            alts.add(_parseSequence());
+        }
+        return new AlternationNode(alts);
+    }
+
+    private Node _parseSequence()
+    {
+        List<Node> items = new ArrayList<>();
+        while (_pos < _source.length()) {
+            char c = _source.charAt(_pos);
+            if (c == '|' || c == ')') {
+                break;
+            }
+            items.add(_parseQuantifier(_parseAtom()));
+        }
+        return new SequenceNode(items);
+    }
+
+    private Node _parseAtom()
+    {
+        final char c = _source.charAt(_pos++);
+        switch (c) {
+        case '(':
+            {
+                int index = 0;
+                if (_peek('?')) {
+                    if (_pos+1 < _source.length() && _source.charAt(_pos+1) == ':') {
+                        _pos += 2;
+                    } else {
+                        throw _unsupported("group construct other than '(?:'");
+                    }
+                } else {
+                    index = ++_groupCount;
+                }
+                Node body = _parseAlternation();
+                if (!_peek(')')) {
+                    throw _error("Unclosed group");
+                }
+                ++_pos;
+                return (index == 0) ? body : new GroupNode(body, index);
+            }
+        case '[':
+            return new CharSetNode(_parseCharClass());
+        case '.':
+            return new CharSetNode(CHARS_DOT);
+        case '\\':
+            return new CharSetNode(_parseEscape());
+        case '^':
+        case '$':
+            throw _unsupported("anchor '"+c+"'");
+        case '*':
+        case '+':
+        case '?':
+        case '{':
+            throw _error("Dangling meta character '"+c+"'");
+        default:
+            return new CharSetNode(CharRanges.single(c));
+        }
+    }
+
+    private Node _parseQuantifier(Node atom)
+    {
+        if (_pos >= _source.length()) {
+            return atom;
+        }
+        int min, max;
+        switch (_source.charAt(_pos)) {
+        case '*':
+            min = 0;
+            max = -1;
+            break;
+        case '+':
+            min = 1;
+            max = -1;
+            break;
+        case '?':
+            min = 0;
+            max = 1;
+            break;
+        case '{':
+            {
+                ++_pos;
+                min = _parseNumber();
+                if (_peek(',')) {
+                    ++_pos;
+                    max = _peek('}') ? -1 : _parseNumber();
+                } else {
+                    max = min;
+                }
+                if (!_peek('}')) {
+                    throw _error("Unclosed counted closure");
+                }
+                if (max >= 0 && max < min) {
+                    throw _error("Illegal repetition range");
+                }
+                if (Math.max(min, max) > MAX_REPEAT) {
+                    throw _unsupported("repetition count above "+MAX_REPEAT);
+                }
+            }
+            break;
+        default:
+            return atom;
+        }
+        ++_pos;
+        boolean greedy = true;
+        if (_peek('?')) {
+            greedy = false;
+            ++_pos;
+        } else if (_peek('+')) {
+            throw _unsupported("possessive quantifier");
+        }
+        return new RepeatNode(atom, min, max, greedy);
+    }
+
+    private int _parseNumber()
+    {
+        final int start = _pos;
+        while (_pos < _source.length() && Character.isDigit(_source.charAt(_pos))
+                && (_pos - start) < 9) {
+            ++_pos;
+        }
+        if (start == _pos) {
+            throw _error("Illegal repetition");
+        }
+        return Integer.parseInt(_source.substring(start, _pos));
+    }
+
+    private int[] _parseCharClass()
+    {
+        boolean negate = false;
+        if (_peek('^')) {
+            negate = true;
+            ++_pos;
+        }
+        int[] ranges = new int[16];
+        int count = 0;
+        boolean first = true;
+
+        while (true) {
+            if (_pos >= _source.length()) {
+                throw _error("Unclosed character class");
+            }
+            char c = _source.charAt(_pos++);
+            if (c == ']' && !first) {
+                break;
+            }
+            first = false;
+            int[] set;
+            if (c == '[') {
+                throw _unsupported("nested character class");
+            }
+            if (c == '&' && _peek('&')) {
+                throw _unsupported("character class intersection");
+            }
+            if (c == '\\') {
+                set = _parseEscape();
+            } else {
+                set = CharRanges.single(c);
+            }
+            // Range?
+            if (_isSingle(set) && _peek('-')
+                    && (_pos+1 < _source.length()) && _source.charAt(_pos+1) != ']') {
+                ++_pos;
+                char c2 = _source.charAt(_pos++);
+                int[] end = (c2 == '\\') ? _parseEscape() : CharRanges.single(c2);
+                if (!_isSingle(end) || c2 == '[') {
+                    throw _error("Illegal character range");
+                }
+                if (end[0] < set[0]) {
+                    throw _error("Illegal character range");
+                }
+                set = CharRanges.range(set[0], end[0]);
+            }
+            if (count + set.length > ranges.length) {
+                ranges = Arrays.copyOf(ranges, 2 * (count + set.length));
+            }
+            System.arraycopy(set, 0, ranges, count, set.length);
+            count += set.length;
+        }
+        int[] result = CharRanges.normalize(ranges, count);
+        return negate ? CharRanges.negate(result) : result;
+    }
+
+    private static boolean _isSingle(int[] set) {
+        return (set.length == 2) && (set[0] == set[1]);
+    }
+
+    /**
+     * Method called after backslash, to parse escaped character or predefined
+     * character class.
+     */
+    private int[] _parseEscape()
+    {
+        if (_pos >= _source.length()) {
+            throw _error("Unexpected end of pattern after '\\'");
+        }
+        final char c = _source.charAt(_pos++);
+        switch (c) {
+        case 'd':
+            return CHARS_d;
+        case 'D':
+            return CharRanges.negate(CHARS_d);
+        case 's':
+            return CHARS_s;
+        case 'S':
+            return CharRanges.negate(CHARS_s);
+        case 'w':
+            return CHARS_w;
+        case 'W':
+            return CharRanges.negate(CHARS_w);
+        case 't':
+            return CharRanges.single('\t');
+        case 'n':
+            return CharRanges.single('\n');
+        case 'r':
+            return CharRanges.single('\r');
+        case 'f':
+            return CharRanges.single('\f');
+        case 'a':
+            return CharRanges.single(0x07);
+        case 'e':
+            return CharRanges.single(0x1B);
+        case '0':
+            {
+                int value = 0;
+                int digits = 0;
+                while (digits < 3 && _pos < _source.length()) {
+                    int d = _source.charAt(_pos) - '0';
+                    if (d < 0 || d > 7 || (value * 8 + d) > 0377) {
+                        break;
+                    }
+                    value = value * 8 + d;
+                    ++digits;
+                    ++_pos;
+                }
+                if (digits == 0) {
+                    throw _error("Illegal octal escape sequence");
+                }
+                return CharRanges.single(value);
+            }
+        case 'x':
+            return CharRanges.single(_parseHex(2));
+        case 'u':
+            return CharRanges.single(_parseHex(4));
+        case 'c':
+            if (_pos >= _source.length()) {
+                throw _error("Illegal control escape sequence");
+            }
+            return CharRanges.single(_source.charAt(_pos++) ^ 64);
+        }
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+            throw _unsupported("escape sequence '\\"+c+"'");
+        }
+        return CharRanges.single(c);
+    }
+
+    private int _parseHex(int digits)
+    {
+        if (_pos + digits > _source.length()) {
+            throw _error("Illegal hexadecimal escape sequence");
+        }
+        int value = 0;
+        for (int i = 0; i < digits; ++i) {
+            int d = Character.digit(_source.charAt(_pos++), 16);
+            if (d < 0) {
+                throw _error("Illegal hexadecimal escape sequence");
+            }
+            value = (value << 4) + d;
+        }
+        return value;
+    }
+
+    private boolean _peek(char c) {
+        return (_pos < _source.length()) && (_source.charAt(_pos) == c);
+    }
+
+    private IllegalArgumentException _error(String msg) {
+        return new IllegalArgumentException(msg+" near index "+(_pos-1)+" of regexp: "+_source);
+    }
+
+    private IllegalArgumentException _unsupported(String what) {
+        return _error("Unsupported regexp feature ("+what+")");
+    }
+
+    /*
+    /**********************************************************************
+    /* Compilation
+    /**********************************************************************
+     */
+
+    private void _emit(Node n)
+    {
+        if (n instanceof CharSetNode) {
+            _add(OP_CHAR, _charSets.size(), 0);
+            _charSets.add(((CharSetNode) n).ranges);
+        } else if (n instanceof SequenceNode) {
+            for (Node item : ((SequenceNode) n).items) {
+                _emit(item);
+            }
+        } else if (n instanceof AlternationNode) {
+            List<Node> alts = ((AlternationNode) n).alternatives;
+            final int last = alts.size() - 1;
+            int[] jumps = new int[last];
+            for (int i = 0; i < last; ++i) {
+                int split = _add(OP_SPLIT, _size + 1, 0);
+                _emit(alts.get(i));
+                jumps[i] = _add(OP_JUMP, 0, 0);
+                _args2[split] = _size;
+            }
+            _emit(alts.get(last));
+            for (int jump : jumps) {
+                _args[jump] = _size;
+            }
+        } else if (n instanceof GroupNode) {
+            GroupNode g = (GroupNode) n;
+            final int slot = 2 * (g.index - 1);
+            _add(OP_SAVE, slot, 0);
+            _emit(g.body);
+            _add(OP_SAVE, slot + 1, 0);
+        } else {
+            _emitRepeat((RepeatNode) n);
+        }
+    }
+
+    private void _emitRepeat(RepeatNode r)
+    {
+        if (_nullable(r.body)) {
+            _emitNullableRepeat(r);
+            return;
+        }
+        for (int i = 0; i < r.min; ++i) {
+            _emit(r.body);
+        }
+        if (r.max < 0) { // loop
+            final int split = _add(OP_SPLIT, 0, 0);
+            _emit(r.body);
+            _add(OP_JUMP, split, 0);
+            _setSplit(split, split + 1, _size, r.greedy);
+            return;
+        }
+        // nested optional copies: (x(x(x)?)?)?
+        final int optional = r.max - r.min;
+        int[] splits = new int[optional];
+        for (int i = 0; i < optional; ++i) {
+            splits[i] = _add(OP_SPLIT, 0, 0);
+            _emit(r.body);
+        }
+        for (int split : splits) {
+            _setSplit(split, split + 1, _size, r.greedy);
+        }
+    }
+
+    /**
+     * Repetition of something that can match empty is different, as
+     * <code>java.util.regex</code> does not continue repeating after an iteration
+     * that matched empty, but exits the repetition, keeping captures of that iteration.
+     * So each iteration ends with a check for this; and for unbounded repetitions,
+     * there are two alternating copies of the body, so that an iteration that starts
+     * where the previous one ended does not reach instructions already visited
+     * at that position.
+     */
+    private void _emitNullableRepeat(RepeatNode r)
+    {
+        List<Integer> ends = new ArrayList<>();
+        for (int i = 0; i < r.min; ++i) {
+            _emitIteration(r.body, ends);
+        }
+        if (r.max < 0) { // loop
+            final int split1 = _add(OP_SPLIT, 0, 0);
+            _emitIteration(r.body, ends);
+            final int split2 = _add(OP_SPLIT, 0, 0);
+            _emitIteration(r.body, ends);
+            _add(OP_JUMP, split1, 0);
+            _setSplit(split1, split1 + 1, _size, r.greedy);
+            _setSplit(split2, split2 + 1, _size, r.greedy);
+        } else {
+            final int optional = r.max - r.min;
+            int[] splits = new int[optional];
+            for (int i = 0; i < optional; ++i) {
+                splits[i] = _add(OP_SPLIT, 0, 0);
+                _emitIteration(r.body, ends);
+            }
+            for (int split : splits) {
+                _setSplit(split, split + 1, _size, r.greedy);
+            }
+        }
+        for (int end : ends) {
+            _args2[end] = _size;
+        }
+    }
+
+    private void _emitIteration(Node body, List<Integer> ends)
+    {
+        final int start = _add(OP_ITER_START, 0, 0);
+        _emit(body);
+        ends.add(_add(OP_ITER_END, start, 0));
+    }
+
+    /**
+     * @return Whether given node can match empty input
+     */
+    private static boolean _nullable(Node n)
+    {
+        if (n instanceof CharSetNode) {
+            return false;
+        }
+        if (n instanceof SequenceNode) {
+            for (Node item : ((SequenceNode) n).items) {
+                if (!_nullable(item)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (n instanceof AlternationNode) {
+            for (Node alt : ((AlternationNode) n).alternatives) {
+                if (_nullable(alt)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (n instanceof GroupNode) {
+            return _nullable(((GroupNode) n).body);
+        }
+        RepeatNode r = (RepeatNode) n;
+        return (r.min == 0) || _nullable(r.body);
+    }
+
+    private void _setSplit(int split, int body, int exit, boolean greedy)
+    {
+        if (greedy) {
+            _args[split] = body;
+            _args2[split] = exit;
+        } else {
+            _args[split] = exit;
+            _args2[split] = body;
+        }
+    }
+
+    private int _add(int op, int arg, int arg2)
+    {
+        if (_size == _ops.length) {
+            if (_size >= MAX_PROGRAM_SIZE) {
+                throw _unsupported("expression too big, over "+MAX_PROGRAM_SIZE+" instructions");
+            }
+            final int newSize = _size * 2;
+            _ops = Arrays.copyOf(_ops, newSize);
+            _args = Arrays.copyOf(_args, newSize);
+            _args2 = Arrays.copyOf(_args2, newSize);
+        }
+        _ops[_size] = op;
+        _args[_size] = arg;
+        _args2[_size] = arg2;
+        return _size++;
+    }
+}
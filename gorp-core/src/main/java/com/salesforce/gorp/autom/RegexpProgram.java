@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.autom;
+
+import java.util.*;
+
+/**
+ * Compiled form of a regular expression, as a program for a (Thompson-style)
+ * non-deterministic automaton with capture slots: used by extraction backends
+ * that do not rely on backtracking (like tagged DFA or Pike VM).
+ *<p>
+ * Input syntax is the subset of <code>java.util.regex</code> syntax that Gorp
+ * definitions translate to (see
+ * {@link com.salesforce.gorp.util.RegexHelper#massageRegexpForJDK}), and semantics
+ * of matching (including which alternative or repetition count is chosen when there
+ * are multiple ways to match) follow those of <code>java.util.regex</code>;
+ * this includes ending a repetition after an iteration that matched empty
+ * (see {@link #OP_ITER_END}). There are two exceptions: input is handled as
+ * a sequence of chars, so that supplementary characters are matched as surrogate
+ * pairs; and a repeated group that can only match empty (like <code>()*</code>)
+ * captures the empty match, whereas <code>java.util.regex</code> never captures it.
+ *<p>
+ * Instructions are:
+ *<ul>
+ * <li>{@link #OP_CHAR}: consume a char that belongs to given set, continue to next instruction
+ *  </li>
+ * <li>{@link #OP_SPLIT}: continue to both instructions, {@link #arg} having higher
+ *   priority than {@link #arg2}
+ *  </li>
+ * <li>{@link #OP_JUMP}: continue to instruction {@link #arg}
+ *  </li>
+ * <li>{@link #OP_SAVE}: store current position into slot {@link #arg}, continue to
+ *   next instruction. Slots <code>2*i</code> and <code>2*i+1</code> are start
+ *   and end of capturing group <code>i+1</code>.
+ *  </li>
+ * <li>{@link #OP_MATCH}: match succeeds, if at the end of input
+ *  </li>
+ * <li>{@link #OP_ITER_START}: start of an iteration of a repetition whose body
+ *   can match empty, continue to next instruction
+ *  </li>
+ * <li>{@link #OP_ITER_END}: end of the iteration started at instruction {@link #arg}.
+ *   If the iteration matched empty (that is, instruction {@link #arg} was reached
+ *   at the current position, on the way here), continue to instruction {@link #arg2},
+ *   exit of the repetition, as <code>java.util.regex</code> does not repeat
+ *   after an empty iteration; otherwise continue to next instruction
+ *  </li>
+ *</ul>
+ * Execution starts at instruction 0.
+ */
+public class RegexpProgram
+{
+    public final static int OP_CHAR = 1;
+    public final static int OP_SPLIT = 2;
+    public final static int OP_JUMP = 3;
+    public final static int OP_SAVE = 4;
+    public final static int OP_MATCH = 5;
+    public final static int OP_ITER_START = 6;
+    public final static int OP_ITER_END = 7;
+
+    protected final String _source;
+
+    protected final int[] _ops;
+    protected final int[] _args;
+    protected final int[] _args2;
+
+    /**
+     * For {@link #OP_CHAR} instructions, which character classes are accepted;
+     * null for other instructions.
+     */
+    protected final boolean[][] _accepts;
+
+    protected final int _groupCount;
+
+    /**
+     * Start points of character classes: ranges of chars that no instruction
+     * distinguishes between.
+     */
+    protected final char[] _points;
+
+    protected final int[] _alphabetLatin1;
+    protected final char[][] _alphabetPages;
+
+    protected RegexpProgram(String source, int[] ops, int[] args, int[] args2,
+            List<int[]> charSets, int groupCount)
+    {
+        _source = source;
+        _ops = ops;
+        _args = args;
+        _args2 = args2;
+        _groupCount = groupCount;
+
+        // Split chars into classes, based on boundaries of all sets used
+        final Set<Character> pointSet = new TreeSet<>();
+        pointSet.add((char) 0);
+        for (int[] ranges : charSets) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                pointSet.add((char) ranges[i]);
+                if (ranges[i+1] < Character.MAX_VALUE) {
+                    pointSet.add((char) (ranges[i+1] + 1));
+                }
+            }
+        }
+        _points = new char[pointSet.size()];
+        int ix = 0;
+        for (Character c : pointSet) {
+            _points[ix++] = c;
+        }
+        _alphabetPages = Automata.alphabetPages(_points);
+        _alphabetLatin1 = Automata.alphabetLatin1(_alphabetPages[0]);
+
+        _accepts = new boolean[ops.length][];
+        for (int pc = 0; pc < ops.length; ++pc) {
+            if (ops[pc] == OP_CHAR) {
+                final int[] ranges = charSets.get(args[pc]);
+                final boolean[] acc = new boolean[_points.length];
+                for (int cls = 0; cls < acc.length; ++cls) {
+                    acc[cls] = CharRanges.contains(ranges, _points[cls]);
+                }
+                _accepts[pc] = acc;
+            }
+        }
+    }
+
+    /**
+     * Factory method for parsing and compiling given regular expression.
+     *
+     * @throws IllegalArgumentException If expression is invalid, or uses
+     *    features that are not supported
+     */
+    public static RegexpProgram compile(String regexp) throws IllegalArgumentException {
+        return new RegexpParser(regexp).compile();
+    }
+
+    public String getSource() {
+        return _source;
+    }
+
+    /**
+     * @return Number of instructions
+     */
+    public int size() {
+        return _ops.length;
+    }
+
+    /**
+     * @return Number of capturing groups
+     */
+    public int groupCount() {
+        return _groupCount;
+    }
+
+    /**
+     * @return Number of capture slots, two for each capturing group
+     */
+    public int slotCount() {
+        return 2 * _groupCount;
+    }
+
+    public int op(int pc) {
+        return _ops[pc];
+    }
+
+    /**
+     * @return Target of {@link #OP_JUMP}, primary target of {@link #OP_SPLIT},
+     *    slot of {@link #OP_SAVE}, or iteration start of {@link #OP_ITER_END}
+     */
+    public int arg(int pc) {
+        return _args[pc];
+    }
+
+    /**
+     * @return Secondary target of {@link #OP_SPLIT}, or repetition exit
+     *    of {@link #OP_ITER_END}
+     */
+    public int arg2(int pc) {
+        return _args2[pc];
+    }
+
+    /**
+     * @return Number of distinct character classes
+     */
+    public int characterClassCount() {
+        return _points.length;
+    }
+
+    /**
+     * @return Character class (index) given char belongs to
+     */
+    public int characterClass(final char c) {
+        if (c < _alphabetLatin1.length) {
+            return _alphabetLatin1[c];
+        }
+        return _alphabetPages[c >> 8][c & 0xFF];
+    }
+
+    /**
+     * @return Whether {@link #OP_CHAR} instruction at given position accepts
+     *    characters of given class
+     */
+    public boolean accepts(int pc, int charClass) {
+        return _accepts[pc][charClass];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int pc = 0; pc < _ops.length; ++pc) {
+            sb.append(pc).append(": ");
+            switch (_ops[pc]) {
+            case OP_CHAR:
+                sb.append("char");
+                break;
+            case OP_SPLIT:
+                sb.append("split ").append(_args[pc]).append(", ").append(_args2[pc]);
+                break;
+            case OP_JUMP:
+                sb.append("jump ").append(_args[pc]);
+                break;
+            case OP_SAVE:
+                sb.append("save ").append(_args[pc]);
+                break;
+            case OP_MATCH:
+                sb.append("match");
+                break;
+            case OP_ITER_START:
+                sb.append("iter-start");
+                break;
+            case OP_ITER_END:
+                sb.append("iter-end ").append(_args[pc]).append(", ").append(_args2[pc]);
+                break;
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.autom;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import dk.brics.automaton.Automaton;
+
+import com.salesforce.gorp.util.ParallelHelper;
+
+/**
+ * {@link PolyMatcher} implementation used when the combined automaton for all
+ * patterns would exceed the configured state budget
+ * (see {@link MatcherConfig#withStateBudget}): patterns are split into
+ * contiguous groups ("shards"), each with its own {@link Automata}.
+ * Shards are matched in order, and matching stops at the first shard that
+ * accepts input, so that the first matching pattern is the same as with a
+ * single automaton.
+ *<p>
+ * Note that {@link #match} has to match input against all shards, to find
+ * all matching patterns: only {@link #matchFirst} can stop early.
+ */
+public class ShardedPolyMatcher extends PolyMatcher
+{
+    /**
+     * Automata for each shard, in priority order; accept values have been
+     * offset to be indexes of patterns in the full list.
+     */
+    private final Automata[] _shards;
+
+    /**
+     * Index of the first pattern of each shard.
+     */
+    private final int[] _shardStarts;
+
+    private final int _inputRegexpCount;
+
+    protected ShardedPolyMatcher(Automata[] shards, int[] shardStarts, int inputREs)
+    {
+        super(null);
+        _shards = shards;
+        _shardStarts = shardStarts;
+        _inputRegexpCount = inputREs;
+    }
+
+    /**
+     * Factory method that will construct combined automata with at most given
+     * number of states each, splitting patterns into contiguous groups as
+     * necessary (by recursively halving groups that exceed budget). If all
+     * patterns fit in a single automaton, a plain {@link PolyMatcher} is returned.
+     * A single pattern that exceeds budget by itself gets its own shard
+     * regardless of budget.
+     */
+    public static PolyMatcher construct(List<Automaton> automata, ForkJoinPool pool, int maxStates)
+        throws Exception
+    {
+        final List<Automata> shards = new ArrayList<>();
+        final List<Integer> starts = new ArrayList<>();
+        _construct(automata, 0, automata.size(), pool, maxStates, shards, starts);
+        if (shards.size() == 1) {
+            return new PolyMatcher(shards.get(0));
+        }
+        final Automata[] shardArr = new Automata[shards.size()];
+        final int[] startArr = new int[shards.size()];
+        for (int i = 0; i < shardArr.length; ++i) {
+            startArr[i] = starts.get(i);
+            shardArr[i] = shards.get(i).withAcceptOffset(startArr[i]);
+        }
+        return new ShardedPolyMatcher(shardArr, startArr, automata.size());
+    }
+
+    private static void _construct(List<Automaton> automata, int start, int end,
+            ForkJoinPool pool, int maxStates,
+            List<Automata> shards, List<Integer> starts)
+        throws Exception
+    {
+        final List<Automaton> group = automata.subList(start, end);
+        final boolean single = (end - start) == 1;
+        final Automata result = Automata.construct(group, pool,
+                single ? Integer.MAX_VALUE : maxStates);
+        if (result != null) {
+            shards.add(result);
+            starts.add(start);
+            return;
+        }
+        final int mid = (start + end) >>> 1;
+        _construct(automata, start, mid, pool, maxStates, shards, starts);
+        _construct(automata, mid, end, pool, maxStates, shards, starts);
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Sharded matchers have no single {@link Automata}, so this method will
+     * always throw {@link IllegalStateException}: use {@link #getShard} instead.
+     */
+    @Override
+    public Automata getAutomata() {
+        throw new IllegalStateException("Sharded matcher does not have a single Automata ("
+                +_shards.length+" shards)");
+    }
+
+    @Override
+    public int size() {
+        return _inputRegexpCount;
+    }
+
+    /**
+     * Constructs UTF-8 variants of all shards, using given pool (if any)
+     * to construct them in parallel.
+     */
+    @Override
+    public void prepareByteMatching(ForkJoinPool pool) {
+        try {
+            ParallelHelper.forEach(pool, 0, _shards.length, 1, new ParallelHelper.IndexedTask() {
+                @Override
+                public void run(int index) {
+                    _shards[index].utf8Automata();
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) { // should not occur as tasks throw no checked exceptions
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int getShardCount() {
+        return _shards.length;
+    }
+
+    /**
+     * @return Automaton for given shard; note that its accept values are indexes
+     *    in the full list of patterns
+     */
+    public Automata getShard(int index) {
+        return _shards[index];
+    }
+
+    /**
+     * @return Index of the first pattern included in given shard
+     */
+    public int getShardStart(int index) {
+        return _shardStarts[index];
+    }
+
+    /**
+     * @return Number of states in the automaton of each shard
+     */
+    public int[] getShardStateCounts() {
+        final int[] counts = new int[_shards.length];
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = _shards[i].stateCount();
+        }
+        return counts;
+    }
+
+    /**
+     * @return Indexes of all patterns that matched, from all shards
+     */
+    @Override
+    public int[] match(CharSequence s) {
+        final int l = s.length();
+        int[] matched = NO_MATCH;
+        main_loop:
+        for (Automata automata : _shards) {
+            int p = 0;
+            for (int i = 0; i < l; ++i) {
+                p = automata.step(p, s.charAt(i));
+                if (p == -1) {
+                    continue main_loop;
+                }
+                final int flags = automata.stateFlags(p);
+                if (flags != 0) {
+                    if ((flags & Automata.FLAG_ACCEPT_DECIDED) != 0) {
+                        break;
+                    }
+                    if ((flags & Automata.FLAG_ACCELERABLE) != 0) { // skip to the next char that leaves state
+                        i = automata.skip(p, s, i+1, l) - 1;
+                    }
+                }
+            }
+            matched = _append(matched, automata.accept(p));
+        }
+        return matched;
+    }
+
+    @Override
+    public int matchFirst(CharSequence s) {
+        final int l = s.length();
+        main_loop:
+        for (Automata automata : _shards) {
+            int p = 0;
+            for (int i = 0; i < l; ++i) {
+                p = automata.step(p, s.charAt(i));
+                if (p == -1) {
+                    continue main_loop;
+                }
+                final int flags = automata.stateFlags(p);
+                if (flags != 0) {
+                    if ((flags & Automata.FLAG_FIRST_ACCEPT_DECIDED) != 0) {
+                        break;
+                    }
+                    if ((flags & Automata.FLAG_ACCELERABLE) != 0) { // skip to the next char that leaves state
+                        i = automata.skip(p, s, i+1, l) - 1;
+                    }
+                }
+            }
+            final int first = automata.firstAccept(p);
+            if (first >= 0) {
+                return first;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int[] match(byte[] input, int offset, int length) {
+        int[] matched = NO_MATCH;
+        for (Automata automata : _shards) {
+            final Automata utf8 = automata.utf8Automata();
+            final int p = _finalState(utf8, input, offset, length);
+            if (p >= 0) {
+                matched = _append(matched, utf8.accept(p));
+            }
+        }
+        return matched;
+    }
+
+    @Override
+    public int[] match(ByteBuffer input) {
+        int[] matched = NO_MATCH;
+        for (Automata automata : _shards) {
+            final Automata utf8 = automata.utf8Automata();
+            final int p = _finalState(utf8, input);
+            if (p >= 0) {
+                matched = _append(matched, utf8.accept(p));
+            }
+        }
+        return matched;
+    }
+
+    @Override
+    public int matchFirst(byte[] input, int offset, int length) {
+        for (Automata automata : _shards) {
+            final Automata utf8 = automata.utf8Automata();
+            final int p = _finalState(utf8, input, offset, length);
+            if (p >= 0 && utf8.firstAccept(p) >= 0) {
+                return utf8.firstAccept(p);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int matchFirst(ByteBuffer input) {
+        for (Automata automata : _shards) {
+            final Automata utf8 = automata.utf8Automata();
+            final int p = _finalState(utf8, input);
+            if (p >= 0 && utf8.firstAccept(p) >= 0) {
+                return utf8.firstAccept(p);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Helper method for combining accept sets of shards: since shards are in
+     * pattern order, appending keeps indexes sorted. Accept arrays are shared,
+     * so a new array is constructed if both have entries.
+     */
+    private static int[] _append(int[] matched, int[] accept) {
+        if (accept.length == 0) {
+            return matched;
+        }
+        if (matched.length == 0) {
+            return accept;
+        }
+        final int[] result = Arrays.copyOf(matched, matched.length + accept.length);
+        System.arraycopy(accept, 0, result, matched.length, accept.length);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[ShardedPolyMatcher: ");
+        for (int i = 0; i < _shards.length; ++i) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("#").append(_shardStarts[i]).append(": ").append(_shards[i].stateCount())
+                .append(" states");
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,732 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.autom;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Storage abstraction for transitions of {@link Automata}: logically a
+ * two-dimensional table indexed by state and character class, containing
+ * either id of the next state or <code>-1</code> for "no transition".
+ *<p>
+ * Since the table is accessed for every input character, its size matters
+ * a lot for cache efficiency; so instead of always using an <code>int[]</code>,
+ * encoding is chosen based on shape of the automaton:
+ *<ul>
+ * <li>Dense tables with narrowest element type that can hold all state ids
+ *   (<code>byte[]</code>, <code>short[]</code> or <code>int[]</code>)
+ *  </li>
+ * <li>Row-displacement ("comb") compressed table for large automata where most
+ *   rows only have a few transitions that differ from the most common target
+ *   of the row (commonly either "no transition" or a self-loop)
+ *  </li>
+ *</ul>
+ *<p>
+ * Tables may also be written out in binary form (see {@link #writeTo}), and
+ * then accessed directly from a (memory-mapped) {@link ByteBuffer} without
+ * copying contents on heap (see {@link #map}).
+ */
+public abstract class TransitionTable
+{
+    // Type markers for binary representation
+    protected final static int TYPE_BYTE = 1;
+    protected final static int TYPE_SHORT = 2;
+    protected final static int TYPE_INT = 4;
+    protected final static int TYPE_COMB = 8;
+
+    /**
+     * Dense tables up to this size (in bytes) are stored as plain <code>int[]</code>,
+     * even if a narrower type would do: they are likely to stay in CPU caches
+     * anyway, and narrow loads measured slower for the inner matching loop.
+     */
+    protected final static int MAX_INT_TABLE_BYTES = 64 * 1024;
+
+    /**
+     * Comb compression is used if it results in table that is at most this
+     * fraction (in percent) of the size of the narrowest dense encoding.
+     */
+    protected final static int MAX_COMPRESSED_PERCENT = 50;
+
+    protected final int _stateCount;
+
+    protected final int _stride;
+
+    protected TransitionTable(int stateCount, int stride) {
+        _stateCount = stateCount;
+        _stride = stride;
+    }
+
+    /**
+     * Factory method for choosing the most compact (but still efficient) encoding
+     * for given fully expanded table.
+     *
+     * @param transitions Transitions in row-major order, <code>stride</code> entries
+     *    per state, with <code>-1</code> for "no transition"
+     * @param stateCount Number of states (rows)
+     * @param stride Number of character classes (columns)
+     */
+    public static TransitionTable construct(int[] transitions, int stateCount, int stride)
+    {
+        final TransitionTable dense = constructDense(transitions, stateCount, stride);
+        final TransitionTable comb = CombTable.construct(transitions, stateCount, stride);
+        if ((comb.footprint() * 100L) <= (dense.footprint() * MAX_COMPRESSED_PERCENT)) {
+            return comb;
+        }
+        if ((4L * transitions.length) <= MAX_INT_TABLE_BYTES) {
+            return new IntTable(transitions, stateCount, stride);
+        }
+        return dense;
+    }
+
+    /**
+     * Factory method for constructing dense (uncompressed) table, using the
+     * narrowest element type that can hold all state ids.
+     *<p>
+     * Note that <code>-1</code> (no transition) must also fit, so byte tables
+     * can only be used for up to 127 states, short tables up to 32767.
+     */
+    public static TransitionTable constructDense(int[] transitions, int stateCount, int stride)
+    {
+        if (stateCount <= Byte.MAX_VALUE) {
+            return ByteTable.construct(transitions, stateCount, stride);
+        }
+        if (stateCount <= Short.MAX_VALUE) {
+            return ShortTable.construct(transitions, stateCount, stride);
+        }
+        return new IntTable(transitions, stateCount, stride);
+    }
+
+    /**
+     * Factory method for accessing a table written using {@link #writeTo}
+     * from given buffer, starting at its current position: table contents are
+     * NOT copied but accessed directly from the buffer. Position of the buffer
+     * is advanced past the table.
+     *<p>
+     * Since contents may come from an external source, all transitions are
+     * verified to lead to valid states; corrupt content results in an
+     * {@link IOException}.
+     */
+    public static TransitionTable map(ByteBuffer buf) throws IOException
+    {
+        final int type = buf.get();
+        final int stateCount = buf.getInt();
+        final int stride = buf.getInt();
+        if (stateCount < 0 || stride <= 0) {
+            throw new IOException(String.format("Invalid transition table dimensions: %d states x %d classes",
+                    stateCount, stride));
+        }
+        final long cells = (long) stateCount * stride;
+        final TransitionTable table;
+        switch (type) {
+        case TYPE_BYTE:
+            table = new MappedByteTable(_slice(buf, cells), stateCount, stride);
+            break;
+        case TYPE_SHORT:
+            table = new MappedShortTable(_slice(buf, cells * 2), stateCount, stride);
+            break;
+        case TYPE_INT:
+            table = new MappedIntTable(_slice(buf, cells * 4), stateCount, stride);
+            break;
+        case TYPE_COMB:
+            {
+                final int entries = buf.getInt();
+                if (entries < 0) {
+                    throw new IOException("Invalid transition table entry count: "+entries);
+                }
+                // defaults, bases (one per state), then next, check (one per entry)
+                final ByteBuffer rows = _slice(buf, stateCount * 8L);
+                final ByteBuffer cols = _slice(buf, entries * 8L);
+                table = new MappedCombTable(rows, cols, stateCount, stride);
+            }
+            break;
+        default:
+            throw new IOException("Unrecognized transition table type: "+type);
+        }
+        table._verify();
+        return table;
+    }
+
+    private static ByteBuffer _slice(ByteBuffer buf, long length) throws IOException
+    {
+        if (length < 0L || length > buf.remaining()) {
+            throw new IOException(String.format("Truncated transition table: need %d bytes, only %d available",
+                    length, buf.remaining()));
+        }
+        final ByteBuffer slice = buf.slice();
+        slice.limit((int) length);
+        buf.position(buf.position() + (int) length);
+        return slice;
+    }
+
+    /**
+     * Method for verifying that all transitions lead to valid states (or to
+     * "no transition"), called for tables accessed from external content, so that
+     * corrupt content is detected when loading, instead of failing when matching.
+     */
+    protected void _verify() throws IOException
+    {
+        for (int state = 0; state < _stateCount; ++state) {
+            for (int c = 0; c < _stride; ++c) {
+                _verifyState(next(state, c), "Transition target");
+            }
+        }
+    }
+
+    protected void _verifyState(int state, String desc) throws IOException
+    {
+        if (state < -1 || state >= _stateCount) {
+            throw new IOException(String.format("%s %d out of range (%d states)",
+                    desc, state, _stateCount));
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * @return Id of the state to move to from given state, for given character
+     *    class; or <code>-1</code> if there is no transition
+     */
+    public abstract int next(int state, int charClass);
+
+    /**
+     * @return Approximate number of bytes used by the table contents
+     */
+    public abstract long footprint();
+
+    /**
+     * @return Short description of encoding used, for diagnostics
+     */
+    public abstract String encoding();
+
+    /**
+     * Method for writing table contents in binary form, readable using
+     * {@link #map}.
+     */
+    public abstract void writeTo(DataOutput out) throws IOException;
+
+    public int stateCount() {
+        return _stateCount;
+    }
+
+    public int stride() {
+        return _stride;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s transitions: %d states x %d classes, %d bytes]",
+                encoding(), _stateCount, _stride, footprint());
+    }
+
+    protected void _writeHeader(DataOutput out, int type) throws IOException {
+        out.writeByte(type);
+        out.writeInt(_stateCount);
+        out.writeInt(_stride);
+    }
+
+    /*
+    /**********************************************************************
+    /* Dense implementations
+    /**********************************************************************
+     */
+
+    final static class ByteTable extends TransitionTable
+    {
+        private final byte[] _transitions;
+
+        private ByteTable(byte[] transitions, int stateCount, int stride) {
+            super(stateCount, stride);
+            _transitions = transitions;
+        }
+
+        public static ByteTable construct(int[] src, int stateCount, int stride) {
+            final byte[] transitions = new byte[src.length];
+            for (int i = 0, end = src.length; i < end; ++i) {
+                transitions[i] = (byte) src[i];
+            }
+            return new ByteTable(transitions, stateCount, stride);
+        }
+
+        @Override
+        public int next(int state, int charClass) {
+            return _transitions[(state * _stride) + charClass];
+        }
+
+        @Override
+        public long footprint() {
+            return _transitions.length;
+        }
+
+        @Override
+        public String encoding() {
+            return "byte";
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            _writeHeader(out, TYPE_BYTE);
+            out.write(_transitions);
+        }
+    }
+
+    final static class ShortTable extends TransitionTable
+    {
+        private final short[] _transitions;
+
+        private ShortTable(short[] transitions, int stateCount, int stride) {
+            super(stateCount, stride);
+            _transitions = transitions;
+        }
+
+        public static ShortTable construct(int[] src, int stateCount, int stride) {
+            final short[] transitions = new short[src.length];
+            for (int i = 0, end = src.length; i < end; ++i) {
+                transitions[i] = (short) src[i];
+            }
+            return new ShortTable(transitions, stateCount, stride);
+        }
+
+        @Override
+        public int next(int state, int charClass) {
+            return _transitions[(state * _stride) + charClass];
+        }
+
+        @Override
+        public long footprint() {
+            return 2L * _transitions.length;
+        }
+
+        @Override
+        public String encoding() {
+            return "short";
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            _writeHeader(out, TYPE_SHORT);
+            for (short s : _transitions) {
+                out.writeShort(s);
+            }
+        }
+    }
+
+    final static class IntTable extends TransitionTable
+    {
+        private final int[] _transitions;
+
+        IntTable(int[] transitions, int stateCount, int stride) {
+            super(stateCount, stride);
+            _transitions = transitions;
+        }
+
+        @Override
+        public int next(int state, int charClass) {
+            return _transitions[(state * _stride) + charClass];
+        }
+
+        @Override
+        public long footprint() {
+            return 4L * _transitions.length;
+        }
+
+        @Override
+        public String encoding() {
+            return "int";
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            _writeHeader(out, TYPE_INT);
+            for (int i : _transitions) {
+                out.writeInt(i);
+            }
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Compressed implementation
+    /**********************************************************************
+     */
+
+    /**
+     * Row-displacement compressed table: each row has a default target (the most
+     * common one in the row), and only entries that differ from it are stored
+     * in shared <code>next</code>/<code>check</code> arrays, with rows overlapped
+     * at offsets (<code>base</code>) chosen so that their entries do not collide.
+     */
+    final static class CombTable extends TransitionTable
+    {
+        /**
+         * Maximum number of offsets to try for a row before giving up and
+         * appending it after all rows placed so far.
+         */
+        private final static int MAX_PLACEMENT_ATTEMPTS = 1024;
+
+        private final int[] _default;
+        private final int[] _base;
+        private final int[] _next;
+
+        /**
+         * Owner row for each entry in {@link #_next}; <code>-1</code> for unused slots.
+         */
+        private final int[] _check;
+
+        private CombTable(int stateCount, int stride,
+                int[] defaults, int[] base, int[] next, int[] check) {
+            super(stateCount, stride);
+            _default = defaults;
+            _base = base;
+            _next = next;
+            _check = check;
+        }
+
+        public static CombTable construct(int[] src, int stateCount, int stride)
+        {
+            final int[] defaults = new int[stateCount];
+            final int[][] exceptions = new int[stateCount][];
+            final Integer[] order = new Integer[stateCount];
+
+            for (int state = 0; state < stateCount; ++state) {
+                final int offset = state * stride;
+                final int def = _mostCommon(src, offset, stride);
+                int count = 0;
+                for (int c = 0; c < stride; ++c) {
+                    if (src[offset + c] != def) {
+                        ++count;
+                    }
+                }
+                final int[] columns = new int[count];
+                for (int c = 0, ix = 0; c < stride; ++c) {
+                    if (src[offset + c] != def) {
+                        columns[ix++] = c;
+                    }
+                }
+                defaults[state] = def;
+                exceptions[state] = columns;
+                order[state] = state;
+            }
+
+            // Place rows with most entries first, as those are hardest to fit
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer s1, Integer s2) {
+                    int diff = exceptions[s2].length - exceptions[s1].length;
+                    return (diff != 0) ? diff : (s1.intValue() - s2.intValue());
+                }
+            });
+
+            final int[] base = new int[stateCount];
+            int[] next = new int[Math.max(stride, 16)];
+            int[] check = new int[next.length];
+            Arrays.fill(check, -1);
+            int size = 0;
+            // Lowest offset that may still have free slots; skips over packed prefix
+            int firstFree = 0;
+            // Where to start searching; moved forward for rows of the same size when
+            // search fails, as the same (dense) area would be tried again
+            int searchFrom = 0;
+            int prevColumnCount = -1;
+
+            for (Integer stateObj : order) {
+                final int state = stateObj.intValue();
+                final int[] columns = exceptions[state];
+                if (columns.length == 0) {
+                    base[state] = 0;
+                    continue;
+                }
+                // Make sure we have room for row placed at any offset we may try
+                if ((size + stride) > check.length) {
+                    final int newLen = Math.max(size + stride, check.length + (check.length >> 1));
+                    next = Arrays.copyOf(next, newLen);
+                    final int oldLen = check.length;
+                    check = Arrays.copyOf(check, newLen);
+                    Arrays.fill(check, oldLen, newLen, -1);
+                }
+                // Offsets from this on can not collide with anything placed so far
+                final int freeFrom = Math.max(0, size - columns[0]);
+                if (columns.length != prevColumnCount) {
+                    prevColumnCount = columns.length;
+                    searchFrom = firstFree;
+                }
+                int b = Math.max(0, Math.max(firstFree, searchFrom) - columns[0]);
+                // Limit first-fit search to keep construction linear for big tables;
+                // if nothing found, place past the end of the used area
+                for (int attempts = 0; b < freeFrom && !_fits(check, b, columns); ++b) {
+                    if (++attempts == MAX_PLACEMENT_ATTEMPTS) {
+                        searchFrom = b;
+                        b = freeFrom;
+                        break;
+                    }
+                }
+                base[state] = b;
+                final int offset = state * stride;
+                for (int c : columns) {
+                    next[b + c] = src[offset + c];
+                    check[b + c] = state;
+                }
+                size = Math.max(size, b + columns[columns.length-1] + 1);
+                while (firstFree < size && check[firstFree] >= 0) {
+                    ++firstFree;
+                }
+            }
+            // One more thing: we must not index past end for columns beyond
+            // last stored entry, so pad to cover full stride from any base
+            final int finalLen = size + stride;
+            next = Arrays.copyOf(next, finalLen);
+            final int oldLen = Math.min(check.length, finalLen);
+            check = Arrays.copyOf(check, finalLen);
+            if (oldLen < finalLen) {
+                Arrays.fill(check, oldLen, finalLen, -1);
+            }
+            return new CombTable(stateCount, stride, defaults, base, next, check);
+        }
+
+        private static boolean _fits(int[] check, int base, int[] columns) {
+            for (int c : columns) {
+                if (check[base + c] >= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int _mostCommon(int[] src, int offset, int stride)
+        {
+            final int[] row = Arrays.copyOfRange(src, offset, offset + stride);
+            Arrays.sort(row);
+            int best = row[0];
+            int bestCount = 0;
+            for (int i = 0; i < stride; ) {
+                final int value = row[i];
+                int end = i + 1;
+                while (end < stride && row[end] == value) {
+                    ++end;
+                }
+                if ((end - i) > bestCount) {
+                    best = value;
+                    bestCount = end - i;
+                }
+                i = end;
+            }
+            return best;
+        }
+
+        @Override
+        public int next(int state, int charClass) {
+            final int ix = _base[state] + charClass;
+            return (_check[ix] == state) ? _next[ix] : _default[state];
+        }
+
+        @Override
+        public long footprint() {
+            return 4L * (_default.length + _base.length + _next.length + _check.length);
+        }
+
+        @Override
+        public String encoding() {
+            return "comb";
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            _writeHeader(out, TYPE_COMB);
+            out.writeInt(_next.length);
+            for (int i = 0; i < _stateCount; ++i) {
+                out.writeInt(_default[i]);
+                out.writeInt(_base[i]);
+            }
+            for (int i = 0, end = _next.length; i < end; ++i) {
+                out.writeInt(_next[i]);
+                out.writeInt(_check[i]);
+            }
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Implementations that access binary representation from a buffer
+    /**********************************************************************
+     */
+
+    final static class MappedByteTable extends TransitionTable
+    {
+        private final ByteBuffer _transitions;
+
+        MappedByteTable(ByteBuffer transitions, int stateCount, int stride) {
+            super(stateCount, stride);
+            _transitions = transitions;
+        }
+
+        @Override
+        public int next(int state, int charClass) {
+            return _transitions.get((state * _stride) + charClass);
+        }
+
+        @Override
+        public long footprint() {
+            return _transitions.limit();
+        }
+
+        @Override
+        public String encoding() {
+            return "mapped-byte";
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            _writeHeader(out, TYPE_BYTE);
+            for (int i = 0, end = _transitions.limit(); i < end; ++i) {
+                out.writeByte(_transitions.get(i));
+            }
+        }
+    }
+
+    final static class MappedShortTable extends TransitionTable
+    {
+        private final ByteBuffer _transitions;
+
+        MappedShortTable(ByteBuffer transitions, int stateCount, int stride) {
+            super(stateCount, stride);
+            _transitions = transitions;
+        }
+
+        @Override
+        public int next(int state, int charClass) {
+            return _transitions.getShort(((state * _stride) + charClass) << 1);
+        }
+
+        @Override
+        public long footprint() {
+            return _transitions.limit();
+        }
+
+        @Override
+        public String encoding() {
+            return "mapped-short";
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            _writeHeader(out, TYPE_SHORT);
+            for (int i = 0, end = _transitions.limit(); i < end; i += 2) {
+                out.writeShort(_transitions.getShort(i));
+            }
+        }
+    }
+
+    final static class MappedIntTable extends TransitionTable
+    {
+        private final ByteBuffer _transitions;
+
+        MappedIntTable(ByteBuffer transitions, int stateCount, int stride) {
+            super(stateCount, stride);
+            _transitions = transitions;
+        }
+
+        @Override
+        public int next(int state, int charClass) {
+            return _transitions.getInt(((state * _stride) + charClass) << 2);
+        }
+
+        @Override
+        public long footprint() {
+            return _transitions.limit();
+        }
+
+        @Override
+        public String encoding() {
+            return "mapped-int";
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            _writeHeader(out, TYPE_INT);
+            for (int i = 0, end = _transitions.limit(); i < end; i += 4) {
+                out.writeInt(_transitions.getInt(i));
+            }
+        }
+    }
+
+    final static class MappedCombTable extends TransitionTable
+    {
+        /**
+         * Default target and base offset for each row, interleaved
+         */
+        private final ByteBuffer _rows;
+
+        /**
+         * Next state and owning row for each entry, interleaved
+         */
+        private final ByteBuffer _entries;
+
+        MappedCombTable(ByteBuffer rows, ByteBuffer entries, int stateCount, int stride) {
+            super(stateCount, stride);
+            _rows = rows;
+            _entries = entries;
+        }
+
+        @Override
+        public int next(int state, int charClass) {
+            final int rowOffset = state << 3;
+            final int entryOffset = (_rows.getInt(rowOffset + 4) + charClass) << 3;
+            if (_entries.getInt(entryOffset + 4) == state) {
+                return _entries.getInt(entryOffset);
+            }
+            return _rows.getInt(rowOffset);
+        }
+
+        @Override
+        public long footprint() {
+            return _rows.limit() + _entries.limit();
+        }
+
+        @Override
+        public String encoding() {
+            return "mapped-comb";
+        }
+
+        @Override
+        protected void _verify() throws IOException
+        {
+            final long entryCount = _entries.limit() >> 3;
+            for (int state = 0; state < _stateCount; ++state) {
+                _verifyState(_rows.getInt(state << 3), "Default transition target");
+                final int base = _rows.getInt((state << 3) + 4);
+                // every column of the row must be within entries
+                if (base < 0 || (base + (long) _stride) > entryCount) {
+                    throw new IOException(String.format("Row offset %d of state %d out of range (%d entries)",
+                            base, state, entryCount));
+                }
+            }
+            for (int i = 0, end = _entries.limit(); i < end; i += 8) {
+                _verifyState(_entries.getInt(i), "Transition target");
+                _verifyState(_entries.getInt(i + 4), "Transition owner");
+            }
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            _writeHeader(out, TYPE_COMB);
+            out.writeInt(_entries.limit() >> 3);
+            for (int i = 0, end = _rows.limit(); i < end; i += 4) {
+                out.writeInt(_rows.getInt(i));
+            }
+            for (int i = 0, end = _entries.limit(); i < end; i += 4) {
+                out.writeInt(_entries.getInt(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.autom;
+
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * Helper class for converting {@link Automata} that operates on (UTF-16) chars into
+ * one that operates on UTF-8 encoded bytes, so that input need not be decoded
+ * for matching.
+ *<p>
+ * States of the original automaton retain their ids; they are followed by
+ * intermediate states for partially read multi-byte sequences. Each intermediate
+ * state is defined by its transitions for the 64 possible continuation bytes,
+ * and states with identical transitions are shared. Code points outside Basic
+ * Multilingual Plane are matched as their surrogate pairs, just like with
+ * <code>String</code>s.
+ * Malformed UTF-8 (unexpected or missing continuation bytes, overlong encodings,
+ * encoded surrogates, values above U+10FFFF) never matches.
+ */
+final class Utf8Expander
+{
+    private final static int BLOCK_SIZE = 64;
+
+    private final Automata _chars;
+
+    private final int _charStateCount;
+
+    /**
+     * Transitions of intermediate states for continuation bytes, by
+     * (intermediate state id - char state count)
+     */
+    private final List<int[]> _intermediates = new ArrayList<>();
+
+    private final Map<IntBuffer,Integer> _intermediateIds = new HashMap<>();
+
+    /**
+     * Ids of intermediate states with the same transition for all continuation
+     * bytes to given char state; -2 if not yet known
+     */
+    private final int[] _uniformIds;
+
+    /**
+     * Flags for 64-char blocks that consist of characters of a single class
+     */
+    private final boolean[] _uniformBlocks;
+
+    private Utf8Expander(Automata chars)
+    {
+        _chars = chars;
+        _charStateCount = chars.stateCount();
+        _uniformIds = new int[_charStateCount];
+        Arrays.fill(_uniformIds, -2);
+        // classes are contiguous ranges, so a block is uniform if its first and last chars
+        // are in the same class
+        _uniformBlocks = new boolean[(Character.MAX_VALUE + 1) / BLOCK_SIZE];
+        for (int i = 0; i < _uniformBlocks.length; ++i) {
+            final int base = i * BLOCK_SIZE;
+            _uniformBlocks[i] = chars.characterClass((char) base)
+                    == chars.characterClass((char) (base + BLOCK_SIZE - 1));
+        }
+    }
+
+    public static Automata expand(Automata chars)
+    {
+        return new Utf8Expander(chars)._expand();
+    }
+
+    private Automata _expand()
+    {
+        // First figure out byte transitions of char states, creating intermediate states
+        final int[][] rows = new int[_charStateCount][];
+        for (int s = 0; s < _charStateCount; ++s) {
+            rows[s] = _charStateRow(s);
+        }
+        final int stateCount = _charStateCount + _intermediates.size();
+        if (stateCount < 0) { // overflow, not very likely
+            throw new IllegalStateException("Too many states for UTF-8 automaton");
+        }
+
+        // then figure out byte classes: ranges of bytes with identical transitions
+        final List<Character> pointList = new ArrayList<>();
+        pointList.add((char) 0);
+        for (int b = 1; b < 256; ++b) {
+            if (!_sameColumn(rows, b - 1, b)) {
+                pointList.add((char) b);
+            }
+        }
+        // and one more class for non-byte chars, which should never be used
+        pointList.add((char) 256);
+        final int plen = pointList.size();
+        final char[] points = new char[plen];
+        for (int i = 0; i < plen; ++i) {
+            points[i] = pointList.get(i);
+        }
+
+        final int[] transitions = new int[stateCount * plen];
+        final int[][] accept = new int[stateCount][];
+        for (int s = 0; s < stateCount; ++s) {
+            final int base = s * plen;
+            for (int c = 0; c < plen - 1; ++c) {
+                transitions[base + c] = _transition(rows, s, points[c]);
+            }
+            transitions[base + plen - 1] = -1;
+            accept[s] = (s < _charStateCount) ? _chars.accept(s) : Automata.NO_ACCEPT;
+        }
+        return Automata.create(accept, TransitionTable.construct(transitions, stateCount, plen),
+                points, _chars.size());
+    }
+
+    private boolean _sameColumn(int[][] rows, int b1, int b2)
+    {
+        for (int[] row : rows) {
+            if (row[b1] != row[b2]) {
+                return false;
+            }
+        }
+        // intermediate states only differ for continuation bytes, and
+        // between continuation bytes and others
+        if ((b1 >= 0x80 && b1 < 0xC0) || (b2 >= 0x80 && b2 < 0xC0)) {
+            for (int[] cont : _intermediates) {
+                if (_contTarget(cont, b1) != _contTarget(cont, b2)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private int _transition(int[][] rows, int state, int b) {
+        if (state < _charStateCount) {
+            return rows[state][b];
+        }
+        return _contTarget(_intermediates.get(state - _charStateCount), b);
+    }
+
+    private static int _contTarget(int[] cont, int b) {
+        return (b >= 0x80 && b < 0xC0) ? cont[b - 0x80] : -1;
+    }
+
+    /*
+    /**********************************************************************
+    /* Expansion of a single char state
+    /**********************************************************************
+     */
+
+    private int[] _charStateRow(int s)
+    {
+        final int[] row = new int[256];
+        Arrays.fill(row, -1);
+        // Single-byte (ASCII) chars
+        for (int b = 0; b < 0x80; ++b) {
+            row[b] = _chars.step(s, (char) b);
+        }
+        // 2-byte sequences: lead bytes 0xC2 - 0xDF (0xC0 and 0xC1 would be overlong)
+        for (int b = 0xC2; b < 0xE0; ++b) {
+            row[b] = _lastByte(s, (b & 0x1F) << 6);
+        }
+        // 3-byte sequences: lead bytes 0xE0 - 0xEF
+        final int[] cont = new int[BLOCK_SIZE];
+        for (int b = 0xE0; b < 0xF0; ++b) {
+            for (int x = 0; x < BLOCK_SIZE; ++x) {
+                if ((b == 0xE0 && x < 0x20) // overlong
+                        || (b == 0xED && x >= 0x20)) { // surrogates
+                    cont[x] = -1;
+                } else {
+                    cont[x] = _lastByte(s, ((b & 0x0F) << 12) | (x << 6));
+                }
+            }
+            row[b] = _intermediate(cont);
+        }
+        // 4-byte sequences: lead bytes 0xF0 - 0xF4
+        final int[] cont2 = new int[BLOCK_SIZE];
+        for (int b = 0xF0; b < 0xF5; ++b) {
+            for (int x = 0; x < BLOCK_SIZE; ++x) {
+                if ((b == 0xF0 && x < 0x10) // overlong
+                        || (b == 0xF4 && x >= 0x10)) { // above U+10FFFF
+                    cont[x] = -1;
+                    continue;
+                }
+                for (int y = 0; y < BLOCK_SIZE; ++y) {
+                    final int cp = ((b & 0x07) << 18) | (x << 12) | (y << 6);
+                    // all 64 code points share the high surrogate
+                    final int high = 0xD800 + ((cp - 0x10000) >> 10);
+                    final int afterHigh = _chars.step(s, (char) high);
+                    cont2[y] = (afterHigh < 0) ? -1
+                            : _lastByte(afterHigh, 0xDC00 + (cp & 0x3FF));
+                }
+                cont[x] = _intermediate(cont2);
+            }
+            row[b] = _intermediate(cont);
+        }
+        return row;
+    }
+
+    /**
+     * Method for finding intermediate state that handles the last byte of a
+     * multi-byte sequence, from given char state, for block of 64 chars
+     * starting at given char.
+     */
+    private int _lastByte(int s, int base)
+    {
+        if (_uniformBlocks[base / BLOCK_SIZE]) {
+            final int target = _chars.step(s, (char) base);
+            if (target < 0) {
+                return -1;
+            }
+            int id = _uniformIds[target];
+            if (id == -2) {
+                final int[] cont = new int[BLOCK_SIZE];
+                Arrays.fill(cont, target);
+                _uniformIds[target] = id = _intermediate(cont);
+            }
+            return id;
+        }
+        final int[] cont = new int[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            cont[i] = _chars.step(s, (char) (base + i));
+        }
+        return _intermediate(cont);
+    }
+
+    /**
+     * Method for finding (or creating) intermediate state with given transitions
+     * for continuation bytes; or -1 if all transitions fail.
+     */
+    private int _intermediate(int[] cont)
+    {
+        boolean dead = true;
+        for (int target : cont) {
+            if (target >= 0) {
+                dead = false;
+                break;
+            }
+        }
+        if (dead) {
+            return -1;
+        }
+        Integer id = _intermediateIds.get(IntBuffer.wrap(cont));
+        if (id == null) {
+            final int[] copy = Arrays.copyOf(cont, cont.length);
+            id = _charStateCount + _intermediates.size();
+            _intermediates.add(copy);
+            _intermediateIds.put(IntBuffer.wrap(copy), id);
+        }
+        return id;
+    }
+}
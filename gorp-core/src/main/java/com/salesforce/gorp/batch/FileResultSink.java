@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.batch;
+
+import java.io.IOException;
+
+import com.salesforce.gorp.ExtractionResult;
+
+/**
+ * Callback interface used with {@link GorpFileProcessor} for receiving
+ * results of extracting lines of a file. Lines are identified by byte offset
+ * of their first character within the file, since these are known
+ * without scanning all preceding content.
+ *<p>
+ * If results are delivered in order, calls are made from the thread that called
+ * {@link GorpFileProcessor#process}; otherwise from worker threads, concurrently,
+ * in which case implementation must be thread-safe.
+ */
+public interface FileResultSink
+{
+    /**
+     * Method called for a line that matched one of extractions.
+     *
+     * @param offset Byte offset of the line within file
+     * @param result Result of extraction; refers to content of the chunk the line
+     *    was in, so it should not be retained for longer than needed
+     */
+    public void matched(long offset, ExtractionResult result) throws IOException;
+
+    /**
+     * Method called for a line that did not match any of extractions.
+     *
+     * @param offset Byte offset of the line within file
+     * @param buffer Buffer that contains UTF-8 encoded line; contents are only
+     *    valid during the call
+     * @param start Offset of the line within buffer
+     * @param length Length of line in bytes, not including linefeed
+     */
+    public void unmatched(long offset, byte[] buffer, int start, int length) throws IOException;
+}
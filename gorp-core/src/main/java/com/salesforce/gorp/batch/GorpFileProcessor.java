@@ -0,0 +1,444 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+
+/**
+ * Processor that extracts information out of all lines of a file in parallel:
+ * file is read in newline-aligned chunks (by the calling thread), chunks
+ * are extracted using fork/join pool, and results are delivered to a
+ * {@link FileResultSink}, either in the original order of lines (from the calling
+ * thread), or as soon as chunks are done (from worker threads).
+ *<p>
+ * Input is expected to be UTF-8 encoded, with lines separated by linefeeds
+ * (a carriage return before linefeed is dropped). Only a limited number of chunks
+ * (two per thread) are in flight at any given time, to bound memory usage.
+ *<p>
+ * Instances are immutable; "with" methods are used to construct differently
+ * configured instances.
+ */
+public class GorpFileProcessor
+{
+    public final static int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Number of chunks to keep in flight per thread: enough to keep threads
+     * busy while results of earlier chunks are delivered.
+     */
+    private final static int CHUNKS_PER_THREAD = 2;
+
+    protected final Gorp _gorp;
+
+    /**
+     * Number of threads to use, if pool is not given
+     */
+    protected final int _parallelism;
+
+    /**
+     * Pool to use instead of creating one for each call; null if none
+     */
+    protected final ForkJoinPool _pool;
+
+    protected final int _chunkSize;
+
+    protected final boolean _ordered;
+
+    public GorpFileProcessor(Gorp gorp) {
+        this(gorp, Runtime.getRuntime().availableProcessors(), null, DEFAULT_CHUNK_SIZE, true);
+    }
+
+    protected GorpFileProcessor(Gorp gorp, int parallelism, ForkJoinPool pool,
+            int chunkSize, boolean ordered)
+    {
+        _gorp = gorp;
+        _parallelism = parallelism;
+        _pool = pool;
+        _chunkSize = chunkSize;
+        _ordered = ordered;
+    }
+
+    /**
+     * Method for constructing processor that uses a new pool with given number
+     * of threads for each call to {@link #process}.
+     */
+    public GorpFileProcessor withParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism ("+parallelism+"): must be at least 1");
+        }
+        return new GorpFileProcessor(_gorp, parallelism, null, _chunkSize, _ordered);
+    }
+
+    /**
+     * Method for constructing processor that uses given pool, instead of
+     * creating one; pool is not shut down by processor.
+     */
+    public GorpFileProcessor withPool(ForkJoinPool pool) {
+        return new GorpFileProcessor(_gorp, pool.getParallelism(), pool, _chunkSize, _ordered);
+    }
+
+    /**
+     * Method for constructing processor that reads input in chunks of given size.
+     * Chunks contain full lines, so lines longer than chunk size get chunks of
+     * their own.
+     */
+    public GorpFileProcessor withChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Invalid chunk size ("+chunkSize+"): must be at least 1");
+        }
+        return new GorpFileProcessor(_gorp, _parallelism, _pool, chunkSize, _ordered);
+    }
+
+    /**
+     * Method for constructing processor that delivers results either in order
+     * of lines (if true), from the calling thread; or as soon as they are available
+     * (if false), from worker threads, for maximum throughput.
+     */
+    public GorpFileProcessor withOrderedResults(boolean ordered) {
+        return new GorpFileProcessor(_gorp, _parallelism, _pool, _chunkSize, ordered);
+    }
+
+    public Gorp getGorp() { return _gorp; }
+    public int getParallelism() { return _parallelism; }
+    public int getChunkSize() { return _chunkSize; }
+    public boolean hasOrderedResults() { return _ordered; }
+
+    /*
+    /**********************************************************************
+    /* Processing
+    /**********************************************************************
+     */
+
+    /**
+     * Method for extracting all lines of given file, delivering results to
+     * given sink, and returning once all results have been delivered.
+     * If extraction or sink fails, processing is stopped and the first
+     * problem encountered is thrown.
+     *
+     * @return Statistics of processing
+     */
+    public Stats process(File input, FileResultSink sink) throws IOException
+    {
+        final long startTime = System.nanoTime();
+        final ForkJoinPool pool = (_pool == null) ? new ForkJoinPool(_parallelism) : _pool;
+        final Run run = new Run(pool, sink);
+        try (FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            // construct byte-matching automata up front, instead of on the first
+            // chunk while other workers wait
+            _gorp.getMatcher().prepareByteMatching(pool);
+            long fileOffset = 0L;
+            byte[] buffer = new byte[_chunkSize];
+            int length = 0;
+            while (true) {
+                final ByteBuffer bb = ByteBuffer.wrap(buffer, length, buffer.length - length);
+                boolean eof = false;
+                while (bb.hasRemaining()) {
+                    if (channel.read(bb) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                length = bb.position();
+                if (eof) {
+                    if (length > 0) {
+                        run.submit(buffer, length, fileOffset);
+                    }
+                    break;
+                }
+                final int cut = _lastLinefeed(buffer, length) + 1;
+                if (cut == 0) { // line longer than buffer; need to grow
+                    buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+                    continue;
+                }
+                // chunks are retained by results, so can not reuse buffer
+                final int remaining = length - cut;
+                final byte[] next = new byte[Math.max(_chunkSize, remaining)];
+                System.arraycopy(buffer, cut, next, 0, remaining);
+                run.submit(buffer, cut, fileOffset);
+                fileOffset += cut;
+                buffer = next;
+                length = remaining;
+            }
+            run.finish();
+        } finally {
+            run.cancel();
+            if (_pool == null) {
+                pool.shutdownNow();
+            }
+        }
+        return new Stats(run._lines, run._matched, run._bytes, System.nanoTime() - startTime);
+    }
+
+    private static int _lastLinefeed(byte[] buffer, int length)
+    {
+        for (int i = length; --i >= 0; ) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Statistics of a completed {@link GorpFileProcessor#process} call.
+     */
+    public final static class Stats
+    {
+        private final long _lines, _matched, _bytes, _elapsedNanos;
+
+        public Stats(long lines, long matched, long bytes, long elapsedNanos) {
+            _lines = lines;
+            _matched = matched;
+            _bytes = bytes;
+            _elapsedNanos = elapsedNanos;
+        }
+
+        public long getLines() { return _lines; }
+        public long getMatchedLines() { return _matched; }
+        public long getBytes() { return _bytes; }
+        public long getElapsedNanos() { return _elapsedNanos; }
+
+        public double getLinesPerSecond() {
+            return (_elapsedNanos == 0L) ? 0.0 : (_lines * 1e9 / _elapsedNanos);
+        }
+
+        public double getBytesPerSecond() {
+            return (_elapsedNanos == 0L) ? 0.0 : (_bytes * 1e9 / _elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d lines (%d matched), %d bytes in %.1f ms: %.0f lines/sec",
+                    _lines, _matched, _bytes, _elapsedNanos / 1e6, getLinesPerSecond());
+        }
+    }
+
+    /**
+     * State of a single {@link GorpFileProcessor#process} call: chunks in flight,
+     * and counts of chunks completed so far.
+     */
+    private final class Run
+    {
+        private final FileResultSink _sink;
+
+        private final int _maxInFlight;
+
+        private final ExecutorService _executor;
+
+        /**
+         * Chunks in flight, in order of submission
+         */
+        private final Deque<Future<Chunk>> _inFlight = new ArrayDeque<>();
+
+        /**
+         * For unordered results, chunks that are done, in order of completion;
+         * null for ordered
+         */
+        private final BlockingQueue<Future<Chunk>> _completed;
+
+        /**
+         * Flag set if processing is stopped before all chunks are done, so
+         * that tasks still running stop early
+         */
+        volatile boolean _cancelled;
+
+        long _lines, _matched, _bytes;
+
+        Run(ForkJoinPool pool, FileResultSink sink)
+        {
+            _sink = sink;
+            _executor = pool;
+            _maxInFlight = CHUNKS_PER_THREAD * pool.getParallelism();
+            _completed = _ordered ? null : new LinkedBlockingQueue<Future<Chunk>>();
+        }
+
+        void submit(byte[] buffer, int length, long fileOffset) throws IOException
+        {
+            if (_inFlight.size() >= _maxInFlight) {
+                _completeOne();
+            }
+            // plain FutureTask (instead of ForkJoinPool.submit()) to get exceptions as-is
+            final FutureTask<Chunk> task = new FutureTask<Chunk>(new Chunk(buffer, length, fileOffset)) {
+                @Override
+                protected void done() {
+                    if (_completed != null) {
+                        _completed.add(this);
+                    }
+                }
+            };
+            _inFlight.addLast(task);
+            _executor.execute(task);
+        }
+
+        void finish() throws IOException
+        {
+            while (!_inFlight.isEmpty()) {
+                _completeOne();
+            }
+        }
+
+        void cancel()
+        {
+            _cancelled = true;
+            for (Future<Chunk> f : _inFlight) {
+                f.cancel(true);
+            }
+            _inFlight.clear();
+        }
+
+        private void _completeOne() throws IOException
+        {
+            final Chunk chunk;
+            try {
+                if (_completed == null) {
+                    chunk = _inFlight.removeFirst().get();
+                } else {
+                    final Future<Chunk> f = _completed.take();
+                    _inFlight.remove(f);
+                    chunk = f.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for extraction to complete");
+            } catch (ExecutionException e) {
+                final Throwable t = e.getCause();
+                if (t instanceof IOException) {
+                    throw (IOException) t;
+                }
+                if (t instanceof RuntimeException) {
+                    throw (RuntimeException) t;
+                }
+                if (t instanceof Error) {
+                    throw (Error) t;
+                }
+                throw new IOException("Problem extracting chunk: "+t.getMessage(), t);
+            }
+            if (_completed == null) {
+                chunk.deliver(_sink);
+            }
+            _lines += chunk._lineCount;
+            _matched += chunk._matchCount;
+            _bytes += chunk._length;
+        }
+
+        /**
+         * Task for extracting all lines of a chunk: results are either delivered
+         * directly (unordered), or retained for delivery from the calling thread.
+         */
+        private final class Chunk implements Callable<Chunk>
+        {
+            final byte[] _buffer;
+            final int _length;
+            final long _fileOffset;
+
+            int _lineCount, _matchCount;
+
+            /**
+             * For ordered results, start offset of each line within buffer
+             */
+            int[] _lineStarts;
+
+            /**
+             * For ordered results, length of each line
+             */
+            int[] _lineLengths;
+
+            /**
+             * For ordered results, result for each line; null for lines that
+             * did not match
+             */
+            ExtractionResult[] _results;
+
+            Chunk(byte[] buffer, int length, long fileOffset) {
+                _buffer = buffer;
+                _length = length;
+                _fileOffset = fileOffset;
+            }
+
+            @Override
+            public Chunk call() throws IOException
+            {
+                final byte[] buffer = _buffer;
+                final boolean ordered = (_completed == null);
+                if (ordered) {
+                    // rough guess; grown as needed
+                    final int guess = Math.max(16, _length / 64);
+                    _lineStarts = new int[guess];
+                    _lineLengths = new int[guess];
+                    _results = new ExtractionResult[guess];
+                }
+                int start = 0;
+                while (start < _length && !_cancelled) {
+                    int end = start;
+                    while (end < _length && buffer[end] != '\n') {
+                        ++end;
+                    }
+                    final int next = end + 1;
+                    if (end > start && buffer[end-1] == '\r') {
+                        --end;
+                    }
+                    final ExtractionResult result = _gorp.extract(buffer, start, end - start);
+                    if (result != null) {
+                        ++_matchCount;
+                    }
+                    if (ordered) {
+                        _store(start, end - start, result);
+                    } else if (result != null) {
+                        _sink.matched(_fileOffset + start, result);
+                    } else {
+                        _sink.unmatched(_fileOffset + start, buffer, start, end - start);
+                    }
+                    ++_lineCount;
+                    start = next;
+                }
+                return this;
+            }
+
+            private void _store(int start, int length, ExtractionResult result)
+            {
+                final int ix = _lineCount;
+                if (ix == _lineStarts.length) {
+                    final int size = 2 * ix;
+                    _lineStarts = Arrays.copyOf(_lineStarts, size);
+                    _lineLengths = Arrays.copyOf(_lineLengths, size);
+                    _results = Arrays.copyOf(_results, size);
+                }
+                _lineStarts[ix] = start;
+                _lineLengths[ix] = length;
+                _results[ix] = result;
+            }
+
+            void deliver(FileResultSink sink) throws IOException
+            {
+                for (int i = 0; i < _lineCount; ++i) {
+                    final ExtractionResult result = _results[i];
+                    if (result != null) {
+                        sink.matched(_fileOffset + _lineStarts[i], result);
+                    } else {
+                        sink.unmatched(_fileOffset + _lineStarts[i], _buffer, _lineStarts[i], _lineLengths[i]);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * Package that contains support for extracting information out of
+ * whole files (and other bulk input) in parallel, using
+ * {@link com.salesforce.gorp.batch.GorpFileProcessor}.
+ */
+package com.salesforce.gorp.batch;
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import com.salesforce.gorp.util.Utf8Helper;
+
+/**
+ * Source of input lines to extract (as opposed to {@link InputLineReader},
+ * which reads extraction definitions), for large UTF-8 encoded files:
+ * file is memory-mapped in windows, and each line is exposed as a slice of
+ * the current window, without copying bytes or constructing <code>String</code>s.
+ * Slices can be passed directly to {@link com.salesforce.gorp.Gorp#extract(ByteBuffer)},
+ * which matches bytes without decoding them.
+ *<p>
+ * Lines are separated by linefeeds; a carriage return before linefeed is dropped.
+ * Lines that do not fit in a window get a bigger window of their own.
+ *<p>
+ * Note that the JDK has no way to explicitly unmap windows: memory of earlier
+ * windows is released once they are garbage collected. Instances are not thread-safe.
+ */
+public class MappedLineSource
+    implements Closeable
+{
+    public final static int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final static long LINEFEEDS = 0x0A0A0A0A0A0A0A0AL;
+    private final static long LOW_BITS = 0x0101010101010101L;
+    private final static long HIGH_BITS = 0x8080808080808080L;
+
+    protected final FileChannel _channel;
+
+    protected final long _fileLength;
+
+    protected final int _windowSize;
+
+    protected boolean _closed;
+
+    /**
+     * Currently mapped window; null before the first line
+     */
+    protected ByteBuffer _window;
+
+    /**
+     * Duplicate of {@link #_window}, positioned at the current line
+     */
+    protected ByteBuffer _line;
+
+    /**
+     * Offset of current window within file
+     */
+    protected long _windowOffset;
+
+    protected int _windowLength;
+
+    /**
+     * Position within window where the next line starts
+     */
+    protected int _nextStart;
+
+    /**
+     * Offset of the current line within file
+     */
+    protected long _lineOffset = -1L;
+
+    /**
+     * Row is 1-based, and refers to the line that was just returned
+     * (0 before any lines)
+     */
+    protected long _row;
+
+    protected MappedLineSource(FileChannel channel, int windowSize) throws IOException {
+        _channel = channel;
+        _fileLength = channel.size();
+        _windowSize = windowSize;
+    }
+
+    public static MappedLineSource open(File input) throws IOException {
+        return open(input, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize Size of windows to map file in; lines longer than this
+     *    get windows of their own
+     */
+    public static MappedLineSource open(File input, int windowSize) throws IOException
+    {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Invalid window size ("+windowSize+"): must be at least 1");
+        }
+        return new MappedLineSource(FileChannel.open(input.toPath(), StandardOpenOption.READ),
+                windowSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!_closed) {
+            _closed = true;
+            _window = _line = null;
+            _channel.close();
+        }
+    }
+
+    /**
+     * Method for advancing to the next line.
+     *
+     * @return Buffer positioned at the next line (position at its first byte,
+     *    limit after its last byte, not including line separator); or null if
+     *    there are no more lines. Same buffer is returned for all lines of a window,
+     *    and its contents, position and limit are only valid until the next call.
+     */
+    public ByteBuffer nextLine() throws IOException
+    {
+        if (_closed) {
+            return null;
+        }
+        while (true) {
+            if ((_window == null) || (_nextStart >= _windowLength)) {
+                final long offset = _windowOffset + _nextStart;
+                if (offset >= _fileLength) {
+                    return null;
+                }
+                _map(offset, _windowSize);
+            }
+            final int start = _nextStart;
+            int end = _indexOfLinefeed(_window, start, _windowLength);
+            if (end < 0) {
+                if ((_windowOffset + _windowLength) < _fileLength) {
+                    // line continues past window; map new one starting from it
+                    int size = _windowSize;
+                    if (start == 0) { // and it's longer than window
+                        if (_windowLength >= (Integer.MAX_VALUE / 2)) {
+                            throw new IOException("Line at offset "+_windowOffset
+                                    +" too long (over "+_windowLength+" bytes)");
+                        }
+                        size = 2 * _windowLength;
+                    }
+                    _map(_windowOffset + start, size);
+                    continue;
+                }
+                // last line, without linefeed
+                end = _windowLength;
+                _nextStart = end;
+            } else {
+                _nextStart = end + 1;
+            }
+            if ((end > start) && (_window.get(end - 1) == '\r')) {
+                --end;
+            }
+            _line.limit(end);
+            _line.position(start);
+            _lineOffset = _windowOffset + start;
+            ++_row;
+            return _line;
+        }
+    }
+
+    /**
+     * @return Offset of the current line within file; -1 before the first line
+     */
+    public long getLineOffset() {
+        return _lineOffset;
+    }
+
+    /**
+     * @return 1-based number of the current line; 0 before the first line
+     */
+    public long getLineNumber() {
+        return _row;
+    }
+
+    /**
+     * Method for accessing the current line as characters: if line is all
+     * ASCII, a view of mapped content is returned without decoding; otherwise
+     * line is decoded. Like the line buffer, view is only valid until
+     * the next call to {@link #nextLine}.
+     *
+     * @return Current line as {@link CharSequence}, if it is valid UTF-8; null if not
+     */
+    public CharSequence getLineAsCharSequence() {
+        return Utf8Helper.asCharSequence(_line);
+    }
+
+    private void _map(long offset, int size) throws IOException
+    {
+        final int length = (int) Math.min(size, _fileLength - offset);
+        final MappedByteBuffer window = _channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        // for scanning linefeeds 8 bytes at a time, lowest byte first
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        _window = window;
+        _line = window.duplicate();
+        _windowOffset = offset;
+        _windowLength = length;
+        _nextStart = 0;
+    }
+
+    /**
+     * Helper method for finding the first linefeed within given range: bytes are
+     * checked 8 at a time, using the classic "has zero byte" bit trick on
+     * bytes XORed with linefeeds.
+     */
+    protected static int _indexOfLinefeed(ByteBuffer buffer, int start, int end)
+    {
+        int i = start;
+        for (final int last = end - 8; i <= last; i += 8) {
+            final long x = buffer.getLong(i) ^ LINEFEEDS;
+            final long found = (x - LOW_BITS) & ~x & HIGH_BITS;
+            if (found != 0L) {
+                // lowest flagged byte is always a real match
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < end; ++i) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,5 +1,6 @@
 /**
  * Package that contains classes to help with low-level line-oriented
- * reading of extraction definitions.
+ * reading of extraction definitions, as well as of input to extract
+ * ({@link com.salesforce.gorp.io.MappedLineSource}).
  */
 package com.salesforce.gorp.io;
@@ -6,6 +6,8 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.ExtractionSink;
+import com.salesforce.gorp.OffsetExtractionResult;
 import com.salesforce.gorp.io.InputLine;
 import com.salesforce.gorp.model.CookedExtraction;
 import com.salesforce.gorp.model.FlattenedExtraction;
@@ -15,6 +17,11 @@ public class JDKRegexpCookedExtraction
 {
     protected final Pattern _regexp;
 
+    /**
+     * Matchers reused by {@link #match(CharSequence, ExtractionSink)}, per thread
+     */
+    protected final ThreadLocal<Matcher> _matchers = new ThreadLocal<Matcher>();
+
     protected JDKRegexpCookedExtraction(InputLine source, String name,
             int index, Map<String,Object> append,
             Pattern regexp, String regexpSource, String[] extractorNames)
@@ -32,12 +39,68 @@ public class JDKRegexpCookedExtraction
                 regexp, regexpSource, extrNames);
     }
 
+    public static JDKRegexpCookedExtraction construct(int index, String name, Map<String,Object> append,
+            Pattern regexp, String regexpSource, List<String> extractorNamesList)
+    {
+        String[] extrNames = extractorNamesList.toArray(new String[extractorNamesList.size()]);
+        return new JDKRegexpCookedExtraction(null, name, index, append,
+                regexp, regexpSource, extrNames);
+    }
+
+    @Override
+    public boolean reportsOffsets() {
+        return true;
+    }
+
     @Override
     public ExtractionResult match(String input) {
+        return match((CharSequence) input);
+    }
+
+    @Override
+    public ExtractionResult match(CharSequence input) {
         Matcher m = _regexp.matcher(input);
         return m.matches() ? _constructMatch(input, m) : null;
     }
 
+    @Override
+    public OffsetExtractionResult matchWithOffsets(CharSequence input) {
+        Matcher m = _regexp.matcher(input);
+        if (!m.matches()) {
+            return null;
+        }
+        final int count = m.groupCount();
+        int[] offsets = new int[2 * count];
+        for (int i = 0; i < count; ++i) {
+            offsets[2*i] = m.start(i+1);
+            offsets[2*i + 1] = m.end(i+1);
+        }
+        return constructOffsetMatch(input, offsets);
+    }
+
+    @Override
+    public boolean match(CharSequence input, ExtractionSink sink) {
+        Matcher m = _matchers.get();
+        if (m == null) {
+            m = _regexp.matcher(input);
+            _matchers.set(m);
+        } else {
+            m.reset(input);
+        }
+        try {
+            if (!m.matches()) {
+                return false;
+            }
+            sink.matched(this, input);
+            for (int i = 0, count = m.groupCount(); i < count; ++i) {
+                sink.value(i, m.start(i+1), m.end(i+1));
+            }
+            return true;
+        } finally { // so as not to retain input
+            m.reset("");
+        }
+    }
+
     @Override
     public Pattern getRegexp() {
         return _regexp;
@@ -48,7 +111,7 @@ public class JDKRegexpCookedExtraction
         return _regexp.pattern();
     }
 
-    protected ExtractionResult _constructMatch(String input, Matcher m)
+    protected ExtractionResult _constructMatch(CharSequence input, Matcher m)
     {
         final int count = m.groupCount();
         String[] values = new String[count];
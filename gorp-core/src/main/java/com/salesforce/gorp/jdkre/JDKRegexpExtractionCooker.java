@@ -1,5 +1,7 @@
 package com.salesforce.gorp.jdkre;
 
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -25,6 +27,16 @@ public class JDKRegexpExtractionCooker extends ExtractionCooker
                 extr.getExtractorNames());
     }
 
+    @Override
+    public CookedExtraction cook(int index, String name, Map<String,Object> append,
+            String regexpSource, List<String> extractorNames)
+        throws PatternSyntaxException
+    {
+        Pattern regexp = Pattern.compile(regexpSource);
+        return JDKRegexpCookedExtraction.construct(index, name, append, regexp, regexpSource,
+                extractorNames);
+    }
+
     public void appendPattern(String pattern, StringBuilder buffer) {
         RegexHelper.massageRegexpForJDK(pattern, buffer);
     }
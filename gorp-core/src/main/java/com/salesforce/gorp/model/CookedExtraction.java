@@ -6,9 +6,13 @@
  */
 package com.salesforce.gorp.model;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.ExtractionSink;
+import com.salesforce.gorp.OffsetExtractionResult;
 import com.salesforce.gorp.io.InputLine;
 
 /**
@@ -19,17 +23,29 @@ public abstract class CookedExtraction
 {
     protected final InputLine _source;
     protected final String _name;
+    protected final int _index;
     protected final Map<String,Object> _append;
 
     protected final String _regexpSource;
     protected final String[] _extractorNames;
 
+    /**
+     * Layout of results as <code>Map</code>s without id property; constructed lazily
+     */
+    protected volatile ExtractionSchema _schema;
+
+    /**
+     * Layout of results as <code>Map</code>s with the most recently used id property
+     */
+    protected volatile ExtractionSchema _idSchema;
+
     protected CookedExtraction(InputLine source, String name,
             int index, Map<String,Object> append,
             String regexpSource, String[] extractorNames)
     {
         _source = source;
         _name = name;
+        _index = index;
         _append = append;
         _regexpSource = regexpSource;
         _extractorNames = extractorNames;
@@ -39,6 +55,26 @@ public abstract class CookedExtraction
         return _name;
     }
 
+    /**
+     * @return Index of this extraction within definition it was read from,
+     *    which is also its precedence (lower index matches first)
+     */
+    public int getIndex() {
+        return _index;
+    }
+
+    /**
+     * @return Source line of the definition this extraction was read from, if known;
+     *    <code>null</code> if not (for example when read from precompiled definition)
+     */
+    public InputLine getSource() {
+        return _source;
+    }
+
+    public List<String> getExtractorNames() {
+        return Arrays.asList(_extractorNames);
+    }
+
     public Map<String,Object> getExtra() {
         return _append;
     }
@@ -47,19 +83,142 @@ public abstract class CookedExtraction
         return _regexpSource;
     }
 
+    /**
+     * Accessor for layout of results of this extraction as <code>Map</code>s;
+     * constructed when first needed, and reused after that.
+     *
+     * @param idAs Optional property to use for id of the extraction; if null,
+     *     id is not included
+     */
+    public ExtractionSchema getSchema(String idAs)
+    {
+        if (idAs == null) {
+            ExtractionSchema schema = _schema;
+            if (schema == null) {
+                _schema = schema = ExtractionSchema.construct(this, null);
+            }
+            return schema;
+        }
+        ExtractionSchema schema = _idSchema;
+        if (schema == null || !idAs.equals(schema.getIdAs())) {
+            _idSchema = schema = ExtractionSchema.construct(this, idAs);
+        }
+        return schema;
+    }
+
     /**
      * Helper method called by <code>Gorp</code> to construct actual results, given
      * that match has occurred. Needs to weave 
      */
-    public ExtractionResult constructMatch(String input, String[] values)
+    public ExtractionResult constructMatch(CharSequence input, String[] values)
     {
         return new ExtractionResult(getName(), input, this, _extractorNames, values);
     }
 
+    /**
+     * Alternative to {@link #constructMatch(CharSequence, String[])} for results
+     * that only store offsets of values within input.
+     *
+     * @param offsets Start and end offsets of each value, as consecutive entries
+     */
+    public OffsetExtractionResult constructOffsetMatch(CharSequence input, int[] offsets)
+    {
+        return new OffsetExtractionResult(getName(), input, this, _extractorNames, offsets);
+    }
+
+    // // // // Matching methods with default implementations, overridden by core extractions
+
+    /**
+     * Whether {@link #matchWithOffsets} and {@link #match(CharSequence, ExtractionSink)}
+     * report actual offsets of extracted values within input: true for extractions
+     * that override these methods, as core extractions do. If false, values are
+     * reported as matched by {@link #match(String)}, without their offsets (see
+     * default implementations of these methods).
+     */
+    public boolean reportsOffsets() {
+        return false;
+    }
+
+    /**
+     * Variant of {@link #match(String)} for input that may be a lazily decoded view of
+     * bytes, in which case only extracted values should be converted to
+     * <code>String</code>s. Default implementation converts input into a
+     * <code>String</code>.
+     */
+    public ExtractionResult match(CharSequence input) {
+        return match(input.toString());
+    }
+
+    /**
+     * Alternative to {@link #match} that constructs result with just offsets
+     * of extracted values within input, instead of <code>String</code>s.
+     *<p>
+     * Default implementation, used by extractions that do not report offsets
+     * (see {@link #reportsOffsets}), calls {@link #match(CharSequence)}: result
+     * contains values, but all of their offsets are -1.
+     */
+    public OffsetExtractionResult matchWithOffsets(CharSequence input)
+    {
+        final ExtractionResult result = match(input);
+        if (result == null) {
+            return null;
+        }
+        final String[] values = new String[_extractorNames.length];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = result.getValue(i);
+        }
+        return new OffsetExtractionResult(getName(), input, this, _extractorNames, values);
+    }
+
+    /**
+     * Alternative to {@link #match} that reports extracted values to given sink,
+     * without constructing result object or <code>String</code>s; matching
+     * state is reused per thread.
+     *<p>
+     * Default implementation, used by extractions that do not report offsets
+     * (see {@link #reportsOffsets}), calls {@link #match(CharSequence)}, and
+     * reports values as ranges of text that consists of the values one after
+     * another, instead of input: this text is what is passed to
+     * {@link ExtractionSink#matched}.
+     *
+     * @return True if input matched (and was reported to sink); false if not
+     */
+    public boolean match(CharSequence input, ExtractionSink sink)
+    {
+        final ExtractionResult result = match(input);
+        if (result == null) {
+            return false;
+        }
+        final StringBuilder text = new StringBuilder();
+        final int[] offsets = new int[2 * _extractorNames.length];
+        for (int i = 0; i < _extractorNames.length; ++i) {
+            final String value = result.getValue(i);
+            if (value == null) {
+                offsets[2*i] = -1;
+                offsets[2*i + 1] = -1;
+            } else {
+                offsets[2*i] = text.length();
+                text.append(value);
+                offsets[2*i + 1] = text.length();
+            }
+        }
+        sink.matched(this, text.toString());
+        for (int i = 0; i < _extractorNames.length; ++i) {
+            sink.value(i, offsets[2*i], offsets[2*i + 1]);
+        }
+        return true;
+    }
+
     // // // // Abstract methods for sub-classes to implement
 
+    /**
+     * Method for matching given input against this extraction, and constructing
+     * result if it matches.
+     */
     public abstract ExtractionResult match(String input);
 
+
+
     public abstract Object getRegexp();
     
     public abstract String getRegexpDesc();
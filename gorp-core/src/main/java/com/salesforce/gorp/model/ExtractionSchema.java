@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.model;
+
+import java.util.*;
+
+/**
+ * Precomputed layout of results of a {@link CookedExtraction} as a
+ * <code>Map</code>: since the set of keys (optional id property, names of
+ * extractors and of appended values) is the same for every result, it is
+ * only computed once, along with a perfect hash table for finding index
+ * of a key (or, in the unlikely case none can be found, e.g. due to keys with
+ * identical hash codes, one with linear probing).
+ *<p>
+ * Order of keys, and values for duplicate keys, are the same as if id, extracted
+ * values and appended values were put into a <code>LinkedHashMap</code>, in that
+ * order: that is, position is that of the first occurrence, value that of the last.
+ */
+public final class ExtractionSchema
+{
+    /**
+     * Marker for keys that have a constant value, instead of an extracted one
+     */
+    public final static int CONSTANT = -1;
+
+    /**
+     * Number of hash multipliers to try before growing the hash table
+     */
+    private final static int MAX_HASH_ATTEMPTS = 64;
+
+    /**
+     * Number of times hash table may be doubled in size when looking for
+     * a perfect hash
+     */
+    private final static int MAX_HASH_GROWTH = 3;
+
+    private final static int GOLDEN_RATIO = 0x9E3779B1;
+
+    private final String _idAs;
+
+    private final String[] _keys;
+
+    /**
+     * For each key, index of extracted value, or {@link #CONSTANT}
+     */
+    private final int[] _valueIndexes;
+
+    /**
+     * For each key with {@link #CONSTANT} value index, the value
+     */
+    private final Object[] _constants;
+
+    /**
+     * Hash table with index of key, or -1 for empty slots; there is always
+     * at least one empty slot
+     */
+    private final int[] _hashSlots;
+
+    private final int _hashMultiplier;
+
+    private final int _hashShift;
+
+    private ExtractionSchema(String idAs, String[] keys, int[] valueIndexes, Object[] constants,
+            int[] hashSlots, int hashMultiplier, int hashShift)
+    {
+        _idAs = idAs;
+        _keys = keys;
+        _valueIndexes = valueIndexes;
+        _constants = constants;
+        _hashSlots = hashSlots;
+        _hashMultiplier = hashMultiplier;
+        _hashShift = hashShift;
+    }
+
+    /**
+     * @param idAs Optional property to use for id of the extraction; if null,
+     *     id is not included
+     */
+    public static ExtractionSchema construct(CookedExtraction extr, String idAs)
+    {
+        final List<String> names = extr.getExtractorNames();
+        final Map<String,Object> extra = extr.getExtra();
+        // LinkedHashMap to get ordering, duplicate handling right
+        Map<String,Object> layout = new LinkedHashMap<>();
+        if (idAs != null) {
+            layout.put(idAs, new Constant(extr.getName()));
+        }
+        for (int i = 0, end = names.size(); i < end; ++i) {
+            layout.put(names.get(i), i);
+        }
+        if (extra != null) {
+            for (Map.Entry<String,Object> entry : extra.entrySet()) {
+                layout.put(entry.getKey(), new Constant(entry.getValue()));
+            }
+        }
+        final int size = layout.size();
+        final String[] keys = new String[size];
+        final int[] valueIndexes = new int[size];
+        final Object[] constants = new Object[size];
+        int ix = 0;
+        for (Map.Entry<String,Object> entry : layout.entrySet()) {
+            keys[ix] = entry.getKey();
+            final Object value = entry.getValue();
+            if (value instanceof Constant) {
+                valueIndexes[ix] = CONSTANT;
+                constants[ix] = ((Constant) value).value;
+            } else {
+                valueIndexes[ix] = (Integer) value;
+            }
+            ++ix;
+        }
+
+        // and then find a hash multiplier that maps all keys into distinct slots
+        final int minBits = _bitsFor(size);
+        for (int bits = minBits; bits <= minBits + MAX_HASH_GROWTH; ++bits) {
+            final int shift = 32 - bits;
+            final int[] slots = new int[1 << bits];
+            int multiplier = GOLDEN_RATIO;
+            for (int attempt = 0; attempt < MAX_HASH_ATTEMPTS; ++attempt, multiplier += 0x6A09E668) {
+                multiplier |= 1;
+                if (_fill(keys, slots, multiplier, shift, false)) {
+                    return new ExtractionSchema(idAs, keys, valueIndexes, constants,
+                            slots, multiplier, shift);
+                }
+            }
+        }
+        final int[] slots = new int[1 << minBits];
+        _fill(keys, slots, GOLDEN_RATIO, 32 - minBits, true);
+        return new ExtractionSchema(idAs, keys, valueIndexes, constants,
+                slots, GOLDEN_RATIO, 32 - minBits);
+    }
+
+    private static int _bitsFor(int size) {
+        // at least twice as many slots as keys, and at least 2 slots
+        int bits = 1;
+        while ((1 << bits) < 2 * size) {
+            ++bits;
+        }
+        return bits;
+    }
+
+    private static boolean _fill(String[] keys, int[] slots, int multiplier, int shift,
+            boolean probe)
+    {
+        Arrays.fill(slots, -1);
+        final int mask = slots.length - 1;
+        for (int i = 0; i < keys.length; ++i) {
+            int slot = (keys[i].hashCode() * multiplier) >>> shift;
+            while (slots[slot] >= 0) {
+                if (!probe) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i;
+        }
+        return true;
+    }
+
+    /**
+     * @return Name of id property this schema was constructed with; null if none
+     */
+    public String getIdAs() {
+        return _idAs;
+    }
+
+    public int size() {
+        return _keys.length;
+    }
+
+    public String getKey(int index) {
+        return _keys[index];
+    }
+
+    /**
+     * @return Index of extracted value for key with given index; or {@link #CONSTANT}
+     *    if key has a constant value (see {@link #getConstant})
+     */
+    public int getValueIndex(int index) {
+        return _valueIndexes[index];
+    }
+
+    public Object getConstant(int index) {
+        return _constants[index];
+    }
+
+    /**
+     * @return Index of given key, if included; -1 if not
+     */
+    public int indexOf(Object key)
+    {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        final int mask = _hashSlots.length - 1;
+        int slot = (key.hashCode() * _hashMultiplier) >>> _hashShift;
+        while (true) {
+            final int ix = _hashSlots[slot];
+            if (ix < 0) {
+                return -1;
+            }
+            if (_keys[ix].equals(key)) {
+                return ix;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Wrapper used for separating constant values (which may be Integers too)
+     * from value indexes during construction.
+     */
+    private final static class Constant {
+        final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.pikevm;
+
+import java.util.Arrays;
+
+import com.salesforce.gorp.autom.RegexpProgram;
+
+/**
+ * Matcher that runs a {@link RegexpProgram} by simulating all of its threads
+ * in lock step ("Pike VM"): each input character is looked at exactly once,
+ * and there are never more threads than program instructions, so matching
+ * takes <code>O(n*m)</code> time for input length <code>n</code> and program
+ * size <code>m</code> regardless of how expression is written.
+ * Threads are kept in priority order, and a thread that reaches an instruction
+ * already reached by a higher-priority one is dropped, so captured values are
+ * the same as with a backtracking matcher like <code>java.util.regex</code>
+ * (except for cases listed in {@link RegexpProgram}).
+ *<p>
+ * Instances are immutable and thread-safe; working memory (thread lists and
+ * capture slots) is kept per-thread and reused across matches.
+ */
+public class PikeVM
+{
+    /**
+     * Working memory used for matching; shared by all instances, and grown
+     * as necessary.
+     */
+    private final static ThreadLocal<Scratch> _scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    protected final RegexpProgram _program;
+
+    protected final int _slotCount;
+
+    public PikeVM(RegexpProgram program) {
+        _program = program;
+        _slotCount = program.slotCount();
+    }
+
+    public RegexpProgram getProgram() {
+        return _program;
+    }
+
+    /**
+     * @return Number of capture slots: two per capturing group
+     */
+    public int slotCount() {
+        return _slotCount;
+    }
+
+    /**
+     * Method for matching the whole input against the expression; if it
+     * matches, start and end positions of capturing groups are stored into
+     * given array (-1 for groups that did not participate in the match).
+     *
+     * @param slots Array of at least {@link #slotCount()} entries for storing
+     *    group positions
+     *
+     * @return True if input matched; false if not
+     */
+    public boolean match(CharSequence input, int[] slots)
+    {
+        final Scratch s = _scratch.get();
+        s.init(_program.size(), _slotCount);
+        final RegexpProgram prog = _program;
+        final int slotCount = _slotCount;
+
+        ThreadList current = s.current;
+        ThreadList next = s.next;
+        final int[] work = s.work;
+
+        Arrays.fill(work, 0, slotCount, -1);
+        current.clear();
+        _addThread(s, current, 0, 0);
+
+        for (int i = 0, end = input.length(); i < end; ++i) {
+            if (current.count == 0) {
+                return false;
+            }
+            final int cls = prog.characterClass(input.charAt(i));
+            next.clear();
+            final int[] pcs = current.pcs;
+            final int[] threadSlots = current.slots;
+            for (int t = 0, count = current.count; t < count; ++t) {
+                final int pc = pcs[t];
+                if (prog.op(pc) == RegexpProgram.OP_CHAR && prog.accepts(pc, cls)) {
+                    System.arraycopy(threadSlots, t * slotCount, work, 0, slotCount);
+                    _addThread(s, next, pc + 1, i + 1);
+                }
+            }
+            ThreadList tmp = current;
+            current = next;
+            next = tmp;
+        }
+        // highest-priority thread that has reached the end wins
+        final int[] pcs = current.pcs;
+        for (int t = 0, count = current.count; t < count; ++t) {
+            if (prog.op(pcs[t]) == RegexpProgram.OP_MATCH) {
+                System.arraycopy(current.slots, t * slotCount, slots, 0, slotCount);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method for adding thread that starts at given instruction, with capture
+     * slots currently in {@link Scratch#work}, into given list: follows all
+     * non-consuming instructions, in priority order, adding threads for
+     * ones that consume input (or match). Uses an explicit stack instead of
+     * recursion, with entries to restore slots (and iteration start marks)
+     * changed on the way.
+     */
+    private void _addThread(Scratch s, ThreadList list, int startPc, int pos)
+    {
+        final RegexpProgram prog = _program;
+        final int slotCount = _slotCount;
+        final int[] work = s.work;
+        final int[] marks = s.marks;
+        final int[] stack = s.stack;
+        int sp = 0;
+        stack[sp++] = startPc;
+
+        while (sp > 0) {
+            final int entry = stack[--sp];
+            if (entry < 0) { // restore slot or mark
+                final int value = stack[--sp];
+                final int ix = -entry - 1;
+                if (ix < slotCount) {
+                    work[ix] = value;
+                } else {
+                    marks[ix - slotCount] = value;
+                }
+                continue;
+            }
+            final int pc = entry;
+            if (list.visited(pc)) {
+                continue;
+            }
+            switch (prog.op(pc)) {
+            case RegexpProgram.OP_CHAR:
+            case RegexpProgram.OP_MATCH:
+                list.add(pc, work, slotCount);
+                break;
+            case RegexpProgram.OP_JUMP:
+                stack[sp++] = prog.arg(pc);
+                break;
+            case RegexpProgram.OP_SPLIT:
+                // lower priority one first, to be popped last
+                stack[sp++] = prog.arg2(pc);
+                stack[sp++] = prog.arg(pc);
+                break;
+            case RegexpProgram.OP_SAVE:
+                {
+                    final int slot = prog.arg(pc);
+                    stack[sp++] = work[slot];
+                    stack[sp++] = -slot - 1;
+                    work[slot] = pos;
+                    stack[sp++] = pc + 1;
+                }
+                break;
+            case RegexpProgram.OP_ITER_START:
+                // marked for the rest of the path, restored like slots
+                stack[sp++] = marks[pc];
+                stack[sp++] = -(slotCount + pc) - 1;
+                marks[pc] = pos;
+                stack[sp++] = pc + 1;
+                break;
+            case RegexpProgram.OP_ITER_END:
+                stack[sp++] = (marks[prog.arg(pc)] == pos) ? prog.arg2(pc) : (pc + 1);
+                break;
+            }
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Ordered list of threads, along with set of instructions visited
+     * while building it; uses "sparse set" so that clearing is constant-time.
+     */
+    private final static class ThreadList
+    {
+        /**
+         * Instructions of visited (dense) and index into <code>dense</code> by instruction
+         */
+        int[] dense, sparse;
+        int visitedCount;
+
+        /**
+         * Instructions of threads, in priority order
+         */
+        int[] pcs;
+
+        /**
+         * Capture slots of threads, <code>slotCount</code> entries per thread
+         */
+        int[] slots;
+
+        int count;
+
+        void init(int programSize, int slotCount)
+        {
+            if (dense == null || dense.length < programSize) {
+                dense = new int[programSize];
+                sparse = new int[programSize];
+                pcs = new int[programSize];
+            }
+            final int slotsNeeded = programSize * slotCount;
+            if (slots == null || slots.length < slotsNeeded) {
+                slots = new int[slotsNeeded];
+            }
+        }
+
+        void clear() {
+            visitedCount = 0;
+            count = 0;
+        }
+
+        /**
+         * Method for checking whether given instruction has been visited; and
+         * marking it visited if not.
+         */
+        boolean visited(int pc)
+        {
+            final int ix = sparse[pc];
+            if (ix < visitedCount && dense[ix] == pc) {
+                return true;
+            }
+            sparse[pc] = visitedCount;
+            dense[visitedCount++] = pc;
+            return false;
+        }
+
+        void add(int pc, int[] work, int slotCount) {
+            System.arraycopy(work, 0, slots, count * slotCount, slotCount);
+            pcs[count++] = pc;
+        }
+    }
+
+    private final static class Scratch
+    {
+        final ThreadList current = new ThreadList();
+        final ThreadList next = new ThreadList();
+
+        int[] work = new int[0];
+
+        /**
+         * Marks for {@link RegexpProgram#OP_ITER_START} instructions: position
+         * where reached on the current path, or -1 if not on it. Always restored
+         * when path is done, so all entries are -1 between calls.
+         */
+        int[] marks = new int[0];
+
+        /**
+         * Stack for following instructions: each instruction is expanded at most
+         * once per list, pushing at most three entries
+         */
+        int[] stack = new int[0];
+
+        void init(int programSize, int slotCount)
+        {
+            current.init(programSize, slotCount);
+            next.init(programSize, slotCount);
+            if (work.length < slotCount) {
+                work = new int[slotCount];
+            }
+            if (marks.length < programSize) {
+                marks = new int[programSize];
+                Arrays.fill(marks, -1);
+            }
+            final int stackNeeded = 3 * programSize + 1;
+            if (stack.length < stackNeeded) {
+                stack = new int[stackNeeded];
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.pikevm;
+
+import java.util.List;
+import java.util.Map;
+
+import com.salesforce.gorp.ExtractionCooker;
+import com.salesforce.gorp.autom.RegexpProgram;
+import com.salesforce.gorp.model.CookedExtraction;
+import com.salesforce.gorp.model.FlattenedExtraction;
+import com.salesforce.gorp.util.RegexHelper;
+
+/**
+ * {@link ExtractionCooker} that produces extractions backed by {@link PikeVM}s
+ * instead of <code>java.util.regex</code>: extraction takes <code>O(n*m)</code>
+ * time at most (<code>n</code> being input length and <code>m</code> size of
+ * the expression), and results are the same as with
+ * {@link com.salesforce.gorp.jdkre.JDKRegexpExtractionCooker} (except for
+ * corner cases listed in {@link RegexpProgram}).
+ * Unlike {@link com.salesforce.gorp.tdfa.TDFAExtractionCooker}, nothing is
+ * cached between matches, so memory usage is fixed.
+ * Regexp sources use the same syntax as with the JDK cooker, but only the subset
+ * described in {@link RegexpProgram} is supported.
+ */
+public class PikeVMExtractionCooker extends ExtractionCooker
+{
+    private final static PikeVMExtractionCooker INSTANCE = new PikeVMExtractionCooker();
+
+    public static PikeVMExtractionCooker instance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public CookedExtraction cook(int index, String regexpSource, FlattenedExtraction extr)
+        throws IllegalArgumentException
+    {
+        return PikeVMCookedExtraction.construct(index, extr, _vm(regexpSource), regexpSource,
+                extr.getExtractorNames());
+    }
+
+    @Override
+    public CookedExtraction cook(int index, String name, Map<String,Object> append,
+            String regexpSource, List<String> extractorNames)
+        throws IllegalArgumentException
+    {
+        return PikeVMCookedExtraction.construct(index, name, append, _vm(regexpSource), regexpSource,
+                extractorNames);
+    }
+
+    protected PikeVM _vm(String regexpSource) {
+        return new PikeVM(RegexpProgram.compile(regexpSource));
+    }
+
+    public void appendPattern(String pattern, StringBuilder buffer) {
+        RegexHelper.massageRegexpForJDK(pattern, buffer);
+    }
+
+    public void appendLiteral(String literal, StringBuilder buffer) {
+        RegexHelper.quoteLiteralAsRegexp(literal, buffer);
+    }
+
+    public void appendStartExpression(StringBuilder buffer) {
+        buffer.append('(');
+    }
+
+    public void appendFinishExpression(StringBuilder buffer) {
+        buffer.append(')');
+    }
+}
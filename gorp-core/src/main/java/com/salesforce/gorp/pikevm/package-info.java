@@ -0,0 +1,6 @@
+/**
+ * Implementation of the main Gorp handlers using a Pike VM
+ * ({@link com.salesforce.gorp.pikevm.PikeVM}): non-backtracking simulation
+ * of regular expression programs that guarantees linear matching time.
+ */
+package com.salesforce.gorp.pikevm;
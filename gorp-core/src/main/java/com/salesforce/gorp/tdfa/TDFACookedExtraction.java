@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.tdfa;
+
+import java.util.List;
+import java.util.Map;
+
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.ExtractionSink;
+import com.salesforce.gorp.OffsetExtractionResult;
+import com.salesforce.gorp.io.InputLine;
+import com.salesforce.gorp.model.CookedExtraction;
+import com.salesforce.gorp.model.FlattenedExtraction;
+
+public class TDFACookedExtraction
+    extends CookedExtraction
+{
+    /**
+     * Slot arrays reused by {@link #match(CharSequence, ExtractionSink)}, per thread
+     */
+    private final static ThreadLocal<int[]> _slots = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[0];
+        }
+    };
+
+    protected final TaggedDFA _dfa;
+
+    protected TDFACookedExtraction(InputLine source, String name,
+            int index, Map<String,Object> append,
+            TaggedDFA dfa, String regexpSource, String[] extractorNames)
+    {
+        super(source, name, index, append, regexpSource, extractorNames);
+        _dfa = dfa;
+    }
+
+    public static TDFACookedExtraction construct(int index, FlattenedExtraction src,
+            TaggedDFA dfa, String regexpSource, List<String> extractorNamesList)
+    {
+        String[] extrNames = extractorNamesList.toArray(new String[extractorNamesList.size()]);
+        return new TDFACookedExtraction(src.getSource(), src.getName(),
+                index, src.getAppends(),
+                dfa, regexpSource, extrNames);
+    }
+
+    public static TDFACookedExtraction construct(int index, String name, Map<String,Object> append,
+            TaggedDFA dfa, String regexpSource, List<String> extractorNamesList)
+    {
+        String[] extrNames = extractorNamesList.toArray(new String[extractorNamesList.size()]);
+        return new TDFACookedExtraction(null, name, index, append,
+                dfa, regexpSource, extrNames);
+    }
+
+    @Override
+    public boolean reportsOffsets() {
+        return true;
+    }
+
+    @Override
+    public ExtractionResult match(String input) {
+        return match((CharSequence) input);
+    }
+
+    @Override
+    public ExtractionResult match(CharSequence input)
+    {
+        final int[] slots = new int[_dfa.slotCount()];
+        if (!_dfa.match(input, slots)) {
+            return null;
+        }
+        final int count = slots.length / 2;
+        String[] values = new String[count];
+        for (int i = 0; i < count; ++i) {
+            final int start = slots[2*i];
+            final int end = slots[2*i + 1];
+            if (start >= 0 && end >= start) {
+                values[i] = input.subSequence(start, end).toString();
+            }
+        }
+        return constructMatch(input, values);
+    }
+
+    @Override
+    public OffsetExtractionResult matchWithOffsets(CharSequence input)
+    {
+        final int[] slots = new int[_dfa.slotCount()];
+        if (!_dfa.match(input, slots)) {
+            return null;
+        }
+        // slots are already start/end pairs; just need to clear partial ones
+        for (int i = 0; i < slots.length; i += 2) {
+            if (slots[i] < 0 || slots[i+1] < slots[i]) {
+                slots[i] = slots[i+1] = -1;
+            }
+        }
+        return constructOffsetMatch(input, slots);
+    }
+
+    @Override
+    public boolean match(CharSequence input, ExtractionSink sink)
+    {
+        final int slotCount = _dfa.slotCount();
+        int[] slots = _slots.get();
+        if (slots.length < slotCount) {
+            slots = new int[slotCount];
+            _slots.set(slots);
+        }
+        if (!_dfa.match(input, slots)) {
+            return false;
+        }
+        sink.matched(this, input);
+        for (int i = 0; i < slotCount; i += 2) {
+            final int start = slots[i];
+            final int end = slots[i+1];
+            if (start < 0 || end < start) {
+                sink.value(i >> 1, -1, -1);
+            } else {
+                sink.value(i >> 1, start, end);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public TaggedDFA getRegexp() {
+        return _dfa;
+    }
+
+    @Override
+    public String getRegexpDesc() {
+        return _regexpSource;
+    }
+}
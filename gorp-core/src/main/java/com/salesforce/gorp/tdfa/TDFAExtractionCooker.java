@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.tdfa;
+
+import java.util.List;
+import java.util.Map;
+
+import com.salesforce.gorp.ExtractionCooker;
+import com.salesforce.gorp.autom.RegexpProgram;
+import com.salesforce.gorp.model.CookedExtraction;
+import com.salesforce.gorp.model.FlattenedExtraction;
+import com.salesforce.gorp.util.RegexHelper;
+
+/**
+ * {@link ExtractionCooker} that produces extractions backed by {@link TaggedDFA}s
+ * instead of <code>java.util.regex</code>: extraction takes a single linear pass
+ * over input regardless of how patterns are written, and results are the same
+ * as with {@link com.salesforce.gorp.jdkre.JDKRegexpExtractionCooker} (except for
+ * corner cases listed in {@link RegexpProgram}).
+ * Regexp sources use the same syntax as with the JDK cooker, but only the subset
+ * described in {@link RegexpProgram} is supported.
+ */
+public class TDFAExtractionCooker extends ExtractionCooker
+{
+    private final static TDFAExtractionCooker INSTANCE = new TDFAExtractionCooker(
+            TaggedDFA.DEFAULT_MAX_STATES);
+
+    protected final int _maxStates;
+
+    protected TDFAExtractionCooker(int maxStates) {
+        _maxStates = maxStates;
+    }
+
+    public static TDFAExtractionCooker instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Factory method for constructing a cooker that limits number of states
+     * cached per extraction to given maximum.
+     */
+    public static TDFAExtractionCooker instance(int maxStates) {
+        if (maxStates < 1) {
+            throw new IllegalArgumentException("Invalid maximum state count ("+maxStates+"): must be positive");
+        }
+        return new TDFAExtractionCooker(maxStates);
+    }
+
+    @Override
+    public CookedExtraction cook(int index, String regexpSource, FlattenedExtraction extr)
+        throws IllegalArgumentException
+    {
+        return TDFACookedExtraction.construct(index, extr, _dfa(regexpSource), regexpSource,
+                extr.getExtractorNames());
+    }
+
+    @Override
+    public CookedExtraction cook(int index, String name, Map<String,Object> append,
+            String regexpSource, List<String> extractorNames)
+        throws IllegalArgumentException
+    {
+        return TDFACookedExtraction.construct(index, name, append, _dfa(regexpSource), regexpSource,
+                extractorNames);
+    }
+
+    protected TaggedDFA _dfa(String regexpSource) {
+        return new TaggedDFA(RegexpProgram.compile(regexpSource), _maxStates);
+    }
+
+    public void appendPattern(String pattern, StringBuilder buffer) {
+        RegexHelper.massageRegexpForJDK(pattern, buffer);
+    }
+
+    public void appendLiteral(String literal, StringBuilder buffer) {
+        RegexHelper.quoteLiteralAsRegexp(literal, buffer);
+    }
+
+    public void appendStartExpression(StringBuilder buffer) {
+        buffer.append('(');
+    }
+
+    public void appendFinishExpression(StringBuilder buffer) {
+        buffer.append(')');
+    }
+}
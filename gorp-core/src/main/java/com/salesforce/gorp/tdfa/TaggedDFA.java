@@ -0,0 +1,630 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.tdfa;
+
+import java.nio.IntBuffer;
+import java.util.*;
+
+import com.salesforce.gorp.autom.RegexpProgram;
+
+/**
+ * Deterministic automaton with tags (capture registers) for matching input
+ * against a single {@link RegexpProgram}, and capturing positions of its groups,
+ * in one linear pass without backtracking.
+ *<p>
+ * Each state corresponds to an ordered list of program threads (instruction
+ * positions), highest-priority first, just like the thread list of a Pike VM,
+ * along with a mapping from capture slots of each thread into registers:
+ * threads that share capture values share registers too. Since these only
+ * depend on the input read so far (and not on positions), states and their
+ * transitions can be computed once and cached: each transition just lists
+ * register operations to perform, either copying a value between registers,
+ * or storing the current position. In the common case of a loop like
+ * <code>[^ ]*</code> followed by something else, this is a single store
+ * per character; and if no thread forks or captures, nothing at all.
+ * Since thread priorities follow those of a backtracking matcher, captured
+ * values are the same as with <code>java.util.regex</code> (except for cases
+ * listed in {@link RegexpProgram}).
+ *<p>
+ * States are constructed lazily, as input reaches them; number of cached states
+ * is bounded, and the cache is discarded when full.
+ * Instances are thread-safe: cached states are immutable except for their
+ * transition arrays, which only ever change from "not yet known" (null)
+ * to a fully constructed transition, so reads need no synchronization.
+ */
+public class TaggedDFA
+{
+    public final static int DEFAULT_MAX_STATES = 2000;
+
+    private final static int[] NO_INTS = new int[0];
+
+    /**
+     * Marker for "register" that holds value of the current position
+     */
+    private final static int POSITION = -1;
+
+    /**
+     * Marker for character classes that do not loop back to the same state
+     * (or for which that is not yet known)
+     */
+    private final static int NOT_LOOP = -2;
+
+    /**
+     * Marker for character classes that loop back to the same state, without
+     * register operations
+     */
+    private final static int LOOP_NO_OP = -1;
+
+    /**
+     * Marker used for transitions where all threads die.
+     */
+    private final static Transition DEAD = new Transition(null, NO_INTS, NO_INTS, true);
+
+    /**
+     * Register arrays used for matching; shared by all instances, and grown
+     * as necessary.
+     */
+    private final static ThreadLocal<Registers> _registers = new ThreadLocal<Registers>() {
+        @Override
+        protected Registers initialValue() {
+            return new Registers();
+        }
+    };
+
+    protected final RegexpProgram _program;
+
+    protected final int _slotCount;
+
+    protected final int _maxStates;
+
+    /**
+     * Cached states, keyed by their thread lists and register mappings.
+     * Guarded by synchronizing on this instance.
+     */
+    private final Map<IntBuffer,State> _states = new HashMap<>();
+
+    /**
+     * Transition from the (virtual) state before input into the initial state;
+     * recreated when cache is discarded
+     */
+    private volatile Transition _start;
+
+    private int _cacheResets;
+
+    public TaggedDFA(RegexpProgram program) {
+        this(program, DEFAULT_MAX_STATES);
+    }
+
+    public TaggedDFA(RegexpProgram program, int maxStates)
+    {
+        if (maxStates < 1) {
+            throw new IllegalArgumentException("Invalid maximum state count ("+maxStates+"): must be positive");
+        }
+        _program = program;
+        _slotCount = program.slotCount();
+        _maxStates = maxStates;
+    }
+
+    public RegexpProgram getProgram() {
+        return _program;
+    }
+
+    /**
+     * @return Number of capture slots: two per capturing group
+     */
+    public int slotCount() {
+        return _slotCount;
+    }
+
+    public synchronized int getCachedStateCount() {
+        return _states.size();
+    }
+
+    public synchronized int getCacheResetCount() {
+        return _cacheResets;
+    }
+
+    /*
+    /**********************************************************************
+    /* Matching
+    /**********************************************************************
+     */
+
+    /**
+     * Method for matching the whole input against the expression; if it
+     * matches, start and end positions of capturing groups are stored into
+     * given array (-1 for groups that did not participate in the match).
+     *
+     * @param slots Array of at least {@link #slotCount()} entries for storing
+     *    group positions
+     *
+     * @return True if input matched; false if not
+     */
+    public boolean match(CharSequence input, int[] slots)
+    {
+        final Registers r = _registers.get();
+
+        Transition t = _start;
+        if (t == null) {
+            t = _startTransition();
+        }
+        if (t.kind == Transition.KIND_DEAD) {
+            return false;
+        }
+        // before input, there is a single register for "not set" value
+        int[] regs = r.ensure(1);
+        regs[0] = -1;
+        regs = _apply(t, r, regs, 0);
+        State state = t.target;
+
+        final int end = input.length();
+        for (int i = 0; i < end; ) {
+            int cls = _program.characterClass(input.charAt(i));
+            // target states are also kept separately, for shorter chain of dependant reads;
+            // but since they are not published atomically with transitions, must check both
+            State nextState = state.nextStates[cls];
+            t = state.next[cls];
+            if (t == null || nextState == null) {
+                t = _computeTransition(state, cls);
+                nextState = t.target;
+            }
+            if (nextState == state) {
+                // Loop like ".*": skip all chars with same effect, only need to apply last one
+                final int[] loops = state.loops;
+                final int loop = loops[cls];
+                if (loop != NOT_LOOP) {
+                    while (++i < end && loops[_program.characterClass(input.charAt(i))] == loop) { }
+                    if (loop >= 0) {
+                        if (loop >= regs.length) {
+                            regs = r.ensure(loop + 1);
+                        }
+                        regs[loop] = i;
+                    }
+                    continue;
+                }
+            }
+            switch (t.kind) {
+            case Transition.KIND_NONE:
+                break;
+            case Transition.KIND_STORE:
+                {
+                    final int reg = t.to[0];
+                    if (reg >= regs.length) {
+                        regs = r.ensure(reg + 1);
+                    }
+                    regs[reg] = i+1;
+                }
+                break;
+            case Transition.KIND_GENERAL:
+                regs = _apply(t, r, regs, i+1);
+                break;
+            default: // dead
+                return false;
+            }
+            state = nextState;
+            ++i;
+        }
+        final int thread = state.matchThread;
+        if (thread < 0) {
+            return false;
+        }
+        final int[] layout = state.layout;
+        for (int slot = 0, base = thread * _slotCount; slot < _slotCount; ++slot) {
+            slots[slot] = regs[layout[base + slot]];
+        }
+        return true;
+    }
+
+    private final static int[] _apply(Transition t, Registers r, int[] regs, int pos)
+    {
+        final int[] to = t.to;
+        final int[] from = t.from;
+        if (t.inPlace) {
+            if (t.target.registerCount > regs.length) {
+                regs = r.ensure(t.target.registerCount);
+            }
+            for (int k = 0; k < to.length; ++k) {
+                final int src = from[k];
+                regs[to[k]] = (src == POSITION) ? pos : regs[src];
+            }
+            return regs;
+        }
+        final int[] other = r.other(to.length);
+        for (int k = 0; k < to.length; ++k) {
+            final int src = from[k];
+            other[to[k]] = (src == POSITION) ? pos : regs[src];
+        }
+        return r.swap();
+    }
+
+    /*
+    /**********************************************************************
+    /* State construction
+    /**********************************************************************
+     */
+
+    private synchronized Transition _startTransition()
+    {
+        Transition t = _start;
+        if (t == null) {
+            // virtual source state has a single thread, with all slots in register 0
+            t = _closure(new int[_slotCount], 1,
+                    new int[] { 0 }, new int[] { 0 }, 1);
+            _start = t;
+        }
+        return t;
+    }
+
+    private synchronized Transition _computeTransition(State from, int cls)
+    {
+        Transition t = from.next[cls];
+        if (t != null) { // computed by another thread
+            return t;
+        }
+        final int[] pcs = from.pcs;
+        final int[] seedPcs = new int[pcs.length];
+        final int[] seedSources = new int[pcs.length];
+        int seeds = 0;
+        for (int k = 0; k < pcs.length; ++k) {
+            final int pc = pcs[k];
+            if (_program.op(pc) == RegexpProgram.OP_CHAR && _program.accepts(pc, cls)) {
+                seedPcs[seeds] = pc + 1;
+                seedSources[seeds] = k;
+                ++seeds;
+            }
+        }
+        t = _closure(from.layout, from.registerCount, seedPcs, seedSources, seeds);
+        from.next[cls] = t;
+        from.nextStates[cls] = t.target;
+        if (t.target == from) {
+            if (t.kind == Transition.KIND_NONE) {
+                from.loops[cls] = LOOP_NO_OP;
+            } else if (t.kind == Transition.KIND_STORE) {
+                from.loops[cls] = t.to[0];
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Method for following all non-consuming instructions from given seed
+     * threads (in priority order), to find out resulting thread list, along
+     * with captures made on the way; and then register operations needed to
+     * get from source state to the resulting one.
+     */
+    private Transition _closure(int[] sourceLayout, int sourceRegisters,
+            int[] seedPcs, int[] seedSources, int seedCount)
+    {
+        final int size = _program.size();
+        final boolean[] visited = new boolean[size];
+        // iteration starts reached on the current path
+        final boolean[] onPath = new boolean[size];
+        final int[] pcs = new int[size];
+        final int[] sources = new int[size];
+        final int[][] tags = new int[size][];
+        int count = 0;
+
+        // explicit stack of (pc, tags) to avoid deep recursion with long programs
+        // (each instruction is expanded at most once, pushing at most two entries);
+        // negative pc is an entry for clearing path mark of iteration start
+        final int[] stackPcs = new int[2 * size + 1];
+        final int[][] stackTags = new int[2 * size + 1][];
+
+        for (int k = 0; k < seedCount; ++k) {
+            int sp = 0;
+            stackPcs[sp] = seedPcs[k];
+            stackTags[sp++] = NO_INTS;
+            while (sp > 0) {
+                final int pc = stackPcs[--sp];
+                final int[] pathTags = stackTags[sp];
+                if (pc < 0) {
+                    onPath[-pc - 1] = false;
+                    continue;
+                }
+                if (visited[pc]) {
+                    continue;
+                }
+                visited[pc] = true;
+                switch (_program.op(pc)) {
+                case RegexpProgram.OP_CHAR:
+                case RegexpProgram.OP_MATCH:
+                    pcs[count] = pc;
+                    sources[count] = seedSources[k];
+                    tags[count] = pathTags;
+                    ++count;
+                    break;
+                case RegexpProgram.OP_JUMP:
+                    stackPcs[sp] = _program.arg(pc);
+                    stackTags[sp++] = pathTags;
+                    break;
+                case RegexpProgram.OP_SPLIT:
+                    // lower priority one first, to be popped last
+                    stackPcs[sp] = _program.arg2(pc);
+                    stackTags[sp++] = pathTags;
+                    stackPcs[sp] = _program.arg(pc);
+                    stackTags[sp++] = pathTags;
+                    break;
+                case RegexpProgram.OP_SAVE:
+                    {
+                        final int[] newTags = Arrays.copyOf(pathTags, pathTags.length + 1);
+                        newTags[pathTags.length] = _program.arg(pc);
+                        stackPcs[sp] = pc + 1;
+                        stackTags[sp++] = newTags;
+                    }
+                    break;
+                case RegexpProgram.OP_ITER_START:
+                    onPath[pc] = true;
+                    stackPcs[sp] = -pc - 1;
+                    stackTags[sp++] = null;
+                    stackPcs[sp] = pc + 1;
+                    stackTags[sp++] = pathTags;
+                    break;
+                case RegexpProgram.OP_ITER_END:
+                    stackPcs[sp] = onPath[_program.arg(pc)] ? _program.arg2(pc) : (pc + 1);
+                    stackTags[sp++] = pathTags;
+                    break;
+                }
+            }
+        }
+        if (count == 0) {
+            return DEAD;
+        }
+
+        // Then assign registers for the target state: one for each distinct source
+        // register still needed, and one for the current position (if any slot is set),
+        // numbered in order of first use so that equivalent states get same layouts
+        final int slotCount = _slotCount;
+        final int[] layout = new int[count * slotCount];
+        final int[] regForSource = new int[sourceRegisters];
+        Arrays.fill(regForSource, -1);
+        int regForPosition = -1;
+        final int[] regFrom = new int[layout.length];
+        int regCount = 0;
+
+        for (int j = 0; j < count; ++j) {
+            final int srcBase = sources[j] * slotCount;
+            final int[] threadTags = tags[j];
+            for (int slot = 0; slot < slotCount; ++slot) {
+                int reg;
+                if (_contains(threadTags, slot)) {
+                    if (regForPosition < 0) {
+                        regForPosition = regCount;
+                        regFrom[regCount++] = POSITION;
+                    }
+                    reg = regForPosition;
+                } else {
+                    final int srcReg = sourceLayout[srcBase + slot];
+                    reg = regForSource[srcReg];
+                    if (reg < 0) {
+                        reg = regForSource[srcReg] = regCount;
+                        regFrom[regCount++] = srcReg;
+                    }
+                }
+                layout[j * slotCount + slot] = reg;
+            }
+        }
+        final State target = _findState(Arrays.copyOf(pcs, count), layout, regCount);
+
+        // Can registers be updated in place? Yes, if processing them in order never
+        // overwrites a register that is still to be read
+        boolean inPlace = true;
+        int ops = 0;
+        for (int reg = 0; reg < regCount; ++reg) {
+            final int src = regFrom[reg];
+            if (src != reg) {
+                ++ops;
+                if (src != POSITION && src < reg) {
+                    inPlace = false;
+                }
+            }
+        }
+        final int[] to;
+        final int[] from;
+        if (inPlace) { // only need non-identity operations
+            to = new int[ops];
+            from = new int[ops];
+            for (int reg = 0, ix = 0; reg < regCount; ++reg) {
+                if (regFrom[reg] != reg) {
+                    to[ix] = reg;
+                    from[ix++] = regFrom[reg];
+                }
+            }
+        } else {
+            to = new int[regCount];
+            for (int reg = 0; reg < regCount; ++reg) {
+                to[reg] = reg;
+            }
+            from = Arrays.copyOf(regFrom, regCount);
+        }
+        return new Transition(target, to, from, inPlace);
+    }
+
+    private static boolean _contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private State _findState(int[] pcs, int[] layout, int regCount)
+    {
+        final int[] keyInts = Arrays.copyOf(pcs, pcs.length + layout.length);
+        System.arraycopy(layout, 0, keyInts, pcs.length, layout.length);
+        final IntBuffer key = IntBuffer.wrap(keyInts);
+        State state = _states.get(key);
+        if (state == null) {
+            if (_states.size() >= _maxStates) {
+                // existing states remain usable by ongoing matches, but are
+                // no longer reachable from new ones
+                _states.clear();
+                _start = null;
+                ++_cacheResets;
+            }
+            int matchThread = -1;
+            for (int j = 0; j < pcs.length; ++j) {
+                if (_program.op(pcs[j]) == RegexpProgram.OP_MATCH) {
+                    matchThread = j;
+                    break;
+                }
+            }
+            state = new State(pcs, layout, regCount, matchThread, _program.characterClassCount());
+            _states.put(key, state);
+        }
+        return state;
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    private final static class State
+    {
+        /**
+         * Instructions of threads, in priority order; all either
+         * {@link RegexpProgram#OP_CHAR} or {@link RegexpProgram#OP_MATCH}.
+         */
+        final int[] pcs;
+
+        /**
+         * Registers that capture slots of threads are held in: entry
+         * <code>thread * slotCount + slot</code>
+         */
+        final int[] layout;
+
+        final int registerCount;
+
+        /**
+         * Highest-priority thread that has reached a match, if any; -1 if none
+         */
+        final int matchThread;
+
+        final Transition[] next;
+
+        /**
+         * Target states of {@link #next}, for faster access
+         */
+        final State[] nextStates;
+
+        /**
+         * For character classes for which the state loops back to itself
+         * with at most one register operation (storing current position),
+         * register to store into, or {@link #LOOP_NO_OP} if none;
+         * {@link #NOT_LOOP} for other classes.
+         */
+        final int[] loops;
+
+        State(int[] pcs, int[] layout, int registerCount, int matchThread, int classCount) {
+            this.pcs = pcs;
+            this.layout = layout;
+            this.registerCount = registerCount;
+            this.matchThread = matchThread;
+            next = new Transition[classCount];
+            nextStates = new State[classCount];
+            loops = new int[classCount];
+            Arrays.fill(loops, NOT_LOOP);
+        }
+    }
+
+    private final static class Transition
+    {
+        /**
+         * Transition that needs no register operations
+         */
+        final static int KIND_NONE = 0;
+
+        /**
+         * Transition that only stores current position into one register
+         */
+        final static int KIND_STORE = 1;
+
+        final static int KIND_GENERAL = 2;
+
+        /**
+         * Transition after which match can not succeed
+         */
+        final static int KIND_DEAD = 3;
+
+        final State target;
+
+        /**
+         * Registers (of target state) to assign
+         */
+        final int[] to;
+
+        /**
+         * For each register to assign, register (of source state) to copy
+         * from, or {@link #POSITION} for current position.
+         */
+        final int[] from;
+
+        /**
+         * Whether registers can be assigned within the same array, in order;
+         * if not, all registers of target state are listed, to be assigned
+         * into another array.
+         */
+        final boolean inPlace;
+
+        final int kind;
+
+        Transition(State target, int[] to, int[] from, boolean inPlace)
+        {
+            this.target = target;
+            this.to = to;
+            this.from = from;
+            this.inPlace = inPlace;
+            if (target == null) {
+                kind = KIND_DEAD;
+            } else if (to.length == 0) {
+                kind = KIND_NONE;
+            } else if (inPlace && to.length == 1 && from[0] == POSITION) {
+                kind = KIND_STORE;
+            } else {
+                kind = KIND_GENERAL;
+            }
+        }
+    }
+
+    /**
+     * Pair of register arrays, one holding current values, the other used
+     * when registers can not be updated in place.
+     */
+    private final static class Registers
+    {
+        private int[] _current = new int[64];
+        private int[] _other = new int[64];
+
+        public int[] ensure(int size)
+        {
+            if (size > _current.length) {
+                final int newSize = Math.max(size, 2 * _current.length);
+                _current = Arrays.copyOf(_current, newSize);
+                _other = new int[newSize];
+            }
+            return _current;
+        }
+
+        public int[] other(int size)
+        {
+            if (size > _other.length) {
+                final int newSize = Math.max(size, 2 * _other.length);
+                _other = new int[newSize];
+            }
+            return _other;
+        }
+
+        public int[] swap() {
+            int[] tmp = _current;
+            _current = _other;
+            _other = tmp;
+            return _current;
+        }
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * Implementation of the main Gorp handlers using tagged deterministic
+ * automata ({@link com.salesforce.gorp.tdfa.TaggedDFA}), which extract
+ * values in a single linear pass over input, without backtracking.
+ */
+package com.salesforce.gorp.tdfa;
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.util;
+
+/**
+ * {@link CharSequence} implementation that exposes a range of characters
+ * of another sequence, without copying. Hash code is calculated the same
+ * way as for <code>String</code>s with the same contents, and views are
+ * equal if their contents are; to compare against a <code>String</code>,
+ * use <code>String.contentEquals(CharSequence)</code> or {@link #contentEquals}.
+ */
+public final class CharSequenceView implements CharSequence
+{
+    private final CharSequence _base;
+    private final int _offset, _length;
+
+    private int _hash;
+
+    public CharSequenceView(CharSequence base, int start, int end) {
+        if (start < 0 || end > base.length() || start > end) {
+            throw new IndexOutOfBoundsException("Invalid view ["+start+", "+end
+                    +"[ (length "+base.length()+")");
+        }
+        _base = base;
+        _offset = start;
+        _length = end - start;
+    }
+
+    @Override
+    public int length() {
+        return _length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= _length) {
+            throw new IndexOutOfBoundsException("Invalid index "+index+" (length "+_length+")");
+        }
+        return _base.charAt(_offset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > _length || start > end) {
+            throw new IndexOutOfBoundsException("Invalid sub-sequence ["+start+", "+end
+                    +"[ (length "+_length+")");
+        }
+        return new CharSequenceView(_base, _offset + start, _offset + end);
+    }
+
+    /**
+     * @return True if contents of this view are the same as those of given sequence
+     */
+    public boolean contentEquals(CharSequence other)
+    {
+        if (other.length() != _length) {
+            return false;
+        }
+        for (int i = 0; i < _length; ++i) {
+            if (_base.charAt(_offset + i) != other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof CharSequenceView)) return false;
+        return contentEquals((CharSequenceView) o);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = _hash;
+        if (h == 0) {
+            for (int i = _offset, end = _offset + _length; i < end; ++i) {
+                h = 31 * h + _base.charAt(i);
+            }
+            _hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        if (_base instanceof String) {
+            return ((String) _base).substring(_offset, _offset + _length);
+        }
+        return _base.subSequence(_offset, _offset + _length).toString();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Helper class for running independent indexed tasks using fork/join,
+ * used for parallelizing construction of {@link com.salesforce.gorp.Gorp}
+ * instances. If no pool is given, tasks are simply run in index order on the
+ * calling thread.
+ *<p>
+ * Error reporting is deterministic: if any tasks fail, exception thrown
+ * is the one from the task with the lowest index, regardless of the order
+ * in which tasks actually completed.
+ */
+public class ParallelHelper
+{
+    /**
+     * Interface for tasks to run for each index of a range.
+     */
+    public interface IndexedTask {
+        public void run(int index) throws Exception;
+    }
+
+    /**
+     * Minimum number of indexes to process in a single fork/join task, to
+     * keep per-task overhead low for cheap tasks.
+     */
+    private final static int MIN_TASK_SIZE = 16;
+
+    private ParallelHelper() { }
+
+    /**
+     * Factory method for constructing pool to use with given parallelism:
+     * returns null if there is no parallelism (level 1 or less).
+     */
+    public static ForkJoinPool createPool(int parallelism) {
+        return (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * Helper method for shutting down pool created by {@link #createPool}.
+     */
+    public static void shutdown(ForkJoinPool pool) {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Method that will call given task for all indexes from <code>start</code>
+     * (inclusive) to <code>end</code> (exclusive), using given pool if not null,
+     * and return once all calls have completed.
+     */
+    public static void forEach(ForkJoinPool pool, int start, int end, IndexedTask task)
+        throws Exception
+    {
+        forEach(pool, start, end, MIN_TASK_SIZE, task);
+    }
+
+    /**
+     * Variant of {@link #forEach(ForkJoinPool, int, int, IndexedTask)} for tasks
+     * expensive enough to run in parallel in smaller groups: at least
+     * <code>minTaskSize</code> indexes are processed per fork/join task.
+     */
+    public static void forEach(ForkJoinPool pool, int start, int end, int minTaskSize,
+            IndexedTask task)
+        throws Exception
+    {
+        if (pool == null || (end - start) <= minTaskSize) {
+            for (int i = start; i < end; ++i) {
+                task.run(i);
+            }
+            return;
+        }
+        // Aim at a few tasks per thread for load balancing
+        final int chunk = Math.max(minTaskSize, (end - start) / (4 * pool.getParallelism()));
+        final Failure failure = new Failure();
+        pool.invoke(new RangeAction(task, start, end, chunk, failure));
+        failure.rethrow();
+    }
+
+    private final static class RangeAction extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final IndexedTask _task;
+        private final int _start, _end, _chunk;
+        private final Failure _failure;
+
+        RangeAction(IndexedTask task, int start, int end, int chunk, Failure failure) {
+            _task = task;
+            _start = start;
+            _end = end;
+            _chunk = chunk;
+            _failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if ((_end - _start) > _chunk) {
+                final int mid = (_start + _end) >>> 1;
+                invokeAll(new RangeAction(_task, _start, mid, _chunk, _failure),
+                        new RangeAction(_task, mid, _end, _chunk, _failure));
+                return;
+            }
+            for (int i = _start; i < _end; ++i) {
+                try {
+                    _task.run(i);
+                } catch (Throwable t) {
+                    _failure.report(i, t);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Container for the failure with the lowest index.
+     */
+    private final static class Failure
+    {
+        private int _index = Integer.MAX_VALUE;
+        private Throwable _problem;
+
+        public synchronized void report(int index, Throwable t) {
+            if (index < _index) {
+                _index = index;
+                _problem = t;
+            }
+        }
+
+        public synchronized void rethrow() throws Exception {
+            if (_problem instanceof Exception) {
+                throw (Exception) _problem;
+            }
+            if (_problem instanceof Error) {
+                throw (Error) _problem;
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helper methods for dealing with UTF-8 encoded input.
+ */
+public class Utf8Helper
+{
+    private Utf8Helper() { }
+
+    /**
+     * @return True if all given bytes are 7-bit ASCII characters
+     */
+    public static boolean isAscii(byte[] input, int offset, int length)
+    {
+        for (int i = offset, end = offset + length; i < end; ++i) {
+            if (input[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return True if all remaining bytes of given buffer are 7-bit ASCII characters
+     */
+    public static boolean isAscii(ByteBuffer input)
+    {
+        for (int i = input.position(), end = input.limit(); i < end; ++i) {
+            if (input.get(i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method for decoding given UTF-8 content; unlike with <code>String</code>
+     * constructors, malformed content is reported instead of being replaced.
+     *
+     * @return Decoded contents, if input is valid UTF-8; null if not
+     */
+    public static String decode(byte[] input, int offset, int length) {
+        return decode(ByteBuffer.wrap(input, offset, length));
+    }
+
+    /**
+     * Method for decoding remaining content of given buffer, without
+     * changing its position.
+     *
+     * @return Decoded contents, if input is valid UTF-8; null if not
+     */
+    public static String decode(ByteBuffer input)
+    {
+        try {
+            CharBuffer cb = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(input.duplicate());
+            return cb.toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Method for exposing given content as {@link CharSequence}, decoding
+     * as little as possible: if content is all ASCII, a view that does not
+     * copy or decode anything is returned (sub-sequences are only converted
+     * into <code>String</code>s on <code>toString()</code>);
+     * otherwise content is decoded.
+     * Note that in the former case, returned sequence will reflect any
+     * later changes to given array.
+     *
+     * @return Content as sequence of characters if input is valid UTF-8;
+     *    null if not
+     */
+    public static CharSequence asCharSequence(byte[] input, int offset, int length)
+    {
+        if (isAscii(input, offset, length)) {
+            return new AsciiSequence(input, offset, length);
+        }
+        return decode(input, offset, length);
+    }
+
+    /**
+     * {@link CharSequence} implementation that exposes 7-bit ASCII bytes
+     * as characters, without copying.
+     */
+    public final static class AsciiSequence implements CharSequence
+    {
+        private final byte[] _bytes;
+        private final int _offset, _length;
+
+        public AsciiSequence(byte[] bytes, int offset, int length) {
+            _bytes = bytes;
+            _offset = offset;
+            _length = length;
+        }
+
+        @Override
+        public int length() {
+            return _length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= _length) {
+                throw new IndexOutOfBoundsException("Invalid index "+index+" (length "+_length+")");
+            }
+            return (char) _bytes[_offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > _length || start > end) {
+                throw new IndexOutOfBoundsException("Invalid sub-sequence ["+start+", "+end
+                        +"[ (length "+_length+")");
+            }
+            return new AsciiSequence(_bytes, _offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(_bytes, _offset, _length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Method for exposing remaining content of given buffer as {@link CharSequence},
+     * decoding as little as possible; same as {@link #asCharSequence(byte[], int, int)}
+     * except that view of ASCII content refers to the buffer (and reflects changes
+     * to its contents, but not to its position or limit).
+     *
+     * @return Content as sequence of characters if input is valid UTF-8;
+     *    null if not
+     */
+    public static CharSequence asCharSequence(ByteBuffer input)
+    {
+        if (input.hasArray()) {
+            return asCharSequence(input.array(), input.arrayOffset() + input.position(),
+                    input.remaining());
+        }
+        if (isAscii(input)) {
+            return new AsciiBufferSequence(input, input.position(), input.remaining());
+        }
+        return decode(input);
+    }
+
+    /**
+     * {@link CharSequence} implementation that exposes 7-bit ASCII content
+     * of a (usually direct or memory-mapped) buffer as characters, without copying.
+     */
+    public final static class AsciiBufferSequence implements CharSequence
+    {
+        private final ByteBuffer _buffer;
+        private final int _offset, _length;
+
+        public AsciiBufferSequence(ByteBuffer buffer, int offset, int length) {
+            _buffer = buffer;
+            _offset = offset;
+            _length = length;
+        }
+
+        @Override
+        public int length() {
+            return _length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= _length) {
+                throw new IndexOutOfBoundsException("Invalid index "+index+" (length "+_length+")");
+            }
+            return (char) _buffer.get(_offset + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > _length || start > end) {
+                throw new IndexOutOfBoundsException("Invalid sub-sequence ["+start+", "+end
+                        +"[ (length "+_length+")");
+            }
+            return new AsciiBufferSequence(_buffer, _offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            final byte[] b = new byte[_length];
+            for (int i = 0; i < _length; ++i) {
+                b[i] = _buffer.get(_offset + i);
+            }
+            return new String(b, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
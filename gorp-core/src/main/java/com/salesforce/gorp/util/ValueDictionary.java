@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.util;
+
+import java.util.*;
+
+/**
+ * Dictionary used for encoding values as dense integer codes: each distinct
+ * value gets the next code, starting from 0. Values are added as character
+ * ranges of input, and a <code>String</code> is only constructed for the
+ * first occurrence of each distinct value.
+ *<p>
+ * Same dictionary may be used for encoding multiple batches, to keep codes
+ * stable across them; or {@link #clear}ed to reuse its buffers.
+ * Instances are not thread-safe.
+ */
+public final class ValueDictionary
+{
+    private final static int MIN_HASH_SIZE = 16;
+
+    private final List<String> _values = new ArrayList<>();
+
+    /**
+     * Hash codes of values, by code
+     */
+    private int[] _hashes = new int[MIN_HASH_SIZE / 2];
+
+    /**
+     * Open addressing hash table with code of value, or -1 for empty slots
+     */
+    private int[] _hashSlots;
+
+    public ValueDictionary() {
+        _hashSlots = new int[MIN_HASH_SIZE];
+        Arrays.fill(_hashSlots, -1);
+    }
+
+    /**
+     * @return Number of distinct values in dictionary
+     */
+    public int size() {
+        return _values.size();
+    }
+
+    /**
+     * @return Value with given code
+     */
+    public String get(int code) {
+        return _values.get(code);
+    }
+
+    /**
+     * @return Unmodifiable list of values, indexed by code
+     */
+    public List<String> getValues() {
+        return Collections.unmodifiableList(_values);
+    }
+
+    /**
+     * Method for removing all values, keeping buffers for reuse.
+     */
+    public void clear() {
+        _values.clear();
+        Arrays.fill(_hashSlots, -1);
+    }
+
+    /**
+     * @return Code of given value, if already in dictionary; -1 if not
+     */
+    public int codeOf(CharSequence value) {
+        return _find(value, 0, value.length(), _hash(value, 0, value.length()));
+    }
+
+    /**
+     * Method for finding code of value that consists of characters of input
+     * within given range, adding value if not yet included.
+     *
+     * @return Code of value
+     */
+    public int add(CharSequence input, int start, int end)
+    {
+        final int hash = _hash(input, start, end);
+        int code = _find(input, start, end, hash);
+        if (code < 0) {
+            code = _values.size();
+            final String value = (input instanceof String)
+                    ? ((String) input).substring(start, end)
+                    : input.subSequence(start, end).toString();
+            _values.add(value);
+            if (code == _hashes.length) {
+                _hashes = Arrays.copyOf(_hashes, code * 2);
+            }
+            _hashes[code] = hash;
+            // keep load factor at most 1/2
+            if (2 * _values.size() > _hashSlots.length) {
+                _rehash();
+            } else {
+                _insert(code, hash);
+            }
+        }
+        return code;
+    }
+
+    private int _find(CharSequence input, int start, int end, int hash)
+    {
+        final int mask = _hashSlots.length - 1;
+        final int len = end - start;
+        int slot = _slot(hash, mask);
+        while (true) {
+            final int code = _hashSlots[slot];
+            if (code < 0) {
+                return -1;
+            }
+            if (_hashes[code] == hash) {
+                final String value = _values.get(code);
+                if (value.length() == len && _equals(value, input, start)) {
+                    return code;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static boolean _equals(String value, CharSequence input, int start)
+    {
+        if (input instanceof String) {
+            return ((String) input).regionMatches(start, value, 0, value.length());
+        }
+        for (int i = 0, len = value.length(); i < len; ++i) {
+            if (value.charAt(i) != input.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void _insert(int code, int hash)
+    {
+        final int mask = _hashSlots.length - 1;
+        int slot = _slot(hash, mask);
+        while (_hashSlots[slot] >= 0) {
+            slot = (slot + 1) & mask;
+        }
+        _hashSlots[slot] = code;
+    }
+
+    private void _rehash()
+    {
+        _hashSlots = new int[_hashSlots.length * 2];
+        Arrays.fill(_hashSlots, -1);
+        for (int code = 0, end = _values.size(); code < end; ++code) {
+            _insert(code, _hashes[code]);
+        }
+    }
+
+    private static int _slot(int hash, int mask) {
+        // spread bits, since String hash codes of short values are not well distributed
+        final int h = hash * 0x9E3779B1;
+        return (h ^ (h >>> 15)) & mask;
+    }
+
+    // Same as String.hashCode()
+    private static int _hash(CharSequence input, int start, int end)
+    {
+        int h = 0;
+        for (int i = start; i < end; ++i) {
+            h = 31 * h + input.charAt(i);
+        }
+        return h;
+    }
+}
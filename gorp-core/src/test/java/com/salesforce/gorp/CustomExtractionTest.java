@@ -0,0 +1,200 @@
+package com.salesforce.gorp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.salesforce.gorp.autom.MatcherConfig;
+import com.salesforce.gorp.autom.PolyMatcher;
+import com.salesforce.gorp.autom.ShardedPolyMatcher;
+import com.salesforce.gorp.model.CookedExtraction;
+
+/**
+ * Tests for default implementations of {@link CookedExtraction} methods,
+ * used by extractions that only implement the original abstract methods.
+ */
+public class CustomExtractionTest extends TestBase
+{
+    static class CustomExtraction extends CookedExtraction
+    {
+        private final Pattern _regexp;
+
+        /**
+         * Group of each extractor, if not in order of groups
+         */
+        private final int[] _groups;
+
+        public CustomExtraction(String name, String regexp, String... extractorNames) {
+            this(0, name, regexp, null, extractorNames);
+        }
+
+        public CustomExtraction(int index, String name, String regexp, int[] groups,
+                String... extractorNames) {
+            super(null, name, index, Collections.<String,Object>emptyMap(), regexp, extractorNames);
+            _regexp = Pattern.compile(regexp);
+            _groups = groups;
+        }
+
+        @Override
+        public ExtractionResult match(String input) {
+            Matcher m = _regexp.matcher(input);
+            if (!m.matches()) {
+                return null;
+            }
+            String[] values = new String[m.groupCount()];
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = _value(m.group((_groups == null) ? (i+1) : _groups[i]));
+            }
+            return constructMatch(input, values);
+        }
+
+        protected String _value(String value) {
+            return value;
+        }
+
+        @Override
+        public Object getRegexp() { return _regexp; }
+
+        @Override
+        public String getRegexpDesc() { return _regexp.pattern(); }
+    }
+
+    // Values that are not substrings of input
+    static class UpperCaseExtraction extends CustomExtraction
+    {
+        public UpperCaseExtraction(int index, String name, String regexp, String... extractorNames) {
+            super(index, name, regexp, null, extractorNames);
+        }
+
+        @Override
+        protected String _value(String value) {
+            return (value == null) ? null : value.toUpperCase();
+        }
+    }
+
+    public void testMatchCharSequence() throws Exception
+    {
+        CustomExtraction extr = new CustomExtraction("get", "GET (\\w+) (\\w+)", "path", "rest");
+        assertFalse(extr.reportsOffsets());
+        ExtractionResult result = extr.match(new StringBuilder("GET abc def"));
+        assertNotNull(result);
+        assertEquals("abc", result.getValue(0));
+        assertEquals("def", result.getValue(1));
+        assertNull(extr.match(new StringBuilder("PUT abc def")));
+    }
+
+    public void testMatchWithOffsets() throws Exception
+    {
+        CustomExtraction extr = new CustomExtraction("get", "GET (\\w+)(x)? (\\w+)", "path", "opt", "rest");
+        OffsetExtractionResult result = extr.matchWithOffsets(new StringBuilder("GET abc def"));
+        assertNotNull(result);
+        // values, but no offsets, are known
+        assertEquals("abc", result.getValue(0));
+        assertEquals(-1, result.getStart(0));
+        assertEquals(-1, result.getEnd(0));
+        assertNull(result.getValue(1));
+        assertEquals("def", result.getValueAsCharSequence(2).toString());
+        assertEquals("GET abc def", result.getInput());
+        assertNull(extr.matchWithOffsets("PUT abc"));
+    }
+
+    public void testMatchWithSink() throws Exception
+    {
+        final StringBuilder sb = new StringBuilder();
+        ExtractionSink sink = new ExtractionSink() {
+            private CharSequence _text;
+
+            @Override
+            public void matched(CookedExtraction extraction, CharSequence input) {
+                _text = input;
+                sb.append(extraction.getName()).append(':');
+            }
+
+            @Override
+            public void value(int extractorIndex, int start, int end) {
+                sb.append(extractorIndex).append('=');
+                sb.append((start < 0) ? "-" : _text.subSequence(start, end)).append(' ');
+            }
+        };
+        // optional value not matched, repeated values
+        CustomExtraction extr = new CustomExtraction("get", "GET (a+)(b)? (a+)", "x", "y", "z");
+        assertTrue(extr.match("GET a a", sink));
+        assertEquals("get:0=a 1=- 2=a ", sb.toString());
+        assertFalse(extr.match("GET xy", sink));
+
+        // values out of order
+        sb.setLength(0);
+        extr = new CustomExtraction(0, "kv", "(\\w+)=(\\w+)", new int[] { 2, 1 }, "value", "key");
+        assertTrue(extr.match("ab=a", sink));
+        assertEquals("kv:0=a 1=ab ", sb.toString());
+
+        // values that are not in input
+        sb.setLength(0);
+        extr = new UpperCaseExtraction(0, "get", "GET (\\w+) (\\w+)", "path", "rest");
+        assertTrue(extr.match("GET abc abc", sink));
+        assertEquals("get:0=ABC 1=ABC ", sb.toString());
+    }
+
+    public void testExtractionsWithoutOffsets() throws Exception
+    {
+        PolyMatcher matcher = PolyMatcher.create("GET [a-z]+ [a-z]+", "[a-z]+=[a-z]+");
+        Gorp gorp = new Gorp(matcher, new CookedExtraction[] {
+                new UpperCaseExtraction(0, "get", "GET (\\w+) (\\w+)", "path", "rest"),
+                new CustomExtraction(1, "kv", "(\\w+)=(\\w+)", new int[] { 2, 1 }, "value", "key")
+        });
+        OffsetExtractionResult result = gorp.extractWithOffsets("GET a a");
+        assertEquals("A", result.getValue(1));
+        assertEquals(-1, result.getStart(1));
+
+        ExtractionBatch batch = gorp.extractBatch(Arrays.asList("GET x x", "b=a", "none", "GET y z"));
+        ExtractionBatch.Columns get = batch.getColumns(0);
+        assertEquals(2, get.size());
+        assertEquals("X", get.getValue(0, 0));
+        assertEquals("X", get.getValue(1, 0));
+        assertEquals("Z", get.getValueAsCharSequence(1, 1).toString());
+        assertEquals("YZ", get.getText(1).toString());
+        ExtractionBatch.Columns kv = batch.getColumns(1);
+        assertEquals(1, kv.getRow(0));
+        assertEquals("a", kv.getValue(0, 0));
+        assertEquals("b", kv.getValue(1, 0));
+
+        // whereas core extractions refer to input lines
+        Gorp core = DefinitionReader.reader("pattern %word [a-z]+\n"
+                +"extract get {\n  template GET $path(%word)\n}\n").read();
+        assertTrue(core.getExtractions().get(0).reportsOffsets());
+        batch = core.extractBatch(Arrays.asList("GET x", "GET abc"));
+        assertEquals("GET abc", batch.getColumns(0).getText(1));
+        assertEquals(4, batch.getColumns(0).getStart(0, 1));
+    }
+
+    // Fallbacks must also be tried in shards other than the first one that matched
+    public void testFallbackAcrossShards() throws Exception
+    {
+        List<String> patterns = new ArrayList<>();
+        List<CookedExtraction> extractions = new ArrayList<>();
+        for (char c = 'a'; c <= 'h'; ++c) {
+            patterns.add(".*"+c+"[a-h][a-h]");
+            // extraction that fails to match what its automaton matches
+            extractions.add(new CustomExtraction("broken-"+c, "x"));
+        }
+        patterns.add("[a-h]+");
+        extractions.add(new CustomExtraction("word", "([a-h]+)", "value"));
+        PolyMatcher matcher = PolyMatcher.create(patterns, MatcherConfig.DEFAULT.withStateBudget(60));
+        assertEquals(ShardedPolyMatcher.class, matcher.getClass());
+        Gorp gorp = new Gorp(matcher, extractions.toArray(new CookedExtraction[0]));
+
+        ExtractionResult result = gorp.extractSafe("habc");
+        assertNotNull(result);
+        assertEquals("word", result.getId());
+        assertEquals("habc", result.getValue(0));
+        try {
+            gorp.extract("habc");
+            fail("Should not pass");
+        } catch (ExtractionException e) {
+            verifyException(e, "failed to match generated regexp");
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.salesforce.gorp;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.salesforce.gorp.util.ValueDictionary;
+
+public class ExtractionBatchTest extends TestBase
+{
+    final static String DEF =
+"pattern %word [a-zA-Z]+\n"+
+"pattern %num \\d+\n"+
+"pattern %any .*\n"+
+"extract put {  \n"+
+"  template PUT $path(%word) $size(%num)\n"+
+"}\n"+
+"extract get {  \n"+
+"  template GET $path(%word)$rest(%any)\n"+
+"}\n"+
+                    "";
+
+    public void testBatch() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(DEF).read();
+        List<CharSequence> lines = Arrays.<CharSequence>asList("GET abc", "PUT foo 12", "xyz",
+                new StringBuilder("GET abc?x=1"), "PUT bar 3", "GET foo");
+        ExtractionBatch batch = gorp.extractBatch(lines);
+        assertEquals(6, batch.size());
+        assertEquals(Arrays.asList(1, 0, -1, 1, 0, 1), _matches(batch));
+
+        // values must be the same as with row-based extraction
+        for (int ix = 0; ix < 2; ++ix) {
+            ExtractionBatch.Columns columns = batch.getColumns(ix);
+            assertSame(gorp.getExtractions().get(ix), columns.getExtraction());
+            assertEquals(2, columns.getColumnCount());
+            for (int i = 0; i < columns.size(); ++i) {
+                final int row = columns.getRow(i);
+                assertEquals(ix, batch.getMatchIndex(row));
+                ExtractionResult exp = gorp.extract(batch.getLine(row).toString());
+                for (int col = 0; col < columns.getColumnCount(); ++col) {
+                    assertEquals(exp.getValue(col), columns.getValue(col, i));
+                    CharSequence view = columns.getValueAsCharSequence(col, i);
+                    assertEquals(exp.getValue(col), (view == null) ? null : view.toString());
+                }
+            }
+        }
+        ExtractionBatch.Columns gets = batch.getColumns(1);
+        assertEquals(3, gets.size());
+        assertEquals(4, gets.getStart(0, 1));
+        assertEquals(7, gets.getEnd(0, 1));
+        assertEquals("?x=1", gets.getValue(1, 1));
+        assertEquals("", gets.getValue(1, 0));
+
+        // dictionary-encoded columns; dictionary shared across batches
+        ValueDictionary dict = new ValueDictionary();
+        int[] codes = gets.encode(0, dict, null);
+        assertEquals(Arrays.asList(0, 0, 1), _list(codes, gets.size()));
+        assertEquals(Arrays.asList("abc", "foo"), dict.getValues());
+        codes = batch.getColumns(0).encode(0, dict, codes);
+        assertEquals(Arrays.asList(1, 2), _list(codes, 2));
+
+        // and buffers reused for next batch
+        final int[] matches = batch.getMatchIndexes();
+        ExtractionBatch batch2 = gorp.extractBatch(Arrays.asList("GET bar", "nope"), batch);
+        assertSame(batch, batch2);
+        assertSame(matches, batch.getMatchIndexes());
+        assertEquals(Arrays.asList(1, -1), _matches(batch));
+        assertEquals(0, batch.getColumns(0).size());
+        assertEquals(1, gets.size());
+        assertEquals(Arrays.asList(2), _list(gets.encode(0, dict, codes), 1));
+        assertEquals(3, dict.size());
+        assertEquals(2, dict.codeOf("bar"));
+        assertEquals(-1, dict.codeOf("baz"));
+
+        try {
+            DefinitionReader.reader(DEF).read().extractBatch(lines, batch);
+            fail("Should not allow batch of another Gorp");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "not constructed for this");
+        }
+    }
+
+    public void testLargeBatch() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(DEF).read();
+        String[] lines = new String[5000];
+        for (int i = 0; i < lines.length; ++i) {
+            lines[i] = (i % 3 == 0) ? ("PUT v"+(char) ('a' + i % 26)+" "+i) : ("GET p"+(i % 1000));
+        }
+        ExtractionBatch batch = gorp.extractBatch(Arrays.asList(lines));
+        ExtractionBatch.Columns gets = batch.getColumns(1);
+        assertEquals(3333, gets.size());
+        ValueDictionary dict = new ValueDictionary();
+        // path is just "p", rest the number
+        int[] codes = gets.encode(1, dict, null);
+        assertEquals(1000, dict.size());
+        for (int i = 0; i < gets.size(); ++i) {
+            assertEquals(lines[gets.getRow(i)].substring(5), dict.get(codes[i]));
+        }
+        assertEquals("v"+(char) ('a' + 4998 % 26), batch.getColumns(0).getValue(0, 1666));
+    }
+
+    private static List<Integer> _matches(ExtractionBatch batch) {
+        return _list(batch.getMatchIndexes(), batch.size());
+    }
+
+    private static List<Integer> _list(int[] values, int count) {
+        Integer[] result = new Integer[count];
+        for (int i = 0; i < count; ++i) {
+            result[i] = values[i];
+        }
+        return Arrays.asList(result);
+    }
+}
@@ -1,10 +1,24 @@
 package com.salesforce.gorp;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import com.fasterxml.jackson.jr.ob.JSON;
+import com.fasterxml.jackson.jr.ob.JSONComposer;
+import com.fasterxml.jackson.jr.ob.comp.ArrayComposer;
 import com.salesforce.gorp.DefinitionReader;
 import com.salesforce.gorp.ExtractionResult;
 import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.jdkre.JDKRegexpExtractionCooker;
+import com.salesforce.gorp.model.CookedExtraction;
+import com.salesforce.gorp.pikevm.PikeVMExtractionCooker;
+import com.salesforce.gorp.tdfa.TDFAExtractionCooker;
+import com.salesforce.gorp.util.CharSequenceView;
 
 public class FullExtractionTest extends TestBase
 {
@@ -65,6 +79,180 @@ public class FullExtractionTest extends TestBase
         assertEquals("10.10.5.3", values.get("logSrcIp"));
     }
     
+    public void testOffsetResults() throws Exception
+    {
+        final String DEF =
+"pattern %word [a-zA-Z]+\n"+
+"pattern %num \\d+\n"+
+"pattern %any .*\n"+
+"extract put {  \n"+
+"  template PUT $path($dir(%word)/$file(%word)) $size(%num)$rest(%any)\n"+
+"}\n"+
+                    "";
+        final String INPUT = "PUT abc/def 123 and more";
+        for (ExtractionCooker cooker : new ExtractionCooker[] {
+                JDKRegexpExtractionCooker.instance(), TDFAExtractionCooker.instance(),
+                PikeVMExtractionCooker.instance() }) {
+            Gorp def = DefinitionReader.reader(DEF).withCooker(cooker).read();
+            ExtractionResult plain = def.extract(INPUT);
+            // also works on mutable input, as long as it is not changed
+            OffsetExtractionResult result = def.extractWithOffsets(new StringBuilder(INPUT));
+            assertNotNull(result);
+            assertEquals("put", result.getId());
+            assertEquals(5, result.size());
+            assertEquals("path", result.getExtractorName(0));
+            assertEquals(4, result.getStart(0));
+            assertEquals(11, result.getEnd(0));
+
+            CharSequence view = result.getValueAsCharSequence(1);
+            assertEquals(CharSequenceView.class, view.getClass());
+            assertTrue("abc".contentEquals(view));
+            assertEquals("abc".hashCode(), view.hashCode());
+            assertEquals(" and more", result.getValueAsCharSequence(4).toString());
+
+            assertEquals("def", result.getValue(2));
+            // once constructed, String is used
+            assertSame(result.getValue(2), result.getValueAsCharSequence(2));
+            assertEquals(plain.asMap(), result.asMap());
+
+            assertNull(def.extractWithOffsets("GET abc/def 123"));
+        }
+    }
+
+    public void testSink() throws Exception
+    {
+        final String DEF =
+"pattern %word [a-zA-Z]+\n"+
+"pattern %num \\d+\n"+
+"pattern %any .*\n"+
+"extract put {  \n"+
+"  template PUT $path($dir(%word)/$file(%word)) $size(%num)$rest(%any)\n"+
+"}\n"+
+"extract get {  \n"+
+"  template GET $path(%any)\n"+
+"}\n"+
+                    "";
+        final List<String> values = new ArrayList<>();
+        final List<String> extractions = new ArrayList<>();
+        ExtractionSink sink = new ExtractionSink() {
+            CharSequence _input;
+
+            @Override
+            public void matched(CookedExtraction extraction, CharSequence input) {
+                extractions.add(extraction.getIndex()+":"+extraction.getName());
+                _input = input;
+            }
+
+            @Override
+            public void value(int extractorIndex, int start, int end) {
+                values.add(extractorIndex+"="+_input.subSequence(start, end));
+            }
+        };
+        for (ExtractionCooker cooker : new ExtractionCooker[] {
+                JDKRegexpExtractionCooker.instance(), TDFAExtractionCooker.instance(),
+                PikeVMExtractionCooker.instance() }) {
+            Gorp def = DefinitionReader.reader(DEF).withCooker(cooker).read();
+            values.clear();
+            extractions.clear();
+            // same state is reused, so try couple of times
+            for (int i = 0; i < 3; ++i) {
+                assertEquals(0, def.extract("PUT abc/def 123 and more", sink));
+                assertEquals(1, def.extract(new StringBuilder("GET abc"), sink));
+                assertEquals(-1, def.extract("POST abc", sink));
+            }
+            assertEquals(6, extractions.size());
+            assertEquals("0:put", extractions.get(0));
+            assertEquals("1:get", extractions.get(1));
+            assertEquals(18, values.size());
+            assertEquals("[0=abc/def, 1=abc, 2=def, 3=123, 4= and more, 0=abc]",
+                    values.subList(0, 6).toString());
+        }
+    }
+
+    public void testMapView() throws Exception
+    {
+        final String DEF =
+"pattern %word [a-zA-Z]+\n"+
+"extract pair {  \n"+
+"  template $Aa(%word)=$BB(%word) $kind(%word)\n"+
+"  append \"kind\":\"fixed\", \"extra\":3\n"+
+"}\n"+
+                    "";
+        Gorp def = DefinitionReader.reader(DEF).read();
+        ExtractionResult result = def.extract("foo=bar baz");
+        assertNotNull(result);
+        Map<String,Object> map = result.asMap("id");
+
+        // same contents and order as if built as LinkedHashMap
+        Map<String,Object> exp = new LinkedHashMap<>();
+        exp.put("id", "pair");
+        exp.put("Aa", "foo");
+        exp.put("BB", "bar"); // same hash code as "Aa"
+        exp.put("kind", "baz");
+        exp.putAll(result.getExtra());
+        assertEquals(exp, map);
+        assertEquals(map, exp);
+        assertEquals(exp.hashCode(), map.hashCode());
+        assertEquals(exp.toString(), map.toString());
+        assertEquals("[id, Aa, BB, kind, extra]", map.keySet().toString());
+        assertEquals("fixed", map.get("kind"));
+        assertEquals("bar", map.get("BB"));
+        assertNull(map.get("xyz"));
+        assertFalse(map.containsKey("xyz"));
+        assertFalse(map.containsKey(3));
+
+        // schema is only computed once
+        assertSame(result.getMatchedExtraction().getSchema("id"),
+                result.getMatchedExtraction().getSchema("id"));
+        assertEquals(4, result.asMap().size());
+        try {
+            map.put("foo", "bar");
+            fail("Should not allow modification");
+        } catch (UnsupportedOperationException e) { }
+    }
+
+    public void testJsonOutput() throws Exception
+    {
+        final String DEF =
+"pattern %word [a-zA-Z]+\n"+
+"pattern %any .*\n"+
+"extract msg {  \n"+
+"  template $level(%word): $msg(%any)\n"+
+"  append \"tags\":[\"a\",{\"b\":1.5}], \"none\":null, \"level\":\"fixed\"\n"+
+"}\n"+
+                    "";
+        final String INPUT = "warn: say \"h\u00e9\"\t\\ \u4e00";
+        Gorp def = DefinitionReader.reader(DEF).read();
+        for (ExtractionResult result : new ExtractionResult[] {
+                def.extract(INPUT), def.extractWithOffsets(INPUT),
+                def.extractWithOffsets(new StringBuilder(INPUT)) }) {
+            // same as serializing Map, for which jackson-jr omits nulls
+            final String exp = JSON.std.asString(result.asMap("id"));
+            assertEquals("{\"id\":\"msg\",\"level\":\"fixed\",\"msg\":\"say \\\"h\u00e9\\\"\\t\\\\ \u4e00\","
+                    +"\"tags\":[\"a\",{\"b\":1.5}]}", exp);
+
+            StringWriter sw = new StringWriter();
+            result.writeJson(sw, "id");
+            assertEquals(exp, sw.toString());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            result.writeJson(bytes, "id");
+            assertEquals(exp, bytes.toString("UTF-8"));
+
+            sw = new StringWriter();
+            result.writeJson(sw, null);
+            assertEquals(JSON.std.asString(result.asMap()), sw.toString());
+        }
+
+        // multiple results within a single composer
+        StringWriter sw = new StringWriter();
+        ArrayComposer<JSONComposer<OutputStream>> arr = JSON.std.composeTo(sw).startArray();
+        def.extract(INPUT).writeJson(arr.startObject(), null).end();
+        def.extractWithOffsets("err: x").writeJson(arr.startObject(), "id").end();
+        arr.end().finish();
+        assertEquals("["+JSON.std.asString(def.extract(INPUT).asMap())
+                +","+JSON.std.asString(def.extract("err: x").asMap("id"))+"]", sw.toString());
+    }
+
     public void testFull() throws Exception
     {
         final String DEF =
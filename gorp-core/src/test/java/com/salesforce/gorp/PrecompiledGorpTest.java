@@ -0,0 +1,211 @@
+package com.salesforce.gorp;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import com.salesforce.gorp.autom.MatcherConfig;
+import com.salesforce.gorp.autom.PolyMatcher;
+import com.salesforce.gorp.jdkre.JDKRegexpExtractionCooker;
+
+public class PrecompiledGorpTest extends TestBase
+{
+    final static String DEF =
+"pattern %word [a-zA-Z]+\n"+
+"pattern %phrase \\S+\n"+
+"pattern %num \\d+\n"+
+"pattern %setting [a-z]+=[^ ]*\n"+
+"extract PutRequest {\n"+
+"   template [$timestamp(%num)]: $verb(PUT) $timeTakenInMsec(%num)ms $path(%phrase)\n"+
+"   append { \"marker\" : \"EXTRACTED\", \"count\" : 3 }\n"+
+"}\n"+
+"extract Setting {\n"+
+"   template [$timestamp(%num)]: $msg(%setting) \u00e4\u4e00\n"+
+"}\n"+
+"extract OtherRequest {\n"+
+"   template [$timestamp(%num)]: $verb(%word) $timeTakenInMsec(%num)ms $path(%phrase)\n"+
+"}\n"
+;
+
+    final static String[] INPUTS = new String[] {
+        "[102456879]: PUT 123ms /rest-service/v1/endpoint?foo=bar",
+        "[102456879]: GET 3ms /rest-service/v1/endpoint",
+        "[1]: level=high \u00e4\u4e00",
+        "[1]: level=high \u00e4\u4e01",
+        "no match",
+        ""
+    };
+
+    public void testRoundTripViaFile() throws Exception
+    {
+        Gorp orig = DefinitionReader.reader(DEF).read();
+        File f = File.createTempFile("gorp-test", ".bin");
+        try {
+            PrecompiledGorp.write(orig, f);
+            Gorp loaded = PrecompiledGorp.load(f);
+            _verifySame(orig, loaded);
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testRoundTripViaBuffer() throws Exception
+    {
+        Gorp orig = DefinitionReader.reader(DEF).read();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrecompiledGorp.write(orig, bytes);
+        // use direct buffer at non-zero offset, similar to mapped content
+        byte[] raw = bytes.toByteArray();
+        ByteBuffer buf = ByteBuffer.allocateDirect(raw.length + 3);
+        buf.put(new byte[3]);
+        buf.put(raw);
+        buf.position(3);
+        Gorp loaded = PrecompiledGorp.load(buf, JDKRegexpExtractionCooker.instance());
+        _verifySame(orig, loaded);
+        assertTrue(loaded.getMatcher().getAutomata().transitionTable().encoding().startsWith("mapped-"));
+    }
+
+    public void testRoundTripViaSource() throws Exception
+    {
+        Gorp orig = DefinitionReader.reader(DEF).read();
+        _verifySame(orig, _compileAndCreate(orig, "test.gen.SmallGorp"));
+
+        // and then one big enough to need multiple String constants
+        StringBuilder sb = new StringBuilder(DEF);
+        for (int i = 0; i < 200; ++i) {
+            sb.append("extract Other"+i+" {\n"
+                    +"   template [$timestamp(%num)]: verb"+i+" $path(%phrase) $rest(%word)\n}\n");
+        }
+        orig = DefinitionReader.reader(sb.toString()).read();
+        _verifySame(orig, _compileAndCreate(orig, "BigGorp"));
+    }
+
+    public void testInvalidContent() throws Exception
+    {
+        Gorp orig = DefinitionReader.reader(DEF).read();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrecompiledGorp.write(orig, bytes);
+        byte[] raw = bytes.toByteArray();
+
+        byte[] broken = Arrays.copyOf(raw, raw.length);
+        broken[0] = 'X';
+        try {
+            PrecompiledGorp.load(ByteBuffer.wrap(broken), JDKRegexpExtractionCooker.instance());
+            fail("Should not pass");
+        } catch (DefinitionParseException e) {
+            verifyException(e, "not a precompiled Gorp definition");
+        }
+
+        broken = Arrays.copyOf(raw, raw.length);
+        broken[7] = 99;
+        try {
+            PrecompiledGorp.load(ByteBuffer.wrap(broken), JDKRegexpExtractionCooker.instance());
+            fail("Should not pass");
+        } catch (DefinitionParseException e) {
+            verifyException(e, "unsupported format version 99");
+        }
+
+        broken = Arrays.copyOf(raw, raw.length - 10);
+        try {
+            PrecompiledGorp.load(ByteBuffer.wrap(broken), JDKRegexpExtractionCooker.instance());
+            fail("Should not pass");
+        } catch (DefinitionParseException e) {
+            verifyException(e, "truncated");
+        }
+    }
+
+    public void testUnsupportedMatchers() throws Exception
+    {
+        Gorp lazy = DefinitionReader.reader(DEF)
+                .withMatcherConfig(MatcherConfig.DEFAULT.withLazyMatching())
+                .read();
+        try {
+            PrecompiledGorp.write(lazy, new ByteArrayOutputStream());
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "lazily constructed matcher");
+        }
+        Gorp sharded = DefinitionReader.reader(DEF)
+                .withMatcherConfig(MatcherConfig.DEFAULT.withStateBudget(5))
+                .read();
+        try {
+            PrecompiledGorp.write(sharded, new ByteArrayOutputStream());
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "state budget");
+        }
+    }
+
+    private Gorp _compileAndCreate(Gorp gorp, String className) throws Exception
+    {
+        StringWriter w = new StringWriter();
+        PrecompiledGorp.writeSource(gorp, JDKRegexpExtractionCooker.instance(), className,
+                "C:\\defs\\test.grp", w);
+        final String source = w.toString();
+        assertTrue(source.startsWith(PrecompiledGorp.sourceStamp(JDKRegexpExtractionCooker.instance())));
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertNotNull("Need JDK to run test", compiler);
+        File dir = Files.createTempDirectory("gorp-test").toFile();
+        try {
+            File srcFile = new File(dir, className.substring(className.lastIndexOf('.')+1)+".java");
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(srcFile), "UTF-8")) {
+                out.write(source);
+            }
+            String cp = new File(Gorp.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            int status = compiler.run(null, null, errors, "-encoding", "UTF-8", "-classpath", cp,
+                    "-d", dir.getPath(), srcFile.getPath());
+            assertEquals("Compilation failed: "+errors.toString("UTF-8"), 0, status);
+
+            try (URLClassLoader loader = new URLClassLoader(new URL[] { dir.toURI().toURL() },
+                    getClass().getClassLoader())) {
+                Class<?> cls = loader.loadClass(className);
+                return (Gorp) cls.getMethod("create").invoke(null);
+            }
+        } finally {
+            _delete(dir);
+        }
+    }
+
+    private static void _delete(File f)
+    {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                _delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    private void _verifySame(Gorp exp, Gorp act) throws Exception
+    {
+        assertEquals(exp.getExtractions().size(), act.getExtractions().size());
+        PolyMatcher expM = exp.getMatcher();
+        PolyMatcher actM = act.getMatcher();
+        assertEquals(expM.getAutomata().stateCount(), actM.getAutomata().stateCount());
+        for (String input : INPUTS) {
+            assertEquals(Arrays.toString(expM.match(input)), Arrays.toString(actM.match(input)));
+            ExtractionResult expR = exp.extract(input);
+            ExtractionResult actR = act.extract(input);
+            if (expR == null) {
+                assertNull(actR);
+                continue;
+            }
+            assertNotNull(actR);
+            assertEquals(expR.getId(), actR.getId());
+            Map<String,Object> expMap = expR.asMap("id");
+            assertEquals(expMap, actR.asMap("id"));
+            // ordering should be retained as well
+            assertEquals(expMap.toString(), actR.asMap("id").toString());
+        }
+    }
+}
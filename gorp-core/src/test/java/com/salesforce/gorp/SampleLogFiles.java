@@ -0,0 +1,125 @@
+package com.salesforce.gorp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Shared fixture for tests of line-oriented processing of log files (in this
+ * module and in the Java 8 module): sample lines, some of which match
+ * {@link #DEF}, written as UTF-8 with a mix of Unix and Windows linefeeds.
+ */
+public class SampleLogFiles
+{
+    public final static String DEF =
+"pattern %word [a-zA-Z]+\n"+
+"pattern %num \\d+\n"+
+"pattern %any .*\n"+
+"extract put {  \n"+
+"  template PUT $path(%word) $size(%num)\n"+
+"}\n"+
+"extract get {  \n"+
+"  template GET $path(%any)\n"+
+"}\n";
+
+    private SampleLogFiles() { }
+
+    /**
+     * @return Given number of lines: mix of ones matched by {@link #DEF}, empty
+     *    ones, unmatched ones, and ones longer than small chunks or blocks
+     */
+    public static List<String> lines(int count)
+    {
+        List<String> lines = new ArrayList<>();
+        Random r = new Random(3);
+        for (int i = 0; i < count; ++i) {
+            switch (r.nextInt(5)) {
+            case 0:
+                lines.add("PUT abc "+i);
+                break;
+            case 1:
+                lines.add("GET /x/\u00e9\u4e00/"+i);
+                break;
+            case 2:
+                lines.add("");
+                break;
+            case 3:
+                StringBuilder sb = new StringBuilder("GET ");
+                for (int j = r.nextInt(300); j > 0; --j) {
+                    sb.append((char) ('a' + j % 26));
+                }
+                lines.add(sb.toString());
+                break;
+            default:
+                lines.add("no match "+i);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Method for writing given lines into a new temporary file, which caller
+     * is to delete.
+     */
+    public static File write(List<String> lines, boolean trailingLinefeed) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines.size(); ++i) {
+            if (i > 0) {
+                sb.append(_windowsLinefeedBefore(i) ? "\r\n" : "\n");
+            }
+            sb.append(lines.get(i));
+        }
+        if (trailingLinefeed) {
+            sb.append('\n');
+        }
+        File f = File.createTempFile("gorp-test", ".log");
+        Files.write(f.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        return f;
+    }
+
+    /**
+     * @return Byte offsets of given lines within file written by {@link #write}
+     */
+    public static long[] offsets(List<String> lines)
+    {
+        long[] offsets = new long[lines.size()];
+        long offset = 0L;
+        for (int i = 0; i < offsets.length; ++i) {
+            if (i > 0) {
+                offset += _windowsLinefeedBefore(i) ? 2 : 1;
+            }
+            offsets[i] = offset;
+            offset += lines.get(i).getBytes(StandardCharsets.UTF_8).length;
+        }
+        return offsets;
+    }
+
+    /**
+     * @return Description of given result to compare: id and values
+     */
+    public static String describe(ExtractionResult result) {
+        return result.getId()+result.asMap();
+    }
+
+    /**
+     * @return Descriptions of results for lines that given {@link Gorp} matches
+     */
+    public static List<String> expected(Gorp gorp, List<String> lines) throws IOException
+    {
+        List<String> exp = new ArrayList<>();
+        for (String line : lines) {
+            ExtractionResult result = gorp.extract(line);
+            if (result != null) {
+                exp.add(describe(result));
+            }
+        }
+        return exp;
+    }
+
+    private static boolean _windowsLinefeedBefore(int index) {
+        return (index % 7) == 0;
+    }
+}
@@ -0,0 +1,128 @@
+package com.salesforce.gorp.autom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.TestBase;
+
+public class CompiledPolyMatcherTest extends TestBase
+{
+    final static List<String> PATTERNS = Arrays.asList(
+            "ab+",     // 0
+            "abc+",    // 1
+            "ab?c",    // 2
+            "v",       // 3
+            "v.*",     // 4
+            "(def)+",  // 5
+            ".*a.*b.*c", // 6
+            "[a-c]*x[\u4e00-\u9fff]?", // 7
+            "[\uffe0-\uffff]+" // 8
+            );
+
+    final static MatcherConfig CONFIG = MatcherConfig.DEFAULT.withBytecodeGeneration(true);
+
+    public void testSameAsTables()
+    {
+        PolyMatcher tables = PolyMatcher.create(PATTERNS);
+        PolyMatcher compiled = PolyMatcher.create(PATTERNS, CONFIG);
+        assertEquals(CompiledPolyMatcher.class, compiled.getClass());
+        assertEquals(PATTERNS.size(), compiled.size());
+
+        Random r = new Random(123);
+        for (int i = 0; i < 5000; ++i) {
+            String input = _randomInput(r);
+            Assert.assertArrayEquals("Input: '"+input+"'", tables.match(input), compiled.match(input));
+            assertEquals("Input: '"+input+"'", tables.matchFirst(input), compiled.matchFirst(input));
+        }
+        // byte-based matching still works too, using tables
+        byte[] utf8 = _utf8("abcc");
+        Assert.assertArrayEquals(new int[] { 1, 6 }, compiled.match(utf8, 0, utf8.length));
+    }
+
+    public void testMultipleChunks()
+    {
+        List<String> patterns = new ArrayList<>();
+        Random r = new Random(789);
+        for (int i = 0; i < 200; ++i) {
+            patterns.add(_randomInput(r)+"[a-f]*"+i);
+        }
+        patterns.add(".*");
+        PolyMatcher tables = PolyMatcher.create(patterns);
+        PolyMatcher compiled = PolyMatcher.create(patterns, CONFIG);
+        assertEquals(CompiledPolyMatcher.class, compiled.getClass());
+        int[] chunks = MatcherGenerator.chunks(MatcherGenerator.ranges(tables.getAutomata()),
+                MatcherGenerator.DEFAULT_MAX_CODE_SIZE);
+        assertTrue("Should have multiple chunks, got "+(chunks.length-1), chunks.length > 3);
+
+        for (int i = 0; i < 5000; ++i) {
+            String input = patterns.get(r.nextInt(patterns.size())).replace("[a-f]*", _randomInput(r));
+            if (r.nextBoolean()) {
+                input = input.substring(0, r.nextInt(input.length() + 1));
+            }
+            Assert.assertArrayEquals("Input: '"+input+"'", tables.match(input), compiled.match(input));
+            assertEquals("Input: '"+input+"'", tables.matchFirst(input), compiled.matchFirst(input));
+        }
+    }
+
+    public void testTooBig()
+    {
+        PolyMatcher tables = PolyMatcher.create(PATTERNS);
+        assertEquals(PolyMatcher.class,
+                CompiledPolyMatcher.construct(tables.getAutomata(), 100).getClass());
+        // nor should lazy or split matchers use generated code
+        assertEquals(LazyPolyMatcher.class,
+                PolyMatcher.create(PATTERNS, CONFIG.withLazyMatching()).getClass());
+        assertEquals(ShardedPolyMatcher.class,
+                PolyMatcher.create(PATTERNS, CONFIG.withStateBudget(5)).getClass());
+    }
+
+    public void testCompiledGorp() throws Exception
+    {
+        final String DEF =
+"pattern %num \\d+\n"+
+"pattern %any .*\n"+
+"extract Put {\n"+
+"   template PUT $size(%num) $rest(%any)\n"+
+"}\n"+
+"extract Other {\n"+
+"   template $verb(%any) $size(%num)\n"+
+"}\n";
+        Gorp gorp = DefinitionReader.reader(DEF)
+                .withMatcherConfig(CONFIG)
+                .read();
+        assertEquals(CompiledPolyMatcher.class, gorp.getMatcher().getClass());
+
+        ExtractionResult result = gorp.extract("PUT 12 and more");
+        assertNotNull(result);
+        assertEquals("Put", result.getId());
+        result = gorp.extract("GET 12");
+        assertNotNull(result);
+        assertEquals("Other", result.getId());
+        assertNull(gorp.extract("GET"));
+    }
+
+    private byte[] _utf8(String str) {
+        try {
+            return str.getBytes("UTF-8");
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String _randomInput(Random r)
+    {
+        final String chars = "abcdefvx \u4e00\uffee";
+        StringBuilder sb = new StringBuilder();
+        for (int i = r.nextInt(12); i > 0; --i) {
+            sb.append(chars.charAt(r.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+}
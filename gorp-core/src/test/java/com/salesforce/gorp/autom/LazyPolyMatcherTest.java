@@ -0,0 +1,108 @@
+package com.salesforce.gorp.autom;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.TestBase;
+
+public class LazyPolyMatcherTest extends TestBase
+{
+    final static List<String> PATTERNS = Arrays.asList(
+            "ab+",     // 0
+            "abc+",    // 1
+            "ab?c",    // 2
+            "v",       // 3
+            "v.*",     // 4
+            "(def)+",  // 5
+            ".*a.*b.*c", // 6
+            "[a-c]*x[\u4e00-\u9fff]?" // 7
+            );
+
+    public void testSameAsEager()
+    {
+        PolyMatcher eager = PolyMatcher.create(PATTERNS);
+        PolyMatcher lazy = PolyMatcher.create(PATTERNS, MatcherConfig.DEFAULT.withLazyMatching());
+        assertEquals(LazyPolyMatcher.class, lazy.getClass());
+        assertEquals(PATTERNS.size(), lazy.size());
+
+        Random r = new Random(123);
+        for (int i = 0; i < 5000; ++i) {
+            String input = _randomInput(r);
+            Assert.assertArrayEquals("Input: '"+input+"'", eager.match(input), lazy.match(input));
+            assertEquals("Input: '"+input+"'", eager.matchFirst(input), lazy.matchFirst(input));
+        }
+        // no more states than in the full automaton
+        int cached = ((LazyPolyMatcher) lazy).getCachedStateCount();
+        assertTrue(cached > 1);
+        assertTrue(cached <= eager.getAutomata().stateCount());
+        assertEquals(0, ((LazyPolyMatcher) lazy).getCacheResetCount());
+    }
+
+    public void testTinyCache()
+    {
+        PolyMatcher eager = PolyMatcher.create(PATTERNS);
+        LazyPolyMatcher lazy = (LazyPolyMatcher) PolyMatcher.create(PATTERNS,
+                MatcherConfig.DEFAULT.withLazyMatching(3));
+
+        Random r = new Random(456);
+        for (int i = 0; i < 2000; ++i) {
+            String input = _randomInput(r);
+            Assert.assertArrayEquals("Input: '"+input+"'", eager.match(input), lazy.match(input));
+            assertEquals("Input: '"+input+"'", eager.matchFirst(input), lazy.matchFirst(input));
+            assertTrue(lazy.getCachedStateCount() <= 3);
+        }
+        assertTrue(lazy.getCacheResetCount() > 0);
+    }
+
+    public void testNoAutomata()
+    {
+        PolyMatcher lazy = PolyMatcher.create(PATTERNS, MatcherConfig.DEFAULT.withLazyMatching());
+        try {
+            lazy.getAutomata();
+            fail("Should not pass");
+        } catch (IllegalStateException e) {
+            verifyException(e, "does not have precomputed");
+        }
+    }
+
+    public void testLazyGorp() throws Exception
+    {
+        final String DEF =
+"pattern %num \\d+\n"+
+"pattern %any .*\n"+
+"extract Put {\n"+
+"   template PUT $size(%num) $rest(%any)\n"+
+"}\n"+
+"extract Other {\n"+
+"   template $verb(%any) $size(%num)\n"+
+"}\n";
+        Gorp gorp = DefinitionReader.reader(DEF)
+                .withMatcherConfig(MatcherConfig.DEFAULT.withLazyMatching(100))
+                .read();
+        assertEquals(LazyPolyMatcher.class, gorp.getMatcher().getClass());
+
+        ExtractionResult result = gorp.extract("PUT 12 and more");
+        assertNotNull(result);
+        assertEquals("Put", result.getId());
+        result = gorp.extract("GET 12");
+        assertNotNull(result);
+        assertEquals("Other", result.getId());
+        assertNull(gorp.extract("GET"));
+    }
+
+    private String _randomInput(Random r)
+    {
+        final String chars = "abcdefvx \u4e00";
+        StringBuilder sb = new StringBuilder();
+        for (int i = r.nextInt(12); i > 0; --i) {
+            sb.append(chars.charAt(r.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+}
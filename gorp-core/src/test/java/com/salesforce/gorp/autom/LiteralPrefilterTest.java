@@ -0,0 +1,128 @@
+package com.salesforce.gorp.autom;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.TestBase;
+
+public class LiteralPrefilterTest extends TestBase
+{
+    public void testLengthBounds()
+    {
+        Automata a = PolyMatcher.create("ab+", "abc?d", "x[0-9]{2,5}").getAutomata();
+        assertEquals(2, a.minAcceptedLength());
+        assertEquals(Integer.MAX_VALUE, a.maxAcceptedLength());
+
+        a = PolyMatcher.create("abc?d", "x[0-9]{2,5}").getAutomata();
+        assertEquals(3, a.minAcceptedLength());
+        assertEquals(6, a.maxAcceptedLength());
+
+        // states that can not lead to acceptance do not count
+        a = PolyMatcher.create("a").getAutomata();
+        assertEquals(1, a.minAcceptedLength());
+        assertEquals(1, a.maxAcceptedLength());
+    }
+
+    public void testAhoCorasick()
+    {
+        List<String> literals = Arrays.asList("he", "she", "his", "hers", "\u4e00x");
+        AhoCorasick ac = AhoCorasick.construct(literals);
+        Random r = new Random(42);
+        final String chars = "ehirsx\u4e00\u4e01";
+        for (int i = 0; i < 5000; ++i) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = r.nextInt(10); j > 0; --j) {
+                sb.append(chars.charAt(r.nextInt(chars.length())));
+            }
+            final String input = sb.toString();
+            boolean expected = false;
+            for (String literal : literals) {
+                expected |= input.contains(literal);
+            }
+            assertEquals("Input: '"+input+"'", expected, ac.containsAny(input));
+        }
+    }
+
+    public void testAnchors()
+    {
+        // longest literal of each; ones containing another dropped
+        assertEquals(Arrays.asList("GET", "log:"), Arrays.asList(LiteralPrefilter.anchors(Arrays.asList(
+                Arrays.asList("GET", "/"),
+                Arrays.asList("[", "log:"),
+                Arrays.asList("GET:")))));
+        // any pattern without literals means there is nothing to check
+        assertNull(LiteralPrefilter.anchors(Arrays.asList(
+                Arrays.asList("GET"),
+                Collections.<String>emptyList())));
+    }
+
+    public void testPrefilteredGorp() throws Exception
+    {
+        final String DEF =
+"pattern %num \\d+\n"+
+"pattern %any .*\n"+
+"pattern %word [a-z]+\n"+
+"extract Put {\n"+
+"   template $prefix(%any)PUT  size=$size(%num) $rest(%any)\n"+
+"}\n"+
+"extract Error {\n"+
+"   template $time(%num) [error]: $msg(%any)\n"+
+"}\n"+
+"extract Short {\n"+
+"   template $w(%word)!\n"+
+"}\n";
+        Gorp plain = DefinitionReader.reader(DEF).read();
+        Gorp filtered = DefinitionReader.reader(DEF)
+                .withMatcherConfig(MatcherConfig.DEFAULT.withLiteralPrefilter(true))
+                .read();
+        assertNull(plain.getPrefilter());
+        LiteralPrefilter prefilter = filtered.getPrefilter();
+        assertNotNull(prefilter);
+        assertEquals(2, prefilter.getMinLength());
+        assertEquals(Arrays.asList("size=", "[error]:", "!"), prefilter.getAnchors());
+
+        assertFalse(prefilter.mightMatch("x"));
+        assertFalse(prefilter.mightMatch("GET len=1 x"));
+        assertTrue(prefilter.mightMatch("x PUT size=1 y"));
+
+        Random r = new Random(7);
+        final String[] words = { "PUT", "size=", "12", "[error]:", "ab", "!", " ", "  ", "\t" };
+        int matches = 0;
+        for (int i = 0; i < 5000; ++i) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = r.nextInt(8); j > 0; --j) {
+                sb.append(words[r.nextInt(words.length)]);
+            }
+            final String input = sb.toString();
+            ExtractionResult exp = plain.extract(input);
+            ExtractionResult act = filtered.extract(input);
+            if (exp == null) {
+                assertNull("Input: '"+input+"'", act);
+            } else {
+                ++matches;
+                assertNotNull("Input: '"+input+"'", act);
+                assertEquals(exp.getId(), act.getId());
+                assertEquals(exp.asMap(), act.asMap());
+            }
+        }
+        assertTrue("Should have some matches", matches > 10);
+
+        // lazy matchers can not provide length bounds, but anchors work; split ones combine bounds of shards
+        Gorp lazy = DefinitionReader.reader(DEF)
+                .withMatcherConfig(MatcherConfig.DEFAULT.withLiteralPrefilter(true).withLazyMatching())
+                .read();
+        assertEquals(0, lazy.getPrefilter().getMinLength());
+        assertFalse(lazy.getPrefilter().mightMatch("GET len=1 x"));
+        Gorp split = DefinitionReader.reader(DEF)
+                .withMatcherConfig(MatcherConfig.DEFAULT.withLiteralPrefilter(true).withStateBudget(5))
+                .read();
+        assertEquals(ShardedPolyMatcher.class, split.getMatcher().getClass());
+        assertEquals(2, split.getPrefilter().getMinLength());
+        assertEquals("Put", split.extract("PUT size=3 x").getId());
+    }
+}
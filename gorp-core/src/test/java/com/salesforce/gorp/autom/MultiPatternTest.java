@@ -27,7 +27,82 @@ public class MultiPatternTest extends TestBase
         _verifyMatch(multiPatternMatcher, "abbbbb", 0);
     }
 
+    public void testNonLatin1Chars() {
+        PolyMatcher multiPatternMatcher = PolyMatcher.create(
+                "a[\u00e4-\u0101]b",   // 0
+                "[\u4e00-\u9fff]+",  // 1
+                "x.y"                // 2
+                );
+        _verifyMatch(multiPatternMatcher, "a\u00e4b", 0);
+        _verifyMatch(multiPatternMatcher, "a\u0100b", 0);
+        _verifyMatch(multiPatternMatcher, "a\u0101b", 0);
+        _verifyMatch(multiPatternMatcher, "a\u0102b");
+        _verifyMatch(multiPatternMatcher, "\u4e00\u6587\u9fff", 1);
+        _verifyMatch(multiPatternMatcher, "\u4e00\ua000");
+        _verifyMatch(multiPatternMatcher, "x\uffffy", 2);
+        _verifyMatch(multiPatternMatcher, "x\u0000y", 2);
+    }
+
+    public void testDecidedStates() {
+        PolyMatcher multiPatternMatcher = PolyMatcher.create(
+                "ab.*",     // 0
+                "a.*",      // 1
+                "x[0-9]+",  // 2
+                ".*z"       // 3
+                );
+        Automata a = multiPatternMatcher.getAutomata();
+        // after "ab", first accept is 0 no matter what follows; full set may still get 3
+        int state = a.step(a.step(0, 'a'), 'b');
+        assertTrue(a.isFirstAcceptDecided(state));
+        assertFalse(a.isAcceptDecided(state));
+        assertEquals(0, a.firstAccept(state));
+        // but after "a" it may still become 0
+        assertFalse(a.isFirstAcceptDecided(a.step(0, 'a')));
+        // nor is anything decided for ".*z" or digits
+        assertFalse(a.isFirstAcceptDecided(0));
+        assertFalse(a.isFirstAcceptDecided(a.step(a.step(0, 'x'), '1')));
+
+        _verifyMatch(multiPatternMatcher, "abcdef", 0, 1);
+        _verifyMatch(multiPatternMatcher, "abcdez", 0, 1, 3);
+        _verifyMatch(multiPatternMatcher, "acz", 1, 3);
+        _verifyMatch(multiPatternMatcher, "x12", 2);
+        _verifyMatch(multiPatternMatcher, "x12z", 3);
+        _verifyMatch(multiPatternMatcher, "x12y");
+
+        // and with all patterns ending with wildcards, full accept set gets decided too
+        a = PolyMatcher.create("ab.*", "a.*").getAutomata();
+        assertTrue(a.isAcceptDecided(a.step(a.step(0, 'a'), 'b')));
+        assertFalse(a.isAcceptDecided(a.step(0, 'a')));
+    }
+
+    public void testAcceleratedStates() {
+        PolyMatcher multiPatternMatcher = PolyMatcher.create(
+                "'[^']*' [0-9]+",    // 0
+                "GET [^ \t]+ [a-z]+", // 1
+                "x[^\u4e00]*y"        // 2
+                );
+        Automata a = multiPatternMatcher.getAutomata();
+        // within quotes, only the closing quote leaves the state
+        int state = a.step(0, '\'');
+        assertTrue(a.isAccelerable(state));
+        assertEquals(3, a.skip(state, "'ab' 12", 1, 7));
+        assertEquals(4, a.skip(state, new StringBuilder("'abc"), 1, 4));
+        // but exit chars outside of ASCII prevent acceleration
+        assertFalse(a.isAccelerable(a.step(0, 'x')));
+
+        _verifyMatch(multiPatternMatcher, "'a b\tc\u4e00' 12", 0);
+        _verifyMatch(multiPatternMatcher, "'a b c 12");
+        _verifyMatch(multiPatternMatcher, "GET /a/b?c=d xyz", 1);
+        _verifyMatch(multiPatternMatcher, "GET /a/b\t?c=d xyz");
+        _verifyMatch(multiPatternMatcher, "GET /a/b  xyz");
+        _verifyMatch(multiPatternMatcher, "x'abc' 12y", 2);
+        // and non-String input works the same way
+        Assert.assertArrayEquals(new int[] { 1 },
+                multiPatternMatcher.match(new StringBuilder("GET /a/b?c=d xyz")));
+    }
+
     private void _verifyMatch(PolyMatcher matcher, String str, int... vals) {
         Assert.assertArrayEquals(vals, matcher.match(str));
+        assertEquals((vals.length == 0) ? -1 : vals[0], matcher.matchFirst(str));
     }
 }
@@ -0,0 +1,81 @@
+package com.salesforce.gorp.autom;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.TestBase;
+
+public class ParallelConstructionTest extends TestBase
+{
+    public void testSameAutomaton()
+    {
+        List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < 40; ++i) {
+            patterns.add("[a-z]+ "+i+"[0-9]* .*x"+(char) ('a' + (i % 26))+"+");
+        }
+        patterns.add(".*(abc|def).*");
+        Automata serial = PolyMatcher.create(patterns).getAutomata();
+        for (int parallelism : new int[] { 2, 4, 7 }) {
+            Automata parallel = PolyMatcher.create(patterns,
+                    MatcherConfig.DEFAULT.withParallelism(parallelism)).getAutomata();
+            _verifySame(serial, parallel);
+        }
+    }
+
+    public void testDeterministicErrors()
+    {
+        List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            patterns.add("a"+i);
+        }
+        patterns.set(60, "b(");
+        patterns.set(80, "c(");
+        try {
+            PolyMatcher.create(patterns, MatcherConfig.DEFAULT.withParallelism(4));
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "source: b(");
+        }
+    }
+
+    public void testParallelGorp() throws Exception
+    {
+        StringBuilder def = new StringBuilder();
+        def.append("pattern %num \\d+\n");
+        def.append("pattern %word [a-z]+\n");
+        for (int i = 0; i < 50; ++i) {
+            def.append("extract Ext").append(i).append(" {\n");
+            def.append("  template ").append(i).append(": $value(%num) $name(%word)\n");
+            def.append("}\n");
+        }
+        Gorp serial = DefinitionReader.reader(def.toString()).read();
+        Gorp parallel = DefinitionReader.reader(def.toString())
+                .withMatcherConfig(MatcherConfig.DEFAULT.withParallelism(3))
+                .read();
+        _verifySame(serial.getMatcher().getAutomata(), parallel.getMatcher().getAutomata());
+        assertEquals(serial.getExtractions().size(), parallel.getExtractions().size());
+        for (int i = 0; i < 50; ++i) {
+            assertEquals(i, parallel.getExtractions().get(i).getIndex());
+            ExtractionResult result = parallel.extract(i+": 123 abc");
+            assertNotNull(result);
+            assertEquals("Ext"+i, result.getId());
+        }
+    }
+
+    private void _verifySame(Automata exp, Automata act)
+    {
+        assertEquals(exp.stateCount(), act.stateCount());
+        assertEquals(exp.characterClassCount(), act.characterClassCount());
+        for (int s = 0; s < exp.stateCount(); ++s) {
+            Assert.assertArrayEquals(exp.accept(s), act.accept(s));
+            for (int c = 0; c < exp.characterClassCount(); ++c) {
+                assertEquals(exp.transitionTable().next(s, c), act.transitionTable().next(s, c));
+            }
+        }
+    }
+}
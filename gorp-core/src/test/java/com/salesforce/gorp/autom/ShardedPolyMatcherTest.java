@@ -0,0 +1,72 @@
+package com.salesforce.gorp.autom;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+
+import com.salesforce.gorp.TestBase;
+
+public class ShardedPolyMatcherTest extends TestBase
+{
+    public void testShardedFirstMatch()
+    {
+        // patterns with lots of overlapping wildcards blow up combined state count
+        List<String> patterns = new ArrayList<>();
+        for (char c = 'a'; c <= 'h'; ++c) {
+            patterns.add(".*"+c+"[a-h][a-h]");
+        }
+        patterns.add("[a-h]+");
+        final int budget = 60;
+        PolyMatcher full = PolyMatcher.create(patterns);
+        assertTrue(full.getAutomata().stateCount() > budget);
+
+        PolyMatcher m = PolyMatcher.create(patterns, MatcherConfig.DEFAULT.withStateBudget(budget));
+        assertEquals(ShardedPolyMatcher.class, m.getClass());
+        ShardedPolyMatcher sharded = (ShardedPolyMatcher) m;
+        assertEquals(patterns.size(), sharded.size());
+        assertTrue(sharded.getShardCount() > 1);
+        assertEquals(sharded.getShardCount(), sharded.getShardStateCounts().length);
+        assertEquals(0, sharded.getShardStart(0));
+        for (int i = 0; i < sharded.getShardCount(); ++i) {
+            if (i > 0) {
+                assertTrue(sharded.getShardStart(i) > sharded.getShardStart(i-1));
+            }
+            int end = (i+1 < sharded.getShardCount()) ? sharded.getShardStart(i+1) : patterns.size();
+            if (end - sharded.getShardStart(i) > 1) {
+                assertTrue(sharded.getShardStateCounts()[i] <= budget);
+            }
+        }
+
+        Random r = new Random(1);
+        for (int i = 0; i < 3000; ++i) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = r.nextInt(8); j > 0; --j) {
+                sb.append((char) ('a' + r.nextInt(9)));
+            }
+            String input = sb.toString();
+            // all matching patterns, across shards
+            Assert.assertArrayEquals("Input '"+input+"'", full.match(input), sharded.match(input));
+            byte[] utf8 = input.getBytes(StandardCharsets.UTF_8);
+            Assert.assertArrayEquals("Input '"+input+"'", full.match(input), sharded.match(utf8, 0, utf8.length));
+            assertEquals("Input '"+input+"'", full.matchFirst(input), sharded.matchFirst(input));
+        }
+        try {
+            sharded.getAutomata();
+            fail("Should not pass");
+        } catch (IllegalStateException e) {
+            verifyException(e, "does not have a single Automata");
+        }
+    }
+
+    public void testWithinBudget()
+    {
+        PolyMatcher m = PolyMatcher.create(Arrays.asList("abc", "def"),
+                MatcherConfig.DEFAULT.withStateBudget(100));
+        assertEquals(PolyMatcher.class, m.getClass());
+        assertEquals(1, m.match("def")[0]);
+    }
+}
@@ -0,0 +1,150 @@
+package com.salesforce.gorp.autom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.salesforce.gorp.TestBase;
+
+public class TransitionTableTest extends TestBase
+{
+    public void testDenseEncodings()
+    {
+        _verifyAll(_randomTable(new Random(1), 100, 7, 3), 100, 7);
+        _verifyAll(_randomTable(new Random(2), 1000, 5, 3), 1000, 5);
+        _verifyAll(_randomTable(new Random(3), 40000, 3, 2), 40000, 3);
+
+        assertEquals("byte", TransitionTable.constructDense(new int[20], 10, 2).encoding());
+        assertEquals("short", TransitionTable.constructDense(new int[256], 128, 2).encoding());
+        assertEquals("int", TransitionTable.constructDense(new int[2 * 32768], 32768, 2).encoding());
+    }
+
+    public void testCombEncoding()
+    {
+        // Sparse, self-looping rows, like ones for `\S+` or `[^"]*`, should compress well
+        final int states = 2000, stride = 40;
+        int[] flat = _randomTable(new Random(4), states, stride, 2);
+        TransitionTable comb = TransitionTable.CombTable.construct(flat, states, stride);
+        _verify(comb, flat, states, stride);
+
+        TransitionTable chosen = TransitionTable.construct(flat, states, stride);
+        assertEquals("comb", chosen.encoding());
+        assertTrue(chosen.footprint() < TransitionTable.constructDense(flat, states, stride).footprint() / 2);
+        _verify(chosen, flat, states, stride);
+
+        // but small dense tables use plain ints
+        assertEquals("int", TransitionTable.construct(new int[] { 0, -1, 1, 0 }, 2, 2).encoding());
+    }
+
+    public void testMappedEncodings() throws Exception
+    {
+        final int states = 2000, stride = 40;
+        int[] flat = _randomTable(new Random(5), states, stride, 2);
+        _verifyMapped(TransitionTable.constructDense(new int[20], 10, 2), new int[20], 10, 2);
+        _verifyMapped(TransitionTable.constructDense(flat, states, stride), flat, states, stride);
+        _verifyMapped(TransitionTable.CombTable.construct(flat, states, stride), flat, states, stride);
+        int[] large = _randomTable(new Random(6), 40000, 3, 2);
+        _verifyMapped(TransitionTable.constructDense(large, 40000, 3), large, 40000, 3);
+        _verifyMapped(new TransitionTable.IntTable(large, 40000, 3), large, 40000, 3);
+    }
+
+    public void testMappedCorrupt() throws Exception
+    {
+        // size that overflows int: 2^30 states x 4 classes x 4 bytes
+        ByteBuffer buf = ByteBuffer.allocate(100);
+        buf.put((byte) TransitionTable.TYPE_INT).putInt(1 << 30).putInt(4);
+        buf.flip();
+        _verifyCorrupt(buf, "Truncated transition table");
+
+        // dense table with target past last state
+        byte[] bytes = _bytes(TransitionTable.constructDense(new int[] { 0, 1, -1, 1 }, 2, 2));
+        bytes[bytes.length - 1] = 2;
+        _verifyCorrupt(ByteBuffer.wrap(bytes), "Transition target 2 out of range");
+
+        // comb table: row offset past entries, and entry target past last state
+        final int states = 200, stride = 10;
+        final TransitionTable comb = TransitionTable.CombTable.construct(
+                _randomTable(new Random(7), states, stride, 2), states, stride);
+        bytes = _bytes(comb);
+        // header: type, state count, class count, entry count; then default, base per row
+        ByteBuffer.wrap(bytes).putInt(13 + 4, Integer.MAX_VALUE - 3);
+        _verifyCorrupt(ByteBuffer.wrap(bytes), "Row offset");
+        bytes = _bytes(comb);
+        ByteBuffer.wrap(bytes).putInt(13 + 8 * states, states);
+        _verifyCorrupt(ByteBuffer.wrap(bytes), "Transition target "+states+" out of range");
+    }
+
+    private byte[] _bytes(TransitionTable table) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        table.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void _verifyCorrupt(ByteBuffer buf, String msg) throws Exception
+    {
+        try {
+            TransitionTable.map(buf);
+            fail("Should not pass");
+        } catch (IOException e) {
+            verifyException(e, msg);
+        }
+    }
+
+    /**
+     * Creates table where each row has a default target (dead or self-loop) and
+     * up to given number of other transitions.
+     */
+    private int[] _randomTable(Random r, int states, int stride, int maxExceptions)
+    {
+        int[] flat = new int[states * stride];
+        for (int s = 0; s < states; ++s) {
+            int def = r.nextBoolean() ? -1 : s;
+            for (int c = 0; c < stride; ++c) {
+                flat[s * stride + c] = def;
+            }
+            for (int i = r.nextInt(maxExceptions + 1); i > 0; --i) {
+                flat[s * stride + r.nextInt(stride)] = r.nextInt(states + 1) - 1;
+            }
+        }
+        return flat;
+    }
+
+    private void _verifyAll(int[] flat, int states, int stride)
+    {
+        _verify(TransitionTable.constructDense(flat, states, stride), flat, states, stride);
+        _verify(TransitionTable.CombTable.construct(flat, states, stride), flat, states, stride);
+        _verify(TransitionTable.construct(flat, states, stride), flat, states, stride);
+    }
+
+    private void _verifyMapped(TransitionTable table, int[] flat, int states, int stride) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        table.writeTo(out);
+        out.flush();
+        TransitionTable mapped = TransitionTable.map(ByteBuffer.wrap(bytes.toByteArray()));
+        assertEquals("mapped-"+table.encoding(), mapped.encoding());
+        _verify(mapped, flat, states, stride);
+    }
+
+    private void _verify(TransitionTable table, int[] flat, int states, int stride)
+    {
+        assertEquals(states, table.stateCount());
+        assertEquals(stride, table.stride());
+        for (int s = 0; s < states; ++s) {
+            for (int c = 0; c < stride; ++c) {
+                int exp = flat[s * stride + c];
+                int act = table.next(s, c);
+                if (exp != act) {
+                    fail("Wrong transition from state "+s+" for class "+c+" with "+table+": expected "
+                            +exp+", got "+act);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.salesforce.gorp.autom;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.TestBase;
+
+public class Utf8MatchTest extends TestBase
+{
+    final static List<String> PATTERNS = Arrays.asList(
+            "ab+",                  // 0
+            "a[\u00e4-\u0101]b",    // 1
+            "[\u4e00-\u9fff]+",     // 2
+            "x.y",                  // 3
+            "x..y",                 // 4 (surrogate pairs are two chars)
+            "[^a]*\ud83d\ude00",    // 5
+            ".*"                    // 6
+            );
+
+    final static String CHARS = "abxy \u00e4\u0100\u0101\u07ff\u0800\u4e00\u9fff\uffff"
+            +"\ud83d\ude00\ud83d\ude01\udbff\udfff";
+
+    public void testSameAsChars()
+    {
+        PolyMatcher matcher = PolyMatcher.create(PATTERNS);
+        PolyMatcher lazy = PolyMatcher.create(PATTERNS, MatcherConfig.DEFAULT.withLazyMatching());
+        Random r = new Random(2);
+        for (int i = 0; i < 3000; ++i) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = r.nextInt(6); j > 0; --j) {
+                int ix = r.nextInt(CHARS.length());
+                char c = CHARS.charAt(ix);
+                if (Character.isHighSurrogate(c)) {
+                    sb.append(c).append(CHARS.charAt(ix+1));
+                } else if (!Character.isLowSurrogate(c)) {
+                    sb.append(c);
+                }
+            }
+            String input = sb.toString();
+            byte[] utf8 = ("--"+input+"-").getBytes(StandardCharsets.UTF_8);
+            int len = utf8.length - 3;
+            int[] exp = matcher.match(input);
+            String desc = "Input '"+input+"'";
+            Assert.assertArrayEquals(desc, exp, matcher.match(utf8, 2, len));
+            assertEquals(desc, matcher.matchFirst(input), matcher.matchFirst(utf8, 2, len));
+            Assert.assertArrayEquals(desc, exp, lazy.match(utf8, 2, len));
+
+            ByteBuffer bb = ByteBuffer.allocateDirect(utf8.length);
+            bb.put(utf8);
+            bb.position(2);
+            bb.limit(2 + len);
+            Assert.assertArrayEquals(desc, exp, matcher.match(bb));
+            assertEquals(desc, matcher.matchFirst(input), matcher.matchFirst(bb));
+            assertEquals(2, bb.position());
+        }
+    }
+
+    public void testMalformed()
+    {
+        PolyMatcher matcher = PolyMatcher.create(PATTERNS);
+        assertEquals(6, matcher.matchFirst(new byte[] { 'a', 'b', 'c' }, 0, 3));
+        // lone continuation byte; truncated sequences; overlong encodings;
+        // encoded surrogate; above U+10FFFF
+        _verifyNoMatch(matcher, 0x80);
+        _verifyNoMatch(matcher, 'a', 0xC3);
+        _verifyNoMatch(matcher, 0xE4, 0xB8);
+        _verifyNoMatch(matcher, 0xC0, 0x80);
+        _verifyNoMatch(matcher, 0xE0, 0x80, 0x80);
+        _verifyNoMatch(matcher, 0xED, 0xA0, 0x80);
+        _verifyNoMatch(matcher, 0xF4, 0x90, 0x80, 0x80);
+        _verifyNoMatch(matcher, 0xFF);
+        // and valid ones for comparison
+        assertEquals(6, matcher.matchFirst(_bytes(0xC3, 0xA4), 0, 2));
+        assertEquals(5, matcher.matchFirst(_bytes(0xF0, 0x9F, 0x98, 0x80), 0, 4));
+    }
+
+    public void testGorpExtract() throws Exception
+    {
+        final String DEF =
+"pattern %num \\d+\n"+
+"pattern %any .*\n"+
+"extract Put {\n"+
+"   template PUT $size(%num) $rest(%any)\n"+
+"}\n";
+        Gorp gorp = DefinitionReader.reader(DEF).read();
+        for (String input : new String[] { "PUT 12 and more", "PUT 3 \u00e4\u4e00\ud83d\ude00!", "GET 1 x" }) {
+            byte[] utf8 = input.getBytes(StandardCharsets.UTF_8);
+            ExtractionResult exp = gorp.extract(input);
+            ExtractionResult act = gorp.extract(utf8, 0, utf8.length);
+            ExtractionResult act2 = gorp.extract(ByteBuffer.wrap(utf8));
+            if (exp == null) {
+                assertNull(act);
+                assertNull(act2);
+                continue;
+            }
+            assertEquals(exp.asMap("id"), act.asMap("id"));
+            assertEquals(exp.asMap("id"), act2.asMap("id"));
+            assertEquals(input, act.getInput());
+        }
+    }
+
+    public void testPrepareByteMatching() throws Exception
+    {
+        // constructed on first byte-based match by default
+        PolyMatcher matcher = PolyMatcher.create(PATTERNS);
+        assertFalse(matcher.getAutomata().hasUtf8Automata());
+        matcher.prepareByteMatching();
+        assertTrue(matcher.getAutomata().hasUtf8Automata());
+
+        // or along with the combined automaton, if so configured
+        matcher = PolyMatcher.create(PATTERNS, MatcherConfig.DEFAULT.withByteMatching(true));
+        assertTrue(matcher.getAutomata().hasUtf8Automata());
+
+        // for all shards, in parallel
+        ShardedPolyMatcher sharded = (ShardedPolyMatcher) PolyMatcher.create(PATTERNS,
+                MatcherConfig.DEFAULT.withStateBudget(5).withParallelism(3).withByteMatching(true));
+        assertTrue(sharded.getShardCount() > 1);
+        for (int i = 0; i < sharded.getShardCount(); ++i) {
+            assertTrue(sharded.getShard(i).hasUtf8Automata());
+        }
+        byte[] utf8 = "a\u00e4b".getBytes(StandardCharsets.UTF_8);
+        assertEquals(1, sharded.matchFirst(utf8, 0, utf8.length));
+
+        // nothing to prepare for lazy matchers
+        PolyMatcher.create(PATTERNS, MatcherConfig.DEFAULT.withLazyMatching().withByteMatching(true))
+            .prepareByteMatching();
+
+        Gorp gorp = DefinitionReader.reader("extract Get {\n  template GET $path(/.*)\n}\n").read();
+        assertFalse(gorp.getMatcher().getAutomata().hasUtf8Automata());
+        assertSame(gorp, gorp.prepareByteMatching());
+        assertTrue(gorp.getMatcher().getAutomata().hasUtf8Automata());
+    }
+
+    private void _verifyNoMatch(PolyMatcher matcher, int... bytes) {
+        byte[] b = _bytes(bytes);
+        assertEquals(-1, matcher.matchFirst(b, 0, b.length));
+        assertEquals(0, matcher.match(ByteBuffer.wrap(b)).length);
+    }
+
+    private byte[] _bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < b.length; ++i) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+}
@@ -0,0 +1,132 @@
+package com.salesforce.gorp.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.SampleLogFiles;
+import com.salesforce.gorp.TestBase;
+
+public class GorpFileProcessorTest extends TestBase
+{
+    public void testOrdered() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(SampleLogFiles.DEF).read();
+        List<String> lines = SampleLogFiles.lines(2000);
+        File f = SampleLogFiles.write(lines, true);
+        try {
+            final List<String> exp = _expected(gorp, lines);
+            for (int chunkSize : new int[] { 1, 50, 1000, GorpFileProcessor.DEFAULT_CHUNK_SIZE }) {
+                final List<String> actual = new ArrayList<>();
+                GorpFileProcessor proc = new GorpFileProcessor(gorp)
+                        .withParallelism(3)
+                        .withChunkSize(chunkSize);
+                GorpFileProcessor.Stats stats = proc.process(f, new FileResultSink() {
+                    @Override
+                    public void matched(long offset, ExtractionResult result) {
+                        actual.add(offset+":"+SampleLogFiles.describe(result));
+                    }
+
+                    @Override
+                    public void unmatched(long offset, byte[] buffer, int start, int length) {
+                        actual.add(offset+":"+new String(buffer, start, length, StandardCharsets.UTF_8));
+                    }
+                });
+                assertEquals("Chunk size "+chunkSize, exp, actual);
+                assertEquals(lines.size(), stats.getLines());
+                assertEquals(f.length(), stats.getBytes());
+                assertTrue(stats.getMatchedLines() > 0 && stats.getMatchedLines() < lines.size());
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testUnordered() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(SampleLogFiles.DEF).read();
+        List<String> lines = SampleLogFiles.lines(2000);
+        // without linefeed after the last line
+        File f = SampleLogFiles.write(lines, false);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final Map<Long,String> actual = new ConcurrentHashMap<>();
+            GorpFileProcessor proc = new GorpFileProcessor(gorp)
+                    .withPool(pool)
+                    .withChunkSize(200)
+                    .withOrderedResults(false);
+            GorpFileProcessor.Stats stats = proc.process(f, new FileResultSink() {
+                @Override
+                public void matched(long offset, ExtractionResult result) {
+                    assertNull(actual.put(offset, SampleLogFiles.describe(result)));
+                }
+
+                @Override
+                public void unmatched(long offset, byte[] buffer, int start, int length) {
+                    assertNull(actual.put(offset, new String(buffer, start, length, StandardCharsets.UTF_8)));
+                }
+            });
+            assertEquals(lines.size(), stats.getLines());
+            List<String> sorted = new ArrayList<>();
+            for (Map.Entry<Long,String> entry : new TreeMap<>(actual).entrySet()) {
+                sorted.add(entry.getKey()+":"+entry.getValue());
+            }
+            assertEquals(_expected(gorp, lines), sorted);
+            // pool is not shut down
+            assertFalse(pool.isShutdown());
+        } finally {
+            pool.shutdown();
+            f.delete();
+        }
+    }
+
+    public void testSinkFailure() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(SampleLogFiles.DEF).read();
+        File f = SampleLogFiles.write(SampleLogFiles.lines(2000), true);
+        try {
+            for (boolean ordered : new boolean[] { true, false }) {
+                try {
+                    new GorpFileProcessor(gorp)
+                        .withChunkSize(100)
+                        .withOrderedResults(ordered)
+                        .process(f, new FileResultSink() {
+                            @Override
+                            public void matched(long offset, ExtractionResult result) throws IOException {
+                                if (offset > 1000) {
+                                    throw new IOException("Sink full");
+                                }
+                            }
+
+                            @Override
+                            public void unmatched(long offset, byte[] buffer, int start, int length) { }
+                        });
+                    fail("Should not pass");
+                } catch (IOException e) {
+                    verifyException(e, "Sink full");
+                }
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    private static List<String> _expected(Gorp gorp, List<String> lines) throws IOException
+    {
+        // unmatched lines too, all with offsets
+        List<String> exp = new ArrayList<>();
+        long[] offsets = SampleLogFiles.offsets(lines);
+        for (int i = 0; i < lines.size(); ++i) {
+            final String line = lines.get(i);
+            ExtractionResult result = gorp.extract(line);
+            exp.add(offsets[i]+":"+((result == null) ? line : SampleLogFiles.describe(result)));
+        }
+        return exp;
+    }
+}
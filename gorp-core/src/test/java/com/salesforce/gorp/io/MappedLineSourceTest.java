@@ -0,0 +1,107 @@
+package com.salesforce.gorp.io;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.TestBase;
+
+public class MappedLineSourceTest extends TestBase
+{
+    public void testLines() throws Exception
+    {
+        Random r = new Random(5);
+        List<String> lines = new ArrayList<>();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 500; ++i) {
+            StringBuilder sb = new StringBuilder();
+            // some lines longer than windows
+            for (int j = r.nextInt((i % 10 == 0) ? 100 : 20); j > 0; --j) {
+                sb.append("ab\u00e9\u4e00 \n\r".charAt(r.nextInt(5)));
+            }
+            lines.add(sb.toString());
+            content.append(sb).append((i % 3 == 0) ? "\r\n" : "\n");
+        }
+        // last line without linefeed
+        lines.add("last");
+        content.append("last");
+
+        File f = File.createTempFile("gorp-test", ".log");
+        try {
+            Files.write(f.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+            for (int windowSize : new int[] { 1, 7, 64, MappedLineSource.DEFAULT_WINDOW_SIZE }) {
+                try (MappedLineSource src = MappedLineSource.open(f, windowSize)) {
+                    assertEquals(0L, src.getLineNumber());
+                    long offset = 0L;
+                    for (int i = 0; i < lines.size(); ++i) {
+                        final ByteBuffer line = src.nextLine();
+                        assertNotNull(line);
+                        final String exp = lines.get(i);
+                        assertEquals(i+1, src.getLineNumber());
+                        assertEquals(offset, src.getLineOffset());
+                        byte[] b = new byte[line.remaining()];
+                        line.duplicate().get(b);
+                        assertEquals("Line #"+(i+1)+", window "+windowSize, exp,
+                                new String(b, StandardCharsets.UTF_8));
+                        assertEquals(exp, src.getLineAsCharSequence().toString());
+                        offset += exp.getBytes(StandardCharsets.UTF_8).length + ((i % 3 == 0) ? 2 : 1);
+                    }
+                    assertNull(src.nextLine());
+                    assertNull(src.nextLine());
+                }
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testExtract() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(
+"pattern %word [a-zA-Z]+\n"+
+"pattern %any .*\n"+
+"extract get {  \n"+
+"  template GET $path(%word) $rest(%any)\n"+
+"}\n").read();
+        File f = File.createTempFile("gorp-test", ".log");
+        try {
+            Files.write(f.toPath(), "GET abc x y\nPUT abc\nGET d \u00e9\n\n".getBytes(StandardCharsets.UTF_8));
+            List<ExtractionResult> results = new ArrayList<>();
+            try (MappedLineSource src = MappedLineSource.open(f, 16)) {
+                ByteBuffer line;
+                while ((line = src.nextLine()) != null) {
+                    ExtractionResult result = gorp.extract(line);
+                    if (result != null) {
+                        results.add(result);
+                    }
+                }
+                assertEquals(4L, src.getLineNumber());
+                // ASCII lines are not decoded
+                assertNotSame(String.class, _lineAt(f, 1).getClass());
+            }
+            // results do not refer to mapped windows
+            assertEquals(2, results.size());
+            assertEquals("x y", results.get(0).getValue(1));
+            assertEquals("\u00e9", results.get(1).getValue(1));
+        } finally {
+            f.delete();
+        }
+    }
+
+    private static CharSequence _lineAt(File f, int lineNumber) throws Exception
+    {
+        try (MappedLineSource src = MappedLineSource.open(f)) {
+            while (src.getLineNumber() < lineNumber) {
+                src.nextLine();
+            }
+            return src.getLineAsCharSequence();
+        }
+    }
+}
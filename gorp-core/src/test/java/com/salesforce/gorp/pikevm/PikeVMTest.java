@@ -0,0 +1,121 @@
+package com.salesforce.gorp.pikevm;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.TestBase;
+import com.salesforce.gorp.autom.RegexpProgram;
+
+public class PikeVMTest extends TestBase
+{
+    final static String[] REGEXPS = new String[] {
+        "(a*)(a*)",
+        "(a*?)(a*)",
+        "(a|ab)(c|bcd)(d*)",
+        "([^ ]*) (.*)",
+        "(\\S+)\\s+(\\d+)?x?",
+        "(?:(a)|b)*",
+        "(a+)+b",
+        "x{2,3}(y{1,}?)(y*)",
+        "(\\w+)@(\\w+)\\.com",
+        "(?:<(\\d+)>)?(\\S+) (?:(\\w*)|(.*))",
+        "(.*)+",
+        "(b?|a){2,3}",
+    };
+
+    final static String CHARS = "ab cd1.@xy<>-";
+
+    public void testSameAsJDK()
+    {
+        Random r = new Random(3);
+        for (String regexp : REGEXPS) {
+            Pattern p = Pattern.compile(regexp);
+            PikeVM vm = new PikeVM(RegexpProgram.compile(regexp));
+            int[] slots = new int[vm.slotCount()];
+            for (int i = 0; i < 5000; ++i) {
+                StringBuilder sb = new StringBuilder();
+                for (int j = r.nextInt(9); j > 0; --j) {
+                    sb.append(CHARS.charAt(r.nextInt(CHARS.length())));
+                }
+                _verifySame(p, vm, sb.toString(), slots);
+            }
+            for (String input : new String[] { "aaa", "abcdd", "ab d", "abc 12x", "abab",
+                    "aaab", "xxxyy", "a1@b_2.com", "<86>abc def", "<86>abc d f", "ccc" }) {
+                _verifySame(p, vm, input, slots);
+            }
+        }
+    }
+
+    // Expression that makes backtracking matchers take exponential time
+    // for non-matching input is no problem
+    public void testLinearTime()
+    {
+        PikeVM vm = new PikeVM(RegexpProgram.compile("(?:(\\S+)\\s?)*x"));
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 10000) {
+            sb.append("abcdefghi ");
+        }
+        int[] slots = new int[vm.slotCount()];
+        assertFalse(vm.match(sb, slots));
+        sb.append('x');
+        assertTrue(vm.match(sb, slots));
+        assertEquals(sb.length() - 11, slots[0]);
+        assertEquals(sb.length() - 2, slots[1]);
+    }
+
+    public void testGorpExtract() throws Exception
+    {
+        final String DEF =
+"pattern %word ([a-zA-Z]+)\n"+
+"pattern %phrase \\S+\n"+
+"pattern %num \\d+\n"+
+"pattern %any .*\n"+
+"template @base <%num>$ts(%phrase) $host(%phrase)\n"+
+"extract login {\n"+
+"  template @base login $user(%word) from $ip(%phrase)%any\n"+
+"}\n"+
+"extract other {\n"+
+"  template @base $rest(%any)\n"+
+"}\n";
+        Gorp jdk = DefinitionReader.reader(DEF).read();
+        Gorp vm = DefinitionReader.reader(DEF)
+                .withCooker(PikeVMExtractionCooker.instance())
+                .read();
+        for (String input : new String[] {
+                "<86>2015-05-12T20:57:53 host1 login bob from 10.1.2.3 port 22",
+                "<2>then host3 something else",
+                "<x>then host3 no match",
+        }) {
+            ExtractionResult exp = jdk.extract(input);
+            ExtractionResult act = vm.extract(input);
+            if (exp == null) {
+                assertNull(act);
+                continue;
+            }
+            assertEquals(exp.getId(), act.getId());
+            assertEquals(exp.asMap("id"), act.asMap("id"));
+        }
+    }
+
+    private void _verifySame(Pattern p, PikeVM vm, String input, int[] slots)
+    {
+        Matcher m = p.matcher(input);
+        final String desc = "Regexp /"+p.pattern()+"/, input '"+input+"'";
+        boolean matches = m.matches();
+        assertEquals(desc, matches, vm.match(input, slots));
+        if (matches) {
+            int[] exp = new int[slots.length];
+            for (int g = 0; g < slots.length / 2; ++g) {
+                exp[2*g] = m.start(g+1);
+                exp[2*g+1] = m.end(g+1);
+            }
+            Assert.assertArrayEquals(desc, exp, slots);
+        }
+    }
+}
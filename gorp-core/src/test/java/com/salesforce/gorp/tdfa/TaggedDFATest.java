@@ -0,0 +1,165 @@
+package com.salesforce.gorp.tdfa;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.PrecompiledGorp;
+import com.salesforce.gorp.TestBase;
+import com.salesforce.gorp.autom.RegexpProgram;
+
+public class TaggedDFATest extends TestBase
+{
+    final static String[] REGEXPS = new String[] {
+        "(a*)(a*)",
+        "(a*?)(a*)",
+        "(a|ab)(c|bcd)(d*)",
+        "([^ ]*) (.*)",
+        "(\\S+)\\s+(\\d+)?x?",
+        "(?:(a)|b)*",
+        "(?:(a)|(b))+c?",
+        "(a+)+b",
+        "x{2,3}(y{1,}?)(y*)",
+        "(\\w+)@(\\w+)\\.com",
+        "([\\d.]+):(\\d{2,4})",
+        "(.*) (\\w+)",
+        "((a)|b)\\.(\\x41|\\u0042|[^\\.\\-])",
+        "(?:<(\\d+)>)?(\\S+) (?:(\\w*)|(.*))",
+        // repetitions of something that can match empty
+        "(.*)+",
+        "(a*)*(b?)",
+        "(b?|a){2,3}",
+        "(?:(a)|b?)*?c",
+    };
+
+    final static String CHARS = "ab cd1.@xy<>AB-\n";
+
+    public void testSameAsJDK()
+    {
+        Random r = new Random(1);
+        for (String regexp : REGEXPS) {
+            Pattern p = Pattern.compile(regexp);
+            TaggedDFA dfa = new TaggedDFA(RegexpProgram.compile(regexp));
+            int[] slots = new int[dfa.slotCount()];
+            for (int i = 0; i < 5000; ++i) {
+                StringBuilder sb = new StringBuilder();
+                for (int j = r.nextInt(9); j > 0; --j) {
+                    sb.append(CHARS.charAt(r.nextInt(CHARS.length())));
+                }
+                String input = sb.toString();
+                _verifySame(p, dfa, input, slots);
+            }
+            // and some inputs more likely to match
+            for (String input : new String[] { "aaa", "abcdd", "ab d", "abc  12", "abc 12x",
+                    "abab", "aabac", "aaab", "xxxyy", "a1@b_2.com", "1.2.3:8080", "foo bar baz",
+                    "b.A", "a.B", "a.-", "<86>abc def", "<86>abc d f", "ccc", "aab" }) {
+                _verifySame(p, dfa, input, slots);
+            }
+        }
+    }
+
+    public void testSmallCache()
+    {
+        final String regexp = "(?:(\\w+)=(\\w*) )*(.*)";
+        Pattern p = Pattern.compile(regexp);
+        TaggedDFA dfa = new TaggedDFA(RegexpProgram.compile(regexp), 3);
+        int[] slots = new int[dfa.slotCount()];
+        for (String input : new String[] { "a=b c= rest", "x=1 y=2 z=3 ", "no match here", "" }) {
+            _verifySame(p, dfa, input, slots);
+        }
+        assertTrue(dfa.getCachedStateCount() <= 3);
+        assertTrue(dfa.getCacheResetCount() > 0);
+    }
+
+    public void testUnsupported()
+    {
+        for (String regexp : new String[] { "^abc", "a$", "(?i)a", "(a)\\1", "a\\b", "a++",
+                "[a[b]]", "[a&&b]", "\\p{L}", "(?=a)" }) {
+            try {
+                RegexpProgram.compile(regexp);
+                fail("Should not pass: "+regexp);
+            } catch (IllegalArgumentException e) {
+                verifyException(e, "Unsupported");
+            }
+        }
+        for (String regexp : new String[] { "(a", "a)", "[a", "*a", "a{2", "[z-a]" }) {
+            try {
+                RegexpProgram.compile(regexp);
+                fail("Should not pass: "+regexp);
+            } catch (IllegalArgumentException e) {
+                verifyException(e, "regexp");
+            }
+        }
+    }
+
+    public void testGorpExtract() throws Exception
+    {
+        final String DEF =
+"pattern %word ([a-zA-Z]+)\n"+
+"pattern %phrase \\S+\n"+
+"pattern %num \\d+\n"+
+"pattern %any .*\n"+
+"template @base <%num>$ts(%phrase) $host(%phrase)\n"+
+"extract login {\n"+
+"  template @base login $user(%word) from $ip(%phrase)%any\n"+
+"  append 'service':'login'\n"+
+"}\n"+
+"extract kv {\n"+
+"  template @base $key(%word)=$value(%any)\n"+
+"}\n"+
+"extract other {\n"+
+"  template @base $rest(%any)\n"+
+"}\n";
+        String def = DEF.replace('\'', '"');
+        Gorp jdk = DefinitionReader.reader(def).read();
+        Gorp tdfa = DefinitionReader.reader(def)
+                .withCooker(TDFAExtractionCooker.instance())
+                .read();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrecompiledGorp.write(tdfa, bytes);
+        Gorp loaded = PrecompiledGorp.load(ByteBuffer.wrap(bytes.toByteArray()),
+                TDFAExtractionCooker.instance());
+        for (String input : new String[] {
+                "<86>2015-05-12T20:57:53 host1 login bob from 10.1.2.3 port 22",
+                "<1>now host2 color=blue and=more",
+                "<2>then host3 something else",
+                "<x>then host3 no match",
+        }) {
+            ExtractionResult exp = jdk.extract(input);
+            for (Gorp gorp : new Gorp[] { tdfa, loaded }) {
+                ExtractionResult act = gorp.extract(input);
+                if (exp == null) {
+                    assertNull(act);
+                    continue;
+                }
+                assertNotNull(act);
+                assertEquals(exp.getId(), act.getId());
+                assertEquals(exp.asMap("id"), act.asMap("id"));
+                assertTrue(act.getMatchedExtraction() instanceof TDFACookedExtraction);
+            }
+        }
+    }
+
+    private void _verifySame(Pattern p, TaggedDFA dfa, String input, int[] slots)
+    {
+        Matcher m = p.matcher(input);
+        final String desc = "Regexp /"+p.pattern()+"/, input '"+input+"'";
+        boolean matches = m.matches();
+        assertEquals(desc, matches, dfa.match(input, slots));
+        if (matches) {
+            int[] exp = new int[slots.length];
+            for (int g = 0; g < slots.length / 2; ++g) {
+                exp[2*g] = m.start(g+1);
+                exp[2*g+1] = m.end(g+1);
+            }
+            Assert.assertArrayEquals(desc, exp, slots);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.jdk8;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.salesforce.gorp.ExtractionException;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+
+/**
+ * Wrapper for a {@link Gorp} that runs extractions asynchronously on an
+ * {@link Executor}, returning {@link CompletableFuture}s: useful when input
+ * arrives from I/O-bound code that should not block on CPU-bound extraction.
+ * Batches of lines are split into micro-batches, each extracted by a single
+ * task, to amortize scheduling overhead.
+ *<p>
+ * By default, tasks are run on virtual threads (one per task) if the runtime
+ * supports them (Java 21 and later), and on the common fork/join pool otherwise;
+ * see {@link #defaultExecutor()}.
+ *<p>
+ * Since input may be extracted after call returns, <code>CharSequence</code>s
+ * other than <code>String</code>s are converted into <code>String</code>s
+ * by the calling thread, so that callers may reuse mutable buffers.
+ *<p>
+ * Instances are immutable; "with" methods are used to construct differently
+ * configured instances.
+ */
+public class AsyncGorp
+{
+    /**
+     * Default number of lines to extract per task, for batch methods
+     */
+    public final static int DEFAULT_BATCH_SIZE = 64;
+
+    private final static Executor DEFAULT_EXECUTOR = _findDefaultExecutor();
+
+    protected final Gorp _gorp;
+
+    protected final Executor _executor;
+
+    protected final int _batchSize;
+
+    public AsyncGorp(Gorp gorp) {
+        this(gorp, DEFAULT_EXECUTOR, DEFAULT_BATCH_SIZE);
+    }
+
+    protected AsyncGorp(Gorp gorp, Executor executor, int batchSize) {
+        _gorp = gorp;
+        _executor = executor;
+        _batchSize = batchSize;
+    }
+
+    public AsyncGorp withExecutor(Executor executor) {
+        return new AsyncGorp(_gorp, Objects.requireNonNull(executor), _batchSize);
+    }
+
+    /**
+     * Method for constructing instance that extracts up to given number of lines
+     * per task, with batch methods.
+     */
+    public AsyncGorp withBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size ("+batchSize+"): must be at least 1");
+        }
+        return new AsyncGorp(_gorp, _executor, batchSize);
+    }
+
+    public Gorp getGorp() { return _gorp; }
+    public Executor getExecutor() { return _executor; }
+    public int getBatchSize() { return _batchSize; }
+
+    /**
+     * @return Executor used if none is given: one that starts a new virtual thread
+     *    for each task, if runtime supports them; otherwise
+     *    {@link ForkJoinPool#commonPool()}
+     */
+    public static Executor defaultExecutor() {
+        return DEFAULT_EXECUTOR;
+    }
+
+    private static Executor _findDefaultExecutor()
+    {
+        // Looked up dynamically, as virtual threads only exist on Java 21+
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) m.invoke(null);
+        } catch (Exception e) {
+            return ForkJoinPool.commonPool();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Extraction
+    /**********************************************************************
+     */
+
+    /**
+     * Method for extracting given input asynchronously.
+     *
+     * @return Future completed with result of extraction (null if input did not match),
+     *    or exceptionally with {@link ExtractionException} if extraction failed
+     *    (or with {@link RejectedExecutionException} if executor did not accept task)
+     */
+    public CompletableFuture<ExtractionResult> extractAsync(CharSequence input)
+    {
+        final String line = input.toString();
+        final CompletableFuture<ExtractionResult> future = new CompletableFuture<>();
+        try {
+            _executor.execute(() -> {
+                try {
+                    future.complete(_gorp.extract(line));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Method for extracting given lines asynchronously, in micro-batches of
+     * {@link #getBatchSize()} lines per task.
+     *
+     * @return Future completed with list of results in order of input (with nulls
+     *    for lines that did not match), or exceptionally with the first problem
+     *    (by order of input) if any extraction failed; if executor does not accept
+     *    a task, that and the remaining micro-batches fail with
+     *    {@link RejectedExecutionException}
+     */
+    public CompletableFuture<List<ExtractionResult>> extractAllAsync(List<? extends CharSequence> inputs)
+    {
+        final int count = inputs.size();
+        final String[] lines = new String[count];
+        for (int i = 0; i < count; ++i) {
+            lines[i] = inputs.get(i).toString();
+        }
+        final ExtractionResult[] results = new ExtractionResult[count];
+        final int taskCount = (count + _batchSize - 1) / _batchSize;
+        if (taskCount == 0) {
+            return CompletableFuture.completedFuture(Collections.<ExtractionResult>emptyList());
+        }
+        final CompletableFuture<List<ExtractionResult>> future = new CompletableFuture<>();
+        final Batches batches = new Batches(taskCount, future, results);
+        for (int task = 0; task < taskCount; ++task) {
+            final int start = task * _batchSize;
+            final int end = Math.min(count, start + _batchSize);
+            final int index = task;
+            try {
+                _executor.execute(() -> {
+                    Throwable problem = null;
+                    try {
+                        // no point in continuing if caller has cancelled
+                        for (int i = start; i < end && !future.isDone(); ++i) {
+                            results[i] = _gorp.extract(lines[i]);
+                        }
+                    } catch (Throwable t) {
+                        problem = t;
+                    }
+                    batches.done(index, problem);
+                });
+            } catch (RejectedExecutionException e) {
+                // tasks already submitted still complete (and may report earlier failures)
+                for (int i = index; i < taskCount; ++i) {
+                    batches.done(i, e);
+                }
+                break;
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Helper class for completing the future of a batch once all of its
+     * micro-batches are done: failure reported is that of the earliest
+     * micro-batch, regardless of completion order.
+     */
+    private final static class Batches
+    {
+        private final CompletableFuture<List<ExtractionResult>> _future;
+        private final ExtractionResult[] _results;
+
+        private int _remaining;
+        private int _failedIndex = Integer.MAX_VALUE;
+        private Throwable _failure;
+
+        Batches(int count, CompletableFuture<List<ExtractionResult>> future,
+                ExtractionResult[] results) {
+            _remaining = count;
+            _future = future;
+            _results = results;
+        }
+
+        void done(int index, Throwable problem)
+        {
+            final Throwable failure;
+            synchronized (this) {
+                if ((problem != null) && (index < _failedIndex)) {
+                    _failedIndex = index;
+                    _failure = problem;
+                }
+                if (--_remaining > 0) {
+                    return;
+                }
+                failure = _failure;
+            }
+            // results written by other tasks are visible through the lock above
+            if (failure != null) {
+                _future.completeExceptionally(failure);
+            } else {
+                _future.complete(Arrays.asList(_results));
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.jdk8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Cursor over lines within a range of a file, used by file-backed spliterators:
+ * range always starts at the beginning of a line and ends after a linefeed
+ * (or at the end of file), and may be split in two at a linefeed near its middle.
+ * Content is read using positional reads, so that cursors of the same file
+ * may be used by different threads concurrently.
+ *<p>
+ * Content is read in blocks; a new block array is allocated for each block,
+ * so that lines (and results that refer to them) stay valid after cursor moves on.
+ * Lines are separated by linefeeds; a carriage return before linefeed is dropped.
+ */
+class FileLineCursor
+{
+    private final static int SCAN_BUFFER_SIZE = 8 * 1024;
+
+    private final FileChannel _channel;
+
+    private final int _blockSize;
+
+    /**
+     * Offset of the first unread byte of the range
+     */
+    private long _start;
+
+    private final long _end;
+
+    private byte[] _block;
+
+    private int _blockPos, _blockLength;
+
+    /**
+     * Position within block where search for the next linefeed continues
+     */
+    private int _scanPos;
+
+    private int _lineStart, _lineLength;
+
+    FileLineCursor(FileChannel channel, long start, long end, int blockSize) {
+        _channel = channel;
+        _start = start;
+        _end = end;
+        _blockSize = blockSize;
+    }
+
+    /**
+     * @return Number of bytes in range not yet returned as lines
+     */
+    public long remaining() {
+        return (_end - _start) + (_blockLength - _blockPos);
+    }
+
+    public byte[] lineBuffer() { return _block; }
+    public int lineStart() { return _lineStart; }
+    public int lineLength() { return _lineLength; }
+
+    /**
+     * Method for advancing to the next line; if one is found, it is accessible
+     * with {@link #lineBuffer()}, {@link #lineStart()} and {@link #lineLength()}.
+     *
+     * @return True if there was another line; false if range has been exhausted
+     */
+    public boolean next() throws IOException
+    {
+        while (true) {
+            final byte[] block = _block;
+            int i = _scanPos;
+            final int end = _blockLength;
+            while ((i < end) && (block[i] != '\n')) {
+                ++i;
+            }
+            if (i < end) {
+                _setLine(_blockPos, i);
+                _blockPos = _scanPos = i + 1;
+                return true;
+            }
+            if (_start >= _end) {
+                if (_blockPos < end) { // last line, without linefeed
+                    _setLine(_blockPos, end);
+                    _blockPos = _scanPos = end;
+                    return true;
+                }
+                return false;
+            }
+            _read();
+        }
+    }
+
+    /**
+     * Method for splitting off the first half (roughly) of the remaining range,
+     * at a linefeed: only possible before any lines have been read.
+     *
+     * @return Cursor for the first half, if range could be split; null if not
+     */
+    public FileLineCursor trySplit(long minSize) throws IOException
+    {
+        if ((_block != null) || ((_end - _start) < (2 * minSize))) {
+            return null;
+        }
+        final long split = _nextLineStart(_start + (_end - _start) / 2);
+        if (split >= _end) {
+            return null;
+        }
+        final FileLineCursor prefix = new FileLineCursor(_channel, _start, split, _blockSize);
+        _start = split;
+        return prefix;
+    }
+
+    private void _setLine(int start, int end)
+    {
+        if ((end > start) && (_block[end - 1] == '\r')) {
+            --end;
+        }
+        _lineStart = start;
+        _lineLength = end - start;
+    }
+
+    private void _read() throws IOException
+    {
+        // partial line at the end of the previous block is carried over
+        final int carry = _blockLength - _blockPos;
+        final long left = _end - _start;
+        final int size = (int) Math.min(Math.max(_blockSize, 2L * carry), carry + left);
+        if (size < 0) {
+            throw new IOException("Line at offset "+(_start - carry)+" too long (over "+carry+" bytes)");
+        }
+        final byte[] block = new byte[size];
+        if (carry > 0) {
+            System.arraycopy(_block, _blockPos, block, 0, carry);
+        }
+        final ByteBuffer bb = ByteBuffer.wrap(block, carry, size - carry);
+        while (bb.hasRemaining()) {
+            if (_channel.read(bb, _start + (bb.position() - carry)) < 0) {
+                throw new IOException("Unexpected end of file at offset "+(_start + (bb.position() - carry))
+                        +": file truncated while reading?");
+            }
+        }
+        _start += size - carry;
+        _block = block;
+        _blockPos = 0;
+        _scanPos = carry;
+        _blockLength = size;
+    }
+
+    /**
+     * @return Offset after the first linefeed at or after given offset; or end of range
+     *    if there is none
+     */
+    private long _nextLineStart(long offset) throws IOException
+    {
+        final ByteBuffer bb = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        while (offset < _end) {
+            bb.clear();
+            bb.limit((int) Math.min(SCAN_BUFFER_SIZE, _end - offset));
+            final int count = _channel.read(bb, offset);
+            if (count <= 0) {
+                break;
+            }
+            final byte[] b = bb.array();
+            for (int i = 0; i < count; ++i) {
+                if (b[i] == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            offset += count;
+        }
+        return _end;
+    }
+}
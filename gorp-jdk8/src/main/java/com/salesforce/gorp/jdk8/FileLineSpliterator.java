@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.jdk8;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Spliterators over lines of a file, mapped into values (or ints), skipping
+ * lines for which mapper returns null (or a negative value). Splits at
+ * linefeeds near the middle of remaining range, as long as both halves would be
+ * at least a block in size. Since number of lines is not known, size estimates
+ * are in bytes.
+ */
+class FileLineSpliterator<T> implements Spliterator<T>
+{
+    /**
+     * Function for mapping UTF-8 encoded content of a line into value
+     */
+    interface LineMapper<T> {
+        T map(byte[] buffer, int start, int length) throws IOException;
+    }
+
+    interface LineToIntMapper {
+        int map(byte[] buffer, int start, int length) throws IOException;
+    }
+
+    private final FileLineCursor _cursor;
+
+    private final LineMapper<T> _mapper;
+
+    private final long _minSplit;
+
+    FileLineSpliterator(FileLineCursor cursor, LineMapper<T> mapper, long minSplit) {
+        _cursor = cursor;
+        _mapper = mapper;
+        _minSplit = minSplit;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action)
+    {
+        try {
+            while (_cursor.next()) {
+                final T value = _mapper.map(_cursor.lineBuffer(), _cursor.lineStart(), _cursor.lineLength());
+                if (value != null) {
+                    action.accept(value);
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action)
+    {
+        try {
+            while (_cursor.next()) {
+                final T value = _mapper.map(_cursor.lineBuffer(), _cursor.lineStart(), _cursor.lineLength());
+                if (value != null) {
+                    action.accept(value);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit()
+    {
+        final FileLineCursor prefix = _split(_cursor, _minSplit);
+        return (prefix == null) ? null : new FileLineSpliterator<T>(prefix, _mapper, _minSplit);
+    }
+
+    @Override
+    public long estimateSize() {
+        return _cursor.remaining();
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    static FileLineCursor _split(FileLineCursor cursor, long minSplit)
+    {
+        try {
+            return cursor.trySplit(minSplit);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Variant for primitive int values
+     */
+    static class OfInt implements Spliterator.OfInt
+    {
+        private final FileLineCursor _cursor;
+
+        private final LineToIntMapper _mapper;
+
+        private final long _minSplit;
+
+        OfInt(FileLineCursor cursor, LineToIntMapper mapper, long minSplit) {
+            _cursor = cursor;
+            _mapper = mapper;
+            _minSplit = minSplit;
+        }
+
+        @Override
+        public boolean tryAdvance(IntConsumer action)
+        {
+            try {
+                while (_cursor.next()) {
+                    final int value = _mapper.map(_cursor.lineBuffer(), _cursor.lineStart(), _cursor.lineLength());
+                    if (value >= 0) {
+                        action.accept(value);
+                        return true;
+                    }
+                }
+                return false;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action)
+        {
+            try {
+                while (_cursor.next()) {
+                    final int value = _mapper.map(_cursor.lineBuffer(), _cursor.lineStart(), _cursor.lineLength());
+                    if (value >= 0) {
+                        action.accept(value);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Spliterator.OfInt trySplit()
+        {
+            final FileLineCursor prefix = _split(_cursor, _minSplit);
+            return (prefix == null) ? null : new FileLineSpliterator.OfInt(prefix, _mapper, _minSplit);
+        }
+
+        @Override
+        public long estimateSize() {
+            return _cursor.remaining();
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED;
+        }
+    }
+}
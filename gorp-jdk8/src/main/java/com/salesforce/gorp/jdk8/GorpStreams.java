@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.jdk8;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.stream.*;
+
+import com.salesforce.gorp.ExtractionException;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+
+/**
+ * Helper methods for extracting lines of {@link Stream}s, and for constructing
+ * streams of lines that split well for parallel processing.
+ *<p>
+ * File-backed streams read UTF-8 encoded content in large blocks, and split at
+ * linefeeds near the middle of remaining content, so that parallel streams get
+ * even amounts of work per thread; extraction methods match bytes without
+ * decoding lines into <code>String</code>s (automata for which are constructed
+ * when the stream is, see {@link Gorp#prepareByteMatching}). Such streams should be closed once
+ * done (like those of {@link java.nio.file.Files#lines}), to close the file.
+ *<p>
+ * Streams returned are sequential; call {@link Stream#parallel()} to extract
+ * lines in parallel. Problems reading input are reported as
+ * {@link UncheckedIOException}s, and so are {@link ExtractionException}s.
+ */
+public final class GorpStreams
+{
+    /**
+     * Default size of blocks to read files in; also the minimum size of a split
+     */
+    public final static int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * Default number of lines to read per split, for streams of readers
+     */
+    public final static int DEFAULT_BATCH_SIZE = 4096;
+
+    private GorpStreams() { }
+
+    /*
+    /**********************************************************************
+    /* Extraction of streams
+    /**********************************************************************
+     */
+
+    /**
+     * Method for extracting given lines, keeping splitting (and sizing) of given
+     * stream.
+     *
+     * @return Stream of results of lines that matched, in order of input
+     */
+    public static Stream<ExtractionResult> extractAll(Gorp gorp, Stream<? extends CharSequence> lines)
+    {
+        Objects.requireNonNull(gorp);
+        return lines.map(line -> _extract(gorp, line))
+                .filter(Objects::nonNull);
+    }
+
+    /**
+     * Method for classifying given lines (see {@link Gorp#classify(CharSequence)}),
+     * without evaluating extracted values.
+     *
+     * @return Stream of indexes of extractions that lines matched, in order of input
+     *    (lines that did not match are skipped)
+     */
+    public static IntStream classifyAll(Gorp gorp, Stream<? extends CharSequence> lines)
+    {
+        Objects.requireNonNull(gorp);
+        return lines.mapToInt(gorp::classify)
+                .filter(index -> index >= 0);
+    }
+
+    /*
+    /**********************************************************************
+    /* Extraction of files
+    /**********************************************************************
+     */
+
+    public static Stream<ExtractionResult> extractAll(Gorp gorp, Path input) throws IOException {
+        return extractAll(gorp, input, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Method for extracting lines of given UTF-8 encoded file, without decoding
+     * lines that do not match. Note that results refer to blocks of content
+     * they were extracted from.
+     *
+     * @param blockSize Size of blocks to read file in, and minimum size of splits
+     *
+     * @return Stream of results of lines that matched, in order of lines
+     */
+    public static Stream<ExtractionResult> extractAll(Gorp gorp, Path input, int blockSize)
+        throws IOException
+    {
+        gorp.prepareByteMatching();
+        final FileChannel channel = _open(input);
+        final FileLineSpliterator<ExtractionResult> spliterator = new FileLineSpliterator<>(
+                _cursor(channel, blockSize), gorp::extract, blockSize);
+        return StreamSupport.stream(spliterator, false)
+                .onClose(() -> _close(channel));
+    }
+
+    public static IntStream classifyAll(Gorp gorp, Path input) throws IOException {
+        return classifyAll(gorp, input, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Method for classifying lines of given UTF-8 encoded file, without decoding them.
+     *
+     * @return Stream of indexes of extractions that lines matched, in order of lines
+     *    (lines that did not match are skipped)
+     */
+    public static IntStream classifyAll(Gorp gorp, Path input, int blockSize) throws IOException
+    {
+        gorp.prepareByteMatching();
+        final FileChannel channel = _open(input);
+        final FileLineSpliterator.OfInt spliterator = new FileLineSpliterator.OfInt(
+                _cursor(channel, blockSize), gorp::classify, blockSize);
+        return StreamSupport.intStream(spliterator, false)
+                .onClose(() -> _close(channel));
+    }
+
+    /*
+    /**********************************************************************
+    /* Line streams
+    /**********************************************************************
+     */
+
+    public static Stream<String> lines(Path input) throws IOException {
+        return lines(input, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Method for constructing stream of lines of given UTF-8 encoded file,
+     * that splits at linefeeds (unlike {@link java.nio.file.Files#lines} on
+     * Java 8, which splits in growing batches).
+     */
+    public static Stream<String> lines(Path input, int blockSize) throws IOException
+    {
+        final FileChannel channel = _open(input);
+        final FileLineSpliterator<String> spliterator = new FileLineSpliterator<>(
+                _cursor(channel, blockSize),
+                (buffer, start, length) -> new String(buffer, start, length, StandardCharsets.UTF_8),
+                blockSize);
+        return StreamSupport.stream(spliterator, false)
+                .onClose(() -> _close(channel));
+    }
+
+    public static Stream<String> lines(Reader input) {
+        return lines(input, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Method for constructing stream of lines of given reader, that splits in
+     * batches of given number of lines. Stream does not close reader.
+     */
+    public static Stream<String> lines(Reader input, int batchSize)
+    {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size ("+batchSize+"): must be at least 1");
+        }
+        final BufferedReader br = (input instanceof BufferedReader)
+                ? (BufferedReader) input : new BufferedReader(input);
+        return StreamSupport.stream(new ReaderLineSpliterator(br, batchSize), false);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    private static ExtractionResult _extract(Gorp gorp, CharSequence line)
+    {
+        try {
+            return gorp.extract(line.toString());
+        } catch (ExtractionException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static FileChannel _open(Path input) throws IOException {
+        return FileChannel.open(input, StandardOpenOption.READ);
+    }
+
+    private static FileLineCursor _cursor(FileChannel channel, int blockSize) throws IOException
+    {
+        if (blockSize < 1) {
+            _close(channel);
+            throw new IllegalArgumentException("Invalid block size ("+blockSize+"): must be at least 1");
+        }
+        return new FileLineCursor(channel, 0L, channel.size(), blockSize);
+    }
+
+    private static void _close(FileChannel channel)
+    {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
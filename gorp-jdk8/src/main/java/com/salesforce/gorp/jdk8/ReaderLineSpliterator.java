@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.jdk8;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over lines of a {@link BufferedReader}: since reader can only be
+ * read sequentially, splitting reads a fixed-size batch of lines, and returns
+ * a sized array-backed spliterator over it. Unlike with the growing batches of
+ * {@link BufferedReader#lines()}, work is split into even units as soon as
+ * there are lines for more than one batch.
+ */
+class ReaderLineSpliterator implements Spliterator<String>
+{
+    private final BufferedReader _reader;
+
+    private final int _batchSize;
+
+    private boolean _done;
+
+    ReaderLineSpliterator(BufferedReader reader, int batchSize) {
+        _reader = reader;
+        _batchSize = batchSize;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super String> action)
+    {
+        final String line = _readLine();
+        if (line == null) {
+            return false;
+        }
+        action.accept(line);
+        return true;
+    }
+
+    @Override
+    public Spliterator<String> trySplit()
+    {
+        String[] batch = new String[_batchSize];
+        int count = 0;
+        String line;
+        while ((count < _batchSize) && ((line = _readLine()) != null)) {
+            batch[count++] = line;
+        }
+        if (count == 0) {
+            return null;
+        }
+        return Spliterators.spliterator(batch, 0, count, ORDERED | NONNULL | IMMUTABLE);
+    }
+
+    @Override
+    public long estimateSize() {
+        return _done ? 0L : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    private String _readLine()
+    {
+        if (_done) {
+            return null;
+        }
+        try {
+            final String line = _reader.readLine();
+            if (line == null) {
+                _done = true;
+            }
+            return line;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
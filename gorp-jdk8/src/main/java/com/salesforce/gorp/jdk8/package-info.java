@@ -0,0 +1,6 @@
+/**
+ * Package that contains extensions that need Java 8 (or later) types, like
+ * asynchronous extraction with {@link com.salesforce.gorp.jdk8.AsyncGorp},
+ * and extraction of streams with {@link com.salesforce.gorp.jdk8.GorpStreams}.
+ */
+package com.salesforce.gorp.jdk8;
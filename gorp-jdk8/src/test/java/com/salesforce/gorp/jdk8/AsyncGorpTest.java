@@ -0,0 +1,163 @@
+package com.salesforce.gorp.jdk8;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+
+import junit.framework.TestCase;
+
+public class AsyncGorpTest extends TestCase
+{
+    final static String DEF =
+"pattern %word [a-zA-Z]+\n"+
+"pattern %num \\d+\n"+
+"extract put {  \n"+
+"  template PUT $path(%word) $size(%num)\n"+
+"}\n";
+
+    public void testDefaultExecutor() throws Exception
+    {
+        boolean virtual = true;
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            virtual = false;
+        }
+        Gorp gorp = DefinitionReader.reader(DEF).read();
+        AsyncGorp async = new AsyncGorp(gorp);
+        assertSame(AsyncGorp.defaultExecutor(), async.getExecutor());
+        assertEquals(!virtual, async.getExecutor() == ForkJoinPool.commonPool());
+
+        ExtractionResult result = async.extractAsync("PUT abc 12").get(5, TimeUnit.SECONDS);
+        assertNotNull(result);
+        assertEquals("put", result.getId());
+        assertEquals("12", result.getValue(1));
+        assertNull(async.extractAsync("GET abc").get(5, TimeUnit.SECONDS));
+    }
+
+    public void testMicroBatches() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(DEF).read();
+        final List<Runnable> tasks = new ArrayList<>();
+        AsyncGorp async = new AsyncGorp(gorp)
+                .withExecutor(tasks::add)
+                .withBatchSize(50);
+        List<CharSequence> lines = new ArrayList<>();
+        for (int i = 0; i < 130; ++i) {
+            lines.add((i % 4 == 0) ? "nope" : ("PUT x "+i));
+        }
+        // mutable input is copied by the calling thread
+        StringBuilder sb = new StringBuilder("PUT abc 3");
+        lines.add(sb);
+        CompletableFuture<List<ExtractionResult>> future = async.extractAllAsync(lines);
+        sb.setLength(0);
+        assertEquals(3, tasks.size());
+
+        // complete in reverse order
+        Collections.reverse(tasks);
+        for (Runnable task : tasks) {
+            assertFalse(future.isDone());
+            task.run();
+        }
+        List<ExtractionResult> results = future.getNow(null);
+        assertEquals(131, results.size());
+        for (int i = 0; i < 130; ++i) {
+            if (i % 4 == 0) {
+                assertNull(results.get(i));
+            } else {
+                assertEquals(String.valueOf(i), results.get(i).getValue(1));
+            }
+        }
+        assertEquals("abc", results.get(130).getValue(0));
+
+        assertTrue(async.extractAllAsync(Collections.<String>emptyList()).get().isEmpty());
+    }
+
+    public void testFailure() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(DEF).read();
+        final List<Runnable> tasks = new ArrayList<>();
+        AsyncGorp async = new AsyncGorp(gorp)
+                .withExecutor(tasks::add)
+                .withBatchSize(1);
+        // copy of input is null, so extraction of it fails
+        CharSequence bad = new CharSequence() {
+            @Override
+            public int length() { return 0; }
+            @Override
+            public char charAt(int index) { throw new IndexOutOfBoundsException(); }
+            @Override
+            public CharSequence subSequence(int start, int end) { return this; }
+            @Override
+            public String toString() { return null; }
+        };
+        CompletableFuture<List<ExtractionResult>> future = async.extractAllAsync(
+                Arrays.asList("PUT x 1", bad, "PUT y 2"));
+        for (Runnable task : tasks) {
+            task.run();
+        }
+        try {
+            future.get();
+            fail("Should not pass");
+        } catch (ExecutionException e) {
+            assertEquals(NullPointerException.class, e.getCause().getClass());
+        }
+
+        // and with a real pool
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < 1000; ++i) {
+                lines.add("PUT p "+i);
+            }
+            List<ExtractionResult> results = new AsyncGorp(gorp).withExecutor(pool)
+                    .extractAllAsync(lines).get(10, TimeUnit.SECONDS);
+            for (int i = 0; i < 1000; ++i) {
+                assertEquals(String.valueOf(i), results.get(i).getValue(1));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testRejected() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(DEF).read();
+        AsyncGorp async = new AsyncGorp(gorp).withExecutor(task -> {
+            throw new RejectedExecutionException("Shut down");
+        });
+        try {
+            async.extractAsync("PUT x 1").get();
+            fail("Should not pass");
+        } catch (ExecutionException e) {
+            assertEquals(RejectedExecutionException.class, e.getCause().getClass());
+        }
+
+        // tasks accepted before rejection still run, but batch fails
+        final List<Runnable> tasks = new ArrayList<>();
+        async = new AsyncGorp(gorp).withBatchSize(2).withExecutor(task -> {
+            if (tasks.size() == 2) {
+                throw new RejectedExecutionException("Queue full");
+            }
+            tasks.add(task);
+        });
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            lines.add("PUT p "+i);
+        }
+        CompletableFuture<List<ExtractionResult>> future = async.extractAllAsync(lines);
+        assertFalse(future.isDone());
+        for (Runnable task : tasks) {
+            task.run();
+        }
+        try {
+            future.get();
+            fail("Should not pass");
+        } catch (ExecutionException e) {
+            assertEquals("Queue full", e.getCause().getMessage());
+        }
+    }
+}
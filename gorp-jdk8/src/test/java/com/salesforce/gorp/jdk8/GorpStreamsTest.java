@@ -0,0 +1,104 @@
+package com.salesforce.gorp.jdk8;
+
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.*;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.SampleLogFiles;
+
+import junit.framework.TestCase;
+
+public class GorpStreamsTest extends TestCase
+{
+    public void testExtractStream() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(SampleLogFiles.DEF).read();
+        List<String> lines = SampleLogFiles.lines(3000);
+        List<String> exp = SampleLogFiles.expected(gorp, lines);
+
+        assertEquals(exp, _describe(GorpStreams.extractAll(gorp, lines.stream())));
+        assertEquals(exp, _describe(GorpStreams.extractAll(gorp, lines.parallelStream())));
+
+        int[] ids = GorpStreams.classifyAll(gorp, lines.parallelStream()).toArray();
+        assertEquals(exp.size(), ids.length);
+        for (int i = 0; i < ids.length; ++i) {
+            assertTrue(exp.get(i).startsWith(gorp.getExtractions().get(ids[i]).getName()));
+        }
+    }
+
+    public void testExtractFile() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(SampleLogFiles.DEF).read();
+        List<String> lines = SampleLogFiles.lines(3000);
+        Path path = SampleLogFiles.write(lines, false).toPath();
+        try {
+            List<String> exp = SampleLogFiles.expected(gorp, lines);
+            for (int blockSize : new int[] { 1, 100, 4000, GorpStreams.DEFAULT_BLOCK_SIZE }) {
+                try (Stream<String> s = GorpStreams.lines(path, blockSize)) {
+                    assertEquals("Block size "+blockSize, lines, s.parallel().collect(Collectors.toList()));
+                }
+                try (Stream<ExtractionResult> s = GorpStreams.extractAll(gorp, path, blockSize)) {
+                    assertEquals("Block size "+blockSize, exp, _describe(s.parallel()));
+                }
+                try (IntStream s = GorpStreams.classifyAll(gorp, path, blockSize)) {
+                    assertEquals(exp.size(), s.parallel().count());
+                }
+            }
+            // with trailing linefeed, no empty line after it
+            path.toFile().delete();
+            path = SampleLogFiles.write(lines, true).toPath();
+            try (Stream<String> s = GorpStreams.lines(path, 100)) {
+                assertEquals(lines, s.parallel().collect(Collectors.toList()));
+            }
+        } finally {
+            path.toFile().delete();
+        }
+    }
+
+    public void testSplitting() throws Exception
+    {
+        List<String> lines = SampleLogFiles.lines(3000);
+        Path path = SampleLogFiles.write(lines, true).toPath();
+        try (Stream<String> s = GorpStreams.lines(path, 1000)) {
+            final Spliterator<String> second = s.spliterator();
+            final long size = second.estimateSize();
+            final Spliterator<String> first = second.trySplit();
+            assertNotNull(first);
+            // split close to middle, at linefeed
+            assertTrue(Math.abs(first.estimateSize() - size / 2) < 1000);
+            assertEquals(size, first.estimateSize() + second.estimateSize());
+            List<String> actual = new ArrayList<>();
+            first.forEachRemaining(actual::add);
+            assertTrue(second.tryAdvance(actual::add));
+            // no splitting once traversal has started
+            assertNull(second.trySplit());
+            second.forEachRemaining(actual::add);
+            assertEquals(lines, actual);
+        } finally {
+            path.toFile().delete();
+        }
+    }
+
+    public void testReaderLines() throws Exception
+    {
+        List<String> lines = SampleLogFiles.lines(1000);
+        final String content = String.join("\n", lines);
+        for (int batchSize : new int[] { 1, 64, GorpStreams.DEFAULT_BATCH_SIZE }) {
+            assertEquals(lines, GorpStreams.lines(new StringReader(content), batchSize)
+                    .parallel().collect(Collectors.toList()));
+        }
+        Spliterator<String> it = GorpStreams.lines(new StringReader(content), 64).spliterator();
+        Spliterator<String> batch = it.trySplit();
+        assertTrue(batch.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(64L, batch.estimateSize());
+    }
+
+    private static List<String> _describe(Stream<ExtractionResult> results) {
+        return results.map(SampleLogFiles::describe)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.jdk9;
+
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+
+/**
+ * {@link Flow.Processor} that extracts lines it receives with a {@link Gorp},
+ * and publishes results of lines that matched, in order of input; lines that
+ * do not match are dropped. Supports a single subscriber.
+ *<p>
+ * Backpressure is honored both ways: at most <code>bufferSize</code> lines
+ * are requested from upstream before they have been extracted and either
+ * published or dropped, and results are only published as requested by downstream.
+ * Upstream requests are batched: more lines are requested once three quarters of
+ * the buffer has been consumed.
+ *<p>
+ * By default lines are extracted by the thread that publishes results, as they
+ * are needed, without any thread hops. If an executor is given, lines are extracted
+ * by up to <code>parallelism</code> worker tasks instead, each taking up to
+ * <code>batchSize</code> lines at a time; results are still published in order.
+ *<p>
+ * Since lines may be extracted after <code>onNext</code> returns,
+ * <code>CharSequence</code>s are converted into <code>String</code>s when received.
+ */
+public class GorpProcessor
+    implements Flow.Processor<CharSequence, ExtractionResult>
+{
+    public final static int DEFAULT_BUFFER_SIZE = 256;
+
+    public final static int DEFAULT_BATCH_SIZE = 16;
+
+    protected final Gorp _gorp;
+
+    /**
+     * Executor for worker tasks; null if lines are extracted when publishing
+     */
+    protected final Executor _executor;
+
+    protected final int _parallelism;
+
+    protected final int _bufferSize;
+
+    protected final int _batchSize;
+
+    /**
+     * Number of consumed lines after which more are requested from upstream
+     */
+    protected final int _replenishLimit;
+
+    /*
+    /**********************************************************************
+    /* State
+    /**********************************************************************
+     */
+
+    private volatile Flow.Subscription _upstream;
+
+    private volatile boolean _upstreamDone;
+
+    private volatile Throwable _upstreamError;
+
+    private final AtomicBoolean _subscribed = new AtomicBoolean();
+
+    private volatile Flow.Subscriber<? super ExtractionResult> _downstream;
+
+    private final AtomicLong _demand = new AtomicLong();
+
+    private volatile boolean _cancelled;
+
+    /**
+     * Problem not related to any specific line (invalid request, rejected
+     * task), reported as soon as possible
+     */
+    private volatile Throwable _failure;
+
+    /**
+     * Lines received, in order, until published or dropped
+     */
+    private final ConcurrentLinkedQueue<Slot> _slots = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Lines not yet taken by worker tasks
+     */
+    private final ConcurrentLinkedQueue<Slot> _unassigned = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger _activeWorkers = new AtomicInteger();
+
+    /**
+     * Counter used for making sure only one thread at a time publishes
+     * results, without blocking others
+     */
+    private final AtomicInteger _wip = new AtomicInteger();
+
+    // State only accessed by the publishing thread:
+
+    private boolean _started;
+
+    private boolean _terminated;
+
+    private int _consumed;
+
+    /*
+    /**********************************************************************
+    /* Construction
+    /**********************************************************************
+     */
+
+    /**
+     * Constructor for processor that extracts lines on the thread that
+     * publishes results.
+     */
+    public GorpProcessor(Gorp gorp) {
+        this(gorp, null, 1, DEFAULT_BUFFER_SIZE, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructor for processor that extracts lines using given number of
+     * worker tasks, run by given executor.
+     */
+    public GorpProcessor(Gorp gorp, Executor executor, int parallelism) {
+        this(gorp, Objects.requireNonNull(executor), parallelism, DEFAULT_BUFFER_SIZE, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param executor Executor for worker tasks; if null, lines are extracted
+     *    on the thread that publishes results
+     * @param parallelism Maximum number of worker tasks to run concurrently
+     * @param bufferSize Maximum number of lines to request from upstream before
+     *    they have been consumed
+     * @param batchSize Maximum number of lines a worker task extracts before
+     *    publishing results
+     */
+    public GorpProcessor(Gorp gorp, Executor executor, int parallelism,
+            int bufferSize, int batchSize)
+    {
+        if (parallelism < 1 || bufferSize < 1 || batchSize < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid settings (parallelism %d, buffer size %d, batch size %d): must all be at least 1",
+                    parallelism, bufferSize, batchSize));
+        }
+        _gorp = gorp;
+        _executor = executor;
+        _parallelism = parallelism;
+        _bufferSize = bufferSize;
+        _batchSize = batchSize;
+        _replenishLimit = bufferSize - (bufferSize >> 2);
+    }
+
+    /*
+    /**********************************************************************
+    /* Flow.Publisher
+    /**********************************************************************
+     */
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ExtractionResult> subscriber)
+    {
+        Objects.requireNonNull(subscriber);
+        if (!_subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) { }
+                @Override
+                public void cancel() { }
+            });
+            subscriber.onError(new IllegalStateException("GorpProcessor only supports a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Downstream());
+        // only published to once onSubscribe() has returned
+        _downstream = subscriber;
+        _drain();
+    }
+
+    /*
+    /**********************************************************************
+    /* Flow.Subscriber
+    /**********************************************************************
+     */
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription)
+    {
+        if (_upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        _upstream = subscription;
+        if (_cancelled) {
+            subscription.cancel();
+            return;
+        }
+        _drain();
+    }
+
+    @Override
+    public void onNext(CharSequence item)
+    {
+        final Slot slot = new Slot(item.toString());
+        if (_cancelled) {
+            return;
+        }
+        _slots.add(slot);
+        if (_executor != null) {
+            _unassigned.add(slot);
+            _startWorker();
+        }
+        _drain();
+    }
+
+    @Override
+    public void onError(Throwable t)
+    {
+        _upstreamError = Objects.requireNonNull(t);
+        _upstreamDone = true;
+        _drain();
+    }
+
+    @Override
+    public void onComplete()
+    {
+        _upstreamDone = true;
+        _drain();
+    }
+
+    /*
+    /**********************************************************************
+    /* Extraction
+    /**********************************************************************
+     */
+
+    private void _extract(Slot slot)
+    {
+        try {
+            slot.result = _gorp.extract(slot.line);
+        } catch (Throwable t) {
+            slot.error = t;
+        }
+        slot.done = true;
+    }
+
+    private void _startWorker()
+    {
+        while (true) {
+            final int active = _activeWorkers.get();
+            if (active >= _parallelism) {
+                return;
+            }
+            if (_activeWorkers.compareAndSet(active, active + 1)) {
+                break;
+            }
+        }
+        try {
+            _executor.execute(this::_work);
+        } catch (RejectedExecutionException e) {
+            _activeWorkers.decrementAndGet();
+            _fail(e);
+        }
+    }
+
+    private void _work()
+    {
+        while (true) {
+            int count = 0;
+            Slot slot;
+            while ((count < _batchSize) && !_cancelled && ((slot = _unassigned.poll()) != null)) {
+                _extract(slot);
+                ++count;
+            }
+            if (count > 0) {
+                _drain();
+                continue;
+            }
+            _activeWorkers.decrementAndGet();
+            // lines may have been added after the last poll, but before decrement
+            if (_unassigned.isEmpty() || _cancelled) {
+                return;
+            }
+            final int active = _activeWorkers.get();
+            if ((active >= _parallelism) || !_activeWorkers.compareAndSet(active, active + 1)) {
+                return;
+            }
+        }
+    }
+
+    private void _fail(Throwable t)
+    {
+        if (_failure == null) {
+            _failure = t;
+        }
+        _drain();
+    }
+
+    /*
+    /**********************************************************************
+    /* Publishing
+    /**********************************************************************
+     */
+
+    private void _drain()
+    {
+        if (_wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            _drainLoop();
+            missed = _wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void _drainLoop()
+    {
+        if (_terminated) {
+            return;
+        }
+        if (_cancelled) {
+            _clear();
+            return;
+        }
+        final Flow.Subscriber<? super ExtractionResult> down = _downstream;
+        final Flow.Subscription up = _upstream;
+        if (down == null) {
+            return;
+        }
+        final Throwable failure = _failure;
+        if (failure != null) {
+            _terminate(up);
+            down.onError(failure);
+            return;
+        }
+        if (up == null) {
+            return;
+        }
+        if (!_started) {
+            if (_demand.get() == 0L) { // nothing requested from upstream before downstream asks
+                return;
+            }
+            _started = true;
+            up.request(_bufferSize);
+        }
+        final long demand = _demand.get();
+        long emitted = 0L;
+        while (true) {
+            if (_cancelled) {
+                _clear();
+                return;
+            }
+            // must be read before checking for lines, as upstream may add last
+            // line and complete while drain is running on another thread
+            final boolean done = _upstreamDone;
+            final Slot slot = _slots.peek();
+            if (slot == null) {
+                if (done) {
+                    _terminated = true;
+                    final Throwable t = _upstreamError;
+                    if (t == null) {
+                        down.onComplete();
+                    } else {
+                        down.onError(t);
+                    }
+                    return;
+                }
+                break;
+            }
+            if (!slot.done) {
+                if (_executor != null) { // wait for worker
+                    break;
+                }
+                // otherwise extract as results are needed
+                if (emitted == demand) {
+                    break;
+                }
+                _extract(slot);
+            }
+            if (slot.error != null) {
+                _terminate(up);
+                down.onError(slot.error);
+                return;
+            }
+            if (slot.result != null) {
+                if (emitted == demand) {
+                    break;
+                }
+                _slots.poll();
+                ++emitted;
+                down.onNext(slot.result);
+            } else {
+                _slots.poll();
+            }
+            if (++_consumed == _replenishLimit) {
+                _consumed = 0;
+                if (!_upstreamDone) {
+                    up.request(_replenishLimit);
+                }
+            }
+        }
+        if ((emitted != 0L) && (demand != Long.MAX_VALUE)) {
+            _demand.addAndGet(-emitted);
+        }
+    }
+
+    private void _terminate(Flow.Subscription up)
+    {
+        _terminated = true;
+        _cancelled = true;
+        if (up != null) {
+            up.cancel();
+        }
+        _clear();
+    }
+
+    private void _clear()
+    {
+        _slots.clear();
+        _unassigned.clear();
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    private final class Downstream implements Flow.Subscription
+    {
+        @Override
+        public void request(long n)
+        {
+            if (n <= 0L) {
+                _fail(new IllegalArgumentException("Invalid request: "+n+" (must be positive)"));
+                return;
+            }
+            // cap at "unbounded"
+            while (true) {
+                final long current = _demand.get();
+                if (current == Long.MAX_VALUE) {
+                    break;
+                }
+                long updated = current + n;
+                if (updated < 0L) {
+                    updated = Long.MAX_VALUE;
+                }
+                if (_demand.compareAndSet(current, updated)) {
+                    break;
+                }
+            }
+            _drain();
+        }
+
+        @Override
+        public void cancel()
+        {
+            if (!_cancelled) {
+                _cancelled = true;
+                final Flow.Subscription up = _upstream;
+                if (up != null) {
+                    up.cancel();
+                }
+                _drain();
+            }
+        }
+    }
+
+    /**
+     * Container for a line and, once extracted, its result
+     */
+    private final static class Slot
+    {
+        final String line;
+
+        ExtractionResult result;
+
+        Throwable error;
+
+        /**
+         * Set after result (or error), to publish it to the publishing thread
+         */
+        volatile boolean done;
+
+        Slot(String line) {
+            this.line = line;
+        }
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Package that contains extensions that need Java 9 (or later) types, like
+ * reactive extraction with {@link com.salesforce.gorp.jdk9.GorpProcessor}.
+ */
+package com.salesforce.gorp.jdk9;
@@ -0,0 +1,293 @@
+package com.salesforce.gorp.jdk9;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+
+import junit.framework.TestCase;
+
+public class GorpProcessorTest extends TestCase
+{
+    final static String DEF =
+"pattern %word [a-zA-Z]+\n"+
+"pattern %num \\d+\n"+
+"extract put {  \n"+
+"  template PUT $path(%word) $size(%num)\n"+
+"}\n";
+
+    public void testInlineBackpressure() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(DEF).read();
+        List<String> lines = _lines(1000);
+        ListPublisher upstream = new ListPublisher(lines, null);
+        GorpProcessor proc = new GorpProcessor(gorp, null, 1, 32, 4);
+        upstream.subscribe(proc);
+        Collector down = new Collector();
+        proc.subscribe(down);
+
+        // nothing requested from upstream before downstream asks
+        assertEquals(0L, upstream.requested);
+
+        down.subscription.request(5);
+        assertEquals(5, down.results.size());
+        assertEquals(32L, upstream.requested);
+        assertFalse(down.done);
+
+        // demand respected even if results are available
+        down.subscription.request(3);
+        assertEquals(8, down.results.size());
+
+        while (!down.done) {
+            down.subscription.request(7);
+            assertTrue(upstream.requested - upstream.emitted <= 32L);
+        }
+        assertNull(down.error);
+        assertEquals(_expected(gorp, lines), down.ids());
+        assertTrue(upstream.maxOutstanding <= 32L);
+    }
+
+    public void testParallelOrdered() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(DEF).read();
+        List<String> lines = _lines(5000);
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        try {
+            SubmissionPublisher<CharSequence> upstream = new SubmissionPublisher<>(exec, 64);
+            GorpProcessor proc = new GorpProcessor(gorp, exec, 3);
+            upstream.subscribe(proc);
+            Collector down = new Collector();
+            proc.subscribe(down);
+            down.subscription.request(Long.MAX_VALUE);
+            for (String line : lines) {
+                upstream.submit(line);
+            }
+            upstream.close();
+            assertTrue(down.latch.await(10, TimeUnit.SECONDS));
+            assertNull(down.error);
+            assertEquals(_expected(gorp, lines), down.ids());
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    public void testErrors() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(DEF).read();
+
+        // upstream failure reported after earlier results
+        ListPublisher upstream = new ListPublisher(Arrays.asList("PUT a 1", "x", "PUT b 2"),
+                new IllegalStateException("Upstream failed"));
+        GorpProcessor proc = new GorpProcessor(gorp);
+        upstream.subscribe(proc);
+        Collector down = new Collector();
+        proc.subscribe(down);
+        down.subscription.request(10);
+        assertEquals(2, down.results.size());
+        assertTrue(down.done);
+        assertEquals("Upstream failed", down.error.getMessage());
+
+        // as is failure to extract a line, which also cancels upstream
+        upstream = new ListPublisher(Arrays.asList("PUT a 1", null, "PUT b 2"), null);
+        proc = new GorpProcessor(gorp);
+        upstream.subscribe(proc);
+        down = new Collector();
+        proc.subscribe(down);
+        down.subscription.request(10);
+        assertEquals(1, down.results.size());
+        assertTrue(down.error instanceof NullPointerException);
+        assertTrue(upstream.cancelled);
+
+        // invalid request
+        upstream = new ListPublisher(Arrays.asList("PUT a 1"), null);
+        proc = new GorpProcessor(gorp);
+        upstream.subscribe(proc);
+        down = new Collector();
+        proc.subscribe(down);
+        down.subscription.request(0);
+        assertTrue(down.error instanceof IllegalArgumentException);
+        assertTrue(upstream.cancelled);
+
+        // only one subscriber
+        Collector second = new Collector();
+        proc.subscribe(second);
+        assertTrue(second.error instanceof IllegalStateException);
+    }
+
+    public void testCancel() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(DEF).read();
+        ListPublisher upstream = new ListPublisher(_lines(100), null);
+        GorpProcessor proc = new GorpProcessor(gorp);
+        upstream.subscribe(proc);
+        Collector down = new Collector();
+        proc.subscribe(down);
+        down.subscription.request(2);
+        down.subscription.cancel();
+        assertTrue(upstream.cancelled);
+        down.subscription.request(10);
+        assertEquals(2, down.results.size());
+        assertFalse(down.done);
+    }
+
+    // Last line and completion arriving while a drain runs on the requesting thread
+    public void testCompleteDuringDrain() throws Exception
+    {
+        Gorp gorp = DefinitionReader.reader(DEF).read();
+        for (int i = 0; i < 2000; ++i) {
+            final GorpProcessor proc = new GorpProcessor(gorp);
+            Collector down = new Collector();
+            proc.subscribe(down);
+            proc.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) { }
+                @Override
+                public void cancel() { }
+            });
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread upstream = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) { }
+                proc.onNext("PUT abc 12");
+                proc.onComplete();
+            });
+            upstream.start();
+            start.countDown();
+            while (upstream.isAlive() && !down.done) {
+                down.subscription.request(1);
+            }
+            upstream.join();
+            down.subscription.request(1);
+            assertTrue(down.done);
+            assertNull(down.error);
+            assertEquals("Iteration #"+i, 1, down.results.size());
+        }
+    }
+
+    private static List<String> _lines(int count)
+    {
+        List<String> lines = new ArrayList<>();
+        Random r = new Random(7);
+        for (int i = 0; i < count; ++i) {
+            lines.add(r.nextBoolean() ? ("PUT abc "+i) : ("GET abc "+i));
+        }
+        return lines;
+    }
+
+    private static List<String> _expected(Gorp gorp, List<String> lines) throws Exception
+    {
+        List<String> exp = new ArrayList<>();
+        for (String line : lines) {
+            ExtractionResult result = gorp.extract(line);
+            if (result != null) {
+                exp.add(result.getValue(1));
+            }
+        }
+        return exp;
+    }
+
+    /**
+     * Publisher that emits given lines synchronously, within calls to request()
+     */
+    static class ListPublisher implements Flow.Publisher<CharSequence>, Flow.Subscription
+    {
+        final List<String> lines;
+        final Throwable failure;
+        Flow.Subscriber<? super CharSequence> sub;
+        long requested, emitted, maxOutstanding;
+        boolean cancelled, emitting;
+
+        ListPublisher(List<String> lines, Throwable failure) {
+            this.lines = lines;
+            this.failure = failure;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super CharSequence> s) {
+            sub = s;
+            s.onSubscribe(this);
+        }
+
+        @Override
+        public void request(long n) {
+            requested += n;
+            maxOutstanding = Math.max(maxOutstanding, requested - emitted);
+            if (emitting) {
+                return;
+            }
+            emitting = true;
+            while (!cancelled && emitted < requested && emitted < lines.size()) {
+                final String line = lines.get((int) emitted++);
+                sub.onNext((line == null) ? new NullString() : line);
+            }
+            if (!cancelled && emitted == lines.size()) {
+                cancelled = true; // so that no more is emitted
+                if (failure == null) {
+                    sub.onComplete();
+                } else {
+                    sub.onError(failure);
+                }
+                cancelled = false;
+            }
+            emitting = false;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    static class NullString implements CharSequence
+    {
+        @Override
+        public int length() { return 0; }
+        @Override
+        public char charAt(int index) { throw new IndexOutOfBoundsException(); }
+        @Override
+        public CharSequence subSequence(int start, int end) { return this; }
+        @Override
+        public String toString() { return null; }
+    }
+
+    static class Collector implements Flow.Subscriber<ExtractionResult>
+    {
+        final List<ExtractionResult> results = Collections.synchronizedList(new ArrayList<ExtractionResult>());
+        final CountDownLatch latch = new CountDownLatch(1);
+        Flow.Subscription subscription;
+        volatile boolean done;
+        volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) { subscription = s; }
+
+        @Override
+        public void onNext(ExtractionResult item) { results.add(item); }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            done = true;
+            latch.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            latch.countDown();
+        }
+
+        List<String> ids() {
+            List<String> values = new ArrayList<>();
+            synchronized (results) {
+                for (ExtractionResult result : results) {
+                    values.add(result.getValue(1));
+                }
+            }
+            return values;
+        }
+    }
+}
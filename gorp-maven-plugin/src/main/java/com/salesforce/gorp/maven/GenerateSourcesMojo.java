@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.maven;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.lang.model.SourceVersion;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+import com.salesforce.gorp.DefinitionParseException;
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionCooker;
+import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.PrecompiledGorp;
+import com.salesforce.gorp.jdkre.JDKRegexpExtractionCooker;
+import com.salesforce.gorp.pikevm.PikeVMExtractionCooker;
+import com.salesforce.gorp.tdfa.TDFAExtractionCooker;
+
+/**
+ * Goal that reads Gorp definitions (<code>.grp</code> files) and generates a
+ * Java class for each one, with precompiled automaton and extractions, and a
+ * <code>create()</code> factory method that returns ready-to-use {@link Gorp}
+ * (see {@link PrecompiledGorp#writeSource}).
+ *<p>
+ * Package of the generated class is determined by the directory of the
+ * definition, relative to {@link #sourceDirectory}; and class name by the file
+ * name: for example, <code>src/main/gorp/com/foo/access-log.grp</code> results
+ * in class <code>com.foo.AccessLogGorp</code>.
+ *<p>
+ * Classes are only regenerated if definition has changed since, or if they were
+ * generated with a different cooker or format version (see
+ * {@link PrecompiledGorp#sourceStamp}); and classes generated for definitions
+ * that no longer exist are deleted.
+ */
+@Mojo(name = "generate", defaultPhase = LifecyclePhase.GENERATE_SOURCES, threadSafe = true)
+public class GenerateSourcesMojo extends AbstractMojo
+{
+    protected final static String DEFINITION_SUFFIX = ".grp";
+
+    protected final static String CLASS_SUFFIX = "Gorp";
+
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    protected MavenProject project;
+
+    /**
+     * Directory to read definitions from, recursively.
+     */
+    @Parameter(defaultValue = "${project.basedir}/src/main/gorp", required = true)
+    protected File sourceDirectory;
+
+    /**
+     * Directory to write generated sources to; added as a compile source root.
+     */
+    @Parameter(defaultValue = "${project.build.directory}/generated-sources/gorp", required = true)
+    protected File outputDirectory;
+
+    /**
+     * Extraction backend to build definitions for: one of "jdk" (default),
+     * "tdfa" or "pikevm".
+     */
+    @Parameter(defaultValue = "jdk")
+    protected String cooker;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException
+    {
+        final ExtractionCooker extractionCooker = _cooker(cooker);
+        if (!sourceDirectory.isDirectory()) {
+            getLog().info("No Gorp definition directory '"+sourceDirectory+"', nothing to generate");
+            _deleteStale(outputDirectory, Collections.<File>emptySet());
+            return;
+        }
+        List<String> definitions = new ArrayList<>();
+        _findDefinitions(sourceDirectory, "", definitions);
+        final Set<File> outputs = new HashSet<>();
+        int generated = 0;
+        for (String path : definitions) {
+            final File output = _output(path);
+            outputs.add(output);
+            if (_generate(path, output, extractionCooker)) {
+                ++generated;
+            }
+        }
+        final int deleted = _deleteStale(outputDirectory, outputs);
+        getLog().info(String.format("Generated %d (of %d) precompiled Gorp definitions in '%s'%s",
+                generated, definitions.size(), outputDirectory,
+                (deleted == 0) ? "" : String.format(", deleted %d stale ones", deleted)));
+        project.addCompileSourceRoot(outputDirectory.getPath());
+    }
+
+    /**
+     * @return True if class was (re)generated; false if it was up to date
+     */
+    protected boolean _generate(String path, File output, ExtractionCooker extractionCooker)
+        throws MojoExecutionException, MojoFailureException
+    {
+        final File input = new File(sourceDirectory, path);
+        if (output.exists() && output.lastModified() >= input.lastModified()
+                && PrecompiledGorp.sourceStamp(extractionCooker).equals(_firstLine(output))) {
+            getLog().debug("Precompiled Gorp definition '"+output+"' up to date");
+            return false;
+        }
+        final Gorp gorp;
+        try {
+            gorp = DefinitionReader.reader(input)
+                    .withCooker(extractionCooker)
+                    .read();
+        } catch (DefinitionParseException e) {
+            throw new MojoFailureException("Invalid Gorp definition '"+input+"': "+e.getMessage(), e);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read Gorp definition '"+input+"': "+e.getMessage(), e);
+        }
+        output.getParentFile().mkdirs();
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(output), "UTF-8")) {
+            PrecompiledGorp.writeSource(gorp, extractionCooker, className(path), path, w);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to write precompiled Gorp definition '"+output+"': "
+                    +e.getMessage(), e);
+        }
+        return true;
+    }
+
+    /**
+     * Method for determining name of the class to generate for definition
+     * with given relative path (using '/' as separator): directories are
+     * used as package names, and file name for class name, with characters
+     * not allowed in Java identifiers replaced.
+     */
+    protected static String className(String path)
+    {
+        final String[] parts = path.split("/");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < parts.length - 1; ++i) {
+            if (parts[i].isEmpty()) {
+                continue;
+            }
+            // "my-logs" -> "my_logs"
+            final int start = sb.length();
+            for (int j = 0, end = parts[i].length(); j < end; ++j) {
+                final char c = parts[i].charAt(j);
+                if (sb.length() == start && !Character.isJavaIdentifierStart(c)) {
+                    sb.append('_');
+                }
+                sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+            }
+            if (SourceVersion.isKeyword(sb.substring(start))) {
+                sb.append('_');
+            }
+            sb.append('.');
+        }
+        String name = parts[parts.length - 1];
+        name = name.substring(0, name.length() - DEFINITION_SUFFIX.length());
+        final int nameStart = sb.length();
+        // "access-log" -> "AccessLog"
+        boolean upper = true;
+        for (int i = 0, end = name.length(); i < end; ++i) {
+            final char c = name.charAt(i);
+            if (!Character.isJavaIdentifierPart(c)) {
+                upper = true;
+                continue;
+            }
+            if (sb.length() == nameStart && !Character.isJavaIdentifierStart(c)) {
+                sb.append('_');
+            }
+            sb.append(upper ? Character.toUpperCase(c) : c);
+            upper = false;
+        }
+        return sb.append(CLASS_SUFFIX).toString();
+    }
+
+    private File _output(String path) {
+        return new File(outputDirectory, className(path).replace('.', '/')+".java");
+    }
+
+    /**
+     * Method for deleting classes generated earlier for definitions that
+     * no longer exist, along with directories left empty: only files generated
+     * by this goal (see {@link PrecompiledGorp#SOURCE_STAMP_PREFIX}) are deleted.
+     *
+     * @return Number of classes deleted
+     */
+    protected int _deleteStale(File dir, Set<File> outputs) throws MojoExecutionException
+    {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File f : files) {
+            if (f.isDirectory()) {
+                deleted += _deleteStale(f, outputs);
+                // only succeeds if empty
+                f.delete();
+            } else if (f.getName().endsWith(".java") && !outputs.contains(f)) {
+                final String first = _firstLine(f);
+                if ((first != null) && first.startsWith(PrecompiledGorp.SOURCE_STAMP_PREFIX)) {
+                    getLog().info("Deleting precompiled Gorp definition '"+f+"', definition no longer exists");
+                    if (!f.delete()) {
+                        throw new MojoExecutionException("Failed to delete stale precompiled Gorp definition '"+f+"'");
+                    }
+                    ++deleted;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private static String _firstLine(File f) throws MojoExecutionException
+    {
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"))) {
+            return r.readLine();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read generated source '"+f+"': "+e.getMessage(), e);
+        }
+    }
+
+    private static void _findDefinitions(File dir, String prefix, List<String> result)
+    {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isDirectory()) {
+                _findDefinitions(f, prefix + f.getName() + "/", result);
+            } else if (f.getName().endsWith(DEFINITION_SUFFIX)) {
+                result.add(prefix + f.getName());
+            }
+        }
+    }
+
+    private static ExtractionCooker _cooker(String name) throws MojoExecutionException
+    {
+        switch (name) {
+        case "jdk":
+            return JDKRegexpExtractionCooker.instance();
+        case "tdfa":
+            return TDFAExtractionCooker.instance();
+        case "pikevm":
+            return PikeVMExtractionCooker.instance();
+        }
+        throw new MojoExecutionException("Unknown Gorp cooker '"+name
+                +"': must be one of 'jdk', 'tdfa' or 'pikevm'");
+    }
+}
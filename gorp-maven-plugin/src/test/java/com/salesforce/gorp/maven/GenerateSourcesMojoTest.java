@@ -0,0 +1,143 @@
+package com.salesforce.gorp.maven;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.apache.maven.project.MavenProject;
+
+import com.salesforce.gorp.ExtractionResult;
+import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.PrecompiledGorp;
+import com.salesforce.gorp.tdfa.TDFAExtractionCooker;
+
+import junit.framework.TestCase;
+
+public class GenerateSourcesMojoTest extends TestCase
+{
+    final static String DEF =
+"pattern %word [a-zA-Z]+\n"+
+"pattern %num \\d+\n"+
+"extract put {  \n"+
+"  template PUT $path(%word) $size(%num)\n"+
+"}\n";
+
+    public void testClassName()
+    {
+        assertEquals("AccessLogGorp", GenerateSourcesMojo.className("access-log.grp"));
+        assertEquals("com.foo.AccessLogGorp", GenerateSourcesMojo.className("com/foo/access-log.grp"));
+        assertEquals("_9Gorp", GenerateSourcesMojo.className("9.grp"));
+        // package names are sanitized too
+        assertEquals("my_logs.XGorp", GenerateSourcesMojo.className("my-logs/x.grp"));
+        assertEquals("_1st.int_.a_b.AB_cGorp", GenerateSourcesMojo.className("1st/int/a.b/a.b_c.grp"));
+    }
+
+    public void testGenerate() throws Exception
+    {
+        final File base = Files.createTempDirectory("gorp-mojo").toFile();
+        try {
+            File src = new File(base, "gorp");
+            File out = new File(base, "generated");
+            _write(new File(src, "my-logs/access-log.grp"), DEF);
+            _write(new File(src, "other.grp"), DEF);
+            GenerateSourcesMojo mojo = _mojo(src, out, "jdk");
+            mojo.execute();
+            assertEquals(1, mojo.project.getCompileSourceRoots().size());
+
+            final File access = new File(out, "my_logs/AccessLogGorp.java");
+            final File other = new File(out, "OtherGorp.java");
+            assertTrue(access.isFile());
+            assertTrue(other.isFile());
+            Gorp gorp = _compileAndCreate(out, "my_logs.AccessLogGorp", access);
+            ExtractionResult result = gorp.extract("PUT abc 12");
+            assertEquals("12", result.getValue(1));
+
+            // up to date: not regenerated
+            final String marked = _read(access)+"// marker\n";
+            _write(access, marked);
+            access.setLastModified(System.currentTimeMillis() + 10000L);
+            _mojo(src, out, "jdk").execute();
+            assertEquals(marked, _read(access));
+
+            // but is with different cooker
+            _mojo(src, out, "tdfa").execute();
+            String regenerated = _read(access);
+            assertFalse(regenerated.contains("// marker"));
+            assertTrue(regenerated.startsWith(PrecompiledGorp.sourceStamp(TDFAExtractionCooker.instance())));
+
+            // classes of removed definitions deleted, other sources left alone
+            File handWritten = new File(out, "my_logs/Other.java");
+            _write(handWritten, "package my_logs; class Other { }\n");
+            assertTrue(new File(src, "other.grp").delete());
+            assertTrue(new File(src, "my-logs/access-log.grp").delete());
+            _mojo(src, out, "tdfa").execute();
+            assertFalse(other.exists());
+            assertFalse(access.exists());
+            assertTrue(handWritten.exists());
+        } finally {
+            _delete(base);
+        }
+    }
+
+    public void testInvalidCooker() throws Exception
+    {
+        try {
+            _mojo(new File("."), new File("."), "re2").execute();
+            fail("Should not pass");
+        } catch (org.apache.maven.plugin.MojoExecutionException e) {
+            assertTrue(e.getMessage().contains("Unknown Gorp cooker 're2'"));
+        }
+    }
+
+    private static GenerateSourcesMojo _mojo(File src, File out, String cooker)
+    {
+        GenerateSourcesMojo mojo = new GenerateSourcesMojo();
+        mojo.project = new MavenProject();
+        mojo.sourceDirectory = src;
+        mojo.outputDirectory = out;
+        mojo.cooker = cooker;
+        return mojo;
+    }
+
+    private static Gorp _compileAndCreate(File dir, String className, File srcFile) throws Exception
+    {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertNotNull("Need JDK to run test", compiler);
+        String cp = new File(Gorp.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        int status = compiler.run(null, null, errors, "-encoding", "UTF-8", "-classpath", cp,
+                "-d", dir.getPath(), srcFile.getPath());
+        assertEquals("Compilation failed: "+errors.toString("UTF-8"), 0, status);
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { dir.toURI().toURL() },
+                GenerateSourcesMojoTest.class.getClassLoader())) {
+            return (Gorp) loader.loadClass(className).getMethod("create").invoke(null);
+        }
+    }
+
+    private static void _write(File f, String content) throws IOException
+    {
+        f.getParentFile().mkdirs();
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8")) {
+            w.write(content);
+        }
+    }
+
+    private static String _read(File f) throws IOException {
+        return new String(Files.readAllBytes(f.toPath()), "UTF-8");
+    }
+
+    private static void _delete(File f)
+    {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                _delete(child);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.perf;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.ExtractionCooker;
+import com.salesforce.gorp.Gorp;
+import com.salesforce.gorp.io.InputLineReader;
+import com.salesforce.gorp.jdkre.JDKRegexpExtractionCooker;
+import com.salesforce.gorp.pikevm.PikeVMExtractionCooker;
+import com.salesforce.gorp.tdfa.TDFAExtractionCooker;
+
+/**
+ * Benchmark for comparing extraction backends (cookers) on sample definitions
+ * and input: measures time to extract values out of all sample lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtractionBenchmark
+{
+    @Param({ "jdk", "pikevm", "tdfa" })
+    public String cooker;
+
+    /**
+     * Name of sample to use: definition is read from <code>[sample].grp</code>,
+     * input lines from <code>[sample].log</code>
+     */
+    @Param({ "syslog" })
+    public String sample;
+
+    protected Gorp _gorp;
+
+    protected String[] _lines;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        InputStream in = _resource(sample+".grp");
+        _gorp = DefinitionReader.reader(InputLineReader.construct(sample+".grp", in, true))
+                .withCooker(_cooker(cooker))
+                .read();
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(_resource(sample+".log"),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        _lines = lines.toArray(new String[lines.size()]);
+    }
+
+    @Benchmark
+    public void extract(Blackhole bh) throws Exception
+    {
+        for (String line : _lines) {
+            bh.consume(_gorp.extract(line));
+        }
+    }
+
+    private static ExtractionCooker _cooker(String name)
+    {
+        switch (name) {
+        case "jdk":
+            return JDKRegexpExtractionCooker.instance();
+        case "pikevm":
+            return PikeVMExtractionCooker.instance();
+        case "tdfa":
+            return TDFAExtractionCooker.instance();
+        }
+        throw new IllegalArgumentException("Unknown cooker '"+name+"'");
+    }
+
+    private static InputStream _resource(String name) throws IOException
+    {
+        InputStream in = ExtractionBenchmark.class.getResourceAsStream("/"+name);
+        if (in == null) {
+            throw new FileNotFoundException("No sample resource '"+name+"'");
+        }
+        return in;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+package com.salesforce.gorp.perf;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.salesforce.gorp.DefinitionReader;
+import com.salesforce.gorp.autom.MatcherConfig;
+import com.salesforce.gorp.autom.PolyMatcher;
+import com.salesforce.gorp.io.InputLineReader;
+
+/**
+ * Benchmark for comparing table-driven matching against generated matcher
+ * bytecode (see {@link MatcherConfig#withBytecodeGeneration}): measures time
+ * to find the first matching pattern for all sample lines, without extraction.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatcherBenchmark
+{
+    @Param({ "tables", "bytecode" })
+    public String matcher;
+
+    /**
+     * Name of sample to use: definition is read from <code>[sample].grp</code>,
+     * input lines from <code>[sample].log</code>
+     */
+    @Param({ "access", "syslog" })
+    public String sample;
+
+    protected PolyMatcher _matcher;
+
+    protected String[] _lines;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        final MatcherConfig config = MatcherConfig.DEFAULT
+                .withBytecodeGeneration("bytecode".equals(matcher));
+        _matcher = DefinitionReader.reader(InputLineReader.construct(sample+".grp",
+                _resource(sample+".grp"), true))
+                .withMatcherConfig(config)
+                .read()
+                .getMatcher();
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(_resource(sample+".log"),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        _lines = lines.toArray(new String[lines.size()]);
+    }
+
+    @Benchmark
+    public void matchFirst(Blackhole bh)
+    {
+        for (String line : _lines) {
+            bh.consume(_matcher.matchFirst(line));
+        }
+    }
+
+    private static InputStream _resource(String name) throws IOException
+    {
+        InputStream in = MatcherBenchmark.class.getResourceAsStream("/"+name);
+        if (in == null) {
+            throw new FileNotFoundException("No sample resource '"+name+"'");
+        }
+        return in;
+    }
+}